@@ -0,0 +1,34 @@
+package com.am.jlfu.authorizer;
+
+
+import java.util.UUID;
+
+import javax.servlet.http.HttpServletRequest;
+
+import com.am.jlfu.fileuploader.json.PrepareUploadJson;
+import com.am.jlfu.fileuploader.logic.UploadPriority;
+
+
+
+/**
+ * An {@link Authorizer} which also assigns the priority of the uploads.<br>
+ * Without it, a client can only ask for a priority lower than {@link UploadPriority#standard}.
+ * 
+ * @author antoinem
+ * 
+ */
+public interface PriorityAuthorizer
+		extends Authorizer {
+
+	/**
+	 * @param request
+	 *            the initial servlet request
+	 * @param clientId
+	 *            the identifier of the client
+	 * @param newFile
+	 *            the file being prepared, with the priority asked by the client if any
+	 * @return the priority of the upload of this file, or null for the one asked by the client
+	 */
+	UploadPriority getUploadPriority(HttpServletRequest request, UUID clientId, PrepareUploadJson newFile);
+
+}
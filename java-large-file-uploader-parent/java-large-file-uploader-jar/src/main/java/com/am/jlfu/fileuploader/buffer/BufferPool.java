@@ -0,0 +1,240 @@
+package com.am.jlfu.fileuploader.buffer;
+
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+
+
+/**
+ * Pool of byte buffers used by the upload and crc processing.<br/>
+ * Buffers are segmented in power of two size classes ranging from {@link #MINIMUM_BUFFER_SIZE} to
+ * {@link #MAXIMUM_BUFFER_SIZE}. A released buffer first goes back to a small cache owned by the
+ * releasing thread, then to a shared arena whose total size is bounded by
+ * {@link #maximumPooledSizeInBytes}. When the arena is full, the buffer is left to the garbage
+ * collector. The threads which are about to end shall release their buffers with
+ * {@link #releaseToArena(byte[])}, since their caches are lost with them.
+ *
+ * @author antoinem
+ *
+ */
+@Component
+@ManagedResource(objectName = "JavaLargeFileUploader:name=bufferPool")
+public class BufferPool {
+
+	private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
+
+	/** The size of the smallest size class */
+	public static final int MINIMUM_BUFFER_SIZE = 8192;// 8KB
+
+	/** The size of the biggest size class */
+	public static final int MAXIMUM_BUFFER_SIZE = 1048576;// 1MB
+
+	/** The number of buffers of each size class that each thread can keep for itself */
+	static final int THREAD_CACHE_SIZE = 2;
+
+	/** The number of size classes */
+	static final int NUMBER_OF_SIZE_CLASSES = Integer.numberOfTrailingZeros(MAXIMUM_BUFFER_SIZE / MINIMUM_BUFFER_SIZE) + 1;
+
+	/** The maximum amount of bytes retained by the shared arena */
+	@Value("jlfu{jlfu.bufferPool.maximumPooledSizeInBytes:67108864}")
+	volatile long maximumPooledSizeInBytes;
+
+	/** The shared arena, one queue per size class */
+	private final Queue<byte[]>[] arena;
+
+	/** The caches of the threads, one queue per size class */
+	private final ThreadLocal<Queue<byte[]>[]> threadCaches = new ThreadLocal<Queue<byte[]>[]>() {
+
+		@Override
+		protected Queue<byte[]>[] initialValue() {
+			return newQueues(false);
+		}
+	};
+
+	/** The amount of bytes currently retained by the shared arena */
+	private final AtomicLong pooledSizeInBytes = new AtomicLong();
+
+	/** Statistics */
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong outstanding = new AtomicLong();
+
+
+
+	public BufferPool() {
+		arena = newQueues(true);
+	}
+
+
+	private static Queue<byte[]>[] newQueues(boolean concurrent) {
+
+		// an array of a generic type cannot be created, the raw one is only filled here with queues of buffers
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Queue<byte[]>[] queues = new Queue[NUMBER_OF_SIZE_CLASSES];
+		for (int i = 0; i < queues.length; i++) {
+			queues[i] = concurrent ? new ConcurrentLinkedQueue<byte[]>() : new ArrayDeque<byte[]>(THREAD_CACHE_SIZE);
+		}
+		return queues;
+	}
+
+
+	/**
+	 * Borrows a buffer from the pool.<br/>
+	 * The returned buffer is at least of the requested size and is not zeroed. It shall be given
+	 * back with {@link #release(byte[])} once it is not used anymore.
+	 *
+	 * @param minimumSize
+	 *            the minimum size of the buffer in bytes
+	 * @return a buffer
+	 */
+	public byte[] acquire(int minimumSize) {
+		outstanding.incrementAndGet();
+
+		// if the buffer is too big to be pooled, just allocate it
+		int sizeClass = getSizeClass(minimumSize);
+		if (sizeClass == -1) {
+			misses.incrementAndGet();
+			return new byte[minimumSize];
+		}
+
+		// try the cache of the thread first
+		byte[] buffer = threadCaches.get()[sizeClass].poll();
+
+		// then the shared arena
+		if (buffer == null) {
+			buffer = arena[sizeClass].poll();
+			if (buffer != null) {
+				pooledSizeInBytes.addAndGet(-buffer.length);
+			}
+		}
+
+		// and allocate if there is none
+		if (buffer == null) {
+			misses.incrementAndGet();
+			buffer = new byte[getSizeOfClass(sizeClass)];
+			log.trace("allocated new buffer of " + buffer.length + " bytes");
+		}
+		else {
+			hits.incrementAndGet();
+		}
+		return buffer;
+	}
+
+
+	/**
+	 * Gives back a buffer previously obtained through {@link #acquire(int)}.
+	 *
+	 * @param buffer
+	 */
+	public void release(byte[] buffer) {
+		release(buffer, true);
+	}
+
+
+	/**
+	 * Gives back a buffer previously obtained through {@link #acquire(int)} directly to the shared
+	 * arena, without going through the cache of the thread. To be used by the threads which do not
+	 * live long enough to acquire it again.
+	 *
+	 * @param buffer
+	 */
+	public void releaseToArena(byte[] buffer) {
+		release(buffer, false);
+	}
+
+
+	private void release(byte[] buffer, boolean threadCacheAllowed) {
+		outstanding.decrementAndGet();
+
+		// buffers which do not match a size class are not pooled
+		int sizeClass = getSizeClass(buffer.length);
+		if (sizeClass == -1 || getSizeOfClass(sizeClass) != buffer.length) {
+			return;
+		}
+
+		// try to keep it in the cache of the thread
+		if (threadCacheAllowed) {
+			Queue<byte[]> threadCache = threadCaches.get()[sizeClass];
+			if (threadCache.size() < THREAD_CACHE_SIZE) {
+				threadCache.offer(buffer);
+				return;
+			}
+		}
+
+		// otherwise give it to the arena if it is not full
+		if (pooledSizeInBytes.addAndGet(buffer.length) <= maximumPooledSizeInBytes) {
+			arena[sizeClass].offer(buffer);
+		}
+		else {
+			pooledSizeInBytes.addAndGet(-buffer.length);
+		}
+	}
+
+
+	/**
+	 * @param size
+	 * @return the index of the smallest size class able to hold the specified size or -1 if the
+	 *         size is bigger than {@link #MAXIMUM_BUFFER_SIZE}
+	 */
+	static int getSizeClass(int size) {
+		if (size > MAXIMUM_BUFFER_SIZE) {
+			return -1;
+		}
+		if (size <= MINIMUM_BUFFER_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros((size - 1) / MINIMUM_BUFFER_SIZE);
+	}
+
+
+	static int getSizeOfClass(int sizeClass) {
+		return MINIMUM_BUFFER_SIZE << sizeClass;
+	}
+
+
+	@ManagedAttribute
+	public long getHits() {
+		return hits.get();
+	}
+
+
+	@ManagedAttribute
+	public long getMisses() {
+		return misses.get();
+	}
+
+
+	@ManagedAttribute
+	public long getOutstanding() {
+		return outstanding.get();
+	}
+
+
+	@ManagedAttribute
+	public long getPooledSizeInBytes() {
+		return pooledSizeInBytes.get();
+	}
+
+
+	@ManagedAttribute
+	public long getMaximumPooledSizeInBytes() {
+		return maximumPooledSizeInBytes;
+	}
+
+
+	@ManagedAttribute
+	public void setMaximumPooledSizeInBytes(long maximumPooledSizeInBytes) {
+		this.maximumPooledSizeInBytes = maximumPooledSizeInBytes;
+	}
+
+}
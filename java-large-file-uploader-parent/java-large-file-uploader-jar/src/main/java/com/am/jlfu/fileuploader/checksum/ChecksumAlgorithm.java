@@ -0,0 +1,151 @@
+package com.am.jlfu.fileuploader.checksum;
+
+
+import java.math.BigInteger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+
+
+/**
+ * The algorithms which can be used to check the integrity of the chunks.<br>
+ * The algorithm of a file is negotiated with the client when getting the configuration and
+ * specified when preparing the upload. Its value travels as an hexadecimal string.
+ *
+ * @author antoinem
+ *
+ */
+public enum ChecksumAlgorithm {
+
+	/**
+	 * {@link CRC32}, the default one, also the one used by the clients which do not negotiate the
+	 * algorithm.
+	 */
+	crc32 {
+
+		@Override
+		public Checksum newChecksum() {
+			return new CRC32();
+		}
+	},
+
+	/**
+	 * <code>java.util.zip.CRC32C</code>, computed with the dedicated instructions of the cpu. Only
+	 * available if the runtime provides it (java 9 and above).
+	 */
+	crc32c {
+
+		@Override
+		public Checksum newChecksum() {
+			try {
+				return (Checksum) CRC32C_CLASS.newInstance();
+			}
+			catch (Exception e) {
+				throw new IllegalStateException("crc32c is not available", e);
+			}
+		}
+
+
+		@Override
+		public boolean isAvailable() {
+			return CRC32C_CLASS != null;
+		}
+	},
+
+	/**
+	 * {@link Adler32}, cheaper than {@link #crc32}, especially for a javascript client.
+	 */
+	adler32 {
+
+		@Override
+		public Checksum newChecksum() {
+			return new Adler32();
+		}
+	},
+
+	/**
+	 * {@link XXHash64}, a 64 bits non cryptographic hash.
+	 */
+	xxhash64 {
+
+		@Override
+		public Checksum newChecksum() {
+			return new XXHash64();
+		}
+	};
+
+	private static final Class<?> CRC32C_CLASS = getCrc32cClass();
+
+
+
+	/**
+	 * @return a new {@link Checksum} computing this algorithm
+	 */
+	public abstract Checksum newChecksum();
+
+
+	/**
+	 * @return true if this algorithm can be used with the current runtime
+	 */
+	public boolean isAvailable() {
+		return true;
+	}
+
+
+	/**
+	 * @return the value of the checksum as the hexadecimal string sent by the clients
+	 */
+	public static String toString(Checksum checksum) {
+		return Long.toHexString(checksum.getValue());
+	}
+
+
+	/**
+	 * Compares two checksum values, regardless of their case and of their leading zeros.
+	 *
+	 * @return true if both are the hexadecimal representation of the same value
+	 */
+	public static boolean sameValue(String checksum, String otherChecksum) {
+		if (checksum == null || otherChecksum == null) {
+			return false;
+		}
+		if (checksum.equalsIgnoreCase(otherChecksum)) {
+			return true;
+		}
+		try {
+			BigInteger value = new BigInteger(checksum.trim(), 16);
+			return value.signum() >= 0 && value.equals(new BigInteger(otherChecksum.trim(), 16));
+		}
+		catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+
+	/**
+	 * @return the algorithm with the specified name, {@link #crc32} if the name is null
+	 * @throws IllegalArgumentException
+	 *             if the algorithm does not exist or is not available
+	 */
+	public static ChecksumAlgorithm fromName(String name) {
+		if (name == null) {
+			return crc32;
+		}
+		ChecksumAlgorithm checksumAlgorithm = valueOf(name.trim().toLowerCase());
+		if (!checksumAlgorithm.isAvailable()) {
+			throw new IllegalArgumentException("The checksum algorithm " + name + " is not available");
+		}
+		return checksumAlgorithm;
+	}
+
+
+	private static Class<?> getCrc32cClass() {
+		try {
+			return Class.forName("java.util.zip.CRC32C");
+		}
+		catch (ClassNotFoundException e) {
+			return null;
+		}
+	}
+}
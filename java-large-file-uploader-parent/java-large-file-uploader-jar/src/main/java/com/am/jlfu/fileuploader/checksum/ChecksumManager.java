@@ -0,0 +1,337 @@
+package com.am.jlfu.fileuploader.checksum;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import com.am.jlfu.fileuploader.buffer.BufferPool;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+
+
+/**
+ * Manages the integrity checks of the files:
+ * <ul>
+ * <li>negotiates the {@link ChecksumAlgorithm} of the chunks with the clients, among the allowed
+ * ones</li>
+ * <li>optionally computes a SHA-256 digest of the whole file. It is computed incrementally while
+ * the chunks are written in order, and by reading the file once it is complete otherwise (parallel
+ * slices, upload resumed after a restart...). The files are read by an executor of their own, out
+ * of the requests completing them.</li>
+ * </ul>
+ *
+ * @author antoinem
+ *
+ */
+@Component
+@ManagedResource(objectName = "JavaLargeFileUploader:name=checksumManager")
+public class ChecksumManager {
+
+	private static final Logger log = LoggerFactory.getLogger(ChecksumManager.class);
+
+	static final String DIGEST_ALGORITHM = "SHA-256";
+
+	/** The size of the buffer used to read a file to digest it */
+	private static final int SIZE_OF_THE_BUFFER_IN_BYTES = 65536;// 64KB
+
+	@Autowired
+	private BufferPool bufferPool;
+
+	/**
+	 * The algorithms the clients can use, by order of preference of the server.<br>
+	 * Default to all of them.
+	 */
+	@Value("jlfu{jlfu.checksum.algorithms:crc32,crc32c,adler32,xxhash64}")
+	private volatile String algorithms;
+
+	/**
+	 * Computes the SHA-256 digest of the uploaded files.<br>
+	 * Default to <code>false</code>
+	 */
+	@Value("jlfu{jlfu.checksum.sha256:false}")
+	private volatile boolean sha256;
+
+	/** The digests of the files being uploaded, with the amount of bytes they cover */
+	private final Cache<UUID, FileDigest> digests = CacheBuilder.newBuilder().expireAfterAccess(1, TimeUnit.HOURS).build();
+
+	/** The executor reading the files whose digest has not been computed during the upload */
+	private ExecutorService fileDigestExecutor;
+
+
+
+	/**
+	 * Listens to the digest of a complete file.
+	 */
+	public interface FileDigestListener {
+
+		/**
+		 * @param sha256
+		 *            the digest as an hexadecimal string, or null if the digest is disabled or cannot
+		 *            be computed
+		 */
+		void digested(String sha256);
+	}
+
+
+
+	@PostConstruct
+	private void start() {
+		fileDigestExecutor = Executors.newSingleThreadExecutor();
+	}
+
+
+	@PreDestroy
+	private void stop() {
+		fileDigestExecutor.shutdownNow();
+	}
+
+
+
+	/**
+	 * Chooses the algorithm of the chunks among the ones supported by the client.
+	 *
+	 * @param clientAlgorithms
+	 *            the algorithms supported by the client, comma separated, by order of preference. If
+	 *            null, the client only supports {@link ChecksumAlgorithm#crc32}.
+	 * @return the first algorithm of the client which is allowed and available,
+	 *         {@link ChecksumAlgorithm#crc32} if there is none
+	 */
+	public ChecksumAlgorithm negotiate(String clientAlgorithms) {
+		if (clientAlgorithms != null) {
+			for (String name : clientAlgorithms.split(",")) {
+				ChecksumAlgorithm checksumAlgorithm = find(name);
+				if (checksumAlgorithm != null && checksumAlgorithm.isAvailable() && isAllowed(checksumAlgorithm)) {
+					return checksumAlgorithm;
+				}
+			}
+		}
+		return ChecksumAlgorithm.crc32;
+	}
+
+
+	/**
+	 * @return the algorithm with the specified name, {@link ChecksumAlgorithm#crc32} if the name is
+	 *         null
+	 * @throws IllegalArgumentException
+	 *             if the algorithm is unknown, not available or not allowed
+	 */
+	public ChecksumAlgorithm getAlgorithm(String name) {
+		ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.fromName(name);
+		if (name != null && !isAllowed(checksumAlgorithm)) {
+			throw new IllegalArgumentException("The checksum algorithm " + name + " is not allowed");
+		}
+		return checksumAlgorithm;
+	}
+
+
+	boolean isAllowed(ChecksumAlgorithm checksumAlgorithm) {
+		for (String name : algorithms.split(",")) {
+			if (checksumAlgorithm == find(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	private static ChecksumAlgorithm find(String name) {
+		for (ChecksumAlgorithm checksumAlgorithm : ChecksumAlgorithm.values()) {
+			if (checksumAlgorithm.name().equalsIgnoreCase(name.trim())) {
+				return checksumAlgorithm;
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * Returns the digest of the file covering the bytes before the specified position, to be
+	 * updated with the bytes of a chunk written at this position.<br>
+	 * The returned digest is a copy, the one of the file is only replaced by
+	 * {@link #digestUpdated(UUID, MessageDigest, long)} once the chunk is validated.
+	 *
+	 * @param fileId
+	 * @param position
+	 * @return the digest or null if the digest is disabled or if it cannot be computed incrementally
+	 *         for this chunk
+	 */
+	public MessageDigest getDigest(UUID fileId, long position) {
+		if (!sha256) {
+			return null;
+		}
+		try {
+			if (position == 0) {
+				return MessageDigest.getInstance(DIGEST_ALGORITHM);
+			}
+			FileDigest fileDigest = digests.getIfPresent(fileId);
+			if (fileDigest != null && fileDigest.bytes == position) {
+				return (MessageDigest) fileDigest.digest.clone();
+			}
+		}
+		catch (NoSuchAlgorithmException e) {
+			log.error("cannot compute the digest of the file " + fileId + ": " + e.getMessage(), e);
+		}
+		catch (CloneNotSupportedException e) {
+			log.error("cannot compute the digest of the file " + fileId + ": " + e.getMessage(), e);
+		}
+		return null;
+	}
+
+
+	/**
+	 * Specifies that the digest covers the specified amount of bytes at the beginning of the file.
+	 *
+	 * @param fileId
+	 * @param digest
+	 *            a digest returned by {@link #getDigest(UUID, long)}
+	 * @param bytes
+	 */
+	public void digestUpdated(UUID fileId, MessageDigest digest, long bytes) {
+		if (digest != null) {
+			digests.put(fileId, new FileDigest(digest, bytes));
+		}
+	}
+
+
+	/**
+	 * Gives the digest of a complete file to the listener. If it has been computed incrementally or
+	 * if the digest is disabled, the listener is called right away. Otherwise the file is read by
+	 * the executor of the digests, which then calls the listener.
+	 *
+	 * @param fileId
+	 * @param file
+	 * @param listener
+	 */
+	public void digestFile(final UUID fileId, final File file, final FileDigestListener listener) {
+		FileDigest fileDigest = digests.getIfPresent(fileId);
+		digests.invalidate(fileId);
+		if (!sha256) {
+			listener.digested(null);
+			return;
+		}
+		if (fileDigest != null && fileDigest.bytes == file.length()) {
+			listener.digested(toHexString(fileDigest.digest.digest()));
+			return;
+		}
+		log.debug("digest of file " + fileId + " has not been computed during the upload, reading the file");
+		fileDigestExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				String fileDigest = null;
+				try {
+					fileDigest = toHexString(digest(file).digest());
+				}
+				catch (IOException e) {
+					log.error("cannot compute the digest of the file " + fileId + ": " + e.getMessage(), e);
+				}
+				listener.digested(fileDigest);
+			}
+		});
+	}
+
+
+	private MessageDigest digest(File file)
+			throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		byte[] buffer = bufferPool.acquire(SIZE_OF_THE_BUFFER_IN_BYTES);
+		FileInputStream inputStream = null;
+		try {
+			inputStream = new FileInputStream(file);
+			int read;
+			while ((read = inputStream.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		finally {
+			IOUtils.closeQuietly(inputStream);
+			bufferPool.release(buffer);
+		}
+		return digest;
+	}
+
+
+	/**
+	 * Forgets the digest of a file.
+	 */
+	public void clear(UUID fileId) {
+		digests.invalidate(fileId);
+	}
+
+
+	/**
+	 * @return the bytes of a digest as an hexadecimal string
+	 */
+	public static String toHexString(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit(b >> 4 & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+
+	@ManagedAttribute
+	public String getAlgorithms() {
+		return algorithms;
+	}
+
+
+	@ManagedAttribute
+	public void setAlgorithms(String algorithms) {
+		this.algorithms = algorithms;
+	}
+
+
+	@ManagedAttribute
+	public boolean isSha256() {
+		return sha256;
+	}
+
+
+	@ManagedAttribute
+	public void setSha256(boolean sha256) {
+		this.sha256 = sha256;
+	}
+
+
+
+	private static class FileDigest {
+
+		private final MessageDigest digest;
+		private final long bytes;
+
+
+
+		FileDigest(MessageDigest digest, long bytes) {
+			this.digest = digest;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.am.jlfu.fileuploader.checksum;
+
+
+import java.util.zip.Checksum;
+
+
+
+/**
+ * Streaming implementation of the 64 bits xxHash (seed 0).<br>
+ * The bytes are processed by stripes of 32 bytes, the ones which do not fill a stripe are kept
+ * until the next update or until the value is asked.
+ *
+ * @author antoinem
+ *
+ */
+public class XXHash64
+		implements Checksum {
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	private static final int STRIPE_SIZE = 32;
+
+	/** The accumulators */
+	private long v1;
+	private long v2;
+	private long v3;
+	private long v4;
+
+	/** The amount of bytes processed */
+	private long length;
+
+	/** The bytes which do not fill a stripe yet */
+	private final byte[] stripe = new byte[STRIPE_SIZE];
+	private int stripeSize;
+
+
+
+	public XXHash64() {
+		reset();
+	}
+
+
+	@Override
+	public void update(int b) {
+		update(new byte[] { (byte) b }, 0, 1);
+	}
+
+
+	@Override
+	public void update(byte[] b, int off, int len) {
+		length += len;
+
+		// not enough to fill the stripe
+		if (stripeSize + len < STRIPE_SIZE) {
+			System.arraycopy(b, off, stripe, stripeSize, len);
+			stripeSize += len;
+			return;
+		}
+
+		// complete the pending stripe
+		if (stripeSize > 0) {
+			int count = STRIPE_SIZE - stripeSize;
+			System.arraycopy(b, off, stripe, stripeSize, count);
+			processStripe(stripe, 0);
+			off += count;
+			len -= count;
+			stripeSize = 0;
+		}
+
+		// process the stripes directly from the input
+		while (len >= STRIPE_SIZE) {
+			processStripe(b, off);
+			off += STRIPE_SIZE;
+			len -= STRIPE_SIZE;
+		}
+
+		// and keep the rest
+		System.arraycopy(b, off, stripe, 0, len);
+		stripeSize = len;
+	}
+
+
+	@Override
+	public long getValue() {
+		long hash;
+		if (length >= STRIPE_SIZE) {
+			hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			hash = mergeRound(hash, v1);
+			hash = mergeRound(hash, v2);
+			hash = mergeRound(hash, v3);
+			hash = mergeRound(hash, v4);
+		}
+		else {
+			hash = PRIME5;
+		}
+		hash += length;
+
+		// the bytes left
+		int i = 0;
+		for (; i + 8 <= stripeSize; i += 8) {
+			hash ^= round(0, getLong(stripe, i));
+			hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+		}
+		if (i + 4 <= stripeSize) {
+			hash ^= (getInt(stripe, i) & 0xFFFFFFFFL) * PRIME1;
+			hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+			i += 4;
+		}
+		for (; i < stripeSize; i++) {
+			hash ^= (stripe[i] & 0xFF) * PRIME5;
+			hash = Long.rotateLeft(hash, 11) * PRIME1;
+		}
+
+		// avalanche
+		hash ^= hash >>> 33;
+		hash *= PRIME2;
+		hash ^= hash >>> 29;
+		hash *= PRIME3;
+		hash ^= hash >>> 32;
+		return hash;
+	}
+
+
+	@Override
+	public void reset() {
+		v1 = PRIME1 + PRIME2;
+		v2 = PRIME2;
+		v3 = 0;
+		v4 = -PRIME1;
+		length = 0;
+		stripeSize = 0;
+	}
+
+
+	private void processStripe(byte[] b, int off) {
+		v1 = round(v1, getLong(b, off));
+		v2 = round(v2, getLong(b, off + 8));
+		v3 = round(v3, getLong(b, off + 16));
+		v4 = round(v4, getLong(b, off + 24));
+	}
+
+
+	private static long round(long accumulator, long input) {
+		accumulator += input * PRIME2;
+		accumulator = Long.rotateLeft(accumulator, 31);
+		return accumulator * PRIME1;
+	}
+
+
+	private static long mergeRound(long accumulator, long value) {
+		accumulator ^= round(0, value);
+		return accumulator * PRIME1 + PRIME4;
+	}
+
+
+	private static long getLong(byte[] b, int off) {
+		return (getInt(b, off) & 0xFFFFFFFFL) | (long) getInt(b, off + 4) << 32;
+	}
+
+
+	private static int getInt(byte[] b, int off) {
+		return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+	}
+}
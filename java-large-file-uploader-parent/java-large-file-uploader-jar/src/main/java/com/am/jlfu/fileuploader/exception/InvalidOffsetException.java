@@ -0,0 +1,34 @@
+package com.am.jlfu.fileuploader.exception;
+
+
+/**
+ * Exception thrown if a chunk does not start where it is expected to, or goes past where it is
+ * expected to end.
+ * 
+ * @author antoinem
+ */
+public class InvalidOffsetException extends Exception {
+
+	public InvalidOffsetException(long expectedOffset, long offset) {
+		super("The file chunk does not start at the expected offset. Expected " + expectedOffset + " but received " + offset);
+	}
+
+
+	private InvalidOffsetException(String message) {
+		super(message);
+	}
+
+
+	/**
+	 * @param offset
+	 *            the position at which the chunk starts
+	 * @param expectedEnd
+	 *            the position past which it cannot write
+	 * @return the exception thrown if a chunk goes past where it is expected to end
+	 */
+	public static InvalidOffsetException pastExpectedEnd(long offset, long expectedEnd) {
+		return new InvalidOffsetException("The file chunk starting at " + offset + " does not end at the expected end. Expected " +
+				expectedEnd + " but received more");
+	}
+
+}
@@ -0,0 +1,29 @@
+package com.am.jlfu.fileuploader.exception;
+
+
+/**
+ * Exception thrown if the storage of the uploaded files is too slow or too full to accept new
+ * uploads at the moment.
+ *
+ * @author antoinem
+ */
+public class StorageBackpressureException extends Exception {
+
+	private final long retryAfterInSeconds;
+
+
+
+	public StorageBackpressureException(String reason, long retryAfterInSeconds) {
+		super("The storage cannot accept uploads at the moment (" + reason + "), retry in " + retryAfterInSeconds + " seconds.");
+		this.retryAfterInSeconds = retryAfterInSeconds;
+	}
+
+
+	/**
+	 * @return the delay after which the upload can be retried
+	 */
+	public long getRetryAfterInSeconds() {
+		return retryAfterInSeconds;
+	}
+
+}
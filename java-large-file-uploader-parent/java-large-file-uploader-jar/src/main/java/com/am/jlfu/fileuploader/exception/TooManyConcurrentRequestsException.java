@@ -0,0 +1,16 @@
+package com.am.jlfu.fileuploader.exception;
+
+
+/**
+ * Exception thrown if a client or a file already has as many chunks being uploaded as it is
+ * allowed to.
+ *
+ * @author antoinem
+ */
+public class TooManyConcurrentRequestsException extends Exception {
+
+	public TooManyConcurrentRequestsException(String what, int maximum) {
+		super(what + " already has " + maximum + " chunks being uploaded.");
+	}
+
+}
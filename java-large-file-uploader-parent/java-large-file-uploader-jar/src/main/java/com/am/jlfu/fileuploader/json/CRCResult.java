@@ -9,7 +9,7 @@ import com.am.jlfu.fileuploader.utils.CRCHelper;
 
 /**
  * This class is the result of a method of {@link CRCHelper}.
- * It includes the CRC32 value as a string ({@link #value}) and the number of bytes computed (
+ * It includes the checksum value as a string ({@link #value}) and the number of bytes computed (
  * {@link #read})
  * 
  * @author antoinem
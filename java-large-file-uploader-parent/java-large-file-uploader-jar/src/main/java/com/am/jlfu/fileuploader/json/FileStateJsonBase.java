@@ -4,6 +4,9 @@ package com.am.jlfu.fileuploader.json;
 import java.io.Serializable;
 import java.util.Date;
 
+import com.am.jlfu.fileuploader.checksum.ChecksumAlgorithm;
+import com.am.jlfu.fileuploader.logic.UploadPriority;
+
 
 /**
  * Shared entity (java/javascript) containing information about a file being uploaded.<br>
@@ -32,14 +35,41 @@ public class FileStateJsonBase
 	private Long rateInKiloBytes;
 
 	/**
-	 * Amount of bytes that were correctly validated.<br>
-	 * When resuming an upload, all bytes in the file that have not been validated are revalidated.
+	 * Amount of bytes at the beginning of the file that were correctly validated.<br>
+	 * When resuming an upload, all bytes in the file that have not been validated are revalidated,
+	 * except the slices validated in the index ({@link #completedSlices} and {@link #sliceCrcs}).
 	 */
 	private long crcedBytes;
 
 	/** the first chunk crc information */
 	private String firstChunkCrc;
 
+	/** The size of the slices of the file, as defined when the upload was prepared. */
+	private Long sliceSizeInBytes;
+
+	/**
+	 * Bitmap of the slices that were entirely validated at once.<br>
+	 * Together with {@link #sliceCrcs}, it is the index of the validated slices, which can be located
+	 * after <code>crcedBytes</code> if slices are uploaded out of order.
+	 */
+	private int[] completedSlices;
+
+	/** The crc of each slice of the {@link #completedSlices}. */
+	private int[] sliceCrcs;
+
+	/**
+	 * The algorithm of the checksums of the chunks, as negotiated when the upload was prepared.<br>
+	 * Null for the files prepared by the clients which do not negotiate it, which use
+	 * {@link ChecksumAlgorithm#crc32}.
+	 */
+	private ChecksumAlgorithm checksumAlgorithm;
+
+	/** The SHA-256 digest of the whole file, once it is complete and if the digest is enabled. */
+	private String sha256;
+
+	/** The priority of the upload, {@link UploadPriority#standard} if null. */
+	private UploadPriority priority;
+
 
 
 	/**
@@ -110,4 +140,64 @@ public class FileStateJsonBase
 	}
 
 
+	public Long getSliceSizeInBytes() {
+		return sliceSizeInBytes;
+	}
+
+
+	public void setSliceSizeInBytes(Long sliceSizeInBytes) {
+		this.sliceSizeInBytes = sliceSizeInBytes;
+	}
+
+
+	public int[] getCompletedSlices() {
+		return completedSlices;
+	}
+
+
+	public void setCompletedSlices(int[] completedSlices) {
+		this.completedSlices = completedSlices;
+	}
+
+
+	public int[] getSliceCrcs() {
+		return sliceCrcs;
+	}
+
+
+	public void setSliceCrcs(int[] sliceCrcs) {
+		this.sliceCrcs = sliceCrcs;
+	}
+
+
+	public ChecksumAlgorithm getChecksumAlgorithm() {
+		return checksumAlgorithm != null ? checksumAlgorithm : ChecksumAlgorithm.crc32;
+	}
+
+
+	public void setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm) {
+		this.checksumAlgorithm = checksumAlgorithm;
+	}
+
+
+	public UploadPriority getPriority() {
+		return priority != null ? priority : UploadPriority.standard;
+	}
+
+
+	public void setPriority(UploadPriority priority) {
+		this.priority = priority;
+	}
+
+
+	public String getSha256() {
+		return sha256;
+	}
+
+
+	public void setSha256(String sha256) {
+		this.sha256 = sha256;
+	}
+
+
 }
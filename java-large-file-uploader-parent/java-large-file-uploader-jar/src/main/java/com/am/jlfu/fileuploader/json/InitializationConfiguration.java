@@ -4,6 +4,8 @@ package com.am.jlfu.fileuploader.json;
 import java.io.Serializable;
 import java.util.Map;
 
+import com.am.jlfu.fileuploader.checksum.ChecksumAlgorithm;
+
 
 
 /**
@@ -30,6 +32,11 @@ public class InitializationConfiguration
 	 */
 	private Map<String, FileStateJson> pendingFiles;
 
+	/**
+	 * The algorithm of the checksums of the chunks, chosen among the ones supported by the client.
+	 */
+	private ChecksumAlgorithm checksumAlgorithm;
+
 
 
 	/**
@@ -60,4 +67,14 @@ public class InitializationConfiguration
 	}
 
 
+	public ChecksumAlgorithm getChecksumAlgorithm() {
+		return checksumAlgorithm;
+	}
+
+
+	public void setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm) {
+		this.checksumAlgorithm = checksumAlgorithm;
+	}
+
+
 }
@@ -3,6 +3,8 @@ package com.am.jlfu.fileuploader.json;
 
 import java.io.Serializable;
 
+import com.am.jlfu.fileuploader.logic.UploadPriority;
+
 
 
 public class PrepareUploadJson
@@ -21,6 +23,12 @@ public class PrepareUploadJson
 
 	private String crc;
 
+	/** The checksum algorithm negotiated with {@link InitializationConfiguration}, crc32 if null */
+	private String checksumAlgorithm;
+
+	/** The priority of the upload, {@link UploadPriority#standard} if null */
+	private String priority;
+
 
 
 	/**
@@ -71,4 +79,24 @@ public class PrepareUploadJson
 	}
 
 
+	public String getChecksumAlgorithm() {
+		return checksumAlgorithm;
+	}
+
+
+	public void setChecksumAlgorithm(String checksumAlgorithm) {
+		this.checksumAlgorithm = checksumAlgorithm;
+	}
+
+
+	public String getPriority() {
+		return priority;
+	}
+
+
+	public void setPriority(String priority) {
+		this.priority = priority;
+	}
+
+
 }
@@ -0,0 +1,33 @@
+package com.am.jlfu.fileuploader.limiter;
+
+/**
+ * The budget shared by the nodes of a cluster, so that the maximum overall rate is honoured by
+ * the cluster rather than by each node.<br>
+ * The nodes lease slices of the budget and consume them locally, so that the store is only
+ * accessed once per slice. The rate of the cluster can then be exceeded by at most one slice per
+ * node.<br>
+ * To enable it, declare a bean named <code>jlfuClusterBudgetStore</code>.
+ * 
+ * @author antoinem
+ * 
+ */
+public interface ClusterBudgetStore {
+
+	/**
+	 * Leases a slice of the budget.
+	 * 
+	 * @param bytes
+	 *            the size of the slice wished
+	 * @return the amount of bytes granted, 0 if the budget is exhausted
+	 */
+	long lease(long bytes);
+
+
+	/**
+	 * Gives back the part of a slice which will not be consumed, when the node stops.
+	 * 
+	 * @param bytes
+	 */
+	void giveBack(long bytes);
+
+}
@@ -0,0 +1,162 @@
+package com.am.jlfu.fileuploader.limiter;
+
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+/**
+ * The master token bucket when the uploader is part of a cluster: besides the rate of this node,
+ * the bytes are taken from slices of the cluster budget leased from a {@link ClusterBudgetStore}.<br>
+ * A slice is leased when the bytes left from the previous ones are not enough. When the store
+ * has nothing to lease, it is asked again after {@link #LEASE_RETRY_DELAY_IN_MILLISECONDS}, the
+ * allowance being limited to what is left meanwhile.
+ *
+ * @author antoinem
+ *
+ */
+public class ClusterUploadProcessingOperation extends UploadProcessingOperation {
+
+	/** The delay after which the store is asked again when it has nothing to lease */
+	static final long LEASE_RETRY_DELAY_IN_MILLISECONDS = 10;
+
+	private final ClusterBudgetStore clusterBudgetStore;
+
+	/** The size of the slices leased */
+	private final long leaseSizeInBytes;
+
+	/** The bytes leased and not yet consumed, negative if more has been consumed than leased */
+	private final AtomicLong leased = new AtomicLong();
+
+	/** The time, in {@link System#nanoTime()}, before which the store is not asked again */
+	private volatile long retryLeaseAt = Long.MIN_VALUE;
+
+
+
+	public ClusterUploadProcessingOperation(UploadProcessingConfiguration configuration, RateProvider rateProvider,
+			ClusterBudgetStore clusterBudgetStore, long leaseSizeInBytes) {
+		super(configuration, rateProvider);
+		this.clusterBudgetStore = clusterBudgetStore;
+		this.leaseSizeInBytes = leaseSizeInBytes;
+	}
+
+
+	@Override
+	public long getDownloadAllowanceForIteration() {
+		long allowance = super.getDownloadAllowanceForIteration();
+		if (isLeaseDeferred()) {
+			return Math.min(allowance, leased.get());
+		}
+		return allowance;
+	}
+
+
+	@Override
+	public void bytesConsumedFromAllowance(long bytesConsumed) {
+		super.bytesConsumedFromAllowance(bytesConsumed);
+		leased.addAndGet(-bytesConsumed);
+	}
+
+
+	@Override
+	public long reserve(long bytes) {
+		long reserved = super.reserve(bytes);
+		if (reserved <= 0) {
+			return 0;
+		}
+		long granted = takeLeased(reserved);
+		if (granted < reserved) {
+			super.refund(reserved - granted);
+		}
+		return granted;
+	}
+
+
+	@Override
+	public void refund(long bytes) {
+		super.refund(bytes);
+		if (bytes > 0) {
+			leased.addAndGet(bytes);
+		}
+	}
+
+
+	@Override
+	public long getMillisecondsUntilAvailable(long bytes) {
+		long wait = super.getMillisecondsUntilAvailable(bytes);
+		if (leased.get() < bytes && isLeaseDeferred()) {
+			wait = Math.max(wait, TimeUnit.NANOSECONDS.toMillis(retryLeaseAt - nanoTime()) + 1);
+		}
+		return wait;
+	}
+
+
+	/**
+	 * Gives the bytes leased and not consumed back to the store.
+	 */
+	public synchronized void giveBackLease() {
+		long unused = leased.getAndSet(0);
+		if (unused > 0) {
+			clusterBudgetStore.giveBack(unused);
+		}
+	}
+
+
+	/**
+	 * @return the bytes leased and not yet consumed
+	 */
+	public long getLeased() {
+		return leased.get();
+	}
+
+
+	/**
+	 * Takes at most the specified amount of bytes from the slices leased, leasing a new one if they
+	 * are not enough.
+	 */
+	private long takeLeased(long bytes) {
+		while (true) {
+			long available = leased.get();
+			if (available >= bytes) {
+				if (leased.compareAndSet(available, available - bytes)) {
+					return bytes;
+				}
+				continue;
+			}
+
+			// lease a new slice, one writer at a time
+			if (!isLeaseDeferred()) {
+				synchronized (this) {
+					if (leased.get() < bytes && !isLeaseDeferred()) {
+						long wished = Math.max(leaseSizeInBytes, bytes - leased.get());
+						long granted = clusterBudgetStore.lease(wished);
+						leased.addAndGet(granted);
+						if (granted < wished) {
+							retryLeaseAt = nanoTime() + TimeUnit.MILLISECONDS.toNanos(LEASE_RETRY_DELAY_IN_MILLISECONDS);
+						}
+					}
+				}
+				if (leased.get() >= bytes) {
+					continue;
+				}
+			}
+
+			// take what is left
+			available = leased.get();
+			if (available <= 0) {
+				return 0;
+			}
+			long taken = Math.min(available, bytes);
+			if (leased.compareAndSet(available, available - taken)) {
+				return taken;
+			}
+		}
+	}
+
+
+	private boolean isLeaseDeferred() {
+		return nanoTime() < retryLeaseAt;
+	}
+
+}
@@ -0,0 +1,436 @@
+package com.am.jlfu.fileuploader.limiter;
+
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Ticker;
+import com.google.common.cache.RemovalCause;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+
+
+/**
+ * A concurrent registry of values identified by {@link UUID}s, created on first access and
+ * expired when they have not been accessed for a while.<br>
+ * The values are stored in segments of open addressing tables keyed by the two longs of the
+ * identifiers. A lookup reads the table without locking and without allocating anything, and only
+ * records the second at which the value was accessed; a miss creates the value under the lock of
+ * its segment.<br>
+ * The expiry is done by a timer wheel of one second buckets which is advanced by
+ * {@link #expire()}: each value sits in the bucket of the second at which it expires if it is not
+ * accessed meanwhile. When its bucket comes up, a value which has been accessed since is moved to
+ * the bucket of its new deadline, and the other ones are removed, so that the accesses never touch
+ * the wheel.
+ *
+ * @author antoinem
+ *
+ * @param <V>
+ */
+public class ConfigurationRegistry<V> {
+
+	/**
+	 * Notified when a value is removed from the registry.
+	 */
+	public interface RemovalListener<V> {
+
+		void onRemoval(UUID identifier, V value, RemovalCause cause);
+	}
+
+
+
+	private static final long TICK_IN_NANOSECONDS = TimeUnit.SECONDS.toNanos(1);
+
+	/** The number of buckets of the timer wheel, a power of two. */
+	private static final int WHEEL_SIZE = 64;
+
+	/** The number of segments, a power of two. */
+	private static final int SEGMENTS = 16;
+
+	private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+	/** Marks the slot of a removed entry, so that the lookups keep probing. */
+	private static final Entry<Object> TOMBSTONE = new Entry<Object>(0, 0, null, 0);
+
+	private final Supplier<? extends V> factory;
+	private final RemovalListener<V> removalListener;
+	private final Ticker ticker;
+
+	private volatile long timeToIdleInSeconds;
+
+	private final Segment[] segments;
+
+	/** The timer wheel, and the last second processed, guarded by the wheel. */
+	private final List<Entry<V>>[] wheel;
+	private long wheelTick;
+
+
+
+	public ConfigurationRegistry(Supplier<? extends V> factory, RemovalListener<V> removalListener, long timeToIdleInSeconds, Ticker ticker) {
+		this.factory = factory;
+		this.removalListener = removalListener;
+		this.timeToIdleInSeconds = timeToIdleInSeconds;
+		this.ticker = ticker;
+
+		// an array of a generic type cannot be created, the raw ones are only filled here with
+		// segments and buckets of this registry
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Segment[] rawSegments = new ConfigurationRegistry.Segment[SEGMENTS];
+		segments = rawSegments;
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment();
+		}
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		List<Entry<V>>[] rawWheel = new List[WHEEL_SIZE];
+		wheel = rawWheel;
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			wheel[i] = Lists.newArrayList();
+		}
+		wheelTick = currentTick();
+	}
+
+
+	/**
+	 * @param identifier
+	 * @return the value of this identifier, created if there is none
+	 */
+	public V get(UUID identifier) {
+		return get(identifier.getMostSignificantBits(), identifier.getLeastSignificantBits());
+	}
+
+
+	/**
+	 * @param mostSignificantBits
+	 * @param leastSignificantBits
+	 * @return the value of the identifier made of these bits, created if there is none
+	 */
+	public V get(long mostSignificantBits, long leastSignificantBits) {
+		int hash = hash(mostSignificantBits, leastSignificantBits);
+		Segment segment = segmentFor(hash);
+		long tick = currentTick();
+		Entry<V> entry = segment.find(mostSignificantBits, leastSignificantBits, hash);
+		if (entry == null || entry.removed) {
+			entry = segment.putIfAbsent(mostSignificantBits, leastSignificantBits, hash, factory, tick);
+		}
+		else if (entry.lastAccessTick != tick) {
+			entry.lastAccessTick = tick;
+		}
+		return entry.value;
+	}
+
+
+	/**
+	 * @param identifier
+	 * @return the value of this identifier, or null if there is none, without recording an access
+	 */
+	public V getIfPresent(UUID identifier) {
+		long mostSignificantBits = identifier.getMostSignificantBits();
+		long leastSignificantBits = identifier.getLeastSignificantBits();
+		int hash = hash(mostSignificantBits, leastSignificantBits);
+		Entry<V> entry = segmentFor(hash).find(mostSignificantBits, leastSignificantBits, hash);
+		return entry != null ? entry.value : null;
+	}
+
+
+	/**
+	 * Associates a value with an identifier, replacing the previous one.
+	 *
+	 * @param identifier
+	 * @param value
+	 */
+	public void put(UUID identifier, final V value) {
+		remove(identifier, RemovalCause.REPLACED);
+		long mostSignificantBits = identifier.getMostSignificantBits();
+		long leastSignificantBits = identifier.getLeastSignificantBits();
+		int hash = hash(mostSignificantBits, leastSignificantBits);
+		segmentFor(hash).putIfAbsent(mostSignificantBits, leastSignificantBits, hash, new Supplier<V>() {
+
+			@Override
+			public V get() {
+				return value;
+			}
+		}, currentTick());
+	}
+
+
+	/**
+	 * @param identifier
+	 * @return the value removed, or null if there was none
+	 */
+	public V remove(UUID identifier) {
+		return remove(identifier, RemovalCause.EXPLICIT);
+	}
+
+
+	private V remove(UUID identifier, RemovalCause cause) {
+		long mostSignificantBits = identifier.getMostSignificantBits();
+		long leastSignificantBits = identifier.getLeastSignificantBits();
+		int hash = hash(mostSignificantBits, leastSignificantBits);
+		Segment segment = segmentFor(hash);
+		Entry<V> entry = segment.find(mostSignificantBits, leastSignificantBits, hash);
+		if (entry != null && segment.remove(entry, hash, -1)) {
+			removalListener.onRemoval(identifier, entry.value, cause);
+			return entry.value;
+		}
+		return null;
+	}
+
+
+	/**
+	 * Advances the timer wheel up to the current second, removing the values which have not been
+	 * accessed for the time to idle.
+	 */
+	public void expire() {
+		long now = currentTick();
+		List<Entry<V>> due = Lists.newArrayList();
+		synchronized (wheel) {
+			// after a long pause, each bucket is processed once
+			wheelTick = Math.max(wheelTick, now - WHEEL_SIZE);
+			while (wheelTick < now) {
+				wheelTick++;
+				List<Entry<V>> bucket = wheel[(int) (wheelTick & (WHEEL_SIZE - 1))];
+				due.addAll(bucket);
+				bucket.clear();
+			}
+		}
+
+		long timeToIdle = timeToIdleInSeconds;
+		for (Entry<V> entry : due) {
+			if (entry.removed) {
+				continue;
+			}
+			long deadline = entry.lastAccessTick + timeToIdle;
+			if (deadline > now) {
+				schedule(entry);
+			}
+			else {
+				int hash = hash(entry.mostSignificantBits, entry.leastSignificantBits);
+				if (segmentFor(hash).remove(entry, hash, now - timeToIdle)) {
+					removalListener.onRemoval(new UUID(entry.mostSignificantBits, entry.leastSignificantBits), entry.value, RemovalCause.EXPIRED);
+				}
+				else if (!entry.removed) {
+					// accessed meanwhile
+					schedule(entry);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * @return a copy of the content of the registry
+	 */
+	public Map<UUID, V> snapshot() {
+		ImmutableMap.Builder<UUID, V> builder = ImmutableMap.builder();
+		for (Segment segment : segments) {
+			AtomicReferenceArray<Entry<V>> table = segment.table;
+			for (int i = 0; i < table.length(); i++) {
+				Entry<V> entry = table.get(i);
+				if (entry != null && entry != TOMBSTONE) {
+					builder.put(new UUID(entry.mostSignificantBits, entry.leastSignificantBits), entry.value);
+				}
+			}
+		}
+		return builder.build();
+	}
+
+
+	/**
+	 * @return the number of values in the registry
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.count;
+		}
+		return size;
+	}
+
+
+	public void setTimeToIdleInSeconds(long timeToIdleInSeconds) {
+		this.timeToIdleInSeconds = timeToIdleInSeconds;
+	}
+
+
+	private void schedule(Entry<V> entry) {
+		synchronized (wheel) {
+			// never in a bucket which has already been processed
+			long deadline = Math.max(entry.lastAccessTick + timeToIdleInSeconds, wheelTick + 1);
+			wheel[(int) (deadline & (WHEEL_SIZE - 1))].add(entry);
+		}
+	}
+
+
+	private long currentTick() {
+		return ticker.read() / TICK_IN_NANOSECONDS;
+	}
+
+
+	private Segment segmentFor(int hash) {
+		return segments[(hash >>> 28) & (SEGMENTS - 1)];
+	}
+
+
+	/**
+	 * The finalizer of murmur3, spreading the bits of the identifiers over the tables.
+	 */
+	private static int hash(long mostSignificantBits, long leastSignificantBits) {
+		long hash = mostSignificantBits ^ leastSignificantBits;
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return (int) hash;
+	}
+
+
+
+	private static final class Entry<V> {
+
+		final long mostSignificantBits;
+		final long leastSignificantBits;
+		final V value;
+
+		/** The second of the last access. */
+		volatile long lastAccessTick;
+
+		/** Set under the lock of the segment once removed. */
+		volatile boolean removed;
+
+
+
+		Entry(long mostSignificantBits, long leastSignificantBits, V value, long lastAccessTick) {
+			this.mostSignificantBits = mostSignificantBits;
+			this.leastSignificantBits = leastSignificantBits;
+			this.value = value;
+			this.lastAccessTick = lastAccessTick;
+		}
+	}
+
+
+
+	/**
+	 * An open addressing table with linear probing. The lookups read it without locking, the
+	 * modifications are done under the lock of the segment, a full table being replaced by a bigger
+	 * one. The entries created are scheduled in the wheel under that lock, the wheel never taking
+	 * it.
+	 */
+	private final class Segment {
+
+		volatile AtomicReferenceArray<Entry<V>> table = new AtomicReferenceArray<Entry<V>>(INITIAL_SEGMENT_CAPACITY);
+
+		/** The live entries, and the slots used including the tombstones. */
+		volatile int count;
+		private int used;
+
+
+
+		Entry<V> find(long mostSignificantBits, long leastSignificantBits, int hash) {
+			AtomicReferenceArray<Entry<V>> table = this.table;
+			int mask = table.length() - 1;
+			int index = hash & mask;
+			for (int probe = 0; probe <= mask; probe++) {
+				Entry<V> entry = table.get(index);
+				if (entry == null) {
+					return null;
+				}
+				if (entry != TOMBSTONE && entry.mostSignificantBits == mostSignificantBits && entry.leastSignificantBits == leastSignificantBits) {
+					return entry;
+				}
+				index = (index + 1) & mask;
+			}
+			return null;
+		}
+
+
+		synchronized Entry<V> putIfAbsent(long mostSignificantBits, long leastSignificantBits, int hash, Supplier<? extends V> factory, long tick) {
+			Entry<V> entry = find(mostSignificantBits, leastSignificantBits, hash);
+			if (entry != null) {
+				return entry;
+			}
+			if ((used + 1) * 4 > table.length() * 3) {
+				rehash();
+			}
+			entry = new Entry<V>(mostSignificantBits, leastSignificantBits, factory.get(), tick);
+			AtomicReferenceArray<Entry<V>> table = this.table;
+			int mask = table.length() - 1;
+			int index = hash & mask;
+			while (true) {
+				Entry<V> slot = table.get(index);
+				if (slot == null || slot == TOMBSTONE) {
+					if (slot == null) {
+						used++;
+					}
+					table.set(index, entry);
+					count++;
+					schedule(entry);
+					return entry;
+				}
+				index = (index + 1) & mask;
+			}
+		}
+
+
+		/**
+		 * @param entry
+		 * @param hash
+		 * @param accessedBefore
+		 *            the entry is only removed if it has not been accessed after this second, -1 to
+		 *            remove it anyway
+		 * @return true if the entry has been removed
+		 */
+		@SuppressWarnings("unchecked")
+		synchronized boolean remove(Entry<V> entry, int hash, long accessedBefore) {
+			if (entry.removed || accessedBefore >= 0 && entry.lastAccessTick > accessedBefore) {
+				return false;
+			}
+			AtomicReferenceArray<Entry<V>> table = this.table;
+			int mask = table.length() - 1;
+			int index = hash & mask;
+			for (int probe = 0; probe <= mask; probe++) {
+				Entry<V> slot = table.get(index);
+				if (slot == null) {
+					return false;
+				}
+				if (slot == entry) {
+					table.set(index, (Entry<V>) (Entry<?>) TOMBSTONE);
+					entry.removed = true;
+					count--;
+					return true;
+				}
+				index = (index + 1) & mask;
+			}
+			return false;
+		}
+
+
+		private void rehash() {
+			int capacity = INITIAL_SEGMENT_CAPACITY;
+			while (capacity < count * 4) {
+				capacity <<= 1;
+			}
+			AtomicReferenceArray<Entry<V>> oldTable = table;
+			AtomicReferenceArray<Entry<V>> newTable = new AtomicReferenceArray<Entry<V>>(capacity);
+			int mask = capacity - 1;
+			for (int i = 0; i < oldTable.length(); i++) {
+				Entry<V> entry = oldTable.get(i);
+				if (entry != null && entry != TOMBSTONE) {
+					int index = hash(entry.mostSignificantBits, entry.leastSignificantBits) & mask;
+					while (newTable.get(index) != null) {
+						index = (index + 1) & mask;
+					}
+					newTable.set(index, entry);
+				}
+			}
+			used = count;
+			table = newTable;
+		}
+	}
+
+}
@@ -0,0 +1,285 @@
+package com.am.jlfu.fileuploader.limiter;
+
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.am.jlfu.fileuploader.utils.ClientToFilesMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+
+
+/**
+ * Shares the maximum overall rate between the uploads with a weighted max-min fairness.<br>
+ * Every second, the rate of each file being uploaded is measured and its demand is estimated: a
+ * file which has used most of its allocation wants as much as it is allowed, the others want a bit
+ * more than what they have used. The maximum overall rate is then allocated to the clients, and the
+ * allocation of each client to its files, by water-filling: the demands which are below the fair
+ * share of their weight are satisfied, and what they leave is shared by the other ones. Whatever
+ * is still left is finally given to the uploads which can go faster, so that the capacity unused
+ * by idle or slow uploads is not lost.<br>
+ * The allocations are applied by the buckets of the files and of the clients, see
+ * {@link RateLimiter}.
+ *
+ * @author antoinem
+ *
+ */
+@Component
+@ManagedResource(objectName = "JavaLargeFileUploader:name=fairShareScheduler")
+public class FairShareScheduler {
+
+	private static final Logger log = LoggerFactory.getLogger(FairShareScheduler.class);
+
+	public static final long REALLOCATION_INTERVAL_IN_MILLISECONDS = 1000;
+
+	/** An upload which has used more than this ratio of its allocation wants more. */
+	private static final float SATURATION_RATIO = 0.9f;
+
+	/** An upload which has not used its allocation wants its rate increased by this ratio. */
+	private static final float GROWTH_RATIO = 1.25f;
+
+	/** The minimum demand of an upload, so that an idle one can resume. */
+	private static final long MINIMUM_DEMAND_IN_BYTES = 64 * 1024;
+
+	@Autowired
+	RateLimiterConfigurationManager rateLimiterConfigurationManager;
+
+	@Autowired
+	UploadProcessingOperationManager uploadProcessingOperationManager;
+
+	@Autowired
+	RateLimiter rateLimiter;
+
+	@Autowired
+	ClientToFilesMap clientToFilesMap;
+
+	@Value("jlfu{jlfu.ratelimiter.fairShare:true}")
+	private volatile boolean enabled;
+
+	/** The bytes written by the files at the previous reallocation, and the clients allocated. */
+	private Map<UUID, Long> bytesWrittenAtLastReallocation = Maps.newHashMap();
+	private Set<UUID> clientsAllocated = Sets.newHashSet();
+	private long lastReallocation = System.nanoTime();
+
+
+
+	@Scheduled(fixedRate = REALLOCATION_INTERVAL_IN_MILLISECONDS)
+	public synchronized void reallocate() {
+		long now = System.nanoTime();
+		long elapsedInMilliseconds = Math.max(1, TimeUnit.NANOSECONDS.toMillis(now - lastReallocation));
+		lastReallocation = now;
+
+		Map<UUID, Long> bytesWritten = Maps.newHashMap();
+		Set<UUID> clients = Sets.newHashSet();
+		if (enabled) {
+
+			// estimate the demands of the files of each client
+			Map<UUID, Map<UUID, Long>> filesDemands = Maps.newHashMap();
+			Map<UUID, Integer> clientsWeights = Maps.newHashMap();
+			Map<UUID, Long> clientsDemands = Maps.newHashMap();
+			for (Entry<UUID, Set<UUID>> entry : clientToFilesMap.entrySet()) {
+				Set<UUID> files;
+				synchronized (entry.getValue()) {
+					files = Sets.newHashSet(entry.getValue());
+				}
+				Map<UUID, Long> demands = Maps.newHashMap();
+				long clientDemand = 0;
+				for (UUID fileId : files) {
+					UploadProcessingOperation operation = uploadProcessingOperationManager.getFileProcessingOperation(fileId);
+					if (operation != null) {
+						bytesWritten.put(fileId, operation.getBytesWritten());
+						long demand = getDemand(fileId, bytesWritten.get(fileId), elapsedInMilliseconds);
+						demands.put(fileId, demand);
+						clientDemand += demand;
+					}
+				}
+				if (!demands.isEmpty()) {
+					UploadProcessingConfiguration clientConfiguration = rateLimiterConfigurationManager.getUploadProcessingConfiguration(entry.getKey());
+					filesDemands.put(entry.getKey(), demands);
+					clientsWeights.put(entry.getKey(), clientConfiguration.getWeight());
+					clientsDemands.put(entry.getKey(), Math.min(clientDemand, rateLimiter.getMaximumRateInBytes(clientConfiguration)));
+				}
+			}
+
+			// share the master rate between the clients
+			Map<UUID, Long> clientsAllocations = allocate(rateLimiter.getMasterRateInBytes(),
+					clientsWeights, clientsDemands, getMaximumRates(clientsWeights.keySet()));
+
+			// and the allocation of each client between its files
+			for (Entry<UUID, Long> clientAllocation : clientsAllocations.entrySet()) {
+				Map<UUID, Long> demands = filesDemands.get(clientAllocation.getKey());
+				Map<UUID, Long> filesAllocations =
+						allocate(clientAllocation.getValue(), getWeights(demands.keySet()), demands, getMaximumRates(demands.keySet()));
+				for (Entry<UUID, Long> fileAllocation : filesAllocations.entrySet()) {
+					setAllocatedRate(fileAllocation.getKey(), fileAllocation.getValue());
+				}
+				setAllocatedRate(clientAllocation.getKey(), clientAllocation.getValue());
+				clients.add(clientAllocation.getKey());
+			}
+		}
+
+		// the uploads which are over get their own rate back
+		for (UUID fileId : Sets.difference(bytesWrittenAtLastReallocation.keySet(), bytesWritten.keySet())) {
+			setAllocatedRate(fileId, null);
+		}
+		for (UUID clientId : Sets.difference(clientsAllocated, clients)) {
+			setAllocatedRate(clientId, null);
+		}
+		bytesWrittenAtLastReallocation = bytesWritten;
+		clientsAllocated = clients;
+	}
+
+
+	/**
+	 * @return the rate wanted by a file, from what it has used of its previous allocation
+	 */
+	private long getDemand(UUID fileId, long bytesWritten, long elapsedInMilliseconds) {
+		UploadProcessingConfiguration configuration = rateLimiterConfigurationManager.getUploadProcessingConfiguration(fileId);
+		long maximumRate = rateLimiter.getMaximumRateInBytes(configuration);
+		Long previousBytesWritten = bytesWrittenAtLastReallocation.get(fileId);
+		Long allocatedRate = configuration.getAllocatedRateInBytes();
+
+		// a new upload wants as much as it can
+		if (previousBytesWritten == null || allocatedRate == null) {
+			return maximumRate;
+		}
+
+		// as well as one using its allocation
+		long rate = (bytesWritten - previousBytesWritten) * 1000 / elapsedInMilliseconds;
+		if (rate >= allocatedRate * SATURATION_RATIO) {
+			return maximumRate;
+		}
+
+		// the other ones a bit more than what they use
+		return Math.min(maximumRate, Math.max(MINIMUM_DEMAND_IN_BYTES, (long) (rate * GROWTH_RATIO)));
+	}
+
+
+	private Map<UUID, Integer> getWeights(Set<UUID> identifiers) {
+		Map<UUID, Integer> weights = Maps.newHashMap();
+		for (UUID identifier : identifiers) {
+			weights.put(identifier, rateLimiterConfigurationManager.getUploadProcessingConfiguration(identifier).getWeight());
+		}
+		return weights;
+	}
+
+
+	private Map<UUID, Long> getMaximumRates(Set<UUID> identifiers) {
+		Map<UUID, Long> maximumRates = Maps.newHashMap();
+		for (UUID identifier : identifiers) {
+			maximumRates.put(identifier, rateLimiter.getMaximumRateInBytes(rateLimiterConfigurationManager.getUploadProcessingConfiguration(identifier)));
+		}
+		return maximumRates;
+	}
+
+
+	private void setAllocatedRate(UUID identifier, Long allocatedRateInBytes) {
+		log.trace("allocating " + allocatedRateInBytes + " bytes per second to " + identifier);
+		rateLimiterConfigurationManager.getUploadProcessingConfiguration(identifier).setAllocatedRateInBytes(allocatedRateInBytes);
+	}
+
+
+	/**
+	 * Allocates a capacity between weighted demands, then gives what is left to the ones which can
+	 * go faster.
+	 *
+	 * @param capacity
+	 * @param weights
+	 * @param demands
+	 * @param maximums
+	 *            the maximum allocations, not lower than the demands
+	 * @return the allocations
+	 */
+	static <K> Map<K, Long> allocate(long capacity, Map<K, Integer> weights, Map<K, Long> demands, Map<K, Long> maximums) {
+		Map<K, Long> allocations = waterFill(capacity, weights, demands);
+		long left = capacity;
+		Map<K, Long> room = Maps.newHashMap();
+		for (Entry<K, Long> entry : allocations.entrySet()) {
+			left -= entry.getValue();
+			room.put(entry.getKey(), maximums.get(entry.getKey()) - entry.getValue());
+		}
+		for (Entry<K, Long> entry : waterFill(left, weights, room).entrySet()) {
+			allocations.put(entry.getKey(), allocations.get(entry.getKey()) + entry.getValue());
+		}
+		return allocations;
+	}
+
+
+	/**
+	 * Weighted max-min fair allocation of a capacity: the limits below the share of their weight are
+	 * satisfied, and the capacity they leave is shared by the other ones in proportion to their
+	 * weights.
+	 *
+	 * @param capacity
+	 * @param weights
+	 * @param limits
+	 * @return the allocations, never above the limits
+	 */
+	static <K> Map<K, Long> waterFill(long capacity, Map<K, Integer> weights, Map<K, Long> limits) {
+		Map<K, Long> allocations = Maps.newHashMap();
+		Map<K, Long> unsatisfied = Maps.newHashMap();
+		for (Entry<K, Long> entry : limits.entrySet()) {
+			allocations.put(entry.getKey(), 0l);
+			if (entry.getValue() > 0) {
+				unsatisfied.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		long left = Math.max(0, capacity);
+		while (!unsatisfied.isEmpty() && left > 0) {
+			long totalWeight = 0;
+			for (K key : unsatisfied.keySet()) {
+				totalWeight += weights.get(key);
+			}
+
+			// satisfy the limits below their share
+			boolean satisfied = false;
+			long leftBefore = left;
+			for (Iterator<Entry<K, Long>> iterator = unsatisfied.entrySet().iterator(); iterator.hasNext();) {
+				Entry<K, Long> entry = iterator.next();
+				if (entry.getValue() * totalWeight <= leftBefore * weights.get(entry.getKey())) {
+					allocations.put(entry.getKey(), entry.getValue());
+					left -= entry.getValue();
+					iterator.remove();
+					satisfied = true;
+				}
+			}
+
+			// if none is, share what is left between them
+			if (!satisfied) {
+				for (K key : unsatisfied.keySet()) {
+					allocations.put(key, left * weights.get(key) / totalWeight);
+				}
+				break;
+			}
+		}
+		return allocations;
+	}
+
+
+	@ManagedAttribute
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+
+	@ManagedAttribute
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+}
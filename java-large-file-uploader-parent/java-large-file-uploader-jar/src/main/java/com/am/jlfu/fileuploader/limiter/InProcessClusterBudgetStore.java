@@ -0,0 +1,52 @@
+package com.am.jlfu.fileuploader.limiter;
+
+import com.am.jlfu.fileuploader.limiter.UploadProcessingOperation.RateProvider;
+
+
+
+/**
+ * Reference {@link ClusterBudgetStore} keeping the budget in a token bucket of this JVM.<br>
+ * Intended for the tests, or for several uploaders deployed in the same JVM.
+ * 
+ * @author antoinem
+ * 
+ */
+public class InProcessClusterBudgetStore
+		implements ClusterBudgetStore, RateProvider {
+
+	/** The rate of the cluster */
+	private volatile long rateInBytes;
+
+	/** The budget */
+	private final UploadProcessingOperation budget = new UploadProcessingOperation(null, this);
+
+
+
+	public InProcessClusterBudgetStore(long rateInBytes) {
+		this.rateInBytes = rateInBytes;
+	}
+
+
+	@Override
+	public long lease(long bytes) {
+		return budget.reserve(bytes);
+	}
+
+
+	@Override
+	public void giveBack(long bytes) {
+		budget.refund(bytes);
+	}
+
+
+	@Override
+	public long getRateInBytes() {
+		return rateInBytes;
+	}
+
+
+	public void setRateInBytes(long rateInBytes) {
+		this.rateInBytes = rateInBytes;
+	}
+
+}
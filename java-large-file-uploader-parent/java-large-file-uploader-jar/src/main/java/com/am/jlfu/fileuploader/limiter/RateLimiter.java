@@ -1,96 +1,120 @@
 package com.am.jlfu.fileuploader.limiter;
 
 
-import java.util.Map.Entry;
 import java.util.UUID;
 
 import org.apache.commons.lang.time.DateUtils;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import com.am.jlfu.fileuploader.limiter.UploadProcessingOperation.RateProvider;
 
 
+
+/**
+ * Creates the token buckets of the requests, of the clients and the master one, with the rates
+ * defined in the {@link RateLimiterConfigurationManager}.<br>
+ * The buckets are refilled continuously, the rates being read when tokens are taken: nothing has
+ * to be done periodically.
+ *
+ * @author antoinem
+ *
+ */
 @Component
 public class RateLimiter
 {
 
-
-	private static final Logger log = LoggerFactory.getLogger(RateLimiter.class);
-
 	@Autowired
 	RateLimiterConfigurationManager uploadProcessingConfigurationManager;
 
+	/**
+	 * The budget shared with the other nodes of the cluster, if any.
+	 */
+	@Autowired(required = false)
+	@Qualifier("jlfuClusterBudgetStore")
+	ClusterBudgetStore clusterBudgetStore;
+
 	@Autowired
-	UploadProcessingOperationManager uploadProcessingOperationManager;
+	StorageAdmissionController storageAdmissionController;
+
+	/**
+	 * The size of the slices of the cluster budget leased at once.<br>
+	 * Default to 256KB.
+	 */
+	@Value("jlfu{jlfu.ratelimiter.clusterLeaseSizeInKiloBytes:256}")
+	long clusterLeaseSizeInKiloBytes;
 
-	/** Number of times the bucket is filled per second. */
+	/** Number of times the bucket can be emptied per second, the bucket holds what is refilled meanwhile. */
 	public static final int NUMBER_OF_TIMES_THE_BUCKET_IS_FILLED_PER_SECOND = 10;
 	public static final long BUCKET_FILLED_EVERY_X_MILLISECONDS = DateUtils.MILLIS_PER_SECOND / NUMBER_OF_TIMES_THE_BUCKET_IS_FILLED_PER_SECOND;
 
 
 
-	@Scheduled(fixedRate = BUCKET_FILLED_EVERY_X_MILLISECONDS)
-	public void fillBucket() {
-
-		// first we need to calculate how many uploads are currently being processed
-		int requestsBeingProcessed = 0;
-		for (Entry<UUID, RequestUploadProcessingConfiguration> entry : uploadProcessingConfigurationManager.getRequestEntries()) {
-			requestsBeingProcessed += entry.getValue().isProcessing() ? 1 : 0;
-		}
-		log.trace("refilling the upload allowance of the " + requestsBeingProcessed + " uploads being processed");
-
-		// if we have entries
-		if (requestsBeingProcessed > 0) {
-
-			// calculate maximum limitation
-			// and assign it
-			uploadProcessingOperationManager.getMasterProcessingOperation().setDownloadAllowanceForIteration(
-					uploadProcessingConfigurationManager.getMaximumOverAllRateInKiloBytes() * 1024 / NUMBER_OF_TIMES_THE_BUCKET_IS_FILLED_PER_SECOND);
-
-			// for all pending operation
-			for (Entry<UUID, UploadProcessingOperation> entry : uploadProcessingOperationManager.getClientsAndRequestsProcessingOperation()
-					.entrySet()) {
-
-				// process
-				processEntry(entry);
-
+	/**
+	 * @param identifier
+	 *            the identifier of a file or of a client
+	 * @return the bucket of the requests uploading a file or of a client, limited by the rate
+	 *         allocated by the {@link FairShareScheduler}, or by the rate assigned to it, or by
+	 *         default by the maximum rate of a client
+	 */
+	public UploadProcessingOperation newOperation(UUID identifier) {
+		final RequestUploadProcessingConfiguration configuration = uploadProcessingConfigurationManager.getUploadProcessingConfiguration(identifier);
+		return new UploadProcessingOperation(configuration, new RateProvider() {
+
+			@Override
+			public long getRateInBytes() {
+				Long allocatedRateInBytes = configuration.getAllocatedRateInBytes();
+				if (allocatedRateInBytes != null) {
+					return allocatedRateInBytes;
+				}
+				return getMaximumRateInBytes(configuration);
 			}
-
-		}
+		});
 	}
 
 
-	private void processEntry(Entry<UUID, UploadProcessingOperation> entry) {
-
-		// default per request is set to the maximum, so basically maximum by client
-		long allowedCapacityPerSecond = uploadProcessingConfigurationManager.getMaximumRatePerClientInKiloBytes() * 1024;
-
-		// extract the configuration element
-		final RequestUploadProcessingConfiguration requestUploadProcessingConfiguration =
-				uploadProcessingConfigurationManager.getUploadProcessingConfiguration(entry.getKey());
-
-		// calculate from the rate in the configuration
-		Long rateInKiloBytes = requestUploadProcessingConfiguration.getRateInKiloBytes();
+	/**
+	 * @param configuration
+	 *            the configuration of a file or of a client
+	 * @return the rate assigned to it, or by default the maximum rate of a client
+	 */
+	public long getMaximumRateInBytes(UploadProcessingConfiguration configuration) {
+		Long rateInKiloBytes = configuration.getRateInKiloBytes();
 		if (rateInKiloBytes != null) {
-			allowedCapacityPerSecond = (int) (rateInKiloBytes * 1024);
+			return rateInKiloBytes * 1024;
 		}
+		return uploadProcessingConfigurationManager.getMaximumRatePerClientInKiloBytes() * 1024;
+	}
 
-		// calculate statistics
-		final long instantRateInBytes = entry.getValue().getAndResetBytesWritten();
-		requestUploadProcessingConfiguration.setInstantRateInBytes(instantRateInBytes);
 
-		// calculate what we can write per iteration
-		final long allowedCapacityPerIteration = allowedCapacityPerSecond / NUMBER_OF_TIMES_THE_BUCKET_IS_FILLED_PER_SECOND;
+	/**
+	 * @return the maximum overall rate, lowered by the {@link StorageAdmissionController} when the
+	 *         storage is slow
+	 */
+	public long getMasterRateInBytes() {
+		return (long) (uploadProcessingConfigurationManager.getMaximumOverAllRateInKiloBytes() * 1024 * storageAdmissionController.getRateFactor());
+	}
 
-		// set it to the rate conf element
-		entry.getValue().setDownloadAllowanceForIteration(allowedCapacityPerIteration);
 
-		log.trace("giving an allowance of " + allowedCapacityPerIteration + " bytes to " + entry.getKey() + ". (consumed " +
-				instantRateInBytes + " bytes during previous iteration)");
+	/**
+	 * @return the bucket shared by all the uploads, limited by the master rate, and by the budget of
+	 *         the cluster if there is a {@link ClusterBudgetStore}
+	 */
+	public UploadProcessingOperation newMasterOperation() {
+		RateProvider rateProvider = new RateProvider() {
 
+			@Override
+			public long getRateInBytes() {
+				return getMasterRateInBytes();
+			}
+		};
+		if (clusterBudgetStore != null) {
+			return new ClusterUploadProcessingOperation(uploadProcessingConfigurationManager.getMasterProcessingConfiguration(), rateProvider,
+					clusterBudgetStore, clusterLeaseSizeInKiloBytes * 1024);
+		}
+		return new UploadProcessingOperation(uploadProcessingConfigurationManager.getMasterProcessingConfiguration(), rateProvider);
 	}
 
 }
@@ -4,7 +4,6 @@ package com.am.jlfu.fileuploader.limiter;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 
@@ -13,7 +12,9 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
 import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import com.am.jlfu.notifier.JLFUListenerPropagator;
@@ -21,12 +22,10 @@ import com.am.jlfu.staticstate.JavaLargeFileUploaderService;
 import com.am.jlfu.staticstate.StaticStateManager;
 import com.am.jlfu.staticstate.entities.StaticFileState;
 import com.am.jlfu.staticstate.entities.StaticStatePersistedOnFileSystemEntity;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.am.jlfu.fileuploader.limiter.ConfigurationRegistry.RemovalListener;
+import com.google.common.base.Supplier;
+import com.google.common.base.Ticker;
 import com.google.common.cache.RemovalCause;
-import com.google.common.cache.RemovalListener;
-import com.google.common.cache.RemovalNotification;
 
 
 
@@ -50,33 +49,37 @@ public class RateLimiterConfigurationManager
 	@Autowired
 	private JavaLargeFileUploaderService<StaticStatePersistedOnFileSystemEntity> staticStateManagerService;
 
-	/** the cache containing all configuration for requests and clients */
-	LoadingCache<UUID, RequestUploadProcessingConfiguration> configurationMap;
+	/** the registry containing all configuration for requests and clients */
+	ConfigurationRegistry<RequestUploadProcessingConfiguration> configurationMap;
 
 
 
 	@PostConstruct
 	private void initMap() {
-		configurationMap = CacheBuilder.newBuilder()
-				.removalListener(new RemovalListener<UUID, RequestUploadProcessingConfiguration>() {
+		configurationMap = new ConfigurationRegistry<RequestUploadProcessingConfiguration>(new Supplier<RequestUploadProcessingConfiguration>() {
 
-					@Override
-					public void onRemoval(RemovalNotification<UUID, RequestUploadProcessingConfiguration> notification) {
-						log.debug("removal from requestconfig of " + notification.getKey() + " because of " + notification.getCause());
-						remove(notification.getCause(), notification.getKey());
-					}
+			@Override
+			public RequestUploadProcessingConfiguration get() {
+				return new RequestUploadProcessingConfiguration();
+			}
+		}, new RemovalListener<RequestUploadProcessingConfiguration>() {
 
+			@Override
+			public void onRemoval(UUID identifier, RequestUploadProcessingConfiguration value, RemovalCause cause) {
+				log.debug("removal from requestconfig of " + identifier + " because of " + cause);
+				remove(cause, identifier);
+			}
+		}, clientEvictionTimeInSeconds, Ticker.systemTicker());
+	}
 
-				})
-				.expireAfterAccess(clientEvictionTimeInSeconds, TimeUnit.SECONDS)
-				.build(new CacheLoader<UUID, RequestUploadProcessingConfiguration>() {
 
-					@Override
-					public RequestUploadProcessingConfiguration load(UUID arg0)
-							throws Exception {
-						return new RequestUploadProcessingConfiguration();
-					}
-				});
+	/**
+	 * Removes the configurations which have not been accessed for
+	 * {@link #clientEvictionTimeInSeconds}.
+	 */
+	@Scheduled(fixedRate = 1000)
+	public void expireConfigurations() {
+		configurationMap.expire();
 	}
 
 
@@ -131,28 +134,74 @@ public class RateLimiterConfigurationManager
 
 
 	public Set<Entry<UUID, RequestUploadProcessingConfiguration>> getRequestEntries() {
-		return configurationMap.asMap().entrySet();
+		return configurationMap.snapshot().entrySet();
 	}
 
 
 	public void reset(UUID fileId) {
-		final RequestUploadProcessingConfiguration unchecked = configurationMap.getUnchecked(fileId);
+		final RequestUploadProcessingConfiguration unchecked = configurationMap.get(fileId);
 		unchecked.setProcessing(false);
 	}
 
 
 	public void assignRateToRequest(UUID fileId, Long rateInKiloBytes) {
-		configurationMap.getUnchecked(fileId).rateInKiloBytes = rateInKiloBytes;
+		configurationMap.get(fileId).rateInKiloBytes = rateInKiloBytes;
+	}
+
+
+	/**
+	 * Assigns the weight of a file or of a client, used to share the bandwidth when it is
+	 * contended.
+	 * 
+	 * @param identifier
+	 * @param weight
+	 */
+	public void assignWeight(UUID identifier, int weight) {
+		if (weight <= 0) {
+			throw new IllegalArgumentException("the weight must be positive: " + weight);
+		}
+		configurationMap.get(identifier).weight = weight;
 	}
 
 
 	public Long getUploadState(UUID requestIdentifier) {
-		return configurationMap.getUnchecked(requestIdentifier).getInstantRateInBytes();
+		return configurationMap.get(requestIdentifier).getInstantRateInBytes();
 	}
 
 
 	public RequestUploadProcessingConfiguration getUploadProcessingConfiguration(UUID uuid) {
-		return configurationMap.getUnchecked(uuid);
+		return configurationMap.get(uuid);
+	}
+
+
+	/**
+	 * @param identifier
+	 *            the identifier of a file or of a client
+	 * @return its rate statistics
+	 */
+	public RateStatistics getRateStatistics(UUID identifier) {
+		return configurationMap.get(identifier).getRateStatistics();
+	}
+
+
+	/**
+	 * @param identifier
+	 *            the identifier of a file or of a client
+	 * @return its rates over 1s, 10s and 60s and its peak rate, or null if it is unknown
+	 */
+	@ManagedOperation
+	public String getRateStatistics(String identifier) {
+		RequestUploadProcessingConfiguration configuration = configurationMap.getIfPresent(UUID.fromString(identifier));
+		return configuration != null ? configuration.getRateStatistics().toString() : null;
+	}
+
+
+	/**
+	 * @return the overall rates over 1s, 10s and 60s and the overall peak rate
+	 */
+	@ManagedAttribute
+	public String getMasterRateStatistics() {
+		return masterProcessingConfiguration.getRateStatistics().toString();
 	}
 
 
@@ -187,6 +236,7 @@ public class RateLimiterConfigurationManager
 
 	public void setClientEvictionTimeInSeconds(int clientEvictionTimeInSeconds) {
 		this.clientEvictionTimeInSeconds = clientEvictionTimeInSeconds;
+		configurationMap.setTimeToIdleInSeconds(clientEvictionTimeInSeconds);
 	}
 
 
@@ -0,0 +1,138 @@
+package com.am.jlfu.fileuploader.limiter;
+
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.am.jlfu.fileuploader.utils.UnitConverter;
+
+
+
+/**
+ * The rates at which the bytes of an upload, of a client or of all of them are written, over
+ * sliding windows of up to a minute.<br>
+ * The bytes are counted in a ring buffer of {@link #SLOT_IN_MILLISECONDS} slots. Each slot holds
+ * its count along with the number of the interval it counts, so that a slot left from a previous
+ * lap is reset by the first write of its new interval: a write is a single compare and set, and
+ * nothing has to be done periodically. The rates are computed when they are asked, over the slots
+ * of the window and the part of the current one already elapsed.
+ *
+ * @author antoinem
+ *
+ */
+public class RateStatistics {
+
+	static final long SLOT_IN_MILLISECONDS = 250;
+	private static final long SLOT_IN_NANOSECONDS = TimeUnit.MILLISECONDS.toNanos(SLOT_IN_MILLISECONDS);
+	private static final int SLOTS_PER_SECOND = (int) (TimeUnit.SECONDS.toMillis(1) / SLOT_IN_MILLISECONDS);
+
+	/** The longest window, over which the peak rate is also searched. */
+	public static final int MAXIMUM_WINDOW_IN_SECONDS = 60;
+
+	/** The number of slots, a power of two covering the longest window and the current slot. */
+	private static final int SLOTS = 256;
+
+	/** A slot holds its count in the low bits and the low bits of its interval in the high ones. */
+	private static final int COUNT_BITS = 40;
+	private static final long COUNT_MASK = (1l << COUNT_BITS) - 1;
+	private static final long INTERVAL_MASK = (1l << (Long.SIZE - COUNT_BITS)) - 1;
+
+	private final AtomicLongArray slots = new AtomicLongArray(SLOTS);
+
+	/** The origin of the intervals. */
+	private final long createdAt = nanoTime();
+
+
+
+	/**
+	 * @param bytes
+	 *            written just now
+	 */
+	public void bytesWritten(long bytes) {
+		long interval = getInterval(nanoTime());
+		int index = (int) (interval & (SLOTS - 1));
+		long tag = interval & INTERVAL_MASK;
+		while (true) {
+			long slot = slots.get(index);
+			long updated = slot >>> COUNT_BITS == tag ? slot + bytes : tag << COUNT_BITS | bytes;
+			if (slots.compareAndSet(index, slot, updated)) {
+				return;
+			}
+		}
+	}
+
+
+	/**
+	 * @param windowInSeconds
+	 *            from 1 to {@link #MAXIMUM_WINDOW_IN_SECONDS}
+	 * @return the rate in bytes per second over the last complete seconds and the part of the
+	 *         current slot already elapsed, or since the statistics were created if they are more
+	 *         recent
+	 */
+	public long getRateInBytes(int windowInSeconds) {
+		if (windowInSeconds < 1 || windowInSeconds > MAXIMUM_WINDOW_IN_SECONDS) {
+			throw new IllegalArgumentException("the window shall be between 1 and " + MAXIMUM_WINDOW_IN_SECONDS + " seconds: " + windowInSeconds);
+		}
+		long now = nanoTime();
+		long interval = getInterval(now);
+		long firstInterval = Math.max(0, interval - windowInSeconds * SLOTS_PER_SECOND);
+		long bytes = 0;
+		for (long i = firstInterval; i <= interval; i++) {
+			bytes += getCount(i);
+		}
+		long elapsedInMicroseconds = TimeUnit.NANOSECONDS.toMicros(now - createdAt - firstInterval * SLOT_IN_NANOSECONDS);
+		if (elapsedInMicroseconds <= 0) {
+			return 0;
+		}
+
+		// in two steps so that large counts do not overflow
+		long microsecondsPerSecond = TimeUnit.SECONDS.toMicros(1);
+		return bytes / elapsedInMicroseconds * microsecondsPerSecond + bytes % elapsedInMicroseconds * microsecondsPerSecond / elapsedInMicroseconds;
+	}
+
+
+	/**
+	 * @return the highest rate in bytes per second over a whole second of the last minute
+	 */
+	public long getPeakRateInBytes() {
+		long interval = getInterval(nanoTime());
+		long firstInterval = Math.max(0, interval - MAXIMUM_WINDOW_IN_SECONDS * SLOTS_PER_SECOND);
+
+		// slide a second over the complete slots
+		long peak = 0;
+		long second = 0;
+		for (long i = firstInterval; i < interval; i++) {
+			second += getCount(i);
+			if (i - firstInterval >= SLOTS_PER_SECOND) {
+				second -= getCount(i - SLOTS_PER_SECOND);
+			}
+			peak = Math.max(peak, second);
+		}
+		return peak;
+	}
+
+
+	private long getCount(long interval) {
+		long slot = slots.get((int) (interval & (SLOTS - 1)));
+		return slot >>> COUNT_BITS == (interval & INTERVAL_MASK) ? slot & COUNT_MASK : 0;
+	}
+
+
+	private long getInterval(long nanoTime) {
+		return (nanoTime - createdAt) / SLOT_IN_NANOSECONDS;
+	}
+
+
+	long nanoTime() {
+		return System.nanoTime();
+	}
+
+
+	@Override
+	public String toString() {
+		return "1s: " + UnitConverter.getFormattedSize(getRateInBytes(1)) + "/s, 10s: " + UnitConverter.getFormattedSize(getRateInBytes(10)) +
+				"/s, 60s: " + UnitConverter.getFormattedSize(getRateInBytes(60)) + "/s, peak: " +
+				UnitConverter.getFormattedSize(getPeakRateInBytes()) + "/s";
+	}
+
+}
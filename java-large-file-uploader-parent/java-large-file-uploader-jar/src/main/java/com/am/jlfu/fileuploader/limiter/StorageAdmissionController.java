@@ -0,0 +1,287 @@
+package com.am.jlfu.fileuploader.limiter;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import com.am.jlfu.fileuploader.exception.StorageBackpressureException;
+import com.am.jlfu.staticstate.StaticStateRootFolderProvider;
+
+
+
+/**
+ * Admits the uploads according to the health of the storage of the uploaded files.<br>
+ * Every second, a small probe file is written and synced to the disk in the root folder, and the
+ * free space of its volume is read. When the write latency rises above
+ * {@link #getSlowLatencyInMilliseconds()}, the master rate is lowered proportionally, down to a
+ * tenth of it at {@link #getOverloadedLatencyInMilliseconds()}. Above that latency, or when the
+ * free space falls below {@link #getMinimumFreeSpaceInMegaBytes()}, the new requests are rejected
+ * with a {@link StorageBackpressureException} which the clients retry later.<br>
+ * The probe is written by its own thread so that a stalled disk does not hold the scheduled tasks,
+ * and a probe which has not returned yet counts as a sample of its current duration.
+ *
+ * @author antoinem
+ *
+ */
+@Component
+@ManagedResource(objectName = "JavaLargeFileUploader:name=storageAdmissionController")
+public class StorageAdmissionController {
+
+	private static final Logger log = LoggerFactory.getLogger(StorageAdmissionController.class);
+
+	public static final long SAMPLING_INTERVAL_IN_MILLISECONDS = 1000;
+
+	static final String PROBE_FILE_NAME = ".jlfu-storage-probe";
+
+	private static final int PROBE_SIZE_IN_BYTES = 4096;
+
+	/** The weight of a new sample in the smoothed latency. */
+	private static final double SMOOTHING_FACTOR = 0.3;
+
+	/** The master rate is never lowered below this ratio, so that the uploads keep progressing. */
+	static final float MINIMUM_RATE_FACTOR = 0.1f;
+
+	/** The delays after which the rejected requests can be retried. */
+	private static final long RETRY_AFTER_SLOW_STORAGE_IN_SECONDS = 5;
+	private static final long RETRY_AFTER_FULL_STORAGE_IN_SECONDS = 60;
+
+	@Autowired
+	StaticStateRootFolderProvider staticStateRootFolderProvider;
+
+	@Value("jlfu{jlfu.storage.admissionControl:true}")
+	private volatile boolean enabled;
+
+	/**
+	 * The write latency above which the master rate is lowered.<br>
+	 * Default to 100ms.
+	 */
+	@Value("jlfu{jlfu.storage.slowLatencyInMilliseconds:100}")
+	private volatile long slowLatencyInMilliseconds;
+
+	/**
+	 * The write latency above which the new requests are rejected.<br>
+	 * Default to 2s.
+	 */
+	@Value("jlfu{jlfu.storage.overloadedLatencyInMilliseconds:2000}")
+	private volatile long overloadedLatencyInMilliseconds;
+
+	/**
+	 * The free space below which the new requests are rejected.<br>
+	 * Default to 512MB.
+	 */
+	@Value("jlfu{jlfu.storage.minimumFreeSpaceInMegaBytes:512}")
+	private volatile long minimumFreeSpaceInMegaBytes;
+
+	/** The samples. */
+	private volatile double latencyInMilliseconds;
+	private volatile long usableSpaceInBytes = Long.MAX_VALUE;
+
+	/** The time, in {@link System#nanoTime()}, at which the probe being written was started. */
+	private volatile Long probeStartedAt;
+
+	private final byte[] probe = new byte[PROBE_SIZE_IN_BYTES];
+
+	private ScheduledExecutorService sampler;
+
+
+
+	@PostConstruct
+	private void start() {
+		sampler = Executors.newSingleThreadScheduledExecutor();
+		sampler.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				sample();
+			}
+		}, 0, SAMPLING_INTERVAL_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+	}
+
+
+	@PreDestroy
+	private void stop() {
+		sampler.shutdownNow();
+	}
+
+
+	/**
+	 * Writes the probe and reads the free space of the storage.
+	 */
+	public void sample() {
+		if (!enabled) {
+			return;
+		}
+		try {
+			File rootFolder = staticStateRootFolderProvider.getRootFolder();
+			long usableSpace = rootFolder.getUsableSpace();
+			long start = System.nanoTime();
+			probeStartedAt = start;
+			double latency;
+			try {
+				writeProbe(new File(rootFolder, PROBE_FILE_NAME));
+				latency = (System.nanoTime() - start) / 1e6;
+			}
+			catch (IOException e) {
+				// a storage which cannot be written is as good as overloaded
+				log.warn("cannot write the storage probe: " + e.getMessage());
+				latency = overloadedLatencyInMilliseconds;
+			}
+			finally {
+				probeStartedAt = null;
+			}
+			record(usableSpace, latency);
+		}
+		catch (RuntimeException e) {
+			log.error("cannot sample the storage: " + e.getMessage(), e);
+		}
+	}
+
+
+	private void writeProbe(File probeFile)
+			throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(probeFile, "rw");
+		try {
+			randomAccessFile.write(probe);
+			randomAccessFile.getFD().sync();
+		}
+		finally {
+			randomAccessFile.close();
+		}
+	}
+
+
+	/**
+	 * @param usableSpaceInBytes
+	 * @param latencyInMilliseconds
+	 *            the duration of the write and sync of the probe
+	 */
+	void record(long usableSpaceInBytes, double latencyInMilliseconds) {
+		this.usableSpaceInBytes = usableSpaceInBytes;
+		this.latencyInMilliseconds = this.latencyInMilliseconds * (1 - SMOOTHING_FACTOR) + latencyInMilliseconds * SMOOTHING_FACTOR;
+	}
+
+
+	/**
+	 * @throws StorageBackpressureException
+	 *             if the storage cannot accept new requests at the moment
+	 */
+	public void checkAdmission()
+			throws StorageBackpressureException {
+		if (!enabled) {
+			return;
+		}
+		if (usableSpaceInBytes < minimumFreeSpaceInMegaBytes * 1024 * 1024) {
+			throw new StorageBackpressureException("only " + getUsableSpaceInMegaBytes() + "MB left", RETRY_AFTER_FULL_STORAGE_IN_SECONDS);
+		}
+		long latency = getLatencyInMilliseconds();
+		if (latency >= overloadedLatencyInMilliseconds) {
+			throw new StorageBackpressureException("write latency of " + latency + "ms", RETRY_AFTER_SLOW_STORAGE_IN_SECONDS);
+		}
+	}
+
+
+	/**
+	 * @return the ratio of the maximum overall rate that the storage can take at the moment, from 1
+	 *         when it is fast down to {@link #MINIMUM_RATE_FACTOR} when it is overloaded
+	 */
+	@ManagedAttribute
+	public float getRateFactor() {
+		if (!enabled) {
+			return 1;
+		}
+		long latency = getLatencyInMilliseconds();
+		if (latency <= slowLatencyInMilliseconds) {
+			return 1;
+		}
+		if (latency >= overloadedLatencyInMilliseconds) {
+			return MINIMUM_RATE_FACTOR;
+		}
+		return 1 - (1 - MINIMUM_RATE_FACTOR) * (latency - slowLatencyInMilliseconds) /
+				(overloadedLatencyInMilliseconds - slowLatencyInMilliseconds);
+	}
+
+
+	/**
+	 * @return the smoothed write latency, or the duration of the probe being written if it is
+	 *         longer
+	 */
+	@ManagedAttribute
+	public long getLatencyInMilliseconds() {
+		double latency = latencyInMilliseconds;
+		Long started = probeStartedAt;
+		if (started != null) {
+			latency = Math.max(latency, (System.nanoTime() - started) / 1e6);
+		}
+		return Math.round(latency);
+	}
+
+
+	@ManagedAttribute
+	public long getUsableSpaceInMegaBytes() {
+		return usableSpaceInBytes / 1024 / 1024;
+	}
+
+
+	@ManagedAttribute
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+
+	@ManagedAttribute
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+
+	@ManagedAttribute
+	public long getSlowLatencyInMilliseconds() {
+		return slowLatencyInMilliseconds;
+	}
+
+
+	@ManagedAttribute
+	public void setSlowLatencyInMilliseconds(long slowLatencyInMilliseconds) {
+		this.slowLatencyInMilliseconds = slowLatencyInMilliseconds;
+	}
+
+
+	@ManagedAttribute
+	public long getOverloadedLatencyInMilliseconds() {
+		return overloadedLatencyInMilliseconds;
+	}
+
+
+	@ManagedAttribute
+	public void setOverloadedLatencyInMilliseconds(long overloadedLatencyInMilliseconds) {
+		this.overloadedLatencyInMilliseconds = overloadedLatencyInMilliseconds;
+	}
+
+
+	@ManagedAttribute
+	public long getMinimumFreeSpaceInMegaBytes() {
+		return minimumFreeSpaceInMegaBytes;
+	}
+
+
+	@ManagedAttribute
+	public void setMinimumFreeSpaceInMegaBytes(long minimumFreeSpaceInMegaBytes) {
+		this.minimumFreeSpaceInMegaBytes = minimumFreeSpaceInMegaBytes;
+	}
+
+}
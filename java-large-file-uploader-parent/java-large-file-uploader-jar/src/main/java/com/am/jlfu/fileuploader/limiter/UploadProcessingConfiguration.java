@@ -3,7 +3,6 @@ package com.am.jlfu.fileuploader.limiter;
 
 public class UploadProcessingConfiguration {
 
-
 	/**
 	 * The desired upload rate. <br>
 	 * Can be null (the maxmimum rate is applied).
@@ -11,13 +10,20 @@ public class UploadProcessingConfiguration {
 	volatile Long rateInKiloBytes;
 
 	/**
-	 * The statistics.
-	 * 
-	 * @return
+	 * The weight of the upload when the bandwidth is shared by the {@link FairShareScheduler}.
+	 */
+	volatile int weight = 1;
+
+	/**
+	 * The rate allocated by the {@link FairShareScheduler}.<br>
+	 * Null if none has been allocated (the desired or maximum rate is applied).
 	 */
-	long instantRateInBytes;
-	int instantRateInBytesCounter;
-	Object instantRateInBytesLock = new Object();
+	private volatile Long allocatedRateInBytes;
+
+	/**
+	 * The rates at which the bytes are written.
+	 */
+	private final RateStatistics rateStatistics = new RateStatistics();
 
 
 
@@ -26,27 +32,36 @@ public class UploadProcessingConfiguration {
 	}
 
 
-	void setInstantRateInBytes(long instantRateInBytes) {
-		synchronized (instantRateInBytesLock) {
-			this.instantRateInBytesCounter++;
-			this.instantRateInBytes += instantRateInBytes;
-		}
+	public int getWeight() {
+		return weight;
 	}
 
 
+	public Long getAllocatedRateInBytes() {
+		return allocatedRateInBytes;
+	}
+
+
+	void setAllocatedRateInBytes(Long allocatedRateInBytes) {
+		this.allocatedRateInBytes = allocatedRateInBytes;
+	}
+
+
+	void bytesWritten(long bytes) {
+		rateStatistics.bytesWritten(bytes);
+	}
+
+
+	/**
+	 * @return the rate measured over the last second
+	 */
 	long getInstantRateInBytes() {
-		int returnValue = 0;
-		synchronized (instantRateInBytesLock) {
-			if (instantRateInBytesCounter > 0) {
-				returnValue = ((int) instantRateInBytes / instantRateInBytesCounter) * RateLimiter.NUMBER_OF_TIMES_THE_BUCKET_IS_FILLED_PER_SECOND;
-
-				// reset every second or so
-				if (instantRateInBytesCounter > RateLimiter.NUMBER_OF_TIMES_THE_BUCKET_IS_FILLED_PER_SECOND) {
-					instantRateInBytes = instantRateInBytesCounter = 0;
-				}
-			}
-		}
-		return returnValue;
+		return rateStatistics.getRateInBytes(1);
+	}
+
+
+	public RateStatistics getRateStatistics() {
+		return rateStatistics;
 	}
 
 
@@ -1,59 +1,293 @@
 package com.am.jlfu.fileuploader.limiter;
 
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+
+/**
+ * The token bucket of a request, a client or of the whole uploader.<br>
+ * The bucket is refilled continuously at the rate given by its {@link RateProvider}, and holds at
+ * most what is refilled in {@link RateLimiter#BUCKET_FILLED_EVERY_X_MILLISECONDS}. Instead of an
+ * amount of tokens, it keeps the time at which it is empty: the tokens available are computed on
+ * demand from the time elapsed since then, so that nothing has to refill the buckets
+ * periodically.<br>
+ * It is lock-free as it is updated by every write of the uploads it limits: the tokens are taken
+ * with compare and set loops, and the bytes written are counted atomically.
+ *
+ * @author antoinem
+ *
+ */
 public class UploadProcessingOperation {
 
+	/**
+	 * Provides the rate of a bucket. It is read every time tokens are taken, so that a change of
+	 * rate applies immediately.
+	 */
+	public interface RateProvider {
+
+		/**
+		 * @return the rate in bytes per second
+		 */
+		long getRateInBytes();
+	}
+
+
+
+	private static final long NANOSECONDS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	/** The time needed to fill the bucket */
+	private static final long CAPACITY_IN_NANOSECONDS = TimeUnit.MILLISECONDS.toNanos(RateLimiter.BUCKET_FILLED_EVERY_X_MILLISECONDS);
+
+	/** The rate of the bucket */
+	private final RateProvider rateProvider;
+
+	/** The configuration collecting the statistics of the bucket, can be null */
+	private final UploadProcessingConfiguration configuration;
+
 	/**
 	 * Specifies the amount of bytes that have been written
 	 * */
-	private long bytesWritten;
-	private Object bytesWrittenLock = new Object();
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	/**
+	 * The time, in {@link System#nanoTime()}, at which the bucket is empty. The bucket is full if
+	 * it is more than {@link #CAPACITY_IN_NANOSECONDS} ago, and in debt if it is in the future.
+	 * */
+	private final AtomicLong emptyAt = new AtomicLong(Long.MIN_VALUE);
 
 	/**
-	 * Specifies the amount of bytes that can be uploaded for an iteration of the refill process
-	 * of {@link RateLimiter}
+	 * Specifies the amount of requests sharing this operation, as the slices of a file can be
+	 * uploaded in parallel.<br>
+	 * Guarded by the {@link UploadProcessingOperationManager}.
 	 * */
-	private long downloadAllowanceForIteration;
-	private Object downloadAllowanceForIterationLock = new Object();
+	private int activeRequests;
+
+
 
+	public UploadProcessingOperation(UploadProcessingConfiguration configuration, RateProvider rateProvider) {
+		this.configuration = configuration;
+		this.rateProvider = rateProvider;
+	}
 
 
+	/**
+	 * @return the amount of bytes that can be uploaded now, negative if the bucket is in debt
+	 */
 	public long getDownloadAllowanceForIteration() {
-		synchronized (downloadAllowanceForIterationLock) {
-			return downloadAllowanceForIteration;
+		long rate = rateProvider.getRateInBytes();
+		if (rate <= 0) {
+			return 0;
 		}
+		long now = nanoTime();
+		return toBytes(now - getRefillStart(emptyAt.get(), now), rate);
 	}
 
 
-	void setDownloadAllowanceForIteration(long downloadAllowanceForIteration) {
-		synchronized (downloadAllowanceForIterationLock) {
-			this.downloadAllowanceForIteration = downloadAllowanceForIteration;
+	/**
+	 * @return the amount of bytes written since this operation has been created
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+
+	/**
+	 * Specifies the bytes that have been read from the files. The allowance can become negative,
+	 * the next writers then have to wait for the debt to be refilled.
+	 *
+	 * @param bytesConsumed
+	 */
+	public void bytesConsumedFromAllowance(long bytesConsumed) {
+		bytesWritten(bytesConsumed);
+		long rate = rateProvider.getRateInBytes();
+		if (rate <= 0) {
+			return;
+		}
+		while (true) {
+			long now = nanoTime();
+			long empty = emptyAt.get();
+			if (emptyAt.compareAndSet(empty, getRefillStart(empty, now) + toNanosecondsRoundedUp(bytesConsumed, rate))) {
+				return;
+			}
 		}
 	}
 
 
-	public long getAndResetBytesWritten() {
-		synchronized (bytesWrittenLock) {
-			final long temp = bytesWritten;
-			bytesWritten = 0;
-			return temp;
+	/**
+	 * Takes at most the specified amount of bytes from the allowance. Unlike
+	 * {@link #bytesConsumedFromAllowance(long)}, the allowance never becomes negative, even if
+	 * several writers reserve at the same time.
+	 *
+	 * @param bytes
+	 * @return the amount of bytes reserved, 0 if the allowance is exhausted
+	 */
+	public long reserve(long bytes) {
+		long rate = rateProvider.getRateInBytes();
+		if (rate <= 0 || bytes <= 0) {
+			return 0;
+		}
+		while (true) {
+			long now = nanoTime();
+			long empty = emptyAt.get();
+			long refillStart = getRefillStart(empty, now);
+			long allowance = toBytes(now - refillStart, rate);
+			if (allowance <= 0) {
+				return 0;
+			}
+			long reserved = Math.min(allowance, bytes);
+			if (emptyAt.compareAndSet(empty, refillStart + toNanosecondsRoundedUp(reserved, rate))) {
+				return reserved;
+			}
 		}
 	}
 
 
 	/**
-	 * Specifies the bytes that have been read from the files.
-	 * 
-	 * @param bytesConsumed
+	 * Gives back reserved bytes which have not been written.
+	 *
+	 * @param bytes
 	 */
-	public void bytesConsumedFromAllowance(long bytesConsumed) {
-		synchronized (bytesWrittenLock) {
-			synchronized (downloadAllowanceForIterationLock) {
-				bytesWritten += bytesConsumed;
-				downloadAllowanceForIteration -= bytesConsumed;
+	public void refund(long bytes) {
+		long rate = rateProvider.getRateInBytes();
+		if (rate <= 0 || bytes <= 0) {
+			return;
+		}
+		while (true) {
+			long empty = emptyAt.get();
+			if (empty == Long.MIN_VALUE || emptyAt.compareAndSet(empty, empty - toNanoseconds(bytes, rate))) {
+				return;
 			}
 		}
 	}
 
 
+	/**
+	 * Specifies the bytes that have been written with a reservation.
+	 *
+	 * @param bytes
+	 */
+	public void bytesWritten(long bytes) {
+		bytesWritten.addAndGet(bytes);
+		if (configuration != null) {
+			configuration.bytesWritten(bytes);
+		}
+	}
+
+
+	/**
+	 * @param bytes
+	 * @return the time in milliseconds after which the specified amount of bytes, or a full bucket
+	 *         if it is less, can be reserved
+	 */
+	public long getMillisecondsUntilAvailable(long bytes) {
+		long rate = rateProvider.getRateInBytes();
+		if (rate <= 0) {
+			return RateLimiter.BUCKET_FILLED_EVERY_X_MILLISECONDS;
+		}
+		long now = nanoTime();
+		long wait = getRefillStart(emptyAt.get(), now) + Math.min(toNanosecondsRoundedUp(bytes, rate), CAPACITY_IN_NANOSECONDS) - now;
+		return wait > 0 ? TimeUnit.NANOSECONDS.toMillis(wait + TimeUnit.MILLISECONDS.toNanos(1) - 1) : 0;
+	}
+
+
+	/**
+	 * Reserves the same amount of bytes from several buckets, typically the ones of the request, of
+	 * the client and the master one.<br>
+	 * Each bucket is asked what the previous ones granted, and what a bucket cannot grant is
+	 * refunded to the previous ones, so that no bucket gives more than it has even if many writers
+	 * reserve at the same time.
+	 *
+	 * @param bytes
+	 * @param operations
+	 * @return the amount of bytes reserved from each of the buckets, 0 if one of them is exhausted
+	 */
+	public static long reserve(long bytes, UploadProcessingOperation... operations) {
+		long reserved = bytes;
+		for (int i = 0; i < operations.length && reserved > 0; i++) {
+			long granted = operations[i].reserve(reserved);
+			if (granted < reserved) {
+				for (int j = 0; j < i; j++) {
+					operations[j].refund(reserved - granted);
+				}
+			}
+			reserved = granted;
+		}
+		return reserved;
+	}
+
+
+	/**
+	 * Releases a reservation made with {@link #reserve(long, UploadProcessingOperation...)}: the
+	 * bytes written are accounted and the ones which have not been written, after a short read, are
+	 * refunded to each of the buckets.
+	 *
+	 * @param reserved
+	 * @param written
+	 * @param operations
+	 */
+	public static void release(long reserved, long written, UploadProcessingOperation... operations) {
+		for (UploadProcessingOperation operation : operations) {
+			if (reserved > written) {
+				operation.refund(reserved - written);
+			}
+			if (written > 0) {
+				operation.bytesWritten(written);
+			}
+		}
+	}
+
+
+	/**
+	 * @return the time from which the bucket is refilled: when it was empty, but no earlier than
+	 *         the time needed to fill it.
+	 */
+	private static long getRefillStart(long empty, long now) {
+		return Math.max(empty, now - CAPACITY_IN_NANOSECONDS);
+	}
+
+
+	/**
+	 * The time is clamped to the capacity of the bucket and the rate split in whole and partial
+	 * bytes per nanosecond, so that a high rate cannot overflow.
+	 */
+	private static long toBytes(long nanoseconds, long rate) {
+		long elapsed = Math.min(nanoseconds, CAPACITY_IN_NANOSECONDS);
+		return rate / NANOSECONDS_PER_SECOND * elapsed + rate % NANOSECONDS_PER_SECOND * elapsed / NANOSECONDS_PER_SECOND;
+	}
+
+
+	private static long toNanoseconds(long bytes, long rate) {
+		return bytes * NANOSECONDS_PER_SECOND / rate;
+	}
+
+
+	/**
+	 * Used when tokens are taken, so that the rounding never grants more than the rate.
+	 */
+	private static long toNanosecondsRoundedUp(long bytes, long rate) {
+		long nanoseconds = bytes * NANOSECONDS_PER_SECOND;
+		return nanoseconds / rate + (nanoseconds % rate == 0 ? 0 : 1);
+	}
+
+
+	long nanoTime() {
+		return System.nanoTime();
+	}
+
+
+	void requestStarted() {
+		activeRequests++;
+	}
+
+
+	/**
+	 * @return the amount of requests still sharing this operation
+	 */
+	int requestStopped() {
+		return --activeRequests;
+	}
+
+
 }
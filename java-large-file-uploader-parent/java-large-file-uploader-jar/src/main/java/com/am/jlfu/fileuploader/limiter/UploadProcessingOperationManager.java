@@ -7,23 +7,36 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentMap;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Component;
 
+import com.am.jlfu.fileuploader.exception.TooManyConcurrentRequestsException;
 import com.am.jlfu.fileuploader.utils.ClientToFilesMap;
+import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
 
 
 
 @Component
+@ManagedResource(objectName = "JavaLargeFileUploader:name=uploadProcessingOperationManager")
 public class UploadProcessingOperationManager {
 
 	private static final Logger log = LoggerFactory.getLogger(UploadProcessingOperationManager.class);
 
 	@Autowired
 	ClientToFilesMap clientToFilesMap;
+
+	@Autowired
+	RateLimiter rateLimiter;
 	
 	// ////////////
 	// operation//
@@ -33,7 +46,45 @@ public class UploadProcessingOperationManager {
 	final ConcurrentMap<UUID, UploadProcessingOperation> clientsAndRequestsProcessingOperation = Maps.newConcurrentMap();
 
 	/** Operation for master. */
-	final UploadProcessingOperation masterProcessingOperation = new UploadProcessingOperation();
+	UploadProcessingOperation masterProcessingOperation;
+
+	// ////////////
+	// admission//
+	// ////////////
+
+	/**
+	 * The maximum number of chunks a client can upload at the same time, 0 for no limit.<br>
+	 * Default to 20.
+	 */
+	@Value("jlfu{jlfu.uploadProcessingOperationManager.maximumConcurrentRequestsPerClient:20}")
+	private volatile int maximumConcurrentRequestsPerClient;
+
+	/**
+	 * The maximum number of chunks of a file which can be uploaded at the same time, 0 for no
+	 * limit.<br>
+	 * Default to 8.
+	 */
+	@Value("jlfu{jlfu.uploadProcessingOperationManager.maximumConcurrentRequestsPerFile:8}")
+	private volatile int maximumConcurrentRequestsPerFile;
+
+	/** The number of chunks being uploaded by each client and for each file. */
+	private final Multiset<UUID> requestsInFlight = HashMultiset.create();
+
+
+
+	@PostConstruct
+	private void initMasterOperation() {
+		masterProcessingOperation = rateLimiter.newMasterOperation();
+	}
+
+
+	@PreDestroy
+	private void destroy() {
+		// give the budget leased from the cluster back
+		if (masterProcessingOperation instanceof ClusterUploadProcessingOperation) {
+			((ClusterUploadProcessingOperation) masterProcessingOperation).giveBackLease();
+		}
+	}
 
 	
 	public Map<UUID, UploadProcessingOperation> getClientsAndRequestsProcessingOperation() {
@@ -44,12 +95,21 @@ public class UploadProcessingOperationManager {
 	public void startOperation(UUID clientId, UUID fileId) {
 		log.debug("starting operation for client "+clientId + " and file "+fileId);
 		
-		// create the request one
-		// XXX are we sure that there is only one there?
-		clientsAndRequestsProcessingOperation.put(fileId, new UploadProcessingOperation());
+		// get or create the request one, shared by the requests uploading slices of this file in
+		// parallel
+		synchronized (clientsAndRequestsProcessingOperation) {
+			UploadProcessingOperation requestOperation = clientsAndRequestsProcessingOperation.get(fileId);
+			if (requestOperation == null) {
+				requestOperation = rateLimiter.newOperation(fileId);
+				clientsAndRequestsProcessingOperation.put(fileId, requestOperation);
+			}
+			requestOperation.requestStarted();
+		}
 
 		// get or create the client one
-		clientsAndRequestsProcessingOperation.putIfAbsent(clientId, new UploadProcessingOperation());
+		if (!clientsAndRequestsProcessingOperation.containsKey(clientId)) {
+			clientsAndRequestsProcessingOperation.putIfAbsent(clientId, rateLimiter.newOperation(clientId));
+		}
 
 		// mapping
 		Set<UUID> set = clientToFilesMap.get(clientId);
@@ -64,11 +124,25 @@ public class UploadProcessingOperationManager {
 	}
 
 
-	public void stopOperation(UUID clientId, UUID fileId) {
+	/**
+	 * Stops the operation of a request.
+	 * 
+	 * @param clientId
+	 * @param fileId
+	 * @return true if it was the last request processing this file
+	 */
+	public boolean stopOperation(UUID clientId, UUID fileId) {
 		log.debug("stopping operation for client "+clientId + " and file "+fileId);
 		
-		// remove from map
-		clientsAndRequestsProcessingOperation.remove(fileId);
+		// remove from map if no other request is processing this file
+		synchronized (clientsAndRequestsProcessingOperation) {
+			UploadProcessingOperation requestOperation = clientsAndRequestsProcessingOperation.get(fileId);
+			if (requestOperation != null && requestOperation.requestStopped() > 0) {
+				log.debug("other requests are still processing file " + fileId);
+				return false;
+			}
+			clientsAndRequestsProcessingOperation.remove(fileId);
+		}
 
 		// remove mapping
 		Set<UUID> set = clientToFilesMap.get(clientId);
@@ -84,7 +158,85 @@ public class UploadProcessingOperationManager {
 				}
 			}
 		}
+		return true;
+
+	}
+
+
+	/**
+	 * Admits a chunk request if neither its client nor its file has reached its maximum of chunks
+	 * being uploaded at the same time. An admitted request shall be released with
+	 * {@link #releaseRequest(UUID, UUID)}.
+	 * 
+	 * @param clientId
+	 * @param fileId
+	 * @throws TooManyConcurrentRequestsException
+	 *             if the request is not admitted
+	 */
+	public void admitRequest(UUID clientId, UUID fileId)
+			throws TooManyConcurrentRequestsException {
+		synchronized (requestsInFlight) {
+			int maximumPerClient = maximumConcurrentRequestsPerClient;
+			if (maximumPerClient > 0 && requestsInFlight.count(clientId) >= maximumPerClient) {
+				throw new TooManyConcurrentRequestsException("Client " + clientId, maximumPerClient);
+			}
+			int maximumPerFile = maximumConcurrentRequestsPerFile;
+			if (maximumPerFile > 0 && requestsInFlight.count(fileId) >= maximumPerFile) {
+				throw new TooManyConcurrentRequestsException("File " + fileId, maximumPerFile);
+			}
+			requestsInFlight.add(clientId);
+			requestsInFlight.add(fileId);
+		}
+	}
+
+
+	/**
+	 * Releases a request admitted with {@link #admitRequest(UUID, UUID)}.
+	 * 
+	 * @param clientId
+	 * @param fileId
+	 */
+	public void releaseRequest(UUID clientId, UUID fileId) {
+		synchronized (requestsInFlight) {
+			requestsInFlight.remove(clientId);
+			requestsInFlight.remove(fileId);
+		}
+	}
+
+
+	/**
+	 * @param identifier
+	 *            the identifier of a client or of a file
+	 * @return the number of its chunks being uploaded
+	 */
+	public int getRequestsInFlight(UUID identifier) {
+		synchronized (requestsInFlight) {
+			return requestsInFlight.count(identifier);
+		}
+	}
+
+
+	@ManagedAttribute
+	public int getMaximumConcurrentRequestsPerClient() {
+		return maximumConcurrentRequestsPerClient;
+	}
+
+
+	@ManagedAttribute
+	public void setMaximumConcurrentRequestsPerClient(int maximumConcurrentRequestsPerClient) {
+		this.maximumConcurrentRequestsPerClient = maximumConcurrentRequestsPerClient;
+	}
+
+
+	@ManagedAttribute
+	public int getMaximumConcurrentRequestsPerFile() {
+		return maximumConcurrentRequestsPerFile;
+	}
+
 
+	@ManagedAttribute
+	public void setMaximumConcurrentRequestsPerFile(int maximumConcurrentRequestsPerFile) {
+		this.maximumConcurrentRequestsPerFile = maximumConcurrentRequestsPerFile;
 	}
 
 
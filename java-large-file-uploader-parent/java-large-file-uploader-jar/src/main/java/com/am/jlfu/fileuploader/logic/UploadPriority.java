@@ -0,0 +1,49 @@
+package com.am.jlfu.fileuploader.logic;
+
+/**
+ * The priority class of an upload. The chunks waiting for a worker of the
+ * {@link UploadServletAsyncProcessor} are dispatched in proportion to the weights of their
+ * classes, so that the uploads of a class cannot starve the other ones.
+ *
+ * @author antoinem
+ *
+ */
+public enum UploadPriority {
+
+	/**
+	 * Uploads a user is waiting for, typically small files.
+	 */
+	interactive,
+
+	/**
+	 * The default priority.
+	 */
+	standard,
+
+	/**
+	 * Uploads which can be slowed down, like the imports of archives.
+	 */
+	bulk;
+
+
+
+	/**
+	 * @param name
+	 * @return the priority with this name, {@link #standard} if null
+	 * @throws IllegalArgumentException
+	 *             if there is no priority with this name
+	 */
+	public static UploadPriority fromName(String name) {
+		return name != null ? valueOf(name) : standard;
+	}
+
+
+	/**
+	 * @param priority
+	 * @return true if this priority is higher than the specified one
+	 */
+	public boolean isHigherThan(UploadPriority priority) {
+		return ordinal() < priority.ordinal();
+	}
+
+}
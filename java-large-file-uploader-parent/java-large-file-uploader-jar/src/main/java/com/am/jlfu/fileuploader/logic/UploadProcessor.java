@@ -26,6 +26,8 @@ import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Component;
 
+import com.am.jlfu.fileuploader.checksum.ChecksumAlgorithm;
+import com.am.jlfu.fileuploader.checksum.ChecksumManager;
 import com.am.jlfu.fileuploader.exception.FileCorruptedException;
 import com.am.jlfu.fileuploader.exception.FileStillProcessingException;
 import com.am.jlfu.fileuploader.exception.InvalidCrcException;
@@ -40,6 +42,7 @@ import com.am.jlfu.fileuploader.limiter.RequestUploadProcessingConfiguration;
 import com.am.jlfu.fileuploader.utils.CRCHelper;
 import com.am.jlfu.fileuploader.utils.ProgressManager;
 import com.am.jlfu.fileuploader.utils.RemainingTimeEstimator;
+import com.am.jlfu.fileuploader.utils.SliceIndex;
 import com.am.jlfu.notifier.JLFUListenerPropagator;
 import com.am.jlfu.staticstate.JavaLargeFileUploaderService;
 import com.am.jlfu.staticstate.StaticStateDirectoryManager;
@@ -65,6 +68,9 @@ public class UploadProcessor {
 	@Autowired
 	CRCHelper crcHelper;
 
+	@Autowired
+	ChecksumManager checksumManager;
+
 	@Autowired
 	RateLimiterConfigurationManager uploadProcessingConfigurationManager;
 
@@ -89,6 +95,10 @@ public class UploadProcessor {
 	@Autowired
 	private JLFUListenerPropagator jlfuListenerPropagator;
 
+	/**
+	 * Size of the first chunk of the file the client sends a crc of when resuming.<br>
+	 * It is part of the protocol with the javascript client, not related to any buffer size.
+	 */
 	public static final int SIZE_OF_FIRST_CHUNK_VALIDATION = 8192;
 
 	/**
@@ -107,6 +117,20 @@ public class UploadProcessor {
 	private boolean keepOriginalFileName;
 
 	public InitializationConfiguration getConfig(UUID clientId) {
+		return getConfig(clientId, null);
+	}
+
+
+	/**
+	 * Returns the configuration, with the checksum algorithm negotiated with the client.
+	 * 
+	 * @param clientId
+	 * @param checksumAlgorithms
+	 *            the checksum algorithms supported by the client, comma separated, by order of
+	 *            preference. Null if the client only supports crc32.
+	 * @return the configuration
+	 */
+	public InitializationConfiguration getConfig(UUID clientId, String checksumAlgorithms) {
 
 		// specify the client id
 		if (clientId != null) {
@@ -159,6 +183,7 @@ public class UploadProcessor {
 
 		// fill configuration
 		config.setInByte(sliceSizeInBytes);
+		config.setChecksumAlgorithm(checksumManager.negotiate(checksumAlgorithms));
 
 		return config;
 	}
@@ -175,6 +200,12 @@ public class UploadProcessor {
 		FileStateJsonBase staticFileStateJson = value.getStaticFileStateJson();
 		FileStateJson fileStateJson = new FileStateJson();
 		fileStateJson.setFileComplete(staticFileStateJson.getCrcedBytes().equals(staticFileStateJson.getOriginalFileSizeInBytes()));
+
+		// if slices are validated after the validated bytes, the file may contain holes: the upload
+		// is resumed from the validated bytes, skipping the slices of the index
+		if (SliceIndex.getCompletedBytesAfterValidatedBytes(staticFileStateJson) > 0) {
+			fileSize = staticFileStateJson.getCrcedBytes();
+		}
 		fileStateJson.setFileCompletionInBytes(fileSize);
 		fileStateJson.setOriginalFileName(staticFileStateJson.getOriginalFileName());
 		fileStateJson.setOriginalFileSizeInBytes(staticFileStateJson.getOriginalFileSizeInBytes());
@@ -182,6 +213,12 @@ public class UploadProcessor {
 		fileStateJson.setCrcedBytes(staticFileStateJson.getCrcedBytes());
 		fileStateJson.setFirstChunkCrc(staticFileStateJson.getFirstChunkCrc());
 		fileStateJson.setCreationDate(staticFileStateJson.getCreationDate());
+		fileStateJson.setSliceSizeInBytes(staticFileStateJson.getSliceSizeInBytes());
+		fileStateJson.setCompletedSlices(staticFileStateJson.getCompletedSlices());
+		fileStateJson.setSliceCrcs(staticFileStateJson.getSliceCrcs());
+		fileStateJson.setChecksumAlgorithm(staticFileStateJson.getChecksumAlgorithm());
+		fileStateJson.setSha256(staticFileStateJson.getSha256());
+		fileStateJson.setPriority(staticFileStateJson.getPriority());
 		log.debug("returning pending file " + fileStateJson.getOriginalFileName() + " with target size " +
 				fileStateJson.getOriginalFileSizeInBytes() + " out of " + fileSize + " completed which includes " +
 				fileStateJson.getCrcedBytes() + " bytes validated and " + (fileSize - fileStateJson.getCrcedBytes()) + " unvalidated.");
@@ -192,6 +229,18 @@ public class UploadProcessor {
 
 	public UUID prepareUpload(Long size, String fileName, String crc)
 			throws IOException {
+		return prepareUpload(size, fileName, crc, ChecksumAlgorithm.crc32);
+	}
+
+
+	public UUID prepareUpload(Long size, String fileName, String crc, ChecksumAlgorithm checksumAlgorithm)
+			throws IOException {
+		return prepareUpload(size, fileName, crc, checksumAlgorithm, UploadPriority.standard);
+	}
+
+
+	public UUID prepareUpload(Long size, String fileName, String crc, ChecksumAlgorithm checksumAlgorithm, UploadPriority priority)
+			throws IOException {
 
 		// retrieve model
 		StaticStatePersistedOnFileSystemEntity model = staticStateManager.getEntity();
@@ -214,9 +263,12 @@ public class UploadProcessor {
 		jsonFileState.setOriginalFileSizeInBytes(size);
 		jsonFileState.setFirstChunkCrc(crc);
 		jsonFileState.setCreationDate(new Date());
+		jsonFileState.setSliceSizeInBytes(sliceSizeInBytes);
+		jsonFileState.setChecksumAlgorithm(checksumAlgorithm);
+		jsonFileState.setPriority(priority);
 
 		// write the state
-		staticStateManager.updateEntity(model);
+		staticStateManager.filePrepared(fileId);
 
 		// call listener
 		jlfuListenerPropagator.getPropagator().onFileUploadPrepared(staticStateIdentifierManager.getIdentifier(), fileId);
@@ -237,7 +289,9 @@ public class UploadProcessor {
 
 			// prepare it
 			UUID idOfTheFile =
-					prepareUpload(prepareUploadJson.getSize(), prepareUploadJson.getFileName(), prepareUploadJson.getCrc());
+					prepareUpload(prepareUploadJson.getSize(), prepareUploadJson.getFileName(), prepareUploadJson.getCrc(),
+							checksumManager.getAlgorithm(prepareUploadJson.getChecksumAlgorithm()),
+							UploadPriority.fromName(prepareUploadJson.getPriority()));
 
 			// put in map
 			returnMap.put(prepareUploadJson.getTempId().toString(), idOfTheFile);
@@ -327,7 +381,19 @@ public class UploadProcessor {
 		entity.getFileStates().get(fileId).getStaticFileStateJson().setRateInKiloBytes(rate);
 
 		// persist changes
-		staticStateManager.updateEntity(entity);
+		staticStateManager.rateChanged(fileId);
+	}
+
+
+	/**
+	 * Assigns the weight of a file or of a client when the bandwidth is shared between the
+	 * uploads.
+	 * 
+	 * @param identifier
+	 * @param weight
+	 */
+	public void setUploadWeight(UUID identifier, int weight) {
+		uploadProcessingConfigurationManager.assignWeight(identifier, weight);
 	}
 
 
@@ -405,24 +471,29 @@ public class UploadProcessor {
 			fileInputStream.skip(fileState.getStaticFileStateJson().getCrcedBytes());
 			
 			// read the crc
-			final CRCResult fileCrc = crcHelper.getBufferedCrc(fileInputStream);
+			final CRCResult fileCrc =
+					crcHelper.getBufferedCrc(fileInputStream, fileState.getStaticFileStateJson().getChecksumAlgorithm());
 
 			// compare them
 			log.debug("validating chunk crc " + fileCrc.getCrcAsString() + " against " + inputCrc);
 	
 			// if not equal, we have an issue:
-			if (!fileCrc.getCrcAsString().equals(inputCrc)) {
+			if (!ChecksumAlgorithm.sameValue(fileCrc.getCrcAsString(), inputCrc)) {
 				log.debug("invalid crc ... now truncating file to match validated bytes " + fileState.getStaticFileStateJson().getCrcedBytes());
 	
 				// we are just sure now that the file before the crc validated is actually valid, and
 				// after that, it seems it is not
 				// so we get the file and remove everything after that crc validation so that user can
 				// resume the fileupload from there.
+				// but if slices have been validated after it, they are kept and only the invalid part
+				// will be overwritten
+				if (SliceIndex.getCompletedBytesAfterValidatedBytes(fileState.getStaticFileStateJson()) == 0) {
 	
-				// truncate the file
-				RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rwd");
-				randomAccessFile.setLength(fileState.getStaticFileStateJson().getCrcedBytes());
-				randomAccessFile.close();
+					// truncate the file
+					RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rwd");
+					randomAccessFile.setLength(fileState.getStaticFileStateJson().getCrcedBytes());
+					randomAccessFile.close();
+				}
 	
 				// throw the exception
 				throw new InvalidCrcException(fileCrc.getCrcAsString(), inputCrc);
@@ -3,40 +3,56 @@ package com.am.jlfu.fileuploader.logic;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Component;
 
+import com.am.jlfu.fileuploader.buffer.BufferPool;
 import com.am.jlfu.fileuploader.exception.FileCorruptedException;
+import com.am.jlfu.fileuploader.checksum.ChecksumAlgorithm;
+import com.am.jlfu.fileuploader.checksum.ChecksumManager;
 import com.am.jlfu.fileuploader.exception.InvalidCrcException;
+import com.am.jlfu.fileuploader.exception.InvalidOffsetException;
 import com.am.jlfu.fileuploader.exception.UploadIsCurrentlyDisabled;
 import com.am.jlfu.fileuploader.json.FileStateJsonBase;
-import com.am.jlfu.fileuploader.limiter.RateLimiter;
 import com.am.jlfu.fileuploader.limiter.RateLimiterConfigurationManager;
 import com.am.jlfu.fileuploader.limiter.RequestUploadProcessingConfiguration;
 import com.am.jlfu.fileuploader.limiter.UploadProcessingOperation;
 import com.am.jlfu.fileuploader.limiter.UploadProcessingOperationManager;
+import com.am.jlfu.fileuploader.utils.SliceIndex;
 import com.am.jlfu.staticstate.StaticStateIdentifierManager;
 import com.am.jlfu.staticstate.StaticStateManager;
 import com.am.jlfu.staticstate.entities.StaticFileState;
 import com.am.jlfu.staticstate.entities.StaticStatePersistedOnFileSystemEntity;
+import com.google.common.collect.Maps;
 
 
 
@@ -44,9 +60,13 @@ import com.am.jlfu.staticstate.entities.StaticStatePersistedOnFileSystemEntity;
 @ManagedResource(objectName = "JavaLargeFileUploader:name=uploadServletAsyncProcessor")
 public class UploadServletAsyncProcessor {
 
-	/** The size of the buffer in bytes */
+	/** The default size of the buffer in bytes */
 	public static final int SIZE_OF_THE_BUFFER_IN_BYTES = 8192;// 8KB
 
+	/** The bounds of the size of the buffer when it is adaptive */
+	public static final int MINIMUM_ADAPTIVE_SIZE_OF_THE_BUFFER_IN_BYTES = 65536;// 64KB
+	public static final int MAXIMUM_ADAPTIVE_SIZE_OF_THE_BUFFER_IN_BYTES = BufferPool.MAXIMUM_BUFFER_SIZE;// 1MB
+
 	private static final Logger log = LoggerFactory.getLogger(UploadServletAsyncProcessor.class);
 
 	@Autowired
@@ -61,12 +81,113 @@ public class UploadServletAsyncProcessor {
 	@Autowired
 	private StaticStateIdentifierManager staticStateIdentifierManager;
 
-	/** The executor that process the stream */
-	private ScheduledThreadPoolExecutor uploadWorkersPool = (ScheduledThreadPoolExecutor) Executors.newScheduledThreadPool(10);
+	@Autowired
+	private BufferPool bufferPool;
+
+	@Autowired
+	private ChecksumManager checksumManager;
+
+	/**
+	 * Size of the buffer used to read the stream when it is not adaptive, from 1 byte to
+	 * {@link BufferPool#MAXIMUM_BUFFER_SIZE}.<br>
+	 * Default to 8KB.
+	 */
+	@Value("jlfu{jlfu.uploadServletAsyncProcessor.bufferSizeInBytes:8192}")
+	private volatile int bufferSizeInBytes;
+
+	/**
+	 * If <code>true</code>, the buffer of each upload grows while the stream keeps on filling it and
+	 * while the allowance permits it, and shrinks when the stream or the allowance cannot keep up.<br>
+	 * Default to <code>false</code>
+	 */
+	@Value("jlfu{jlfu.uploadServletAsyncProcessor.adaptiveBufferSize:false}")
+	private volatile boolean adaptiveBufferSize;
+
+	/**
+	 * Defines how the chunks are processed.<br>
+	 * Default to {@link UploadWorkersMode#pool}
+	 */
+	@Value("jlfu{jlfu.uploadServletAsyncProcessor.workersMode:pool}")
+	private volatile UploadWorkersMode workersMode;
+
+	/**
+	 * Number of workers of the pool.<br>
+	 * Default to 10.
+	 */
+	@Value("jlfu{jlfu.uploadServletAsyncProcessor.numberOfWorkers:10}")
+	private int numberOfWorkers;
+
+	/**
+	 * The factory creating the workers, can be provided to use virtual threads for example.<br>
+	 * Default to {@link Executors#defaultThreadFactory()}
+	 */
+	@Autowired(required = false)
+	@Qualifier("jlfuUploadWorkersThreadFactory")
+	private ThreadFactory uploadWorkersThreadFactory;
+
+	/**
+	 * In {@link UploadWorkersMode#nonBlocking}, the time after which a stream which has no available
+	 * byte is checked again. It is doubled each time the stream still has nothing available, up to
+	 * {@link #nonBlockingMaximumPollIntervalInMilliseconds}.<br>
+	 * Default to 10 milliseconds.
+	 */
+	@Value("jlfu{jlfu.uploadServletAsyncProcessor.nonBlockingPollIntervalInMilliseconds:10}")
+	private volatile long nonBlockingPollIntervalInMilliseconds;
+
+	/**
+	 * In {@link UploadWorkersMode#nonBlocking}, the maximum time after which a stream which has no
+	 * available byte is checked again.<br>
+	 * Default to 200 milliseconds.
+	 */
+	@Value("jlfu{jlfu.uploadServletAsyncProcessor.nonBlockingMaximumPollIntervalInMilliseconds:200}")
+	private volatile long nonBlockingMaximumPollIntervalInMilliseconds;
+
+	/**
+	 * In {@link UploadWorkersMode#nonBlocking}, the time after which a single byte is read from a
+	 * stream which has not reported any available byte, for the streams that cannot tell.<br>
+	 * Default to 2 seconds.
+	 */
+	@Value("jlfu{jlfu.uploadServletAsyncProcessor.nonBlockingMaximumIdleTimeInMilliseconds:2000}")
+	private volatile long nonBlockingMaximumIdleTimeInMilliseconds;
+
+	/**
+	 * The weights of the {@link UploadPriority} classes, the chunks waiting for a worker being
+	 * dispatched in proportion to them.<br>
+	 * Default to interactive=8,standard=4,bulk=1.
+	 */
+	@Value("jlfu{jlfu.uploadServletAsyncProcessor.priorityWeights:interactive=8,standard=4,bulk=1}")
+	private volatile String priorityWeights;
+
+	/** The executor that process the stream, and the queue of its chunks */
+	private ThreadPoolExecutor uploadWorkersPool;
+	private WeightedFairTaskQueue uploadWorkersQueue;
+
+	/** The executor that resubmits the chunks waiting for their allowance */
+	private ScheduledThreadPoolExecutor uploadWorkersTimer;
+
+	/** The number of chunks currently processed by their own thread */
+	private final AtomicInteger threadPerUploadWorkers = new AtomicInteger();
+
+
+
+	@PostConstruct
+	private void init() {
+		if (uploadWorkersThreadFactory == null) {
+			uploadWorkersThreadFactory = Executors.defaultThreadFactory();
+		}
+		uploadWorkersQueue = new WeightedFairTaskQueue();
+		setPriorityWeights(priorityWeights);
+		setBufferSizeInBytes(bufferSizeInBytes);
+		uploadWorkersPool =
+				new ThreadPoolExecutor(numberOfWorkers, numberOfWorkers, 0, TimeUnit.MILLISECONDS, uploadWorkersQueue, uploadWorkersThreadFactory);
+		uploadWorkersTimer = new ScheduledThreadPoolExecutor(1, uploadWorkersThreadFactory);
+	}
+
 
 	@PreDestroy
 	private void destroy() throws InterruptedException {
 		log.debug("destroying executor");
+		uploadWorkersTimer.shutdownNow();
 		uploadWorkersPool.shutdown();
 		if (!uploadWorkersPool.awaitTermination(1, TimeUnit.MINUTES)) {
 			log.error("executor timed out");
@@ -78,6 +199,31 @@ public class UploadServletAsyncProcessor {
 	}
 
 	
+	/**
+	 * @return the position past which a chunk cannot write: the end of the file, or the end of its
+	 *         slice if it starts a slice which does not follow the validated bytes, so that it
+	 *         cannot overwrite the slices following it
+	 */
+	private static long getEndPosition(FileStateJsonBase fileStateJson, Long offset) {
+		if (fileStateJson == null || fileStateJson.getOriginalFileSizeInBytes() == null) {
+			return Long.MAX_VALUE;
+		}
+		long fileSizeInBytes = fileStateJson.getOriginalFileSizeInBytes();
+		Long sliceSizeInBytes = fileStateJson.getSliceSizeInBytes();
+		if (offset != null && sliceSizeInBytes != null && !offset.equals(fileStateJson.getCrcedBytes()) &&
+				SliceIndex.isStartOfSlice(fileSizeInBytes, sliceSizeInBytes, offset)) {
+			return SliceIndex.getEndOfSlice(fileSizeInBytes, sliceSizeInBytes, (int) (offset / sliceSizeInBytes));
+		}
+		return fileSizeInBytes;
+	}
+
+
+	private static long getCrcedBytes(StaticFileState fileState) {
+		FileStateJsonBase fileStateJson = fileState.getStaticFileStateJson();
+		return fileStateJson != null && fileStateJson.getCrcedBytes() != null ? fileStateJson.getCrcedBytes() : 0;
+	}
+
+
 	/** Specifies whether the uploads should be processed or not. */
 	private volatile boolean enabled = true;
 
@@ -85,6 +231,30 @@ public class UploadServletAsyncProcessor {
 			WriteChunkCompletionListener completionListener)
 			throws FileNotFoundException
 	{
+		process(fileState, fileId, crc, null, inputStream, completionListener);
+	}
+
+
+	/**
+	 * Processes a chunk of a file.<br>
+	 * Once this method has returned, {@link #clean(UUID, UUID)} has to be called when the request
+	 * completes. If it throws, there is nothing to clean.
+	 *
+	 * @param fileState
+	 * @param fileId
+	 * @param crc
+	 * @param offset
+	 *            the position in the file at which the chunk is written, or null to write it after the
+	 *            validated bytes, whatever follows them. Chunks of the same file with different
+	 *            offsets can be processed in parallel.
+	 * @param inputStream
+	 * @param completionListener
+	 * @throws FileNotFoundException
+	 */
+	public void process(StaticFileState fileState, UUID fileId, String crc, Long offset, InputStream inputStream,
+			WriteChunkCompletionListener completionListener)
+			throws FileNotFoundException
+	{
 		
 		// get identifier
 		UUID clientId = staticStateIdentifierManager.getIdentifier();
@@ -115,27 +285,68 @@ public class UploadServletAsyncProcessor {
 			throw new FileNotFoundException("File with id " + fileId + " not found");
 		}
 
-		// initialize the streams
-		FileOutputStream outputStream = new FileOutputStream(file, true);
-
 		// get all the processing operation
 		uploadProcessingOperationManager.startOperation(clientId, fileId);
-		final UploadProcessingOperation masterProcessingOperation = uploadProcessingOperationManager.getMasterProcessingOperation();
-		final UploadProcessingOperation clientProcessingOperation = uploadProcessingOperationManager.getClientProcessingOperation(clientId);
-		final UploadProcessingOperation requestProcessingOperation = uploadProcessingOperationManager.getFileProcessingOperation(fileId);
-
-
-		// init the task
-		final WriteChunkToFileTask task =
-				new WriteChunkToFileTask(fileId, requestProcessingOperation, clientProcessingOperation, requestUploadProcessingConfiguration,
-						masterProcessingOperation, crc, inputStream,
-						outputStream, completionListener, clientId);
-
-		// mark the file as processing
-		requestUploadProcessingConfiguration.setProcessing(true);
-
-		// then submit the task to the workers pool
-		uploadWorkersPool.submit(task);
+		FileChannel fileChannel = null;
+		boolean submitted = false;
+		try {
+
+			// open the channel, the chunk is written at its offset or after the validated bytes, which
+			// is where it is validated from. The end of the file can be past slices not yet validated
+			fileChannel = new RandomAccessFile(file, "rw").getChannel();
+			long position = offset != null ? offset : getCrcedBytes(fileState);
+			long endPosition = getEndPosition(fileState.getStaticFileStateJson(), offset);
+
+			final UploadProcessingOperation masterProcessingOperation = uploadProcessingOperationManager.getMasterProcessingOperation();
+			final UploadProcessingOperation clientProcessingOperation = uploadProcessingOperationManager.getClientProcessingOperation(clientId);
+			final UploadProcessingOperation requestProcessingOperation = uploadProcessingOperationManager.getFileProcessingOperation(fileId);
+
+
+			// init the task
+			final WriteChunkToFileTask task =
+					new WriteChunkToFileTask(fileId, requestProcessingOperation, clientProcessingOperation, requestUploadProcessingConfiguration,
+							masterProcessingOperation, crc, inputStream,
+							fileChannel, offset, position, endPosition, fileState.getStaticFileStateJson(), completionListener, clientId);
+
+			// mark the file as processing
+			requestUploadProcessingConfiguration.setProcessing(true);
+
+			// then submit the task to the workers pool
+			if (workersMode == UploadWorkersMode.threadPerUpload) {
+				uploadWorkersThreadFactory.newThread(new Runnable() {
+
+					@Override
+					public void run() {
+						threadPerUploadWorkers.incrementAndGet();
+						try {
+							task.runUntilComplete();
+						}
+						finally {
+							threadPerUploadWorkers.decrementAndGet();
+						}
+					}
+				}).start();
+			}
+			else {
+				uploadWorkersPool.execute(task);
+			}
+			submitted = true;
+		}
+		finally {
+			// if the chunk cannot be processed, close the channel and stop the operation here so
+			// that the caller only has to clean the chunks that have been submitted
+			if (!submitted) {
+				if (fileChannel != null) {
+					try {
+						fileChannel.close();
+					}
+					catch (IOException e) {
+						log.error("Error closing file channel for id " + fileId + ": " + e.getMessage());
+					}
+				}
+				clean(clientId, fileId);
+			}
+		}
 
 	}
 
@@ -149,12 +360,32 @@ public class UploadServletAsyncProcessor {
 		public void success();
 	}
 
+	/**
+	 * Submits a chunk to the workers once the delay has elapsed.
+	 */
+	private void schedule(final WriteChunkToFileTask task, long delay) {
+		if (delay <= 0) {
+			uploadWorkersPool.execute(task);
+		}
+		else {
+			uploadWorkersTimer.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					uploadWorkersPool.execute(task);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+
+
 	public class WriteChunkToFileTask
-			implements Callable<Void> {
+			implements Callable<Void>, WeightedFairTaskQueue.PrioritizedTask {
 
 
 		private final InputStream inputStream;
-		private final FileOutputStream outputStream;
+		private final FileChannel fileChannel;
 		private final UUID fileId;
 		private final UUID clientId;
 		private final String crc;
@@ -166,9 +397,60 @@ public class UploadServletAsyncProcessor {
 		private UploadProcessingOperation masterUploadProcessingOperation;
 		private RequestUploadProcessingConfiguration requestUploadProcessingConfiguration;
 
-		private CRC32 crc32 = new CRC32();
+		/** The priority class of the file. */
+		private final UploadPriority priority;
+
+		/** The checksum of the chunk, computed with the algorithm of the file. */
+		private final Checksum checksum;
+
+		/** The digest of the whole file, if it can be computed incrementally with this chunk. */
+		private final MessageDigest fileDigest;
+
 		private long byteProcessed;
 		private long completionTimeTakenReference;
+		private boolean complete;
+
+		/** The amount of bytes that can be read from the stream without blocking. */
+		private int readableWithoutBlocking = Integer.MAX_VALUE;
+
+		/** The time in nanoseconds since which the stream has not reported any available byte. */
+		private long idleSince;
+		private boolean idle;
+
+		/** The time after which the stream is checked again if it has nothing available. */
+		private long pollIntervalInMilliseconds;
+
+		/** The offset of the chunk if specified by the client. */
+		private final Long offset;
+
+		/** The position in the file at which the chunk starts and the one at which the next bytes will be written. */
+		private final long startPosition;
+		private long position;
+
+		/** The position past which the chunk cannot write. */
+		private final long endPosition;
+
+		/** The size of the file and of its slices, null if the slices are not indexed. */
+		private final long fileSizeInBytes;
+		private final Long sliceSizeInBytes;
+
+		/** The crc of the slice being written and the crcs of the slices entirely written by this chunk. */
+		private CRC32 sliceCrc32 = new CRC32();
+		private final Map<Integer, Integer> sliceCrcs = Maps.newHashMap();
+
+		/**
+		 * The buffer borrowed from the pool for all the reads of this chunk and its wrapper used for
+		 * the writes. It is borrowed by the first iteration, on the worker which will release it, so
+		 * that the buffers go round through the caches of the workers.
+		 */
+		private byte[] buffer;
+		private ByteBuffer byteBuffer;
+
+		/** The amount of bytes read from the stream at once. */
+		private int readSize;
+
+		/** Whether the chunk is processed by a thread of its own, which ends with it. */
+		private boolean threadPerUpload;
 
 
 
@@ -176,7 +458,9 @@ public class UploadServletAsyncProcessor {
 				UploadProcessingOperation clientOperation, RequestUploadProcessingConfiguration requestUploadProcessingConfiguration, UploadProcessingOperation masterProcessingOperation,
 				String crc,
 				InputStream inputStream,
-				FileOutputStream outputStream, WriteChunkCompletionListener completionListener, UUID clientId) {
+				FileChannel fileChannel, Long offset, long position, long endPosition, FileStateJsonBase fileStateJson,
+				WriteChunkCompletionListener completionListener,
+				UUID clientId) {
 			this.fileId = fileId;
 			this.requestUploadProcessingConfiguration=requestUploadProcessingConfiguration;
 			this.requestUploadProcessingOperation = requestOperation;
@@ -184,81 +468,223 @@ public class UploadServletAsyncProcessor {
 			this.masterUploadProcessingOperation = masterProcessingOperation;
 			this.crc = crc;
 			this.inputStream = inputStream;
-			this.outputStream = outputStream;
+			this.fileChannel = fileChannel;
+			this.offset = offset;
+			this.startPosition = position;
+			this.position = position;
+			this.endPosition = endPosition;
+			this.fileSizeInBytes = fileStateJson != null ? fileStateJson.getOriginalFileSizeInBytes() : 0;
+			this.sliceSizeInBytes = fileStateJson != null ? fileStateJson.getSliceSizeInBytes() : null;
+			this.checksum = (fileStateJson != null ? fileStateJson.getChecksumAlgorithm() : ChecksumAlgorithm.crc32).newChecksum();
+			this.priority = fileStateJson != null ? fileStateJson.getPriority() : UploadPriority.standard;
+			this.fileDigest = checksumManager.getDigest(fileId, position);
 			this.completionListener = completionListener;
 			this.clientId = clientId;
+			this.readSize = adaptiveBufferSize ? MINIMUM_ADAPTIVE_SIZE_OF_THE_BUFFER_IN_BYTES : bufferSizeInBytes;
 		}
 
 
 		@Override
-		public Void call()
-				throws Exception {
+		public Void call() {
 			try {
-				// if we have not exceeded our byte to write allowance
-				long requestAllowance, clientAllowance, masterAllowance;
-				if ((requestAllowance = requestUploadProcessingOperation.getDownloadAllowanceForIteration()) > 0 &&
-						(clientAllowance = clientUploadProcessingOperation.getDownloadAllowanceForIteration()) > 0 &&
-						(masterAllowance = masterUploadProcessingOperation.getDownloadAllowanceForIteration()) > 0) {
-
-					// keep first time
-					if (completionTimeTakenReference == 0) {
-						completionTimeTakenReference = new Date().getTime();
-						log.trace("first write " + completionTimeTakenReference);
-					}
+				long delay = processIteration();
 
-					// process
-					write(minOf(
-							(int) requestAllowance,
-							(int) clientAllowance,
-							(int) masterAllowance));
+				// resubmit it
+				if (!complete) {
+					schedule(this, delay);
 				}
-				// if have exceeded it
-				else {
-
-					// by default, wait for default value
-					long delay = RateLimiter.BUCKET_FILLED_EVERY_X_MILLISECONDS;
-
-
-					// if we have a first write time
-					if (completionTimeTakenReference != 0) {
-
-						// calculate the delay which is basically the iteration time minus the time
-						// it took to use our allowance in this iteration, so that we go directly to
-						// the next iteration
-						final long time = new Date().getTime();
-						final long lastWriteWasAgo = time - completionTimeTakenReference;
-						delay = RateLimiter.BUCKET_FILLED_EVERY_X_MILLISECONDS - lastWriteWasAgo;
-						log.trace("waiting for allowance, fillbucket is expected in " + delay + "(last write was " + lastWriteWasAgo + " ago (" +
-								time +
-								" - " + completionTimeTakenReference + "))");
-						completionTimeTakenReference = 0;
-					}
+			}
+			catch (Exception e) {
+				// forward exception
+				completeWithError(e);
+			}
+			return null;
+		}
+
+
+		@Override
+		public void run() {
+			call();
+		}
+
+
+		@Override
+		public UploadPriority getPriority() {
+			return priority;
+		}
 
-					// resubmit it
-					uploadWorkersPool.schedule(this, delay, TimeUnit.MILLISECONDS);
+
+		/**
+		 * Processes the whole chunk within the current thread, sleeping while waiting for the
+		 * allowance.
+		 */
+		public void runUntilComplete() {
+			threadPerUpload = true;
+			try {
+				while (!complete) {
+					long delay = processIteration();
+					if (!complete && delay > 0) {
+						Thread.sleep(delay);
+					}
 				}
 			}
 			catch (Exception e) {
 				// forward exception
 				completeWithError(e);
 			}
-			return null;
 		}
 
 
-		private void write(int available)
+		/**
+		 * Processes the stream as long as the allowance permits it.
+		 * 
+		 * @return the delay in milliseconds after which the processing shall be resumed
+		 */
+		private long processIteration()
+				throws IOException, FileCorruptedException, UploadIsCurrentlyDisabled {
+
+			// borrow the buffer from the worker
+			if (buffer == null) {
+				buffer = bufferPool.acquire(readSize);
+				byteBuffer = ByteBuffer.wrap(buffer);
+			}
+
+			// as long as we have not exceeded our byte to write allowance, we keep on processing
+			// the stream within this task
+			int allowance;
+			while ((allowance = getAllowance()) > 0) {
+
+				// do not wait on a stream which has nothing to give
+				if (workersMode == UploadWorkersMode.nonBlocking && !isStreamReady()) {
+					return getPollIntervalInMilliseconds();
+				}
+
+				// keep first time
+				if (completionTimeTakenReference == 0) {
+					completionTimeTakenReference = new Date().getTime();
+					log.trace("first write " + completionTimeTakenReference);
+
+					// if the whole allowance of the iteration does not fill the buffer, the
+					// bandwidth is contended
+					if (adaptiveBufferSize && allowance < readSize) {
+						shrink();
+					}
+				}
+
+				// the buckets being refilled continuously, wait for them to hold a full read rather
+				// than reading whatever has been refilled so far
+				if (allowance < readSize) {
+					if (getMillisecondsUntilAvailable() > 0) {
+						break;
+					}
+					allowance = getAllowance();
+				}
+
+				// process, and stop there if the chunk is complete
+				if (!write(allowance)) {
+					return 0;
+				}
+			}
+
+			// if we have exceeded it, wait until the buckets are refilled with what we read at once
+			long delay = getMillisecondsUntilAvailable();
+			log.trace("waiting for allowance, expected in " + delay + "ms (first write of the iteration at " + completionTimeTakenReference + ")");
+			completionTimeTakenReference = 0;
+
+			return delay;
+		}
+
+
+		/**
+		 * @return the time in milliseconds after which the request, client and master buckets can
+		 *         all provide a full read
+		 */
+		private long getMillisecondsUntilAvailable() {
+			return Math.max(requestUploadProcessingOperation.getMillisecondsUntilAvailable(readSize), Math.max(
+					clientUploadProcessingOperation.getMillisecondsUntilAvailable(readSize),
+					masterUploadProcessingOperation.getMillisecondsUntilAvailable(readSize)));
+		}
+
+
+		/**
+		 * @return true if the stream can be read without blocking, or if it has not reported any
+		 *         available byte for too long, in which case a single byte is read.
+		 */
+		private boolean isStreamReady()
+				throws IOException {
+			int available = inputStream.available();
+			if (available > 0) {
+				readableWithoutBlocking = available;
+				pollIntervalInMilliseconds = 0;
+				idle = false;
+				return true;
+			}
+
+			// keep the time since when the stream is idle
+			long time = System.nanoTime();
+			if (!idle) {
+				idleSince = time;
+				idle = true;
+			}
+			// and read a byte anyway if it has been too long, blocking at most for that one
+			else if (TimeUnit.NANOSECONDS.toMillis(time - idleSince) >= nonBlockingMaximumIdleTimeInMilliseconds) {
+				log.trace("no available bytes reported for " + fileId + " for " + nonBlockingMaximumIdleTimeInMilliseconds +
+						"ms, reading a byte anyway");
+				readableWithoutBlocking = 1;
+				idle = false;
+				return true;
+			}
+			return false;
+		}
+
+
+		/**
+		 * @return the time after which the stream is checked again, doubled for the next time up to
+		 *         {@link UploadServletAsyncProcessor#nonBlockingMaximumPollIntervalInMilliseconds}
+		 */
+		private long getPollIntervalInMilliseconds() {
+			if (pollIntervalInMilliseconds == 0) {
+				pollIntervalInMilliseconds = nonBlockingPollIntervalInMilliseconds;
+			}
+			long interval = pollIntervalInMilliseconds;
+			pollIntervalInMilliseconds = Math.min(pollIntervalInMilliseconds * 2, nonBlockingMaximumPollIntervalInMilliseconds);
+			return interval;
+		}
+
+
+		/**
+		 * @return the amount of bytes that can be written according to the request, client and
+		 *         master allowances. It is only an estimate, the bytes are reserved before being
+		 *         read.
+		 */
+		private int getAllowance() {
+			long allowance = Math.min(Math.min(
+					requestUploadProcessingOperation.getDownloadAllowanceForIteration(),
+					clientUploadProcessingOperation.getDownloadAllowanceForIteration()),
+					masterUploadProcessingOperation.getDownloadAllowanceForIteration());
+
+			// the allowance of a high rate does not fit in an int
+			return (int) Math.max(Math.min(allowance, Integer.MAX_VALUE), Integer.MIN_VALUE);
+		}
+
+
+		/**
+		 * Reads and writes at most one buffer of the stream.
+		 * 
+		 * @param available
+		 *            the amount of bytes that can be written
+		 * @return true if there is more to process, false if the chunk is complete
+		 */
+		private boolean write(int available)
 				throws IOException, FileCorruptedException, UploadIsCurrentlyDisabled {
 
 			//check if uploading is enabled or not
 			if (!enabled) {
 				throw new UploadIsCurrentlyDisabled();
 			}
-			
-			// init the buffer with the size of what we read
-			byte[] buffer = new byte[Math.min(available, SIZE_OF_THE_BUFFER_IN_BYTES)];
 
 			//synchronizing on file here so that pause can be assigned before actually starting to read the file
-			int bytesCount;
+			int requested;
 			synchronized (requestUploadProcessingConfiguration) {
 
 				// check if user wants to cancel
@@ -266,11 +692,39 @@ public class UploadServletAsyncProcessor {
 				if (requestUploadProcessingConfiguration.isPaused()) {
 					log.debug("User cancellation detected.");
 					success();
-					return;
+					return false;
+				}
+
+				//reserve what we are allowed to from the request, client and master allowances at once, up to the end of the chunk
+				requested = 0;
+				if (position < endPosition) {
+					requested = (int) UploadProcessingOperation.reserve(
+							minOf(available, readSize, readableWithoutBlocking, (int) Math.min(endPosition - position, Integer.MAX_VALUE)),
+							requestUploadProcessingOperation, clientUploadProcessingOperation, masterUploadProcessingOperation);
+					if (requested == 0) {
+						return true;
+					}
+				}
+			}
+
+			//and read it out of the lock, which is shared by the slices of the file, refunding what has not been read
+			int bytesCount = -1;
+			if (requested == 0) {
+
+				// the chunk has reached its end, its stream shall end too
+				if (inputStream.read() != -1) {
+					completeWithError(InvalidOffsetException.pastExpectedEnd(startPosition, endPosition));
+					return false;
+				}
+			}
+			else {
+				try {
+					bytesCount = inputStream.read(buffer, 0, requested);
+				}
+				finally {
+					UploadProcessingOperation.release(requested, Math.max(bytesCount, 0),
+							requestUploadProcessingOperation, clientUploadProcessingOperation, masterUploadProcessingOperation);
 				}
-				
-				//read
-				bytesCount = inputStream.read(buffer);
 			}
 
 
@@ -281,66 +735,169 @@ public class UploadServletAsyncProcessor {
 				log.trace("Processed bytes {} of request ({})", (byteProcessed += bytesCount), fileId);
 
 				// write it to file
-				outputStream.write(buffer, 0, bytesCount);
+				long bytesPosition = position;
+				byteBuffer.clear();
+				byteBuffer.limit(bytesCount);
+				while (byteBuffer.hasRemaining()) {
+					position += fileChannel.write(byteBuffer, position);
+				}
 
-				// and update crc32
-				crc32.update(buffer, 0, bytesCount);
+				// and update the checksum
+				checksum.update(buffer, 0, bytesCount);
 
-				// and update request allowance
-				requestUploadProcessingOperation.bytesConsumedFromAllowance(bytesCount);
+				// and the digest of the file
+				if (fileDigest != null) {
+					fileDigest.update(buffer, 0, bytesCount);
+				}
 
-				// and update client allowance
-				clientUploadProcessingOperation.bytesConsumedFromAllowance(bytesCount);
+				// and the one of the slices
+				updateSliceCrcs(bytesPosition, bytesCount);
 
-				// also update master allowance
-				masterUploadProcessingOperation.bytesConsumedFromAllowance(bytesCount);
+				// adapt the size of the next reads
+				if (adaptiveBufferSize) {
 
-				// submit again
-				uploadWorkersPool.submit(this);
+					// the stream filled the buffer and we are allowed more: grow
+					if (bytesCount == readSize && available > readSize) {
+						grow();
+					}
+					// the stream could not fill what we asked: shrink
+					else if (bytesCount < requested) {
+						shrink();
+					}
+				}
+
+				return true;
 			}
 			//
 			// if we are done
 			else {
-				String calculatedChecksum = Long.toHexString(crc32.getValue());
+				String calculatedChecksum = ChecksumAlgorithm.toString(checksum);
 				log.debug("Processed part for file " + fileId + " into temp file, checking written crc " + calculatedChecksum +
 						" against input crc " + crc);
 
 				// compare the checksum of the chunks
-				if (!calculatedChecksum.equals(crc)) {
+				if (!ChecksumAlgorithm.sameValue(calculatedChecksum, crc)) {
 					completeWithError(new InvalidCrcException(calculatedChecksum, crc));
-					return;
+					return false;
 				}
 
-				// if the crc is valid, specify the validation to the state
-				staticStateManager.setCrcBytesValidated(clientId, fileId, byteProcessed);
+				// if the crc is valid, the digest of the file now covers the chunk
+				checksumManager.digestUpdated(fileId, fileDigest, startPosition + byteProcessed);
+
+				// and specify the validation to the state
+				staticStateManager.setCrcBytesValidated(clientId, fileId, offset, byteProcessed, sliceCrcs);
 
 				// and specify as complete
 				success();
+				return false;
+			}
+		}
+
+
+		/**
+		 * Updates the crc of the slices with bytes written at the specified position, and keeps the
+		 * crcs of the slices entirely written by this chunk.
+		 */
+		private void updateSliceCrcs(long bytesPosition, int bytesCount) {
+			if (sliceSizeInBytes == null) {
+				return;
+			}
+			int done = 0;
+			while (done < bytesCount) {
+				int slice = (int) (bytesPosition / sliceSizeInBytes);
+				long endOfSlice = SliceIndex.getEndOfSlice(fileSizeInBytes, sliceSizeInBytes, slice);
+
+				// bytes after the end of the file are not part of any slice
+				if (bytesPosition >= endOfSlice) {
+					return;
+				}
+				int count = (int) Math.min(bytesCount - done, endOfSlice - bytesPosition);
+				sliceCrc32.update(buffer, done, count);
+				done += count;
+				bytesPosition += count;
+
+				// the slice is entirely written
+				if (bytesPosition == endOfSlice) {
+					if (slice * sliceSizeInBytes >= startPosition) {
+						sliceCrcs.put(slice, (int) sliceCrc32.getValue());
+					}
+					sliceCrc32.reset();
+				}
 			}
 		}
 
 
 		public void completeWithError(Exception e) {
-			log.debug("error for " + fileId + ". closing file stream");
-			closeFileStream();
+			complete = true;
+			log.debug("error for " + fileId + ". closing file channel");
+			closeFileChannel();
+			releaseBuffer();
 			completionListener.error(e);
 		}
 
 
 		public void success() {
-			log.debug("completion for " + fileId + ". closing file stream");
-			closeFileStream();
+			complete = true;
+			log.debug("completion for " + fileId + ". closing file channel");
+			closeFileChannel();
+			releaseBuffer();
 			completionListener.success();
 		}
 
 
-		private void closeFileStream() {
-			log.debug("Closing FileOutputStream of " + fileId);
+		private void closeFileChannel() {
+			log.debug("Closing FileChannel of " + fileId);
 			try {
-				outputStream.close();
+				fileChannel.close();
 			}
 			catch (Exception e) {
-				log.error("Error closing file output stream for id " + fileId + ": " + e.getMessage());
+				log.error("Error closing file channel for id " + fileId + ": " + e.getMessage());
+			}
+		}
+
+
+		private void grow() {
+			resize(Math.min(readSize * 2, MAXIMUM_ADAPTIVE_SIZE_OF_THE_BUFFER_IN_BYTES));
+		}
+
+
+		private void shrink() {
+			resize(Math.max(readSize / 2, MINIMUM_ADAPTIVE_SIZE_OF_THE_BUFFER_IN_BYTES));
+		}
+
+
+		private void resize(int newReadSize) {
+			if (newReadSize == readSize) {
+				return;
+			}
+			log.trace("resizing buffer of " + fileId + " from " + readSize + " to " + newReadSize);
+			readSize = newReadSize;
+
+			// swap the buffer if it does not fit anymore
+			if (readSize > buffer.length || readSize < buffer.length / 2) {
+				giveBack(buffer);
+				buffer = bufferPool.acquire(readSize);
+				byteBuffer = ByteBuffer.wrap(buffer);
+			}
+		}
+
+
+		private void releaseBuffer() {
+			// give the buffer back to the pool, only once
+			if (buffer != null) {
+				giveBack(buffer);
+				buffer = null;
+			}
+		}
+
+
+		private void giveBack(byte[] buffer) {
+			// the cache of a thread of its own would be lost with it
+			if (threadPerUpload) {
+				bufferPool.releaseToArena(buffer);
+			}
+			else {
+				bufferPool.release(buffer);
 			}
 		}
 
@@ -351,7 +908,124 @@ public class UploadServletAsyncProcessor {
 
 	@ManagedAttribute
 	public int getAwaitingChunks() {
-		return uploadWorkersPool.getQueue().size();
+		return uploadWorkersQueue.size() + uploadWorkersTimer.getQueue().size();
+	}
+
+
+	@ManagedAttribute
+	public String getPriorityStatistics() {
+		return uploadWorkersQueue.getStatistics();
+	}
+
+
+	@ManagedAttribute
+	public String getPriorityWeights() {
+		return priorityWeights;
+	}
+
+
+	/**
+	 * @param priorityWeights
+	 *            the weights of the priority classes, as in interactive=8,standard=4,bulk=1. The
+	 *            classes not specified keep their weight.
+	 */
+	@ManagedAttribute
+	public void setPriorityWeights(String priorityWeights) {
+		for (String priorityWeight : priorityWeights.split(",")) {
+			String[] split = priorityWeight.trim().split("=");
+			if (split.length != 2) {
+				throw new IllegalArgumentException("invalid priority weight: " + priorityWeight);
+			}
+			uploadWorkersQueue.setWeight(UploadPriority.valueOf(split[0].trim()), Integer.parseInt(split[1].trim()));
+		}
+		this.priorityWeights = priorityWeights;
+	}
+
+
+	@ManagedAttribute
+	public int getThreadPerUploadWorkers() {
+		return threadPerUploadWorkers.get();
+	}
+
+
+	@ManagedAttribute
+	public String getWorkersMode() {
+		return workersMode.name();
+	}
+
+
+	@ManagedAttribute
+	public void setWorkersMode(String workersMode) {
+		this.workersMode = UploadWorkersMode.valueOf(workersMode);
+	}
+
+
+	@ManagedAttribute
+	public long getNonBlockingPollIntervalInMilliseconds() {
+		return nonBlockingPollIntervalInMilliseconds;
+	}
+
+
+	@ManagedAttribute
+	public void setNonBlockingPollIntervalInMilliseconds(long nonBlockingPollIntervalInMilliseconds) {
+		this.nonBlockingPollIntervalInMilliseconds = nonBlockingPollIntervalInMilliseconds;
+	}
+
+
+	@ManagedAttribute
+	public long getNonBlockingMaximumPollIntervalInMilliseconds() {
+		return nonBlockingMaximumPollIntervalInMilliseconds;
+	}
+
+
+	@ManagedAttribute
+	public void setNonBlockingMaximumPollIntervalInMilliseconds(long nonBlockingMaximumPollIntervalInMilliseconds) {
+		this.nonBlockingMaximumPollIntervalInMilliseconds = nonBlockingMaximumPollIntervalInMilliseconds;
+	}
+
+
+	@ManagedAttribute
+	public long getNonBlockingMaximumIdleTimeInMilliseconds() {
+		return nonBlockingMaximumIdleTimeInMilliseconds;
+	}
+
+
+	@ManagedAttribute
+	public void setNonBlockingMaximumIdleTimeInMilliseconds(long nonBlockingMaximumIdleTimeInMilliseconds) {
+		this.nonBlockingMaximumIdleTimeInMilliseconds = nonBlockingMaximumIdleTimeInMilliseconds;
+	}
+
+
+	@ManagedAttribute
+	public int getBufferSizeInBytes() {
+		return bufferSizeInBytes;
+	}
+
+
+	/**
+	 * @param bufferSizeInBytes
+	 *            from 1 to {@link BufferPool#MAXIMUM_BUFFER_SIZE}. An empty buffer would have the
+	 *            workers spin on the uploads without reading them.
+	 */
+	@ManagedAttribute
+	public void setBufferSizeInBytes(int bufferSizeInBytes) {
+		if (bufferSizeInBytes < 1 || bufferSizeInBytes > BufferPool.MAXIMUM_BUFFER_SIZE) {
+			throw new IllegalArgumentException("the buffer size shall be between 1 and " + BufferPool.MAXIMUM_BUFFER_SIZE + " bytes: " +
+					bufferSizeInBytes);
+		}
+		this.bufferSizeInBytes = bufferSizeInBytes;
+	}
+
+
+	@ManagedAttribute
+	public boolean isAdaptiveBufferSize() {
+		return adaptiveBufferSize;
+	}
+
+
+	@ManagedAttribute
+	public void setAdaptiveBufferSize(boolean adaptiveBufferSize) {
+		this.adaptiveBufferSize = adaptiveBufferSize;
 	}
 
 
@@ -359,10 +1033,10 @@ public class UploadServletAsyncProcessor {
 		log.debug("resetting token bucket for " + fileId);
 
 		// deleting operation
-		uploadProcessingOperationManager.stopOperation(clientId, fileId);
-
-		// resetting configuration
-		uploadProcessingConfigurationManager.reset(fileId);
+		// and resetting configuration if no other slice of the file is processing
+		if (uploadProcessingOperationManager.stopOperation(clientId, fileId)) {
+			uploadProcessingConfigurationManager.reset(fileId);
+		}
 
 	}
 
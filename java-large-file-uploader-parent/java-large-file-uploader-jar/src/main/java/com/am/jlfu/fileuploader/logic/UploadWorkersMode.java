@@ -0,0 +1,32 @@
+package com.am.jlfu.fileuploader.logic;
+
+/**
+ * Defines how the chunks are processed by the {@link UploadServletAsyncProcessor}.
+ *
+ * @author antoinem
+ *
+ */
+public enum UploadWorkersMode {
+
+	/**
+	 * The chunks are processed by a fixed pool of workers. A chunk waiting for its allowance is
+	 * rescheduled on the pool.
+	 */
+	pool,
+
+	/**
+	 * Each chunk is processed by its own thread, created by the upload workers
+	 * {@link java.util.concurrent.ThreadFactory}, which blocks on the stream and sleeps while waiting
+	 * for its allowance.<br>
+	 * Intended to be used with a thread factory producing virtual threads.
+	 */
+	threadPerUpload,
+
+	/**
+	 * The chunks are processed by the pool of workers, but a worker only reads a stream when it
+	 * reports available bytes. Otherwise the chunk is rescheduled on the pool so that no worker waits
+	 * on a slow client.
+	 */
+	nonBlocking;
+
+}
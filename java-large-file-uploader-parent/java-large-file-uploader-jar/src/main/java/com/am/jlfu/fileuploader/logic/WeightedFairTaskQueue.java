@@ -0,0 +1,376 @@
+package com.am.jlfu.fileuploader.logic;
+
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.collect.Lists;
+
+
+
+/**
+ * The queue of the workers of the {@link UploadServletAsyncProcessor}, dispatching the tasks of
+ * the {@link UploadPriority} classes in proportion to their weights.<br>
+ * Each class is a FIFO queue with a virtual pass which is advanced by the inverse of its weight
+ * every time one of its tasks is dispatched, the task dispatched being the first one of the class
+ * with the lowest pass. A class which was empty starts again from the pass of the last task
+ * dispatched, so that it does not get credit for the time it was idle.<br>
+ * The tasks which are not {@link PrioritizedTask}s are {@link UploadPriority#standard}.
+ *
+ * @author antoinem
+ *
+ */
+public class WeightedFairTaskQueue extends AbstractQueue<Runnable>
+		implements BlockingQueue<Runnable> {
+
+	/**
+	 * A task of a priority class.
+	 */
+	public interface PrioritizedTask
+			extends Runnable {
+
+		UploadPriority getPriority();
+	}
+
+
+
+	/** The pass of a class of weight 1 is advanced by that much per task. */
+	private static final long STRIDE = 1 << 20;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+
+	/** The classes, guarded by the lock. */
+	private final Map<UploadPriority, PriorityClass> classes = new EnumMap<UploadPriority, PriorityClass>(UploadPriority.class);
+	private long virtualTime;
+	private int size;
+
+
+
+	public WeightedFairTaskQueue() {
+		for (UploadPriority priority : UploadPriority.values()) {
+			classes.put(priority, new PriorityClass());
+		}
+	}
+
+
+	@Override
+	public boolean offer(Runnable task) {
+		if (task == null) {
+			throw new NullPointerException();
+		}
+		PriorityClass priorityClass = classes.get(getPriority(task));
+		lock.lock();
+		try {
+			if (priorityClass.tasks.isEmpty()) {
+				priorityClass.pass = Math.max(priorityClass.pass, virtualTime);
+			}
+			priorityClass.tasks.add(new QueuedTask(task));
+			priorityClass.enqueued++;
+			size++;
+			notEmpty.signal();
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+
+	@Override
+	public void put(Runnable task) {
+		offer(task);
+	}
+
+
+	@Override
+	public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+		return offer(task);
+	}
+
+
+	@Override
+	public Runnable poll() {
+		lock.lock();
+		try {
+			return size > 0 ? dequeue() : null;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+
+	@Override
+	public Runnable take()
+			throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (size == 0) {
+				notEmpty.await();
+			}
+			return dequeue();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+
+	@Override
+	public Runnable poll(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (size == 0) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+
+	@Override
+	public Runnable peek() {
+		lock.lock();
+		try {
+			PriorityClass next = getNextClass();
+			return next != null ? next.tasks.getFirst().task : null;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+
+	@Override
+	public boolean remove(Object task) {
+		lock.lock();
+		try {
+			for (PriorityClass priorityClass : classes.values()) {
+				for (Iterator<QueuedTask> iterator = priorityClass.tasks.iterator(); iterator.hasNext();) {
+					if (iterator.next().task.equals(task)) {
+						iterator.remove();
+						size--;
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return size;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+
+	@Override
+	public int remainingCapacity() {
+		return Integer.MAX_VALUE;
+	}
+
+
+	@Override
+	public int drainTo(Collection<? super Runnable> collection) {
+		return drainTo(collection, Integer.MAX_VALUE);
+	}
+
+
+	@Override
+	public int drainTo(Collection<? super Runnable> collection, int maxElements) {
+		lock.lock();
+		try {
+			int drained = 0;
+			while (size > 0 && drained < maxElements) {
+				collection.add(dequeue());
+				drained++;
+			}
+			return drained;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * @return an iterator over a snapshot of the tasks, in no particular order
+	 */
+	@Override
+	public Iterator<Runnable> iterator() {
+		lock.lock();
+		try {
+			List<Runnable> snapshot = Lists.newArrayListWithCapacity(size);
+			for (PriorityClass priorityClass : classes.values()) {
+				for (QueuedTask queuedTask : priorityClass.tasks) {
+					snapshot.add(queuedTask.task);
+				}
+			}
+			return snapshot.iterator();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * @param priority
+	 * @return the weight of the class
+	 */
+	public int getWeight(UploadPriority priority) {
+		return classes.get(priority).weight;
+	}
+
+
+	/**
+	 * @param priority
+	 * @param weight
+	 *            the share of the dispatches of this class, relatively to the other ones
+	 */
+	public void setWeight(UploadPriority priority, int weight) {
+		if (weight <= 0) {
+			throw new IllegalArgumentException("the weight must be positive: " + weight);
+		}
+		classes.get(priority).weight = weight;
+	}
+
+
+	/**
+	 * @param priority
+	 * @return the amount of tasks of this class waiting for a worker
+	 */
+	public int size(UploadPriority priority) {
+		lock.lock();
+		try {
+			return classes.get(priority).tasks.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * @return for each class, the amount of tasks waiting, enqueued, dispatched and the average time
+	 *         they have waited for a worker
+	 */
+	public String getStatistics() {
+		StringBuilder statistics = new StringBuilder();
+		lock.lock();
+		try {
+			for (Entry<UploadPriority, PriorityClass> entry : classes.entrySet()) {
+				PriorityClass priorityClass = entry.getValue();
+				if (statistics.length() > 0) {
+					statistics.append(", ");
+				}
+				statistics.append(entry.getKey()).append(" (weight ").append(priorityClass.weight).append("): ")
+						.append(priorityClass.tasks.size()).append(" waiting, ")
+						.append(priorityClass.enqueued).append(" enqueued, ")
+						.append(priorityClass.dispatched).append(" dispatched, ")
+						.append(priorityClass.dispatched > 0 ? TimeUnit.NANOSECONDS.toMicros(priorityClass.waitInNanoseconds / priorityClass.dispatched) : 0)
+						.append("us average wait");
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+		return statistics.toString();
+	}
+
+
+	private static UploadPriority getPriority(Runnable task) {
+		if (task instanceof PrioritizedTask) {
+			UploadPriority priority = ((PrioritizedTask) task).getPriority();
+			if (priority != null) {
+				return priority;
+			}
+		}
+		return UploadPriority.standard;
+	}
+
+
+	/**
+	 * @return the non empty class with the lowest pass, the highest priority first if they are
+	 *         equal
+	 */
+	private PriorityClass getNextClass() {
+		PriorityClass next = null;
+		for (PriorityClass priorityClass : classes.values()) {
+			if (!priorityClass.tasks.isEmpty() && (next == null || priorityClass.pass < next.pass)) {
+				next = priorityClass;
+			}
+		}
+		return next;
+	}
+
+
+	private Runnable dequeue() {
+		PriorityClass next = getNextClass();
+		QueuedTask queuedTask = next.tasks.removeFirst();
+		virtualTime = next.pass;
+		next.pass += STRIDE / next.weight;
+		next.dispatched++;
+		next.waitInNanoseconds += System.nanoTime() - queuedTask.enqueuedAt;
+		size--;
+		return queuedTask.task;
+	}
+
+
+
+	private static class PriorityClass {
+
+		final LinkedList<QueuedTask> tasks = new LinkedList<QueuedTask>();
+		volatile int weight = 1;
+		long pass;
+
+		/** The statistics. */
+		long enqueued;
+		long dispatched;
+		long waitInNanoseconds;
+	}
+
+
+
+	private static class QueuedTask {
+
+		final Runnable task;
+		final long enqueuedAt = System.nanoTime();
+
+
+
+		QueuedTask(Runnable task) {
+			this.task = task;
+		}
+	}
+
+}
@@ -4,13 +4,16 @@ package com.am.jlfu.fileuploader.utils;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import com.am.jlfu.fileuploader.buffer.BufferPool;
+import com.am.jlfu.fileuploader.checksum.ChecksumAlgorithm;
 import com.am.jlfu.fileuploader.json.CRCResult;
-import com.am.jlfu.fileuploader.logic.UploadServletAsyncProcessor;
 
 
 
@@ -26,6 +29,12 @@ public class CRCHelper {
 
 	private static final Logger log = LoggerFactory.getLogger(CRCHelper.class);
 
+	/** The size of the buffer used to read the streams, independent from the upload one */
+	public static final int SIZE_OF_THE_BUFFER_IN_BYTES = 65536;// 64KB
+
+	@Autowired
+	private BufferPool bufferPool;
+
 
 
 	/**
@@ -38,22 +47,42 @@ public class CRCHelper {
 	 */
 	public CRCResult getBufferedCrc(InputStream inputStream)
 			throws IOException {
+		return getBufferedCrc(inputStream, ChecksumAlgorithm.crc32);
+	}
+
+
+	/**
+	 * Returns a {@link CRCResult} computed with the specified algorithm from the stream specified as
+	 * parameter.
+	 * 
+	 * @param inputStream
+	 * @param checksumAlgorithm
+	 * @return {@link CRCResult}
+	 * @throws IOException
+	 */
+	public CRCResult getBufferedCrc(InputStream inputStream, ChecksumAlgorithm checksumAlgorithm)
+			throws IOException {
 
-		byte[] b = new byte[UploadServletAsyncProcessor.SIZE_OF_THE_BUFFER_IN_BYTES];
+		byte[] b = bufferPool.acquire(SIZE_OF_THE_BUFFER_IN_BYTES);
 		int read;
 		int totalRead = 0;
-		CRC32 crc32 = new CRC32();
-		while ((read = inputStream.read(b)) != -1) {
-			crc32.update(b, 0, read);
-			totalRead += read;
+		Checksum checksum = checksumAlgorithm.newChecksum();
+		try {
+			while ((read = inputStream.read(b)) != -1) {
+				checksum.update(b, 0, read);
+				totalRead += read;
+			}
+		}
+		finally {
+			bufferPool.release(b);
 		}
 		inputStream.close();
 
 		CRCResult crcResult = new CRCResult();
-		crcResult.setCrcAsString(Long.toHexString(crc32.getValue()));
+		crcResult.setCrcAsString(ChecksumAlgorithm.toString(checksum));
 		crcResult.setTotalRead(totalRead);
 
-		log.debug("obtained crc for stream with length " + totalRead + " : " + crcResult.getCrcAsString());
+		log.debug("obtained " + checksumAlgorithm + " for stream with length " + totalRead + " : " + crcResult.getCrcAsString());
 
 		return crcResult;
 
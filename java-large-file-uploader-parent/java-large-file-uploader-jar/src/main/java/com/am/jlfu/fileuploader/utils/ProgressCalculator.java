@@ -10,6 +10,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import com.am.jlfu.fileuploader.limiter.RateLimiterConfigurationManager;
+import com.am.jlfu.fileuploader.limiter.RateStatistics;
 import com.am.jlfu.staticstate.JavaLargeFileUploaderService;
 import com.am.jlfu.staticstate.entities.FileProgressStatus;
 import com.am.jlfu.staticstate.entities.StaticFileState;
@@ -70,6 +71,11 @@ public class ProgressCalculator {
 		// compare size of the file to the expected size
 		Long originalFileSizeInBytes = fileState.getStaticFileStateJson().getOriginalFileSizeInBytes();
 		long currentFileSize = file.length();
+
+		// if slices are validated after the validated bytes, the file may contain holes
+		if (SliceIndex.getCompletedBytesAfterValidatedBytes(fileState.getStaticFileStateJson()) > 0) {
+			currentFileSize = SliceIndex.getValidatedBytes(fileState.getStaticFileStateJson());
+		}
 		Float progress = calculateProgress(currentFileSize, originalFileSizeInBytes).floatValue();
 
 		//set it
@@ -77,8 +83,12 @@ public class ProgressCalculator {
 		fileProgressStatus.setTotalFileSize(originalFileSizeInBytes);
 		fileProgressStatus.setBytesUploaded(currentFileSize);
 
-		//set upload rate
-		fileProgressStatus.setUploadRate(rateLimiterConfigurationManager.getUploadState(fileId));
+		//set upload rates
+		RateStatistics rateStatistics = rateLimiterConfigurationManager.getRateStatistics(fileId);
+		fileProgressStatus.setUploadRate(rateStatistics.getRateInBytes(1));
+		fileProgressStatus.setUploadRateOverTenSeconds(rateStatistics.getRateInBytes(10));
+		fileProgressStatus.setUploadRateOverOneMinute(rateStatistics.getRateInBytes(60));
+		fileProgressStatus.setPeakUploadRate(rateStatistics.getPeakRateInBytes());
 		
 		//calculate estimated remaining time
 		fileProgressStatus.setEstimatedRemainingTimeInSeconds(remainingTimeEstimator.getRemainingTime(fileId, fileProgressStatus, fileProgressStatus.getUploadRate()));
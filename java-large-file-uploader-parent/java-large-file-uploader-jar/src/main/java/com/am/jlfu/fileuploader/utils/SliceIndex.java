@@ -0,0 +1,120 @@
+package com.am.jlfu.fileuploader.utils;
+
+
+import com.am.jlfu.fileuploader.json.FileStateJsonBase;
+
+
+
+/**
+ * Provides static methods to deal with the index of the validated slices of a file.<br>
+ * The index is made of the bitmap of the completed slices, in int words so that it can be shared
+ * with the javascript client (the slice <code>i</code> is completed if the bit <code>i % 32</code>
+ * of the word <code>i / 32</code> is set), and of the crc of each completed slice.<br>
+ * A javascript method is also contained in <code>javalargefileuploader.js</code>
+ *
+ * @author antoinem
+ */
+public final class SliceIndex {
+
+	private static final int BITS_PER_WORD = 32;
+
+
+
+	public static int getNumberOfSlices(long fileSizeInBytes, long sliceSizeInBytes) {
+		return (int) ((fileSizeInBytes + sliceSizeInBytes - 1) / sliceSizeInBytes);
+	}
+
+
+	public static long getEndOfSlice(long fileSizeInBytes, long sliceSizeInBytes, int slice) {
+		return Math.min((slice + 1) * sliceSizeInBytes, fileSizeInBytes);
+	}
+
+
+	/**
+	 * @return true if the offset is the beginning of one of the slices of the file
+	 */
+	public static boolean isStartOfSlice(long fileSizeInBytes, long sliceSizeInBytes, long offset) {
+		return offset >= 0 && offset < fileSizeInBytes && offset % sliceSizeInBytes == 0;
+	}
+
+
+	public static boolean isCompleted(FileStateJsonBase fileStateJson, int slice) {
+		int[] completedSlices = fileStateJson.getCompletedSlices();
+		return completedSlices != null && slice / BITS_PER_WORD < completedSlices.length &&
+				(completedSlices[slice / BITS_PER_WORD] & 1 << slice % BITS_PER_WORD) != 0;
+	}
+
+
+	/**
+	 * @return the crc of the slice, or null if the slice is not in the index
+	 */
+	public static String getCrc(FileStateJsonBase fileStateJson, int slice) {
+		if (!isCompleted(fileStateJson, slice)) {
+			return null;
+		}
+		return Long.toHexString(fileStateJson.getSliceCrcs()[slice] & 0xffffffffL);
+	}
+
+
+	/**
+	 * Adds a validated slice to the index.
+	 */
+	public static void addSlice(FileStateJsonBase fileStateJson, int slice, int crc) {
+		if (fileStateJson.getCompletedSlices() == null) {
+			int numberOfSlices = getNumberOfSlices(fileStateJson.getOriginalFileSizeInBytes(), fileStateJson.getSliceSizeInBytes());
+			fileStateJson.setCompletedSlices(new int[(numberOfSlices + BITS_PER_WORD - 1) / BITS_PER_WORD]);
+			fileStateJson.setSliceCrcs(new int[numberOfSlices]);
+		}
+		fileStateJson.getCompletedSlices()[slice / BITS_PER_WORD] |= 1 << slice % BITS_PER_WORD;
+		fileStateJson.getSliceCrcs()[slice] = crc;
+	}
+
+
+	/**
+	 * @return the amount of validated bytes at the beginning of the file, extended with the
+	 *         completed slices following them
+	 */
+	public static long extendValidatedBytes(FileStateJsonBase fileStateJson, long validatedBytes) {
+		long fileSizeInBytes = fileStateJson.getOriginalFileSizeInBytes();
+		Long sliceSizeInBytes = fileStateJson.getSliceSizeInBytes();
+		if (sliceSizeInBytes == null) {
+			return validatedBytes;
+		}
+		while (validatedBytes < fileSizeInBytes && isCompleted(fileStateJson, (int) (validatedBytes / sliceSizeInBytes))) {
+			validatedBytes = getEndOfSlice(fileSizeInBytes, sliceSizeInBytes, (int) (validatedBytes / sliceSizeInBytes));
+		}
+		return validatedBytes;
+	}
+
+
+	/**
+	 * @return the amount of bytes of the completed slices located after the validated bytes at the
+	 *         beginning of the file
+	 */
+	public static long getCompletedBytesAfterValidatedBytes(FileStateJsonBase fileStateJson) {
+		if (fileStateJson.getCompletedSlices() == null) {
+			return 0;
+		}
+		long fileSizeInBytes = fileStateJson.getOriginalFileSizeInBytes();
+		long sliceSizeInBytes = fileStateJson.getSliceSizeInBytes();
+		long completed = 0;
+		int numberOfSlices = getNumberOfSlices(fileSizeInBytes, sliceSizeInBytes);
+		for (int slice = getNumberOfSlices(fileStateJson.getCrcedBytes(), sliceSizeInBytes); slice < numberOfSlices; slice++) {
+			if (isCompleted(fileStateJson, slice)) {
+				completed += getEndOfSlice(fileSizeInBytes, sliceSizeInBytes, slice) - slice * sliceSizeInBytes;
+			}
+		}
+		return completed;
+	}
+
+
+	/**
+	 * @return the amount of validated bytes in the file, including the completed slices located
+	 *         after the validated bytes at the beginning of the file
+	 */
+	public static long getValidatedBytes(FileStateJsonBase fileStateJson) {
+		return fileStateJson.getCrcedBytes() + getCompletedBytesAfterValidatedBytes(fileStateJson);
+	}
+
+
+}
@@ -22,6 +22,7 @@ import org.springframework.web.HttpRequestHandler;
 import org.springframework.web.context.support.HttpRequestHandlerServlet;
 
 import com.am.jlfu.authorizer.Authorizer;
+import com.am.jlfu.authorizer.PriorityAuthorizer;
 import com.am.jlfu.fileuploader.exception.AuthorizationException;
 import com.am.jlfu.fileuploader.exception.FileCorruptedException;
 import com.am.jlfu.fileuploader.exception.FileStillProcessingException;
@@ -29,6 +30,8 @@ import com.am.jlfu.fileuploader.exception.InvalidCrcException;
 import com.am.jlfu.fileuploader.exception.MissingParameterException;
 import com.am.jlfu.fileuploader.json.PrepareUploadJson;
 import com.am.jlfu.fileuploader.json.ProgressJson;
+import com.am.jlfu.fileuploader.limiter.StorageAdmissionController;
+import com.am.jlfu.fileuploader.logic.UploadPriority;
 import com.am.jlfu.fileuploader.logic.UploadProcessor;
 import com.am.jlfu.fileuploader.web.utils.ExceptionCodeMappingHelper;
 import com.am.jlfu.fileuploader.web.utils.FileUploaderHelper;
@@ -69,6 +72,9 @@ public class UploadServlet extends HttpRequestHandlerServlet
 	@Autowired
 	StaticStateIdentifierManager staticStateIdentifierManager;
 
+	@Autowired
+	StorageAdmissionController storageAdmissionController;
+
 
 
 	@Override
@@ -147,12 +153,14 @@ public class UploadServlet extends HttpRequestHandlerServlet
 				String parameterValue = fileUploaderHelper.getParameterValue(request, UploadServletParameter.clientId, false);
 				returnObject =
 						uploadProcessor.getConfig(
-								parameterValue != null ? UUID.fromString(parameterValue) : null);
+								parameterValue != null ? UUID.fromString(parameterValue) : null,
+								fileUploaderHelper.getParameterValue(request, UploadServletParameter.checksumAlgorithms, false));
 				break;
 			case verifyCrcOfUncheckedPart:
 				returnObject = verifyCrcOfUncheckedPart(request);
 				break;
 			case prepareUpload:
+				storageAdmissionController.checkAdmission();
 				returnObject = prepareUpload(request);
 				break;
 			case clearFile:
@@ -227,6 +235,11 @@ public class UploadServlet extends HttpRequestHandlerServlet
 				new Gson()
 						.fromJson(fileUploaderHelper.getParameterValue(request, UploadServletParameter.newFiles), PrepareUploadJson[].class);
 
+		// resolve their priority
+		for (PrepareUploadJson prepareUploadJson : fromJson) {
+			prepareUploadJson.setPriority(getUploadPriority(request, prepareUploadJson).name());
+		}
+
 		// prepare them
 		final HashMap<String, UUID> prepareUpload = uploadProcessor.prepareUpload(fromJson);
 
@@ -240,6 +253,27 @@ public class UploadServlet extends HttpRequestHandlerServlet
 	}
 
 
+	/**
+	 * @return the priority assigned by the authorizer if it does, otherwise the one asked by the
+	 *         client, which can only be lower than {@link UploadPriority#standard}
+	 */
+	UploadPriority getUploadPriority(HttpServletRequest request, PrepareUploadJson prepareUploadJson) {
+		if (authorizer instanceof PriorityAuthorizer) {
+			UploadPriority priority =
+					((PriorityAuthorizer) authorizer).getUploadPriority(request, staticStateIdentifierManager.getIdentifier(), prepareUploadJson);
+			if (priority != null) {
+				return priority;
+			}
+		}
+		UploadPriority priority = UploadPriority.fromName(prepareUploadJson.getPriority());
+		if (priority.isHigherThan(UploadPriority.standard)) {
+			log.debug("priority " + priority + " not granted to client " + staticStateIdentifierManager.getIdentifier());
+			return UploadPriority.standard;
+		}
+		return priority;
+	}
+
+
 	private Boolean verifyCrcOfUncheckedPart(HttpServletRequest request)
 			throws IOException, MissingParameterException, FileCorruptedException, FileStillProcessingException {
 		UUID fileId = UUID.fromString(fileUploaderHelper.getParameterValue(request, UploadServletParameter.fileId));
@@ -18,7 +18,8 @@ public enum UploadServletAction {
 	pauseFile,
 	verifyCrcOfUncheckedPart,
 	clearAll,
-	upload;
+	upload,
+	uploadRaw;
 
 
 }
@@ -1,9 +1,11 @@
 package com.am.jlfu.fileuploader.web;
 
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
@@ -20,9 +22,15 @@ import org.springframework.web.HttpRequestHandler;
 import org.springframework.web.context.support.HttpRequestHandlerServlet;
 
 import com.am.jlfu.authorizer.Authorizer;
+import com.am.jlfu.fileuploader.exception.InvalidOffsetException;
+import com.am.jlfu.fileuploader.exception.TooManyConcurrentRequestsException;
 import com.am.jlfu.fileuploader.exception.UploadIsCurrentlyDisabled;
+import com.am.jlfu.fileuploader.json.FileStateJsonBase;
+import com.am.jlfu.fileuploader.limiter.StorageAdmissionController;
+import com.am.jlfu.fileuploader.limiter.UploadProcessingOperationManager;
 import com.am.jlfu.fileuploader.logic.UploadServletAsyncProcessor;
 import com.am.jlfu.fileuploader.logic.UploadServletAsyncProcessor.WriteChunkCompletionListener;
+import com.am.jlfu.fileuploader.utils.SliceIndex;
 import com.am.jlfu.fileuploader.web.utils.ExceptionCodeMappingHelper;
 import com.am.jlfu.fileuploader.web.utils.FileUploadConfiguration;
 import com.am.jlfu.fileuploader.web.utils.FileUploaderHelper;
@@ -58,6 +66,12 @@ public class UploadServletAsync extends HttpRequestHandlerServlet
 	@Autowired
 	Authorizer authorizer;
 
+	@Autowired
+	StorageAdmissionController storageAdmissionController;
+
+	@Autowired
+	UploadProcessingOperationManager uploadProcessingOperationManager;
+
 	/**
 	 * Maximum time that a streaming request can take.<br>
 	 */
@@ -69,12 +83,18 @@ public class UploadServletAsync extends HttpRequestHandlerServlet
 			throws ServletException, IOException {
 
 		// process the request
+		AdmittedRequest admittedRequest = null;
+		AsyncContext startedAsyncContext = null;
+		final AtomicBoolean operationStarted = new AtomicBoolean();
 		try {
 
 			//check if uploads are allowed
 			if (!uploadServletAsyncProcessor.isEnabled()) {
 				throw new UploadIsCurrentlyDisabled();
 			}
+
+			// check if the storage can take more
+			storageAdmissionController.checkAdmission();
 			
 			// extract stuff from request
 			final FileUploadConfiguration process = fileUploaderHelper.extractFileUploadConfiguration(request);
@@ -83,7 +103,7 @@ public class UploadServletAsync extends HttpRequestHandlerServlet
 
 			// verify authorization
 			final UUID clientId = staticStateIdentifierManager.getIdentifier();
-			authorizer.getAuthorization(request, UploadServletAction.upload, clientId, process.getFileId());
+			authorizer.getAuthorization(request, fileUploaderHelper.getUploadAction(request), clientId, process.getFileId());
 
 			//check if that file is not paused
 			if (uploadServletAsyncProcessor.isFilePaused(process.getFileId())) {
@@ -97,8 +117,27 @@ public class UploadServletAsync extends HttpRequestHandlerServlet
 				throw new FileNotFoundException("File with id " + process.getFileId() + " not found");
 			}
 
+			// if an offset is specified, the chunk shall start where the file ends or where the
+			// validated bytes end, or at the beginning of a slice if the slices are uploaded in
+			// parallel
+			if (process.getOffset() != null) {
+				long fileLength = new File(fileState.getAbsoluteFullPathOfUploadedFile()).length();
+				FileStateJsonBase fileStateJson = fileState.getStaticFileStateJson();
+				if (process.getOffset() != fileLength &&
+						!process.getOffset().equals(fileStateJson.getCrcedBytes()) &&
+						(fileStateJson.getSliceSizeInBytes() == null || !SliceIndex.isStartOfSlice(fileStateJson.getOriginalFileSizeInBytes(),
+								fileStateJson.getSliceSizeInBytes(), process.getOffset()))) {
+					throw new InvalidOffsetException(fileLength, process.getOffset());
+				}
+			}
+
+			// limit the chunks uploaded at the same time by this client and for this file
+			final AdmittedRequest admission = admit(clientId, process.getFileId());
+			admittedRequest = admission;
+
 			// process the request asynchronously
 			final AsyncContext asyncContext = request.startAsync();
+			startedAsyncContext = asyncContext;
 			asyncContext.setTimeout(taskTimeOut);
 
 
@@ -110,14 +149,18 @@ public class UploadServletAsync extends HttpRequestHandlerServlet
 				@Override
 				void clean() {
 					log.debug("request " + request + " completed.");
+					admission.release();
 					// we do not need to clear the inputstream here.
-					// and tell processor to clean its shit!
-					uploadServletAsyncProcessor.clean(clientId, process.getFileId());
+					// and tell processor to clean its shit, if this request has started processing
+					if (operationStarted.compareAndSet(true, false)) {
+						uploadServletAsyncProcessor.clean(clientId, process.getFileId());
+					}
 				}
 			});
 
-			// then process
-			uploadServletAsyncProcessor.process(fileState, process.getFileId(), process.getCrc(), process.getInputStream(),
+			// then process, the processor stopping the operation itself if it throws
+			operationStarted.set(true);
+			uploadServletAsyncProcessor.process(fileState, process.getFileId(), process.getCrc(), process.getOffset(), process.getInputStream(),
 					new WriteChunkCompletionListener() {
 
 						@Override
@@ -153,9 +196,52 @@ public class UploadServletAsync extends HttpRequestHandlerServlet
 					});
 		}
 		catch (Exception e) {
+			operationStarted.set(false);
+			if (admittedRequest != null) {
+				admittedRequest.release();
+			}
 			exceptionCodeMappingHelper.processException(e, response);
+
+			// do not let the request wait for its timeout
+			if (startedAsyncContext != null) {
+				startedAsyncContext.complete();
+			}
+		}
+
+	}
+
+
+	private AdmittedRequest admit(UUID clientId, UUID fileId)
+			throws TooManyConcurrentRequestsException {
+		uploadProcessingOperationManager.admitRequest(clientId, fileId);
+		return new AdmittedRequest(clientId, fileId);
+	}
+
+
+
+	/**
+	 * A request admitted by the {@link UploadProcessingOperationManager}, released once whether it
+	 * completes or fails.
+	 */
+	private class AdmittedRequest {
+
+		private final UUID clientId;
+		private final UUID fileId;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+
+
+		AdmittedRequest(UUID clientId, UUID fileId) {
+			this.clientId = clientId;
+			this.fileId = fileId;
 		}
 
+
+		void release() {
+			if (released.compareAndSet(false, true)) {
+				uploadProcessingOperationManager.releaseRequest(clientId, fileId);
+			}
+		}
 	}
 
 }
@@ -0,0 +1,31 @@
+package com.am.jlfu.fileuploader.web;
+
+
+/**
+ * One of the possible header that the servlet handles for the {@link UploadServletAction#uploadRaw}
+ * action.
+ * 
+ * @author antoinem
+ * 
+ */
+public enum UploadServletHeader {
+
+	fileId("X-JLFU-File-Id"),
+	offset("X-JLFU-Offset"),
+	crc("X-JLFU-Crc");
+
+	private String headerName;
+
+
+
+	private UploadServletHeader(String headerName) {
+		this.headerName = headerName;
+	}
+
+
+	public String getHeaderName() {
+		return headerName;
+	}
+
+
+}
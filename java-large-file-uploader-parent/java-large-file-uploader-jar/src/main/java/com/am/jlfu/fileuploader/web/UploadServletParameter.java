@@ -12,9 +12,11 @@ public enum UploadServletParameter {
 	action,
 	fileId,
 	crc,
+	offset,
 	rate,
 	newFiles,
-	clientId;
+	clientId,
+	checksumAlgorithms;
 
 
 }
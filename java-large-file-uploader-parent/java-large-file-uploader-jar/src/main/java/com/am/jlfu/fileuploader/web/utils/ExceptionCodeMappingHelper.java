@@ -14,8 +14,11 @@ import com.am.jlfu.fileuploader.exception.AuthorizationException;
 import com.am.jlfu.fileuploader.exception.FileCorruptedException;
 import com.am.jlfu.fileuploader.exception.FileStillProcessingException;
 import com.am.jlfu.fileuploader.exception.InvalidCrcException;
+import com.am.jlfu.fileuploader.exception.InvalidOffsetException;
 import com.am.jlfu.fileuploader.exception.JavaFileUploaderException;
 import com.am.jlfu.fileuploader.exception.MissingParameterException;
+import com.am.jlfu.fileuploader.exception.StorageBackpressureException;
+import com.am.jlfu.fileuploader.exception.TooManyConcurrentRequestsException;
 import com.am.jlfu.fileuploader.exception.UploadIsCurrentlyDisabled;
 
 
@@ -47,7 +50,10 @@ public class ExceptionCodeMappingHelper {
 		AuthorizationException (12, AuthorizationException.class),
 		FileCorruptedException (14, FileCorruptedException.class),
 		FileStillProcessingException (15, FileStillProcessingException.class),
-		UploadIsCurrentlyDisabled (16, UploadIsCurrentlyDisabled.class);
+		UploadIsCurrentlyDisabled (16, UploadIsCurrentlyDisabled.class),
+		InvalidOffsetException (17, InvalidOffsetException.class),
+		StorageBackpressureException (18, StorageBackpressureException.class),
+		TooManyConcurrentRequestsException (19, TooManyConcurrentRequestsException.class);
 
 		private int exceptionIdentifier;
 		private Class<? extends Exception> clazz;
@@ -92,6 +98,11 @@ public class ExceptionCodeMappingHelper {
 			log.error(e.getMessage());
 		}
 
+		// tell when to come back if the storage is overloaded
+		if (e instanceof StorageBackpressureException) {
+			response.setHeader("Retry-After", String.valueOf(((StorageBackpressureException) e).getRetryAfterInSeconds()));
+		}
+
 		// write exception to response
 		if (exceptionCodeMappingByType != null) {
 			try {
@@ -11,6 +11,7 @@ public class FileUploadConfiguration {
 	private UUID fileId;
 	private String crc;
 	private InputStream inputStream;
+	private Long offset;
 
 
 
@@ -48,4 +49,14 @@ public class FileUploadConfiguration {
 	}
 
 
+	public Long getOffset() {
+		return offset;
+	}
+
+
+	public void setOffset(Long offset) {
+		this.offset = offset;
+	}
+
+
 }
@@ -2,6 +2,7 @@ package com.am.jlfu.fileuploader.web.utils;
 
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.util.UUID;
 
@@ -12,11 +13,15 @@ import org.apache.commons.fileupload.FileItemIterator;
 import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.servlet.ServletRequestContext;
+import org.apache.commons.io.input.CountingInputStream;
 import org.springframework.stereotype.Component;
 
 import com.am.jlfu.fileuploader.exception.JavaFileUploaderException;
 import com.am.jlfu.fileuploader.exception.MissingParameterException;
 import com.am.jlfu.fileuploader.json.SimpleJsonObject;
+import com.am.jlfu.fileuploader.web.UploadServletAction;
+import com.am.jlfu.fileuploader.web.UploadServletHeader;
 import com.am.jlfu.fileuploader.web.UploadServletParameter;
 import com.am.jlfu.fileuploader.web.utils.ExceptionCodeMappingHelper.ExceptionCodeMapping;
 import com.google.gson.Gson;
@@ -32,9 +37,35 @@ import com.google.gson.Gson;
 @Component
 public class FileUploaderHelper {
 
+	/** The content type of the requests of the {@link UploadServletAction#uploadRaw} action */
+	public static final String RAW_CONTENT_TYPE = "application/octet-stream";
+
+
+
+	/**
+	 * @param request
+	 * @return the action of the upload request, {@link UploadServletAction#uploadRaw} if its body is
+	 *         the chunk itself, {@link UploadServletAction#upload} if it is multipart
+	 */
+	public UploadServletAction getUploadAction(HttpServletRequest request) {
+		String action = request.getParameter(UploadServletParameter.action.name());
+		String contentType = request.getContentType();
+		if (UploadServletAction.uploadRaw.name().equals(action) ||
+				action == null && contentType != null && contentType.toLowerCase().startsWith(RAW_CONTENT_TYPE)) {
+			return UploadServletAction.uploadRaw;
+		}
+		return UploadServletAction.upload;
+	}
+
 
 	public FileUploadConfiguration extractFileUploadConfiguration(HttpServletRequest request)
 			throws MissingParameterException, FileUploadException, IOException, JavaFileUploaderException {
+
+		// if the body is the chunk itself
+		if (getUploadAction(request) == UploadServletAction.uploadRaw) {
+			return extractRawFileUploadConfiguration(request);
+		}
+
 		final FileUploadConfiguration fileUploadConfiguration = new FileUploadConfiguration();
 
 		// check if the request is multipart:
@@ -45,12 +76,41 @@ public class FileUploaderHelper {
 		// extract the fields
 		fileUploadConfiguration.setFileId(UUID.fromString(getParameterValue(request, UploadServletParameter.fileId)));
 		fileUploadConfiguration.setCrc(getParameterValue(request, UploadServletParameter.crc, false));
+		String offset = getParameterValue(request, UploadServletParameter.offset, false);
+		if (offset != null) {
+			fileUploadConfiguration.setOffset(Long.valueOf(offset));
+		}
+
+		// parse the single part sent by the javascript client
+		InputStream rawRequestInputStream = request.getInputStream();
+		String boundary = SingleFilePartInputStream.getBoundary(request.getContentType());
+		if (boundary != null) {
+			SingleFilePartInputStream singleFilePartInputStream =
+					new SingleFilePartInputStream(rawRequestInputStream, boundary, request.getContentLength());
+			if (singleFilePartInputStream.openPart()) {
+				fileUploadConfiguration.setInputStream(singleFilePartInputStream);
+				return fileUploadConfiguration;
+			}
+
+			// if the request is not the expected one, let commons-fileupload process it
+			rawRequestInputStream = singleFilePartInputStream.getRequestInputStream();
+		}
 
 		// Create a new file upload handler
 		ServletFileUpload upload = new ServletFileUpload();
 
+		// count what the parser consumes from the request
+		final CountingInputStream requestInputStream = new CountingInputStream(rawRequestInputStream);
+
 		// parse the requestuest
-		FileItemIterator iter = upload.getItemIterator(request);
+		FileItemIterator iter = upload.getItemIterator(new ServletRequestContext(request) {
+
+			@Override
+			public InputStream getInputStream()
+					throws IOException {
+				return requestInputStream;
+			}
+		});
 		FileItemStream item = iter.next();
 
 		// throw exception if item is null
@@ -59,7 +119,7 @@ public class FileUploaderHelper {
 		}
 
 		// extract input stream
-		fileUploadConfiguration.setInputStream(item.openStream());
+		fileUploadConfiguration.setInputStream(new MultipartItemInputStream(item.openStream(), requestInputStream, request.getContentLength()));
 
 		// return conf
 		return fileUploadConfiguration;
@@ -67,6 +127,41 @@ public class FileUploaderHelper {
 	}
 
 
+	/**
+	 * Extracts the configuration of a request whose body is the chunk, described by the
+	 * {@link UploadServletHeader}s, which can also be specified as parameters.
+	 */
+	private FileUploadConfiguration extractRawFileUploadConfiguration(HttpServletRequest request)
+			throws MissingParameterException, IOException {
+		final FileUploadConfiguration fileUploadConfiguration = new FileUploadConfiguration();
+
+		// extract the headers
+		String fileId = getHeaderValue(request, UploadServletHeader.fileId, UploadServletParameter.fileId);
+		if (fileId == null) {
+			throw new MissingParameterException(UploadServletParameter.fileId);
+		}
+		fileUploadConfiguration.setFileId(UUID.fromString(fileId));
+		fileUploadConfiguration.setCrc(getHeaderValue(request, UploadServletHeader.crc, UploadServletParameter.crc));
+		String offset = getHeaderValue(request, UploadServletHeader.offset, UploadServletParameter.offset);
+		if (offset != null) {
+			fileUploadConfiguration.setOffset(Long.valueOf(offset));
+		}
+
+		// and the stream is the body
+		fileUploadConfiguration.setInputStream(new RawBodyInputStream(request.getInputStream(), request.getContentLength()));
+		return fileUploadConfiguration;
+	}
+
+
+	private String getHeaderValue(HttpServletRequest request, UploadServletHeader header, UploadServletParameter fallbackParameter) {
+		String headerValue = request.getHeader(header.getHeaderName());
+		if (headerValue == null) {
+			headerValue = request.getParameter(fallbackParameter.name());
+		}
+		return headerValue;
+	}
+
+
 	public String getParameterValue(HttpServletRequest request, UploadServletParameter parameter)
 			throws MissingParameterException {
 		return getParameterValue(request, parameter, true);
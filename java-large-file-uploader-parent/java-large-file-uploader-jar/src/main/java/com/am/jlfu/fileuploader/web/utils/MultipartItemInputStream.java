@@ -0,0 +1,61 @@
+package com.am.jlfu.fileuploader.web.utils;
+
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.input.CountingInputStream;
+
+
+
+/**
+ * Stream of the file item of a multipart request.<br>
+ * Its {@link #available()} takes into account the bytes buffered by the multipart parser as well
+ * as the bytes already received by the container, so that it can be used to read the item
+ * without waiting on the socket.
+ *
+ * @author antoinem
+ *
+ */
+public class MultipartItemInputStream extends FilterInputStream {
+
+	/** The stream of the request, counting what has been consumed by the parser */
+	private final CountingInputStream requestInputStream;
+
+	/** The length of the request body, -1 if unknown */
+	private final long contentLength;
+
+
+
+	public MultipartItemInputStream(InputStream itemInputStream, CountingInputStream requestInputStream, long contentLength) {
+		super(itemInputStream);
+		this.requestInputStream = requestInputStream;
+		this.contentLength = contentLength;
+	}
+
+
+	/**
+	 * Returns an estimate of the number of bytes that can be read without blocking.<br>
+	 * Once the whole request body has been received, the remaining of the item can be read without
+	 * blocking: at least 1 is returned, even if the next read only reports the end of the stream.
+	 */
+	@Override
+	public int available()
+			throws IOException {
+
+		// what the parser has already buffered
+		int available = super.available();
+		if (available > 0) {
+			return available;
+		}
+
+		// if the whole body has been received
+		if (contentLength >= 0 && requestInputStream.getByteCount() >= contentLength) {
+			return 1;
+		}
+
+		// otherwise what the container has received
+		return requestInputStream.available();
+	}
+}
@@ -0,0 +1,41 @@
+package com.am.jlfu.fileuploader.web.utils;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.input.CountingInputStream;
+
+
+
+/**
+ * Stream of the body of a request which contains nothing but a chunk.<br>
+ * Like {@link MultipartItemInputStream}, its {@link #available()} reports at least 1 once the whole
+ * body has been received, even if the next read only reports the end of the stream.
+ * 
+ * @author antoinem
+ * 
+ */
+public class RawBodyInputStream extends CountingInputStream {
+
+	/** The length of the request body, -1 if unknown */
+	private final long contentLength;
+
+
+
+	public RawBodyInputStream(InputStream requestInputStream, long contentLength) {
+		super(requestInputStream);
+		this.contentLength = contentLength;
+	}
+
+
+	@Override
+	public int available()
+			throws IOException {
+		int available = super.available();
+		if (available == 0 && contentLength >= 0 && getByteCount() >= contentLength) {
+			return 1;
+		}
+		return available;
+	}
+}
@@ -0,0 +1,431 @@
+package com.am.jlfu.fileuploader.web.utils;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+
+
+
+/**
+ * Parser of the multipart requests sent by the javascript client, which contain a single part
+ * named {@value #PART_NAME} holding the chunk.<br>
+ * It reads the boundary and the headers of that part with {@link #openPart()}, then streams the
+ * body of the part up to the next boundary through a single buffer, either as an
+ * {@link InputStream} or as a {@link ReadableByteChannel}. The reads of at least
+ * {@value #SIZE_OF_THE_BUFFER_IN_BYTES} bytes bypass that buffer once it is drained, the request
+ * being read directly into the array of the caller.<br>
+ * If the request does not have the expected format, {@link #openPart()} returns false and the
+ * request can be parsed by a generic parser from {@link #getRequestInputStream()}.
+ *
+ * @author antoinem
+ *
+ */
+public class SingleFilePartInputStream extends InputStream
+		implements ReadableByteChannel {
+
+	private static final Logger log = LoggerFactory.getLogger(SingleFilePartInputStream.class);
+
+	/** The name of the part sent by the javascript client */
+	public static final String PART_NAME = "file";
+
+	/** The size of the buffer in bytes */
+	private static final int SIZE_OF_THE_BUFFER_IN_BYTES = 8192;// 8KB
+
+	private static final byte[] END_OF_HEADERS = "\r\n\r\n".getBytes(Charsets.ISO_8859_1);
+
+	/** The stream of the request */
+	private final InputStream requestInputStream;
+
+	/** The length of the request body, -1 if unknown */
+	private final long contentLength;
+
+	/** The delimiter which ends the part: a line break, two dashes and the boundary */
+	private final byte[] delimiter;
+
+	/** The buffer, containing the bytes read from the request from head to tail */
+	private final byte[] buffer;
+	private int head;
+	private int tail;
+
+	/** The amount of bytes read from the request */
+	private long consumed;
+
+	private boolean requestEnded;
+	private boolean finished;
+	private boolean open = true;
+
+
+
+	public SingleFilePartInputStream(InputStream requestInputStream, String boundary, long contentLength) {
+		this.requestInputStream = requestInputStream;
+		this.contentLength = contentLength;
+		this.delimiter = ("\r\n--" + boundary).getBytes(Charsets.ISO_8859_1);
+		this.buffer = new byte[SIZE_OF_THE_BUFFER_IN_BYTES + delimiter.length];
+	}
+
+
+	/**
+	 * Extracts the boundary from the content type of a multipart request.
+	 *
+	 * @param contentType
+	 * @return the boundary or null if the content type is not a multipart/form-data one or has no
+	 *         boundary
+	 */
+	public static String getBoundary(String contentType) {
+		if (contentType == null || !contentType.toLowerCase().startsWith("multipart/form-data")) {
+			return null;
+		}
+		for (String parameter : contentType.split(";")) {
+			parameter = parameter.trim();
+			if (parameter.toLowerCase().startsWith("boundary=")) {
+				String boundary = unquote(parameter.substring("boundary=".length()));
+				return boundary.isEmpty() ? null : boundary;
+			}
+		}
+		return null;
+	}
+
+
+	/**
+	 * Reads the boundary and the headers of the first part.
+	 *
+	 * @return true if the request starts with the part {@value #PART_NAME}, the stream is then
+	 *         positioned at the beginning of its body; false if the request has an unexpected format,
+	 *         the request shall then be read from {@link #getRequestInputStream()}
+	 * @throws IOException
+	 */
+	public boolean openPart()
+			throws IOException {
+
+		// read until the end of the headers, which have to fit in the buffer
+		int endOfHeaders;
+		while ((endOfHeaders = indexOf(END_OF_HEADERS, 0)) == -1) {
+			if (tail == buffer.length || fill() == -1) {
+				log.debug("headers of the part not found");
+				return false;
+			}
+		}
+
+		// the body shall start with the delimiter, without its leading line break
+		int startOfHeaders = delimiter.length;
+		if (!startsWith(delimiter, 2, 0) || buffer[startOfHeaders - 2] != '\r' || buffer[startOfHeaders - 1] != '\n') {
+			log.debug("request does not start with the boundary");
+			return false;
+		}
+
+		// and the part shall be the expected one
+		String headers = new String(buffer, startOfHeaders, Math.max(0, endOfHeaders - startOfHeaders), Charsets.ISO_8859_1);
+		if (!isExpectedPart(headers)) {
+			log.debug("unexpected part: " + headers);
+			return false;
+		}
+
+		// position to the body
+		head = endOfHeaders + END_OF_HEADERS.length;
+		return true;
+	}
+
+
+	/**
+	 * @return a stream providing the whole request, including what has been read by
+	 *         {@link #openPart()}. To be used only if {@link #openPart()} returned false.
+	 */
+	public InputStream getRequestInputStream() {
+		return new SequenceInputStream(new ByteArrayInputStream(buffer, 0, tail), requestInputStream);
+	}
+
+
+	/**
+	 * @return true if the end of the part has been reached
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+
+	@Override
+	public int read()
+			throws IOException {
+		if (prepareRead() == -1) {
+			return -1;
+		}
+		return buffer[head++] & 0xff;
+	}
+
+
+	@Override
+	public int read(byte[] b, int off, int len)
+			throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+
+		// a big read does not go through the buffer once it has nothing left to give
+		if (len >= SIZE_OF_THE_BUFFER_IN_BYTES && !finished && getReadable() == 0) {
+			return finished ? -1 : readDirectly(b, off, len);
+		}
+
+		int count = prepareRead();
+		if (count == -1) {
+			return -1;
+		}
+		count = Math.min(len, count);
+		System.arraycopy(buffer, head, b, off, count);
+		head += count;
+		return count;
+	}
+
+
+	@Override
+	public int read(ByteBuffer dst)
+			throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		if (!dst.hasRemaining()) {
+			return 0;
+		}
+
+		// a big heap buffer is read into directly as well
+		if (dst.hasArray() && dst.remaining() >= SIZE_OF_THE_BUFFER_IN_BYTES) {
+			int count = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+			if (count > 0) {
+				dst.position(dst.position() + count);
+			}
+			return count;
+		}
+
+		int count = prepareRead();
+		if (count == -1) {
+			return -1;
+		}
+		count = Math.min(dst.remaining(), count);
+		dst.put(buffer, head, count);
+		head += count;
+		return count;
+	}
+
+
+	/**
+	 * Returns an estimate of the number of bytes that can be read without blocking.<br>
+	 * Once the end of the part has been reached or the whole request body has been received, at
+	 * least 1 is returned, even if the next read only reports the end of the stream.
+	 */
+	@Override
+	public int available()
+			throws IOException {
+
+		// what can be read from the buffer
+		int readable = finished ? 0 : getReadable();
+		if (readable > 0) {
+			return readable;
+		}
+
+		// if the end is known, reading will not block
+		if (finished || requestEnded || contentLength >= 0 && consumed >= contentLength) {
+			return 1;
+		}
+
+		// otherwise what the container has received
+		return requestInputStream.available();
+	}
+
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+
+	/**
+	 * Closes this stream, the stream of the request is left to the container.
+	 */
+	@Override
+	public void close() {
+		open = false;
+	}
+
+
+	/**
+	 * Fills the buffer until some bytes of the body can be read.
+	 *
+	 * @return the amount of bytes that can be read from the head of the buffer, or -1 if the end of
+	 *         the part has been reached
+	 * @throws IOException
+	 *             if the request ends before the end of the part
+	 */
+	private int prepareRead()
+			throws IOException {
+		int readable = 0;
+		while (!finished && (readable = getReadable()) == 0) {
+			if (!finished && fill() == -1) {
+				throw new IOException("Stream ended unexpectedly");
+			}
+		}
+		return finished ? -1 : readable;
+	}
+
+
+	/**
+	 * Reads the request directly into the array of the caller, the buffer only keeping between two
+	 * reads what may be the beginning of the delimiter.
+	 *
+	 * @return the amount of bytes of the body read, or -1 if the end of the part has been reached
+	 * @throws IOException
+	 *             if the request ends before the end of the part
+	 */
+	private int readDirectly(byte[] b, int off, int len)
+			throws IOException {
+		while (true) {
+
+			// start with what is left in the buffer, which is shorter than the delimiter
+			int pending = tail - head;
+			System.arraycopy(buffer, head, b, off, pending);
+			head = 0;
+			tail = 0;
+
+			// then read the request after it
+			int read = requestInputStream.read(b, off + pending, len - pending);
+			if (read == -1) {
+				requestEnded = true;
+				throw new IOException("Stream ended unexpectedly");
+			}
+			consumed += read;
+			int count = pending + read;
+
+			// if the delimiter is there, we are done after what precedes it
+			int index = indexOf(b, off, off + count, delimiter);
+			if (index != -1) {
+				finished = true;
+				return index == off ? -1 : index - off;
+			}
+
+			// otherwise keep the end which may be the beginning of the delimiter
+			int kept = Math.min(count, delimiter.length - 1);
+			System.arraycopy(b, off + count - kept, buffer, 0, kept);
+			tail = kept;
+			if (count > kept) {
+				return count - kept;
+			}
+		}
+	}
+
+
+	/**
+	 * @return the amount of bytes from the head of the buffer that are part of the body
+	 */
+	private int getReadable() {
+		int index = indexOf(delimiter, head);
+
+		// the delimiter is at the head, we are done
+		if (index == head) {
+			finished = true;
+			return 0;
+		}
+		if (index != -1) {
+			return index - head;
+		}
+
+		// the end of the buffer may be the beginning of the delimiter
+		return Math.max(0, tail - head - (delimiter.length - 1));
+	}
+
+
+	/**
+	 * Moves what has not been read to the beginning of the buffer and reads the request after it.
+	 *
+	 * @return the amount of bytes read or -1 if the request has ended
+	 * @throws IOException
+	 */
+	private int fill()
+			throws IOException {
+		if (head > 0) {
+			System.arraycopy(buffer, head, buffer, 0, tail - head);
+			tail -= head;
+			head = 0;
+		}
+		int read = requestInputStream.read(buffer, tail, buffer.length - tail);
+		if (read == -1) {
+			requestEnded = true;
+		}
+		else {
+			tail += read;
+			consumed += read;
+		}
+		return read;
+	}
+
+
+	private int indexOf(byte[] bytes, int from) {
+		return indexOf(buffer, from, tail, bytes);
+	}
+
+
+	/**
+	 * @return the index of the bytes in the array between from and to, or -1 if they are not there
+	 */
+	private static int indexOf(byte[] array, int from, int to, byte[] bytes) {
+		for (int i = from; i <= to - bytes.length; i++) {
+			int j = 0;
+			while (j < bytes.length && array[i + j] == bytes[j]) {
+				j++;
+			}
+			if (j == bytes.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+
+	private boolean startsWith(byte[] bytes, int bytesOffset, int index) {
+		if (tail - index < bytes.length - bytesOffset) {
+			return false;
+		}
+		for (int i = bytesOffset; i < bytes.length; i++) {
+			if (buffer[index + i - bytesOffset] != bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	static boolean isExpectedPart(String headers) {
+		for (String header : headers.split("\r\n")) {
+			if (header.toLowerCase().startsWith("content-disposition:")) {
+				String[] parameters = header.substring("content-disposition:".length()).split(";");
+				if (!parameters[0].trim().equalsIgnoreCase("form-data")) {
+					return false;
+				}
+				for (int i = 1; i < parameters.length; i++) {
+					String parameter = parameters[i].trim();
+					if (parameter.toLowerCase().startsWith("name=")) {
+						return PART_NAME.equals(unquote(parameter.substring("name=".length())));
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+
+	private static String unquote(String value) {
+		value = value.trim();
+		if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+			return value.substring(1, value.length() - 1);
+		}
+		return value;
+	}
+
+}
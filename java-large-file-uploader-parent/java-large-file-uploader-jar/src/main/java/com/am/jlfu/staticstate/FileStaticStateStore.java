@@ -0,0 +1,107 @@
+package com.am.jlfu.staticstate;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+
+
+/**
+ * Default {@link StaticStateStore}, writing the snapshot of each client in a
+ * {@link StaticStateManager#FILENAME} file of its directory, and its journal in a
+ * {@link #JOURNAL_FILENAME} file next to it.
+ * 
+ * @author antoinem
+ * @see StaticStateSnapshotManager
+ */
+@Component
+public class FileStaticStateStore
+		implements StaticStateStore {
+
+	private static final Logger log = LoggerFactory.getLogger(FileStaticStateStore.class);
+
+	static final String JOURNAL_FILENAME = "StaticState.journal";
+
+	@Autowired
+	StaticStateDirectoryManager staticStateDirectoryManager;
+
+	@Autowired
+	StaticStateSnapshotManager staticStateSnapshotManager;
+
+
+
+	@Override
+	public boolean contains(UUID clientId) {
+		return staticStateSnapshotManager.exists(getFile(clientId));
+	}
+
+
+	@Override
+	public Object read(UUID clientId)
+			throws IOException {
+		return staticStateSnapshotManager.read(getFile(clientId));
+	}
+
+
+	@Override
+	public void write(UUID clientId, Object entity)
+			throws IOException {
+		staticStateSnapshotManager.write(getFile(clientId), entity);
+	}
+
+
+	@Override
+	public void delete(UUID clientId) {
+		// the file is deleted along with the directory of the client
+	}
+
+
+	@Override
+	public void appendJournal(UUID clientId, byte[] bytes)
+			throws IOException {
+		FileOutputStream fs = new FileOutputStream(getJournalFile(clientId), true);
+		try {
+			fs.write(bytes);
+		}
+		finally {
+			fs.close();
+		}
+	}
+
+
+	@Override
+	public InputStream readJournal(UUID clientId)
+			throws IOException {
+		File journalFile = getJournalFile(clientId);
+		return journalFile.exists() ? new FileInputStream(journalFile) : null;
+	}
+
+
+	@Override
+	public void truncateJournal(UUID clientId) {
+		File journalFile = getJournalFile(clientId);
+		if (journalFile.exists() && !journalFile.delete()) {
+			log.error("cannot delete the journal " + journalFile.getAbsolutePath());
+		}
+	}
+
+
+	private File getFile(UUID clientId) {
+		return new File(staticStateDirectoryManager.getUUIDFileParent(clientId), StaticStateManager.FILENAME);
+	}
+
+
+	private File getJournalFile(UUID clientId) {
+		return new File(staticStateDirectoryManager.getUUIDFileParent(clientId), JOURNAL_FILENAME);
+	}
+
+}
@@ -2,16 +2,16 @@ package com.am.jlfu.staticstate;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.jmx.export.annotation.ManagedOperation;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Component;
@@ -21,7 +21,6 @@ import com.am.jlfu.fileuploader.utils.ProgressManager;
 import com.am.jlfu.notifier.JLFUListenerPropagator;
 import com.am.jlfu.staticstate.entities.FileProgressStatus;
 import com.am.jlfu.staticstate.entities.StaticStatePersistedOnFileSystemEntity;
-import com.thoughtworks.xstream.XStream;
 
 /**
  * Provides methods related to the management of information of the files for services outside the scope of a request.<br>
@@ -50,6 +49,25 @@ public class JavaLargeFileUploaderService<T extends StaticStatePersistedOnFileSy
 	
 	@Autowired
 	JLFUListenerPropagator jlfuListenerPropagator;
+
+	@Autowired
+	StaticStateJournal<T> staticStateJournal;
+
+	@Autowired
+	StaticStatePersistenceScheduler<T> staticStatePersistenceScheduler;
+
+	@Autowired
+	StaticStateSnapshotManager staticStateSnapshotManager;
+
+	@Autowired
+	FileStaticStateStore fileStaticStateStore;
+
+	/**
+	 * The store replacing the {@link FileStaticStateStore}, if any.
+	 */
+	@Autowired(required = false)
+	@Qualifier("jlfuStaticStateStore")
+	StaticStateStore staticStateStore;
 	
 	private static final Logger log = LoggerFactory.getLogger(JavaLargeFileUploaderService.class);
 
@@ -79,17 +97,28 @@ public class JavaLargeFileUploaderService<T extends StaticStatePersistedOnFileSy
 	public void updateEntity(UUID uuid, T entity) {
 		log.debug("writing state for " + uuid);
 		staticStateManager.cache.put(uuid, entity);
-		writeEntity(new File(staticStateDirectoryManager.getUUIDFileParent(uuid), StaticStateManager.FILENAME), entity);
+		writeEntity(uuid, entity);
 	}
 
 	/**
-	 * Persists modifications onto filesystem only.
+	 * Persists modifications onto filesystem only.<br>
+	 * The snapshot containing all of the modifications, the journal of the client is emptied.
 	 * 
 	 * @param uuid the uuid of the client, identifying the file
 	 * @param entity the entity to write into that file
+	 * @see StaticStateJournal
 	 */
 	public void writeEntity(UUID uuid, T entity) {
-		writeEntity(new File(staticStateDirectoryManager.getUUIDFileParent(uuid), StaticStateManager.FILENAME), entity);
+		synchronized (entity) {
+			try {
+				getStaticStateStore().write(uuid, entity);
+			}
+			catch (IOException e) {
+				log.error("cannot write the state of " + uuid + ": " + e.getMessage(), e);
+				return;
+			}
+			staticStateJournal.truncate(uuid);
+		}
 	}
 
 	/**
@@ -103,22 +132,24 @@ public class JavaLargeFileUploaderService<T extends StaticStatePersistedOnFileSy
 	}
 	
 	private void write(T modelFromContext, File modelFile) {
-		XStream xStream = new XStream();
-		FileOutputStream fs = null;
 		try {
-			fs = new FileOutputStream(modelFile);
-			xStream.toXML(modelFromContext, fs);
+			staticStateSnapshotManager.write(modelFile, modelFromContext);
 		}
-		catch (FileNotFoundException e) {
+		catch (IOException e) {
 			log.error("cannot write to model file for " + modelFromContext.getClass().getSimpleName() + ": " + e.getMessage(), e);
 		}
-		finally {
-			IOUtils.closeQuietly(fs);
-		}
 	}
 
 	
 
+	/**
+	 * @return the store of the snapshots of the clients
+	 */
+	StaticStateStore getStaticStateStore() {
+		return staticStateStore != null ? staticStateStore : fileStaticStateStore;
+	}
+
+
 	/**
 	 * Retrieves the entity from cache using a client identifier.
 	 * 
@@ -152,8 +183,8 @@ public class JavaLargeFileUploaderService<T extends StaticStatePersistedOnFileSy
 		T entity = getEntityIfPresent(clientId);
 		entity.getFileStates().remove(fileId);
 		
-		// and save
-		updateEntity(clientId, entity);
+		// and journal it
+		staticStateJournal.fileCleared(clientId, entity, fileId);
 	}
 	
 	/**
@@ -173,6 +204,9 @@ public class JavaLargeFileUploaderService<T extends StaticStatePersistedOnFileSy
 
 		// remove entity from cache
 		staticStateManager.cache.invalidate(clientId);
+		staticStatePersistenceScheduler.clear(clientId);
+		staticStateJournal.clear(clientId);
+		getStaticStateStore().delete(clientId);
 
 	}
 	
@@ -0,0 +1,664 @@
+package com.am.jlfu.staticstate;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.LinkedList;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.am.jlfu.staticstate.serialization.StaticStateCodec;
+import com.am.jlfu.staticstate.serialization.StaticStateSerializer;
+
+
+
+/**
+ * {@link StaticStateStore} keeping the snapshots and the journals of all of the clients in a single
+ * memory-mapped file, so that reading or writing a snapshot is a lookup in a hash index followed by
+ * a copy, with no file created per client.<br>
+ * The file starts with a header, followed by an open addressing index of the clients, each slot
+ * holding the identifier of a client, the offset of its snapshot and the offset of the last part
+ * of its journal, and by the snapshots and the parts of the journals, each preceded by its length
+ * and crc, a part of a journal also by the offset of the previous part. Nothing is overwritten: a
+ * new snapshot or part is appended and then its offset replaces the previous one in the slot, so
+ * that the previous one is still referenced if the write is interrupted. The space of the replaced
+ * and deleted snapshots and of the truncated journals is reclaimed, and the index enlarged, by
+ * rewriting the live data into a new file which replaces the current one.<br>
+ * The whole file is mapped, which limits it to 2GB. The mapping is released before the file is
+ * resized or replaced, which would fail on some systems while it is mapped. To use it, declare it
+ * as a bean named
+ * <code>jlfuStaticStateStore</code> with the path of the file as argument.
+ *
+ * @author antoinem
+ *
+ */
+public class MappedStaticStateStore
+		implements StaticStateStore {
+
+	private static final Logger log = LoggerFactory.getLogger(MappedStaticStateStore.class);
+
+	private static final int MAGIC = 0x4a4c4653;
+	static final int VERSION = 2;
+
+	/** The header: magic, version, capacity of the index, entries, used slots, end of the data, garbage. */
+	private static final int HEADER_SIZE = 64;
+	private static final int MAGIC_POSITION = 0;
+	private static final int VERSION_POSITION = 4;
+	private static final int CAPACITY_POSITION = 8;
+	private static final int ENTRIES_POSITION = 12;
+	private static final int USED_SLOTS_POSITION = 16;
+	private static final int DATA_END_POSITION = 24;
+	private static final int GARBAGE_POSITION = 32;
+
+	/**
+	 * A slot: most and least significant bits of the client, offset of its snapshot and offset of
+	 * the last part of its journal.
+	 */
+	private static final int SLOT_SIZE = 32;
+	private static final int OFFSET_IN_SLOT = 16;
+	private static final int JOURNAL_IN_SLOT = 24;
+
+	/** A snapshot is preceded by its length and its crc. */
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	/** A part of a journal is preceded by its length, its crc and the offset of the previous part. */
+	private static final int JOURNAL_HEADER_SIZE = 16;
+
+	/** The offset of the journal of a client which has none. */
+	private static final long NO_JOURNAL = 0;
+
+	/** The offsets of the slots which are empty or whose client has been deleted. */
+	private static final long EMPTY = 0;
+	private static final long DELETED = -1;
+
+	static final int INITIAL_CAPACITY = 1024;
+
+	/** The size of the first mapping of the data, doubled when it is full. */
+	private static final long INITIAL_DATA_SIZE = 1024 * 1024;
+
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	@Autowired
+	StaticStateSerializer staticStateSerializer;
+
+	private final File file;
+
+	/** Whether the modifications are synced to the disk before returning. */
+	private volatile boolean sync = true;
+
+	private RandomAccessFile randomAccessFile;
+	private MappedByteBuffer buffer;
+
+	/** The header. */
+	private int capacity;
+	private int entries;
+	private int usedSlots;
+	private long dataEnd;
+	private long garbage;
+
+
+
+	/**
+	 * Opens the store, creating the file if it does not exist.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public MappedStaticStateStore(File file)
+			throws IOException {
+		this.file = file;
+		if (!file.exists() || file.length() == 0) {
+			create(file, INITIAL_CAPACITY, INITIAL_DATA_SIZE);
+		}
+		open();
+	}
+
+
+	/**
+	 * Creates an empty store.
+	 */
+	private static void create(File file, int capacity, long dataSize)
+			throws IOException {
+		RandomAccessFile created = new RandomAccessFile(file, "rw");
+		try {
+			created.setLength(getDataStart(capacity) + dataSize);
+			created.writeInt(MAGIC);
+			created.writeInt(VERSION);
+			created.writeInt(capacity);
+			created.writeInt(0);
+			created.writeInt(0);
+			created.seek(DATA_END_POSITION);
+			created.writeLong(getDataStart(capacity));
+			created.writeLong(0);
+			created.getFD().sync();
+		}
+		finally {
+			created.close();
+		}
+	}
+
+
+	private void open()
+			throws IOException {
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		map(randomAccessFile.length());
+		if (buffer.getInt(MAGIC_POSITION) != MAGIC) {
+			close();
+			throw new IOException(file.getAbsolutePath() + " is not a static state store");
+		}
+		int version = buffer.getInt(VERSION_POSITION);
+		if (version != VERSION) {
+			close();
+			throw new IOException(file.getAbsolutePath() + " has an unsupported version " + version);
+		}
+		capacity = buffer.getInt(CAPACITY_POSITION);
+		entries = buffer.getInt(ENTRIES_POSITION);
+		usedSlots = buffer.getInt(USED_SLOTS_POSITION);
+		dataEnd = buffer.getLong(DATA_END_POSITION);
+		garbage = buffer.getLong(GARBAGE_POSITION);
+	}
+
+
+	private void map(long size)
+			throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("the static state store " + file.getAbsolutePath() + " cannot exceed 2GB");
+		}
+
+		// release the current mapping before resizing the file, and map it again whatever happens
+		if (buffer != null) {
+			MappedByteBuffer previous = buffer;
+			buffer = null;
+			unmap(previous);
+		}
+		try {
+			randomAccessFile.setLength(size);
+		}
+		finally {
+			buffer = randomAccessFile.getChannel().map(MapMode.READ_WRITE, 0, randomAccessFile.length());
+		}
+	}
+
+
+	/**
+	 * Releases a mapping right away instead of when the buffer is garbage collected. The buffer
+	 * shall not be used anymore.<br>
+	 * There is no API for this: the cleaner of the buffer is invoked by reflection, through
+	 * <code>sun.misc.Unsafe</code> since Java 9 and directly before. If neither is available, the
+	 * mapping is left to the garbage collector.
+	 */
+	private static void unmap(MappedByteBuffer mappedByteBuffer) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			try {
+				Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				invokeCleaner.invoke(theUnsafe.get(null), mappedByteBuffer);
+				return;
+			}
+			catch (NoSuchMethodException e) {
+				// before Java 9
+			}
+			Method cleanerMethod = mappedByteBuffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(mappedByteBuffer);
+			if (cleaner != null) {
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		}
+		catch (Exception e) {
+			log.warn("cannot release a mapping of a static state store, it is left to the garbage collector: " + e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Closes the store.
+	 */
+	@PreDestroy
+	public synchronized void close() {
+		if (randomAccessFile != null) {
+			MappedByteBuffer mapped = buffer;
+			buffer = null;
+			try {
+				if (mapped != null) {
+					mapped.force();
+					unmap(mapped);
+				}
+				randomAccessFile.close();
+			}
+			catch (IOException e) {
+				log.error("cannot close the static state store " + file.getAbsolutePath() + ": " + e.getMessage(), e);
+			}
+			randomAccessFile = null;
+		}
+	}
+
+
+	@Override
+	public synchronized boolean contains(UUID clientId) {
+		return find(buffer, capacity, clientId) >= 0;
+	}
+
+
+	@Override
+	public Object read(UUID clientId)
+			throws IOException {
+		byte[] bytes;
+		synchronized (this) {
+			int slot = find(buffer, capacity, clientId);
+			if (slot < 0) {
+				throw new IOException("no static state for " + clientId + " in " + file.getAbsolutePath());
+			}
+			int offset = (int) buffer.getLong(getSlotPosition(slot) + OFFSET_IN_SLOT);
+			bytes = new byte[buffer.getInt(offset)];
+			ByteBuffer value = buffer.duplicate();
+			value.position(offset + RECORD_HEADER_SIZE);
+			value.get(bytes);
+			if (crc(bytes) != buffer.getInt(offset + 4)) {
+				throw new IOException("the static state of " + clientId + " in " + file.getAbsolutePath() + " has an invalid crc");
+			}
+		}
+
+		// decode it out of the lock
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		StaticStateCodec codec = staticStateSerializer.getCodec(in.readUTF());
+		return codec.read(in);
+	}
+
+
+	@Override
+	public void write(UUID clientId, Object entity)
+			throws IOException {
+
+		// encode it out of the lock
+		StaticStateCodec codec = staticStateSerializer.getCodecFor(entity);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeUTF(codec.getName());
+		codec.write(entity, data);
+		data.flush();
+		byte[] bytes = out.toByteArray();
+		int recordLength = RECORD_HEADER_SIZE + bytes.length;
+
+		synchronized (this) {
+			int slot = find(buffer, capacity, clientId);
+
+			// make room in the index
+			if (slot < 0 && (usedSlots + 1) * 2 > capacity) {
+				rebuild((entries + 1) * 4 > capacity ? capacity * 2 : capacity);
+				slot = find(buffer, capacity, clientId);
+			}
+
+			// and for the data
+			if (reserve(recordLength)) {
+				slot = find(buffer, capacity, clientId);
+			}
+
+			// append the snapshot
+			long offset = dataEnd;
+			buffer.putInt((int) offset, bytes.length);
+			buffer.putInt((int) offset + 4, crc(bytes));
+			ByteBuffer value = buffer.duplicate();
+			value.position((int) offset + RECORD_HEADER_SIZE);
+			value.put(bytes);
+			dataEnd += recordLength;
+			buffer.putLong(DATA_END_POSITION, dataEnd);
+			if (sync) {
+				buffer.force();
+			}
+
+			// then reference it
+			int slotPosition;
+			if (slot >= 0) {
+				slotPosition = getSlotPosition(slot);
+				garbage += getRecordLength(slotPosition);
+			}
+			else {
+				slotPosition = getSlotPosition(-slot - 1);
+				if (buffer.getLong(slotPosition + OFFSET_IN_SLOT) == EMPTY) {
+					usedSlots++;
+				}
+				entries++;
+				buffer.putLong(slotPosition, clientId.getMostSignificantBits());
+				buffer.putLong(slotPosition + 8, clientId.getLeastSignificantBits());
+				buffer.putLong(slotPosition + JOURNAL_IN_SLOT, NO_JOURNAL);
+			}
+			buffer.putLong(slotPosition + OFFSET_IN_SLOT, offset);
+			writeHeader();
+		}
+	}
+
+
+	/**
+	 * Makes room for a record at the end of the data, enlarging the mapping or rebuilding the file.
+	 *
+	 * @return true if the file has been rebuilt, which moves the slots
+	 */
+	private boolean reserve(int recordLength)
+			throws IOException {
+		if (dataEnd + recordLength <= buffer.capacity()) {
+			return false;
+		}
+		boolean rebuilt = false;
+		if (garbage * 2 > dataEnd - getDataStart(capacity)) {
+			rebuild(capacity);
+			rebuilt = true;
+		}
+		long size = buffer.capacity();
+		while (dataEnd + recordLength > size) {
+			size *= 2;
+		}
+		if (size != buffer.capacity()) {
+			map(Math.max(dataEnd + recordLength, Math.min(size, Integer.MAX_VALUE)));
+		}
+		return rebuilt;
+	}
+
+
+	@Override
+	public synchronized void delete(UUID clientId) {
+		int slot = find(buffer, capacity, clientId);
+		if (slot < 0) {
+			return;
+		}
+		int slotPosition = getSlotPosition(slot);
+		garbage += getRecordLength(slotPosition) + getJournalLength(slotPosition);
+		buffer.putLong(slotPosition + OFFSET_IN_SLOT, DELETED);
+		buffer.putLong(slotPosition + JOURNAL_IN_SLOT, NO_JOURNAL);
+		entries--;
+		writeHeader();
+	}
+
+
+	@Override
+	public void appendJournal(UUID clientId, byte[] bytes)
+			throws IOException {
+		int recordLength = JOURNAL_HEADER_SIZE + bytes.length;
+		synchronized (this) {
+			if (find(buffer, capacity, clientId) < 0) {
+				throw new IOException("no static state for " + clientId + " in " + file.getAbsolutePath());
+			}
+			reserve(recordLength);
+			int slotPosition = getSlotPosition(find(buffer, capacity, clientId));
+
+			// append the part
+			long offset = dataEnd;
+			buffer.putInt((int) offset, bytes.length);
+			buffer.putInt((int) offset + 4, crc(bytes));
+			buffer.putLong((int) offset + 8, buffer.getLong(slotPosition + JOURNAL_IN_SLOT));
+			ByteBuffer value = buffer.duplicate();
+			value.position((int) offset + JOURNAL_HEADER_SIZE);
+			value.put(bytes);
+			dataEnd += recordLength;
+			buffer.putLong(DATA_END_POSITION, dataEnd);
+			if (sync) {
+				buffer.force();
+			}
+
+			// then reference it
+			buffer.putLong(slotPosition + JOURNAL_IN_SLOT, offset);
+			writeHeader();
+		}
+	}
+
+
+	@Override
+	public InputStream readJournal(UUID clientId)
+			throws IOException {
+		ByteArrayOutputStream journal = new ByteArrayOutputStream();
+		synchronized (this) {
+			int slot = find(buffer, capacity, clientId);
+			if (slot < 0 || buffer.getLong(getSlotPosition(slot) + JOURNAL_IN_SLOT) == NO_JOURNAL) {
+				return null;
+			}
+			for (long offset : getJournalParts(getSlotPosition(slot))) {
+				byte[] bytes = new byte[buffer.getInt((int) offset)];
+				ByteBuffer value = buffer.duplicate();
+				value.position((int) offset + JOURNAL_HEADER_SIZE);
+				value.get(bytes);
+				if (crc(bytes) != buffer.getInt((int) offset + 4)) {
+					throw new IOException("the journal of " + clientId + " in " + file.getAbsolutePath() + " has an invalid crc");
+				}
+				journal.write(bytes);
+			}
+		}
+		return new ByteArrayInputStream(journal.toByteArray());
+	}
+
+
+	@Override
+	public synchronized void truncateJournal(UUID clientId) {
+		int slot = find(buffer, capacity, clientId);
+		if (slot < 0) {
+			return;
+		}
+		int slotPosition = getSlotPosition(slot);
+		if (buffer.getLong(slotPosition + JOURNAL_IN_SLOT) != NO_JOURNAL) {
+			garbage += getJournalLength(slotPosition);
+			buffer.putLong(slotPosition + JOURNAL_IN_SLOT, NO_JOURNAL);
+			writeHeader();
+		}
+	}
+
+
+	private int getRecordLength(int slotPosition) {
+		return RECORD_HEADER_SIZE + buffer.getInt((int) buffer.getLong(slotPosition + OFFSET_IN_SLOT));
+	}
+
+
+	/**
+	 * @return the offsets of the parts of the journal referenced by the slot, from the first one
+	 */
+	private LinkedList<Long> getJournalParts(int slotPosition) {
+		LinkedList<Long> parts = new LinkedList<Long>();
+		for (long offset = buffer.getLong(slotPosition + JOURNAL_IN_SLOT); offset != NO_JOURNAL; offset = buffer.getLong((int) offset + 8)) {
+			parts.addFirst(offset);
+		}
+		return parts;
+	}
+
+
+	private long getJournalLength(int slotPosition) {
+		long length = 0;
+		for (long offset : getJournalParts(slotPosition)) {
+			length += JOURNAL_HEADER_SIZE + buffer.getInt((int) offset);
+		}
+		return length;
+	}
+
+
+	private void writeHeader() {
+		buffer.putInt(ENTRIES_POSITION, entries);
+		buffer.putInt(USED_SLOTS_POSITION, usedSlots);
+		buffer.putLong(DATA_END_POSITION, dataEnd);
+		buffer.putLong(GARBAGE_POSITION, garbage);
+		if (sync) {
+			buffer.force();
+		}
+	}
+
+
+	/**
+	 * Rewrites the live snapshots and journals into a new file with an index of the specified capacity, which
+	 * then replaces the current one.
+	 */
+	private void rebuild(int newCapacity)
+			throws IOException {
+		log.debug("rebuilding the static state store " + file.getAbsolutePath() + " with " + entries + " entries and an index of " +
+				newCapacity + " slots");
+		long liveData = dataEnd - getDataStart(capacity) - garbage;
+		File temporaryFile = new File(file.getParentFile(), file.getName() + TEMPORARY_SUFFIX);
+		create(temporaryFile, newCapacity, Math.max(INITIAL_DATA_SIZE, liveData * 2));
+		RandomAccessFile rebuilt = new RandomAccessFile(temporaryFile, "rw");
+		MappedByteBuffer rebuiltBuffer = null;
+		try {
+			rebuiltBuffer = rebuilt.getChannel().map(MapMode.READ_WRITE, 0, rebuilt.length());
+			long rebuiltDataEnd = getDataStart(newCapacity);
+			for (int slot = 0; slot < capacity; slot++) {
+				int slotPosition = getSlotPosition(slot);
+				long offset = buffer.getLong(slotPosition + OFFSET_IN_SLOT);
+				if (offset == EMPTY || offset == DELETED) {
+					continue;
+				}
+				UUID clientId = new UUID(buffer.getLong(slotPosition), buffer.getLong(slotPosition + 8));
+				int length = getRecordLength(slotPosition);
+
+				// copy the snapshot
+				ByteBuffer value = buffer.duplicate();
+				value.position((int) offset);
+				value.limit((int) offset + length);
+				ByteBuffer rebuiltValue = rebuiltBuffer.duplicate();
+				rebuiltValue.position((int) rebuiltDataEnd);
+				rebuiltValue.put(value);
+
+				// and reference it
+				int rebuiltSlotPosition = getSlotPosition(-find(rebuiltBuffer, newCapacity, clientId) - 1);
+				rebuiltBuffer.putLong(rebuiltSlotPosition, clientId.getMostSignificantBits());
+				rebuiltBuffer.putLong(rebuiltSlotPosition + 8, clientId.getLeastSignificantBits());
+				rebuiltBuffer.putLong(rebuiltSlotPosition + OFFSET_IN_SLOT, rebuiltDataEnd);
+				rebuiltDataEnd += length;
+
+				// then copy the parts of the journal, linking each one to the previous copy
+				long previousPart = NO_JOURNAL;
+				for (long part : getJournalParts(slotPosition)) {
+					int partLength = JOURNAL_HEADER_SIZE + buffer.getInt((int) part);
+					value = buffer.duplicate();
+					value.position((int) part);
+					value.limit((int) part + partLength);
+					rebuiltValue = rebuiltBuffer.duplicate();
+					rebuiltValue.position((int) rebuiltDataEnd);
+					rebuiltValue.put(value);
+					rebuiltBuffer.putLong((int) rebuiltDataEnd + 8, previousPart);
+					previousPart = rebuiltDataEnd;
+					rebuiltDataEnd += partLength;
+				}
+				rebuiltBuffer.putLong(rebuiltSlotPosition + JOURNAL_IN_SLOT, previousPart);
+			}
+			rebuiltBuffer.putInt(ENTRIES_POSITION, entries);
+			rebuiltBuffer.putInt(USED_SLOTS_POSITION, entries);
+			rebuiltBuffer.putLong(DATA_END_POSITION, rebuiltDataEnd);
+			rebuiltBuffer.putLong(GARBAGE_POSITION, 0);
+			rebuiltBuffer.force();
+		}
+		finally {
+			if (rebuiltBuffer != null) {
+				unmap(rebuiltBuffer);
+			}
+			rebuilt.close();
+		}
+
+		// replace the current file
+		close();
+		if (!temporaryFile.renameTo(file) && !(file.delete() && temporaryFile.renameTo(file))) {
+			open();
+			throw new IOException("cannot replace " + file.getAbsolutePath() + " by " + temporaryFile.getAbsolutePath());
+		}
+		open();
+	}
+
+
+	/**
+	 * @return the slot of the client, or <code>-(the slot in which to insert it) - 1</code> if it
+	 *         is not in the index
+	 */
+	private static int find(ByteBuffer index, int capacity, UUID clientId) {
+		long mostSignificantBits = clientId.getMostSignificantBits();
+		long leastSignificantBits = clientId.getLeastSignificantBits();
+		int mask = capacity - 1;
+		int slot = hash(mostSignificantBits ^ leastSignificantBits) & mask;
+		int firstDeleted = -1;
+		while (true) {
+			int slotPosition = getSlotPosition(slot);
+			long offset = index.getLong(slotPosition + OFFSET_IN_SLOT);
+			if (offset == EMPTY) {
+				return -(firstDeleted >= 0 ? firstDeleted : slot) - 1;
+			}
+			if (offset == DELETED) {
+				if (firstDeleted < 0) {
+					firstDeleted = slot;
+				}
+			}
+			else if (index.getLong(slotPosition) == mostSignificantBits && index.getLong(slotPosition + 8) == leastSignificantBits) {
+				return slot;
+			}
+			slot = slot + 1 & mask;
+		}
+	}
+
+
+	private static int hash(long value) {
+		int h = (int) (value ^ value >>> 32);
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+
+	private static int crc(byte[] bytes) {
+		CRC32 crc32 = new CRC32();
+		crc32.update(bytes);
+		return (int) crc32.getValue();
+	}
+
+
+	private static int getSlotPosition(int slot) {
+		return HEADER_SIZE + slot * SLOT_SIZE;
+	}
+
+
+	private static long getDataStart(int capacity) {
+		return HEADER_SIZE + (long) capacity * SLOT_SIZE;
+	}
+
+
+	/**
+	 * @return the number of clients in the store
+	 */
+	public synchronized int size() {
+		return entries;
+	}
+
+
+	/**
+	 * @return the capacity of the index
+	 */
+	synchronized int getCapacity() {
+		return capacity;
+	}
+
+
+	public boolean isSync() {
+		return sync;
+	}
+
+
+	/**
+	 * @param sync
+	 *            whether the modifications are synced to the disk before returning, true by
+	 *            default
+	 */
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+
+}
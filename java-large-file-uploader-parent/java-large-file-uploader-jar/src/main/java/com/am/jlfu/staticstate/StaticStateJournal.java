@@ -0,0 +1,519 @@
+package com.am.jlfu.staticstate;
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.am.jlfu.fileuploader.checksum.ChecksumAlgorithm;
+import com.am.jlfu.fileuploader.json.FileStateJsonBase;
+import com.am.jlfu.fileuploader.logic.UploadPriority;
+import com.am.jlfu.fileuploader.utils.SliceIndex;
+import com.am.jlfu.staticstate.entities.StaticFileState;
+import com.am.jlfu.staticstate.entities.StaticStatePersistedOnFileSystemEntity;
+import com.google.common.collect.Maps;
+
+
+
+/**
+ * Append-only journal of the modifications of the static state of the clients.<br>
+ * Instead of rewriting the whole {@link StaticStateManager#FILENAME} snapshot of a client each time
+ * one of its files is prepared, validated, throttled or cleared, a small binary record describing
+ * the modification is appended to the journal of the client, which is kept by the
+ * {@link StaticStateStore} along with the snapshot. The snapshot is rewritten (and the
+ * journal emptied) only when the journal reaches {@link #getCompactionThreshold()} records, or
+ * periodically for the clients which have records pending. When the entity is restored, the
+ * records are replayed over the snapshot.<br>
+ * A record is framed by its length and its crc, so that a record partially written by a crash is
+ * detected and dropped along with the rest of the journal. Records hold the values of the fields
+ * rather than their variations, so that replaying a record already contained in the snapshot has
+ * no effect.
+ *
+ * @author antoinem
+ *
+ * @param <T>
+ */
+@Component
+@ManagedResource(objectName = "JavaLargeFileUploader:name=staticStateJournal")
+public class StaticStateJournal<T extends StaticStatePersistedOnFileSystemEntity> {
+
+	private static final Logger log = LoggerFactory.getLogger(StaticStateJournal.class);
+
+	/** The types of the records. */
+	private static final byte FILE_PREPARED = 1;
+	private static final byte BYTES_VALIDATED = 2;
+	private static final byte RATE_CHANGED = 3;
+	private static final byte FILE_CLEARED = 4;
+
+	@Autowired
+	JavaLargeFileUploaderService<T> staticStateManagerService;
+
+	/**
+	 * The number of records after which the journal of a client is compacted into its snapshot.<br>
+	 * Default to 1000.
+	 */
+	@Value("jlfu{jlfu.staticState.journal.compactionThreshold:1000}")
+	private volatile int compactionThreshold;
+
+	/** The number of records in the journal of the clients, for the clients having some. */
+	private final ConcurrentMap<UUID, AtomicInteger> pendingRecords = Maps.newConcurrentMap();
+
+
+
+	/**
+	 * Records that a file has been prepared.
+	 *
+	 * @param clientId
+	 * @param entity
+	 *            the entity of the client, already containing the file
+	 * @param fileId
+	 */
+	public void filePrepared(UUID clientId, T entity, UUID fileId) {
+		StaticFileState fileState = entity.getFileStates().get(fileId);
+		FileStateJsonBase json = fileState.getStaticFileStateJson();
+		RecordOutput record = new RecordOutput(FILE_PREPARED, fileId);
+		try {
+			record.writeString(fileState.getAbsoluteFullPathOfUploadedFile());
+			record.writeString(json.getOriginalFileName());
+			record.writeLong(json.getOriginalFileSizeInBytes());
+			record.writeLong(json.getCreationDate() != null ? json.getCreationDate().getTime() : null);
+			record.writeLong(json.getRateInKiloBytes());
+			record.writeLong(json.getCrcedBytes());
+			record.writeString(json.getFirstChunkCrc());
+			record.writeLong(json.getSliceSizeInBytes());
+			record.writeString(json.getChecksumAlgorithm() != null ? json.getChecksumAlgorithm().name() : null);
+			record.writeString(json.getPriority() != null ? json.getPriority().name() : null);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		append(clientId, entity, record);
+	}
+
+
+	/**
+	 * Records that bytes have been validated.
+	 *
+	 * @param clientId
+	 * @param entity
+	 * @param fileId
+	 * @param crcedBytes
+	 *            the amount of bytes now validated at the beginning of the file
+	 * @param sliceCrcs
+	 *            the crcs of the slices added to the index of the file, by slice
+	 * @param sha256
+	 *            the digest of the file if it is complete
+	 */
+	public void bytesValidated(UUID clientId, T entity, UUID fileId, long crcedBytes, Map<Integer, Integer> sliceCrcs, String sha256) {
+		append(clientId, entity, bytesValidatedRecord(fileId, crcedBytes, sliceCrcs, sha256));
+	}
+
+
+	RecordOutput bytesValidatedRecord(UUID fileId, long crcedBytes, Map<Integer, Integer> sliceCrcs, String sha256) {
+		RecordOutput record = new RecordOutput(BYTES_VALIDATED, fileId);
+		try {
+			record.writeLong(crcedBytes);
+			record.writeInt(sliceCrcs.size());
+			for (Entry<Integer, Integer> sliceCrc : sliceCrcs.entrySet()) {
+				record.writeInt(sliceCrc.getKey());
+				record.writeInt(sliceCrc.getValue());
+			}
+			record.writeString(sha256);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return record;
+	}
+
+
+	/**
+	 * Records that the rate of a file has been changed.
+	 *
+	 * @param clientId
+	 * @param entity
+	 *            the entity of the client, already containing the new rate
+	 * @param fileId
+	 */
+	public void rateChanged(UUID clientId, T entity, UUID fileId) {
+		RecordOutput record = new RecordOutput(RATE_CHANGED, fileId);
+		try {
+			record.writeLong(entity.getFileStates().get(fileId).getStaticFileStateJson().getRateInKiloBytes());
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		append(clientId, entity, record);
+	}
+
+
+	/**
+	 * Records that a file has been removed.
+	 *
+	 * @param clientId
+	 * @param entity
+	 * @param fileId
+	 */
+	public void fileCleared(UUID clientId, T entity, UUID fileId) {
+		append(clientId, entity, new RecordOutput(FILE_CLEARED, fileId));
+	}
+
+
+	private void append(UUID clientId, T entity, RecordOutput record) {
+		append(clientId, entity, Collections.singletonList(record));
+	}
+
+
+	/**
+	 * Appends records to the journal of a client in a single write.
+	 * 
+	 * @param clientId
+	 * @param entity
+	 * @param records
+	 */
+	void append(UUID clientId, T entity, List<RecordOutput> records) {
+		synchronized (entity) {
+			try {
+				ByteArrayOutputStream frames = new ByteArrayOutputStream();
+				for (RecordOutput record : records) {
+					frames.write(record.toFrame());
+				}
+				staticStateManagerService.getStaticStateStore().appendJournal(clientId, frames.toByteArray());
+			}
+			catch (IOException e) {
+				log.error("cannot append to the journal of " + clientId + ", compacting it: " + e.getMessage(), e);
+				compact(clientId, entity);
+				return;
+			}
+
+			// compact if the journal is too long
+			AtomicInteger count = pendingRecords.get(clientId);
+			if (count == null) {
+				count = new AtomicInteger();
+				AtomicInteger previous = pendingRecords.putIfAbsent(clientId, count);
+				if (previous != null) {
+					count = previous;
+				}
+			}
+			if (count.addAndGet(records.size()) >= compactionThreshold) {
+				compact(clientId, entity);
+			}
+		}
+	}
+
+
+	/**
+	 * Writes the snapshot of the client, which empties its journal.
+	 *
+	 * @param clientId
+	 * @param entity
+	 */
+	public void compact(UUID clientId, T entity) {
+		staticStateManagerService.writeEntity(clientId, entity);
+	}
+
+
+	/**
+	 * Compacts the journals of the clients having records pending.
+	 */
+	@Scheduled(fixedDelay = 60000)
+	@ManagedOperation
+	public void compact() {
+		for (UUID clientId : pendingRecords.keySet()) {
+			T entity = staticStateManagerService.getEntityIfPresent(clientId);
+			if (entity != null) {
+				compact(clientId, entity);
+			}
+			else {
+				// the client is not in the cache anymore, its journal will be replayed when it is restored
+				pendingRecords.remove(clientId);
+			}
+		}
+	}
+
+
+	/**
+	 * Empties the journal of a client, once its snapshot has been written. Shall be called while
+	 * holding the lock of the entity.
+	 *
+	 * @param clientId
+	 */
+	void truncate(UUID clientId) {
+		pendingRecords.remove(clientId);
+		staticStateManagerService.getStaticStateStore().truncateJournal(clientId);
+	}
+
+
+	/**
+	 * Forgets the records of a client which is cleared.
+	 *
+	 * @param clientId
+	 */
+	void clear(UUID clientId) {
+		pendingRecords.remove(clientId);
+	}
+
+
+	/**
+	 * Replays the journal of a client over its snapshot.
+	 *
+	 * @param clientId
+	 * @param entity
+	 *            the entity read from the snapshot
+	 */
+	void replay(UUID clientId, T entity) {
+		int records = 0;
+		boolean complete = false;
+		DataInputStream in = null;
+		try {
+			InputStream journal = staticStateManagerService.getStaticStateStore().readJournal(clientId);
+			if (journal == null) {
+				return;
+			}
+			in = new DataInputStream(new BufferedInputStream(journal));
+			while (true) {
+				byte[] payload = readFrame(in);
+				if (payload == null) {
+					complete = true;
+					break;
+				}
+				apply(entity, new DataInputStream(new ByteArrayInputStream(payload)));
+				records++;
+			}
+		}
+		catch (EOFException e) {
+			log.warn("the journal of " + clientId + " ends with a partial record, dropping it");
+		}
+		catch (IOException e) {
+			log.error("cannot read the journal of " + clientId + " past its record " + records + ": " + e.getMessage(), e);
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+		}
+		log.debug(records + " records replayed for client " + clientId);
+
+		if (complete) {
+			pendingRecords.put(clientId, new AtomicInteger(records));
+		}
+		else {
+			// do not append after a damaged record
+			compact(clientId, entity);
+		}
+	}
+
+
+	/**
+	 * @return the payload of the next record, or null if the journal ends
+	 * @throws EOFException
+	 *             if the journal ends within the record
+	 * @throws IOException
+	 *             if the record is damaged
+	 */
+	private byte[] readFrame(DataInputStream in)
+			throws IOException {
+		int length;
+		try {
+			length = in.readInt();
+		}
+		catch (EOFException e) {
+			return null;
+		}
+		if (length < 0) {
+			throw new IOException("invalid record length " + length);
+		}
+		long crc = in.readInt() & 0xffffffffl;
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		CRC32 crc32 = new CRC32();
+		crc32.update(payload);
+		if (crc32.getValue() != crc) {
+			throw new IOException("invalid record crc");
+		}
+		return payload;
+	}
+
+
+	private void apply(T entity, DataInputStream record)
+			throws IOException {
+		byte type = record.readByte();
+		UUID fileId = new UUID(record.readLong(), record.readLong());
+		StaticFileState fileState = entity.getFileStates().get(fileId);
+		FileStateJsonBase json = fileState != null ? fileState.getStaticFileStateJson() : null;
+		switch (type) {
+			case FILE_PREPARED:
+				fileState = new StaticFileState();
+				json = new FileStateJsonBase();
+				fileState.setStaticFileStateJson(json);
+				fileState.setAbsoluteFullPathOfUploadedFile(readString(record));
+				json.setOriginalFileName(readString(record));
+				json.setOriginalFileSizeInBytes(readLong(record));
+				Long creationDate = readLong(record);
+				json.setCreationDate(creationDate != null ? new Date(creationDate) : null);
+				json.setRateInKiloBytes(readLong(record));
+				json.setCrcedBytes(readLong(record));
+				json.setFirstChunkCrc(readString(record));
+				json.setSliceSizeInBytes(readLong(record));
+				String checksumAlgorithm = readString(record);
+				json.setChecksumAlgorithm(checksumAlgorithm != null ? ChecksumAlgorithm.valueOf(checksumAlgorithm) : null);
+				String priority = readString(record);
+				json.setPriority(priority != null ? UploadPriority.valueOf(priority) : null);
+				entity.getFileStates().put(fileId, fileState);
+				break;
+			case BYTES_VALIDATED:
+				long crcedBytes = readLong(record);
+				int slices = record.readInt();
+				for (int i = 0; i < slices; i++) {
+					int slice = record.readInt();
+					int crc = record.readInt();
+					if (json != null) {
+						SliceIndex.addSlice(json, slice, crc);
+					}
+				}
+				String sha256 = readString(record);
+				if (json != null) {
+					// a record appended after a newer snapshot or record does not take the file back
+					json.setCrcedBytes(json.getCrcedBytes() != null ? Math.max(json.getCrcedBytes(), crcedBytes) : crcedBytes);
+					if (sha256 != null) {
+						json.setSha256(sha256);
+					}
+				}
+				break;
+			case RATE_CHANGED:
+				Long rate = readLong(record);
+				if (json != null) {
+					json.setRateInKiloBytes(rate);
+				}
+				break;
+			case FILE_CLEARED:
+				entity.getFileStates().remove(fileId);
+				break;
+			default:
+				throw new IOException("unknown record type " + type);
+		}
+	}
+
+
+	private static String readString(DataInputStream record)
+			throws IOException {
+		return record.readBoolean() ? record.readUTF() : null;
+	}
+
+
+	private static Long readLong(DataInputStream record)
+			throws IOException {
+		return record.readBoolean() ? record.readLong() : null;
+	}
+
+
+	/**
+	 * @return the number of clients having records pending in their journal
+	 */
+	@ManagedAttribute
+	public int getPendingJournals() {
+		return pendingRecords.size();
+	}
+
+
+	@ManagedAttribute
+	public int getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+
+	@ManagedAttribute
+	public void setCompactionThreshold(int compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+
+
+
+	/**
+	 * The payload of a record being built: its type, the file it relates to, then the fields of
+	 * its type, the nullable ones being preceded by their presence.
+	 */
+	static class RecordOutput {
+
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		private final DataOutputStream out = new DataOutputStream(bytes);
+
+
+
+		RecordOutput(byte type, UUID fileId) {
+			try {
+				out.writeByte(type);
+				out.writeLong(fileId.getMostSignificantBits());
+				out.writeLong(fileId.getLeastSignificantBits());
+			}
+			catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+
+		void writeString(String value)
+				throws IOException {
+			out.writeBoolean(value != null);
+			if (value != null) {
+				out.writeUTF(value);
+			}
+		}
+
+
+		void writeLong(Long value)
+				throws IOException {
+			out.writeBoolean(value != null);
+			if (value != null) {
+				out.writeLong(value);
+			}
+		}
+
+
+		void writeInt(int value)
+				throws IOException {
+			out.writeInt(value);
+		}
+
+
+		/**
+		 * @return the payload preceded by its length and its crc
+		 */
+		byte[] toFrame()
+				throws IOException {
+			byte[] payload = bytes.toByteArray();
+			CRC32 crc32 = new CRC32();
+			crc32.update(payload);
+			ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 8);
+			DataOutputStream frameOut = new DataOutputStream(frame);
+			frameOut.writeInt(payload.length);
+			frameOut.writeInt((int) crc32.getValue());
+			frameOut.write(payload);
+			return frame.toByteArray();
+		}
+	}
+
+}
@@ -2,31 +2,31 @@ package com.am.jlfu.staticstate;
 
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import com.am.jlfu.fileuploader.checksum.ChecksumManager;
+import com.am.jlfu.fileuploader.checksum.ChecksumManager.FileDigestListener;
 import com.am.jlfu.fileuploader.exception.FileCorruptedException;
 import com.am.jlfu.fileuploader.json.FileStateJsonBase;
+import com.am.jlfu.fileuploader.utils.SliceIndex;
 import com.am.jlfu.notifier.JLFUListenerPropagator;
 import com.am.jlfu.staticstate.entities.StaticFileState;
 import com.am.jlfu.staticstate.entities.StaticStatePersistedOnFileSystemEntity;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
-import com.thoughtworks.xstream.XStream;
 
 
 
@@ -61,6 +61,15 @@ public class StaticStateManager<T extends StaticStatePersistedOnFileSystemEntity
 	@Autowired
 	JavaLargeFileUploaderService<T> staticStateManagerService;
 
+	@Autowired
+	ChecksumManager checksumManager;
+
+	@Autowired
+	StaticStateJournal<T> staticStateJournal;
+
+	@Autowired
+	StaticStatePersistenceScheduler<T> staticStatePersistenceScheduler;
+
 	/**
 	 * Used to bypass generic type erasure.<br>
 	 * Has to be manually specified with the {@link #init(Class)} method.
@@ -68,10 +77,6 @@ public class StaticStateManager<T extends StaticStatePersistedOnFileSystemEntity
 	Class<T> entityType;
 
 
-	/** The executor that could write stuff asynchronously into the static state */
-	private ThreadPoolExecutor fileStateUpdaterExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
-
-
 
 	private Class<T> getEntityType() {
 		// if not defined, try to init with default
@@ -106,6 +111,7 @@ public class StaticStateManager<T extends StaticStatePersistedOnFileSystemEntity
 			throws IOException {
 
 		// restore cache from file:
+		UUID clientId = uuid;
 		File uuidFileParent = staticStateDirectoryManager.getUUIDFileParent();
 
 		// if that file is scheduled for deletion, we do not restore it
@@ -115,35 +121,32 @@ public class StaticStateManager<T extends StaticStatePersistedOnFileSystemEntity
 			staticStateIdentifierManager.clearIdentifier();
 			// get a new one
 			// and recreate file
+			clientId = staticStateIdentifierManager.getIdentifier();
 			uuidFileParent = staticStateDirectoryManager.getUUIDFileParent();
 		}
 
-		File uuidFile = new File(uuidFileParent, FILENAME);
+		StaticStateStore staticStateStore = staticStateManagerService.getStaticStateStore();
 		T entity = null;
 
-		if (uuidFile.exists()) {
+		if (staticStateStore.contains(clientId)) {
 			log.debug("No value in the cache for uuid " + uuid + ". Filling cache from file.");
 			try {
-				entity = read(uuidFile);
+				entity = getEntityType().cast(staticStateStore.read(clientId));
+				if (entity != null) {
+					// the writes still pending for a previous instance of the entity go first
+					staticStatePersistenceScheduler.commit(clientId);
+					staticStateJournal.replay(clientId, entity);
+				}
 			}
 			catch (Exception e) {
-				log.error("Cache cannot be restored from " + uuidFile.getAbsolutePath() + "." +
+				log.error("Cache cannot be restored for " + clientId + "." +
 						"The file might be empty or the model has changed since last time: " + e.getMessage(), e);
 			}
 		}
 		else {
 			log.debug("No value in the cache for uuid " + uuid + " and no value in the file. Creating a new one.");
 
-			// create the file
-			try {
-				uuidFile.createNewFile();
-			}
-			catch (IOException e) {
-				log.error("cannot create model file: " + e.getMessage(), e);
-				throw e;
-			}
-
-			// and persist an entity
+			// create an entity
 			try {
 				entity = getEntityType().newInstance();
 			}
@@ -153,7 +156,15 @@ public class StaticStateManager<T extends StaticStatePersistedOnFileSystemEntity
 			catch (IllegalAccessException e) {
 				throw new RuntimeException(e);
 			}
-			staticStateManagerService.writeEntity(uuidFile, entity);
+
+			// and persist it
+			try {
+				staticStateStore.write(clientId, entity);
+			}
+			catch (IOException e) {
+				log.error("cannot create model file: " + e.getMessage(), e);
+				throw e;
+			}
 
 		}
 
@@ -213,31 +224,34 @@ public class StaticStateManager<T extends StaticStatePersistedOnFileSystemEntity
 	}
 
 	
-	public void clearFile(final UUID fileId)
-	{
-		staticStateManagerService.clearFile(staticStateIdentifierManager.getIdentifier(), fileId);
+	/**
+	 * Persists the state of a file which has just been prepared.
+	 * 
+	 * @param fileId
+	 */
+	public void filePrepared(UUID fileId) {
+		staticStateJournal.filePrepared(staticStateIdentifierManager.getIdentifier(), getEntity(), fileId);
 	}
 
 
+	/**
+	 * Persists the rate of a file which has just been changed.
+	 * 
+	 * @param fileId
+	 */
+	public void rateChanged(UUID fileId) {
+		staticStateJournal.rateChanged(staticStateIdentifierManager.getIdentifier(), getEntity(), fileId);
+	}
+
 
-	T read(File f) {
-		XStream xStream = new XStream();
-		FileInputStream fs = null;
-		T fromXML = null;
-		try {
-			fs = new FileInputStream(f);
-			fromXML = (T) xStream.fromXML(fs);
-		}
-		catch (FileNotFoundException e) {
-			log.error("cannot read model file: " + e.getMessage(), e);
-		}
-		finally {
-			IOUtils.closeQuietly(fs);
-		}
-		return fromXML;
+	public void clearFile(final UUID fileId)
+	{
+		checksumManager.clear(fileId);
+		staticStateManagerService.clearFile(staticStateIdentifierManager.getIdentifier(), fileId);
 	}
 
 
+
 	/**
 	 * Initializes the bean with the class of the entity. Shall be called once. Calling it more than
 	 * once has no effect.
@@ -258,6 +272,28 @@ public class StaticStateManager<T extends StaticStatePersistedOnFileSystemEntity
 	 * @throws FileCorruptedException 
 	 */
 	public void setCrcBytesValidated(final UUID clientId, UUID fileId, final long validated) throws FileCorruptedException {
+		setCrcBytesValidated(clientId, fileId, null, validated, Collections.<Integer, Integer> emptyMap());
+	}
+
+
+	/**
+	 * Writes in the file that a chunk written at the specified offset has been successfully
+	 * uploaded.<br>
+	 * The slices entirely contained in the chunk are added to the index of the file (see
+	 * {@link SliceIndex}), so that they are kept even if they do not follow the validated bytes.
+	 * 
+	 * @param clientId
+	 * @param fileId
+	 * @param offset
+	 *            the offset of the chunk, or null if it follows the validated bytes
+	 * @param validated
+	 *            the size of the chunk
+	 * @param sliceCrcs
+	 *            the crcs of the slices entirely contained in the chunk, by slice
+	 * @throws FileCorruptedException
+	 */
+	public void setCrcBytesValidated(final UUID clientId, UUID fileId, Long offset, final long validated, Map<Integer, Integer> sliceCrcs)
+			throws FileCorruptedException {
 
 		final T entity = cache.getIfPresent(clientId);
 		if (entity == null) {
@@ -271,16 +307,64 @@ public class StaticStateManager<T extends StaticStatePersistedOnFileSystemEntity
 		if (staticFileStateJson == null) {
 			return;
 		}
-		Long crcredBytes = staticFileStateJson.getCrcedBytes();
-		staticFileStateJson.setCrcedBytes(
-				crcredBytes + validated);
+		synchronized (staticFileStateJson) {
+			Long crcredBytes = staticFileStateJson.getCrcedBytes();
+
+			// if the chunk follows the validated bytes, it extends them
+			long crcedBytesNow = crcredBytes;
+			long start = offset != null ? offset : crcredBytes;
+			if (start <= crcredBytes) {
+				crcedBytesNow = Math.max(crcredBytes, start + validated);
+			}
+
+			// add its slices to the index
+			if (staticFileStateJson.getSliceSizeInBytes() != null) {
+				for (Entry<Integer, Integer> sliceCrc : sliceCrcs.entrySet()) {
+					SliceIndex.addSlice(staticFileStateJson, sliceCrc.getKey(), sliceCrc.getValue());
+				}
+
+				// and the slices of the index following the validated bytes extend them
+				crcedBytesNow = SliceIndex.extendValidatedBytes(staticFileStateJson, crcedBytesNow);
+			}
+			staticFileStateJson.setCrcedBytes(crcedBytesNow);
+
+			// the file is complete if this chunk completes it, not if it was already
+			boolean complete = !crcredBytes.equals(staticFileStateJson.getOriginalFileSizeInBytes()) &&
+					staticFileStateJson.getCrcedBytes().equals(staticFileStateJson.getOriginalFileSizeInBytes());
 
-		log.debug(validated + " more bytes have been validated appended to the already " + crcredBytes + " bytes validated for file " + fileId +
-				" for client id " + clientId);
+			log.debug(validated + " more bytes have been validated at offset " + start + " with the already " + crcredBytes +
+					" bytes validated for file " + fileId + " for client id " + clientId + ", " + crcedBytesNow +
+					" bytes are now validated at the beginning of the file");
+
+			bytesValidated(clientId, fileId, entity, staticFileStateJson, sliceCrcs, complete);
+		}
+	}
+
+
+	private void bytesValidated(final UUID clientId, final UUID fileId, final T entity, final FileStateJsonBase staticFileStateJson,
+			Map<Integer, Integer> sliceCrcs, boolean complete)
+			throws FileCorruptedException {
 
 		// manage the end of file
-		if (staticFileStateJson.getCrcedBytes().equals(staticFileStateJson.getOriginalFileSizeInBytes())) {
-			jlfuListenerPropagator.getPropagator().onFileUploadEnd(clientId, fileId);
+		if (complete) {
+
+			// digest the file before notifying the end, so that the listeners can read it. If it has
+			// to be read, it is done out of this request
+			checksumManager.digestFile(fileId, new File(entity.getFileStates().get(fileId).getAbsoluteFullPathOfUploadedFile()),
+					new FileDigestListener() {
+
+						@Override
+						public void digested(String sha256) {
+							if (sha256 != null) {
+								synchronized (staticFileStateJson) {
+									staticFileStateJson.setSha256(sha256);
+									staticStatePersistenceScheduler.bytesValidated(clientId, entity, fileId, staticFileStateJson.getCrcedBytes(),
+											Collections.<Integer, Integer> emptyMap(), sha256);
+								}
+							}
+							jlfuListenerPropagator.getPropagator().onFileUploadEnd(clientId, fileId);
+						}
+					});
 		}
 
 		//checks whether we have a file corruption exception
@@ -288,14 +372,9 @@ public class StaticStateManager<T extends StaticStatePersistedOnFileSystemEntity
 			throw new FileCorruptedException(staticFileStateJson.getCrcedBytes() + " crced bytes are more than it should be: " + staticFileStateJson.getOriginalFileSizeInBytes());
 		}
 
-		fileStateUpdaterExecutor.submit(new Runnable() {
-
-			@Override
-			public void run() {
-				// write this later on.
-				staticStateManagerService.writeEntity(clientId, entity);
-			}
-		});
+		// write this later on.
+		staticStatePersistenceScheduler.bytesValidated(clientId, entity, fileId, staticFileStateJson.getCrcedBytes(), sliceCrcs,
+				staticFileStateJson.getSha256());
 
 	}
 
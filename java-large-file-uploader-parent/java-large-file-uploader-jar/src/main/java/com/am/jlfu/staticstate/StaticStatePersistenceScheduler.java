@@ -0,0 +1,353 @@
+package com.am.jlfu.staticstate;
+
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import com.am.jlfu.fileuploader.json.FileStateJsonBase;
+import com.am.jlfu.staticstate.StaticStateJournal.RecordOutput;
+import com.am.jlfu.staticstate.entities.StaticFileState;
+import com.am.jlfu.staticstate.entities.StaticStatePersistedOnFileSystemEntity;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+
+
+/**
+ * Persists the validated bytes of the files in group commits.<br>
+ * A slice being validated does not lead to a write anymore: it marks its client as dirty, merging
+ * its bytes with the ones already pending for the same file, so that at most one write is pending
+ * per client whatever the number of slices validated meanwhile. Every
+ * {@link #getGroupCommitIntervalInMilliseconds()}, or as soon as
+ * {@link #getDirtyClientsThreshold()} clients are dirty, the pending writes are committed to the
+ * {@link StaticStateJournal}, one append per client.
+ *
+ * @author antoinem
+ *
+ * @param <T>
+ */
+@Component
+@ManagedResource(objectName = "JavaLargeFileUploader:name=staticStatePersistenceScheduler")
+public class StaticStatePersistenceScheduler<T extends StaticStatePersistedOnFileSystemEntity> {
+
+	private static final Logger log = LoggerFactory.getLogger(StaticStatePersistenceScheduler.class);
+
+	/** The weight of a new sample in the smoothed write latency. */
+	private static final double SMOOTHING_FACTOR = 0.3;
+
+	@Autowired
+	StaticStateJournal<T> staticStateJournal;
+
+	/**
+	 * The interval between two group commits.<br>
+	 * Default to 500ms.
+	 */
+	@Value("jlfu{jlfu.staticState.persistence.groupCommitIntervalInMilliseconds:500}")
+	private long groupCommitIntervalInMilliseconds;
+
+	/**
+	 * The number of dirty clients above which a group commit is started without waiting for the
+	 * interval.<br>
+	 * Default to 100.
+	 */
+	@Value("jlfu{jlfu.staticState.persistence.dirtyClientsThreshold:100}")
+	private volatile int dirtyClientsThreshold;
+
+	/** The pending writes, by client. */
+	private final ConcurrentMap<UUID, PendingWrite> dirtyClients = Maps.newConcurrentMap();
+
+	/** Whether a group commit has been requested because of the threshold and has not started yet. */
+	private final AtomicBoolean commitRequested = new AtomicBoolean();
+
+	/** Statistics. */
+	private final AtomicLong coalescedWrites = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong groupCommits = new AtomicLong();
+	private volatile double writeLatencyInMicroseconds;
+	private volatile long lastGroupCommitDurationInMilliseconds;
+
+	private ScheduledExecutorService committer;
+
+	private final Runnable groupCommit = new Runnable() {
+
+		@Override
+		public void run() {
+			commitRequested.set(false);
+			try {
+				commit();
+			}
+			catch (RuntimeException e) {
+				log.error("cannot commit the static state: " + e.getMessage(), e);
+			}
+		}
+	};
+
+
+
+	/**
+	 * The bytes validated for a file since the last commit.
+	 */
+	private static class ValidatedBytes {
+
+		private long crcedBytes;
+		private final Map<Integer, Integer> sliceCrcs = Maps.newHashMap();
+		private String sha256;
+	}
+
+
+
+	/**
+	 * The write pending for a client. Once taken by a commit, it cannot be modified anymore.
+	 */
+	private class PendingWrite {
+
+		private final T entity;
+		private final Map<UUID, ValidatedBytes> files = Maps.newHashMap();
+		private boolean committed;
+
+
+
+		PendingWrite(T entity) {
+			this.entity = entity;
+		}
+	}
+
+
+
+	@PostConstruct
+	private void start() {
+		committer = Executors.newSingleThreadScheduledExecutor();
+		committer.scheduleWithFixedDelay(groupCommit, groupCommitIntervalInMilliseconds, groupCommitIntervalInMilliseconds, TimeUnit.MILLISECONDS);
+	}
+
+
+	@PreDestroy
+	private void stop() {
+		committer.shutdownNow();
+		commit();
+	}
+
+
+	/**
+	 * Schedules the persistence of bytes validated for a file.
+	 *
+	 * @param clientId
+	 * @param entity
+	 * @param fileId
+	 * @param crcedBytes
+	 *            the amount of bytes now validated at the beginning of the file
+	 * @param sliceCrcs
+	 *            the crcs of the slices added to the index of the file, by slice
+	 * @param sha256
+	 *            the digest of the file if it is complete
+	 */
+	public void bytesValidated(UUID clientId, T entity, UUID fileId, long crcedBytes, Map<Integer, Integer> sliceCrcs, String sha256) {
+		while (true) {
+			PendingWrite pendingWrite = dirtyClients.get(clientId);
+			if (pendingWrite == null) {
+				pendingWrite = new PendingWrite(entity);
+				PendingWrite previous = dirtyClients.putIfAbsent(clientId, pendingWrite);
+				if (previous != null) {
+					pendingWrite = previous;
+				}
+				else if (dirtyClients.size() >= dirtyClientsThreshold && commitRequested.compareAndSet(false, true)) {
+					committer.execute(groupCommit);
+				}
+			}
+			synchronized (pendingWrite) {
+				if (!pendingWrite.committed) {
+					ValidatedBytes validatedBytes = pendingWrite.files.get(fileId);
+					if (validatedBytes == null) {
+						validatedBytes = new ValidatedBytes();
+						pendingWrite.files.put(fileId, validatedBytes);
+					}
+					else {
+						coalescedWrites.incrementAndGet();
+					}
+					validatedBytes.crcedBytes = Math.max(validatedBytes.crcedBytes, crcedBytes);
+					validatedBytes.sliceCrcs.putAll(sliceCrcs);
+					if (sha256 != null) {
+						validatedBytes.sha256 = sha256;
+					}
+					return;
+				}
+			}
+
+			// this write has just been taken by a commit, start a new one
+			dirtyClients.remove(clientId, pendingWrite);
+		}
+	}
+
+
+	/**
+	 * Commits the pending writes of all of the dirty clients.
+	 */
+	@ManagedOperation
+	public void commit() {
+		long start = System.nanoTime();
+		int committed = 0;
+		for (UUID clientId : dirtyClients.keySet()) {
+			if (commit(clientId)) {
+				committed++;
+			}
+		}
+		if (committed > 0) {
+			groupCommits.incrementAndGet();
+			lastGroupCommitDurationInMilliseconds = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			log.debug("group commit of " + committed + " clients in " + lastGroupCommitDurationInMilliseconds + "ms");
+		}
+	}
+
+
+	/**
+	 * Commits the pending write of a client, if any.<br>
+	 * The write is taken, and its records built and appended, under the lock of the entity, so that
+	 * neither a compaction nor a later write of the client can come in between and be followed by
+	 * older values.
+	 *
+	 * @param clientId
+	 * @return true if a write was pending
+	 */
+	boolean commit(UUID clientId) {
+		while (true) {
+			PendingWrite pendingWrite = dirtyClients.get(clientId);
+			if (pendingWrite == null) {
+				return false;
+			}
+			synchronized (pendingWrite.entity) {
+				if (dirtyClients.remove(clientId, pendingWrite)) {
+					commit(clientId, pendingWrite);
+					return true;
+				}
+			}
+		}
+	}
+
+
+	private void commit(UUID clientId, PendingWrite pendingWrite) {
+		List<RecordOutput> records = Lists.newArrayList();
+		synchronized (pendingWrite) {
+			pendingWrite.committed = true;
+			for (Entry<UUID, ValidatedBytes> file : pendingWrite.files.entrySet()) {
+
+				// the current values of the file, which may have gone further since the validation
+				StaticFileState fileState = pendingWrite.entity.getFileStates().get(file.getKey());
+				FileStateJsonBase json = fileState != null ? fileState.getStaticFileStateJson() : null;
+				if (json == null) {
+					continue;
+				}
+				ValidatedBytes validatedBytes = file.getValue();
+				long crcedBytes = json.getCrcedBytes() != null ? Math.max(validatedBytes.crcedBytes, json.getCrcedBytes()) : validatedBytes.crcedBytes;
+				records.add(staticStateJournal.bytesValidatedRecord(file.getKey(), crcedBytes, validatedBytes.sliceCrcs,
+						validatedBytes.sha256 != null ? validatedBytes.sha256 : json.getSha256()));
+			}
+		}
+		if (records.isEmpty()) {
+			return;
+		}
+		long start = System.nanoTime();
+		staticStateJournal.append(clientId, pendingWrite.entity, records);
+		double latency = (System.nanoTime() - start) / 1e3;
+		writeLatencyInMicroseconds = writeLatencyInMicroseconds * (1 - SMOOTHING_FACTOR) + latency * SMOOTHING_FACTOR;
+		writes.incrementAndGet();
+	}
+
+
+	/**
+	 * Drops the pending write of a client which is cleared.
+	 *
+	 * @param clientId
+	 */
+	void clear(UUID clientId) {
+		PendingWrite pendingWrite = dirtyClients.remove(clientId);
+		if (pendingWrite != null) {
+			synchronized (pendingWrite) {
+				pendingWrite.committed = true;
+			}
+		}
+	}
+
+
+	/**
+	 * @return the number of clients having a write pending
+	 */
+	@ManagedAttribute
+	public int getQueueDepth() {
+		return dirtyClients.size();
+	}
+
+
+	/**
+	 * @return the smoothed duration of the append of the pending write of a client
+	 */
+	@ManagedAttribute
+	public long getWriteLatencyInMicroseconds() {
+		return Math.round(writeLatencyInMicroseconds);
+	}
+
+
+	@ManagedAttribute
+	public long getLastGroupCommitDurationInMilliseconds() {
+		return lastGroupCommitDurationInMilliseconds;
+	}
+
+
+	/**
+	 * @return the number of validations merged into a write already pending
+	 */
+	@ManagedAttribute
+	public long getCoalescedWrites() {
+		return coalescedWrites.get();
+	}
+
+
+	@ManagedAttribute
+	public long getWrites() {
+		return writes.get();
+	}
+
+
+	@ManagedAttribute
+	public long getGroupCommits() {
+		return groupCommits.get();
+	}
+
+
+	@ManagedAttribute
+	public long getGroupCommitIntervalInMilliseconds() {
+		return groupCommitIntervalInMilliseconds;
+	}
+
+
+	@ManagedAttribute
+	public int getDirtyClientsThreshold() {
+		return dirtyClientsThreshold;
+	}
+
+
+	@ManagedAttribute
+	public void setDirtyClientsThreshold(int dirtyClientsThreshold) {
+		this.dirtyClientsThreshold = dirtyClientsThreshold;
+	}
+
+}
@@ -0,0 +1,225 @@
+package com.am.jlfu.staticstate;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.am.jlfu.staticstate.serialization.StaticStateCodec;
+import com.am.jlfu.staticstate.serialization.StaticStateSerializer;
+import com.am.jlfu.staticstate.serialization.XStreamStaticStateCodec;
+
+
+
+/**
+ * Writes and reads the snapshots of the static state of the clients so that a crash never leaves
+ * a client without a readable one.<br>
+ * A snapshot is written into a temporary file which is synced to the disk before replacing the
+ * current snapshot by a rename, the current one being kept as a backup. It starts with a header
+ * holding the version of its format, the {@link StaticStateCodec} of its content, its length and
+ * its crc, so that a partial or damaged snapshot is detected. When it is read, the first valid one of the snapshot, the temporary file
+ * (if the crash occurred between the renames) and the backup is returned.<br>
+ * The snapshots written before the header existed are still read.
+ *
+ * @author antoinem
+ *
+ */
+@Component
+public class StaticStateSnapshotManager {
+
+	private static final Logger log = LoggerFactory.getLogger(StaticStateSnapshotManager.class);
+
+	/** The version of the format, the first one having no codec and being in XML. */
+	static final int VERSION = 2;
+
+	static final String TEMPORARY_SUFFIX = ".tmp";
+	static final String BACKUP_SUFFIX = ".bak";
+
+	private static final String CHARSET = "UTF-8";
+	private static final Pattern HEADER = Pattern.compile(
+			"<!-- jlfu snapshot version=\"(\\d+)\"(?: codec=\"(\\w+)\")? length=\"(\\d+)\" crc32=\"([0-9a-f]+)\" -->\n");
+
+	@Autowired
+	StaticStateSerializer staticStateSerializer;
+
+
+
+	/**
+	 * Writes a snapshot.
+	 *
+	 * @param snapshotFile
+	 * @param entity
+	 * @throws IOException
+	 *             if the snapshot cannot be written, in which case the previous one is left
+	 *             untouched
+	 */
+	public void write(File snapshotFile, Object entity)
+			throws IOException {
+
+		// serialize
+		StaticStateCodec codec = staticStateSerializer.getCodecFor(entity);
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		codec.write(entity, content);
+		byte[] bytes = content.toByteArray();
+		CRC32 crc32 = new CRC32();
+		crc32.update(bytes);
+		String header = "<!-- jlfu snapshot version=\"" + VERSION + "\" codec=\"" + codec.getName() + "\" length=\"" + bytes.length +
+				"\" crc32=\"" + Long.toHexString(crc32.getValue()) + "\" -->\n";
+
+		// write and sync the temporary file
+		File temporaryFile = getTemporaryFile(snapshotFile);
+		FileOutputStream fs = new FileOutputStream(temporaryFile);
+		try {
+			fs.write(header.getBytes(CHARSET));
+			fs.write(bytes);
+			fs.flush();
+			fs.getFD().sync();
+		}
+		finally {
+			IOUtils.closeQuietly(fs);
+		}
+
+		// keep the current snapshot as the backup
+		File backupFile = getBackupFile(snapshotFile);
+		if (snapshotFile.exists()) {
+			if (backupFile.exists() && !backupFile.delete()) {
+				throw new IOException("cannot delete the backup " + backupFile.getAbsolutePath());
+			}
+			if (!snapshotFile.renameTo(backupFile)) {
+				throw new IOException("cannot move " + snapshotFile.getAbsolutePath() + " to " + backupFile.getAbsolutePath());
+			}
+		}
+
+		// and replace it
+		if (!temporaryFile.renameTo(snapshotFile)) {
+			throw new IOException("cannot move " + temporaryFile.getAbsolutePath() + " to " + snapshotFile.getAbsolutePath());
+		}
+	}
+
+
+	/**
+	 * @param snapshotFile
+	 * @return true if a snapshot, or its temporary file or its backup, exists
+	 */
+	public boolean exists(File snapshotFile) {
+		return snapshotFile.exists() || getTemporaryFile(snapshotFile).exists() || getBackupFile(snapshotFile).exists();
+	}
+
+
+	/**
+	 * Reads the latest valid snapshot.
+	 *
+	 * @param snapshotFile
+	 * @return the entity
+	 * @throws IOException
+	 *             if none of the snapshot, its temporary file and its backup is valid
+	 */
+	public Object read(File snapshotFile)
+			throws IOException {
+		IOException exception = null;
+		for (File file : new File[] { snapshotFile, getTemporaryFile(snapshotFile), getBackupFile(snapshotFile) }) {
+			if (!file.exists()) {
+				continue;
+			}
+			try {
+				Object entity = readFile(file);
+				if (exception != null) {
+					log.warn("restored the state from " + file.getAbsolutePath() + " instead of " + snapshotFile.getAbsolutePath() + ": " +
+							exception.getMessage());
+				}
+				return entity;
+			}
+			catch (IOException e) {
+				if (exception == null) {
+					exception = e;
+				}
+			}
+			catch (RuntimeException e) {
+				if (exception == null) {
+					exception = new IOException(file.getAbsolutePath() + " cannot be deserialized: " + e.getMessage(), e);
+				}
+			}
+		}
+		throw exception != null ? exception : new IOException("no snapshot " + snapshotFile.getAbsolutePath());
+	}
+
+
+	private Object readFile(File file)
+			throws IOException {
+		byte[] bytes;
+		FileInputStream fs = new FileInputStream(file);
+		try {
+			bytes = IOUtils.toByteArray(fs);
+		}
+		finally {
+			IOUtils.closeQuietly(fs);
+		}
+		if (bytes.length == 0) {
+			throw new IOException(file.getAbsolutePath() + " is empty");
+		}
+
+		// check the header
+		int offset = 0;
+		StaticStateCodec codec = staticStateSerializer.getCodec(XStreamStaticStateCodec.NAME);
+		int newLine = indexOf(bytes, (byte) '\n');
+		Matcher matcher = newLine < 0 ? null : HEADER.matcher(new String(bytes, 0, newLine + 1, CHARSET));
+		if (matcher != null && matcher.matches()) {
+			int version = Integer.parseInt(matcher.group(1));
+			if (version > VERSION) {
+				throw new IOException(file.getAbsolutePath() + " has an unsupported version " + version);
+			}
+			if (matcher.group(2) != null) {
+				codec = staticStateSerializer.getCodec(matcher.group(2));
+			}
+			offset = newLine + 1;
+			long length = Long.parseLong(matcher.group(3));
+			if (bytes.length - offset != length) {
+				throw new IOException(file.getAbsolutePath() + " has " + (bytes.length - offset) + " bytes instead of " + length);
+			}
+			CRC32 crc32 = new CRC32();
+			crc32.update(bytes, offset, bytes.length - offset);
+			if (!Long.toHexString(crc32.getValue()).equals(matcher.group(4))) {
+				throw new IOException(file.getAbsolutePath() + " has an invalid crc");
+			}
+		}
+
+		Object entity = codec.read(new ByteArrayInputStream(bytes, offset, bytes.length - offset));
+		if (entity == null) {
+			throw new IOException(file.getAbsolutePath() + " contains no entity");
+		}
+		return entity;
+	}
+
+
+	private static int indexOf(byte[] bytes, byte value) {
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+
+	static File getTemporaryFile(File snapshotFile) {
+		return new File(snapshotFile.getParentFile(), snapshotFile.getName() + TEMPORARY_SUFFIX);
+	}
+
+
+	static File getBackupFile(File snapshotFile) {
+		return new File(snapshotFile.getParentFile(), snapshotFile.getName() + BACKUP_SUFFIX);
+	}
+
+}
@@ -0,0 +1,92 @@
+package com.am.jlfu.staticstate;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+
+import com.am.jlfu.staticstate.entities.StaticStatePersistedOnFileSystemEntity;
+
+
+
+/**
+ * Persists the snapshots of the {@link StaticStatePersistedOnFileSystemEntity} of the clients, and
+ * the journals of their modifications since their snapshot (see {@link StaticStateJournal}).<br>
+ * By default, the {@link FileStaticStateStore} writes a file in the directory of each client. To
+ * replace it, for example by the {@link MappedStaticStateStore}, declare a bean named
+ * <code>jlfuStaticStateStore</code>.<br>
+ * The implementations shall be thread-safe.
+ * 
+ * @author antoinem
+ * 
+ */
+public interface StaticStateStore {
+
+	/**
+	 * @param clientId
+	 * @return true if a snapshot of the client has been written
+	 */
+	boolean contains(UUID clientId);
+
+
+	/**
+	 * @param clientId
+	 * @return the snapshot of the client
+	 * @throws IOException
+	 *             if it cannot be read
+	 */
+	Object read(UUID clientId)
+			throws IOException;
+
+
+	/**
+	 * Replaces the snapshot of the client.
+	 * 
+	 * @param clientId
+	 * @param entity
+	 * @throws IOException
+	 *             if it cannot be written, in which case the previous snapshot is kept
+	 */
+	void write(UUID clientId, Object entity)
+			throws IOException;
+
+
+	/**
+	 * Removes the snapshot of a client which is cleared.
+	 * 
+	 * @param clientId
+	 */
+	void delete(UUID clientId);
+
+
+	/**
+	 * Appends to the journal of the client, which is kept until {@link #truncateJournal(UUID)}.
+	 * 
+	 * @param clientId
+	 * @param bytes
+	 *            records framed by the {@link StaticStateJournal}
+	 * @throws IOException
+	 *             if they cannot be appended, in which case the journal may end with part of them
+	 */
+	void appendJournal(UUID clientId, byte[] bytes)
+			throws IOException;
+
+
+	/**
+	 * @param clientId
+	 * @return the journal of the client, as appended, or null if it has none
+	 * @throws IOException
+	 *             if it cannot be read
+	 */
+	InputStream readJournal(UUID clientId)
+			throws IOException;
+
+
+	/**
+	 * Empties the journal of the client, once its snapshot contains the records.
+	 * 
+	 * @param clientId
+	 */
+	void truncateJournal(UUID clientId);
+
+}
@@ -18,6 +18,9 @@ public class FileProgressStatus extends ProgressJson{
 	
 	private long totalFileSize;
 	private long bytesUploaded;
+	private Long uploadRateOverTenSeconds;
+	private Long uploadRateOverOneMinute;
+	private Long peakUploadRate;
 
 	/**
 	 * Default constructor.
@@ -49,6 +52,42 @@ public class FileProgressStatus extends ProgressJson{
 	public void setBytesUploaded(long bytesUploaded) {
 		this.bytesUploaded = bytesUploaded;
 	}
+
+	/**
+	 * @return upload rate over the last 10 seconds in byte per second.
+	 */
+	public Long getUploadRateOverTenSeconds() {
+		return uploadRateOverTenSeconds;
+	}
+
+	
+	public void setUploadRateOverTenSeconds(Long uploadRateOverTenSeconds) {
+		this.uploadRateOverTenSeconds = uploadRateOverTenSeconds;
+	}
+
+	/**
+	 * @return upload rate over the last minute in byte per second.
+	 */
+	public Long getUploadRateOverOneMinute() {
+		return uploadRateOverOneMinute;
+	}
+
+	
+	public void setUploadRateOverOneMinute(Long uploadRateOverOneMinute) {
+		this.uploadRateOverOneMinute = uploadRateOverOneMinute;
+	}
+
+	/**
+	 * @return highest upload rate over a second of the last minute in byte per second.
+	 */
+	public Long getPeakUploadRate() {
+		return peakUploadRate;
+	}
+
+	
+	public void setPeakUploadRate(Long peakUploadRate) {
+		this.peakUploadRate = peakUploadRate;
+	}
 	
 	@Override
 	public String toString() {
@@ -0,0 +1,208 @@
+package com.am.jlfu.staticstate.serialization;
+
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+
+import com.am.jlfu.fileuploader.checksum.ChecksumAlgorithm;
+import com.am.jlfu.fileuploader.json.FileStateJsonBase;
+import com.am.jlfu.fileuploader.logic.UploadPriority;
+import com.am.jlfu.staticstate.entities.StaticFileState;
+import com.am.jlfu.staticstate.entities.StaticStatePersistedOnFileSystemEntity;
+import com.google.common.collect.Maps;
+
+
+
+/**
+ * Encodes the {@link StaticStatePersistedOnFileSystemEntity} field by field, without reflection.<br>
+ * The encoding starts with a magic number and the version of its schema. A new field is appended
+ * to the encoding of its entity along with a new version, and the decoder reads it only from the
+ * encodings of that version onwards, so that the snapshots written by a previous version are
+ * still read.<br>
+ * The subclasses of {@link StaticStatePersistedOnFileSystemEntity}, which may have fields of their
+ * own, are not supported and are left to the {@link XStreamStaticStateCodec}.
+ *
+ * @author antoinem
+ *
+ */
+public class BinaryStaticStateCodec
+		implements StaticStateCodec {
+
+	public static final String NAME = "binary";
+
+	private static final int MAGIC = 0x4a4c4655;
+
+	/** The version of the schema written. */
+	static final int SCHEMA_VERSION = 1;
+
+
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+
+	@Override
+	public boolean supports(Object entity) {
+		return entity.getClass() == StaticStatePersistedOnFileSystemEntity.class;
+	}
+
+
+	@Override
+	public void write(Object entity, OutputStream out)
+			throws IOException {
+		if (!supports(entity)) {
+			throw new IOException(entity.getClass().getName() + " cannot be encoded in binary");
+		}
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+		data.writeInt(MAGIC);
+		data.writeShort(SCHEMA_VERSION);
+		Map<UUID, StaticFileState> fileStates = ((StaticStatePersistedOnFileSystemEntity) entity).getFileStates();
+		data.writeInt(fileStates.size());
+		for (Entry<UUID, StaticFileState> fileState : fileStates.entrySet()) {
+			data.writeLong(fileState.getKey().getMostSignificantBits());
+			data.writeLong(fileState.getKey().getLeastSignificantBits());
+			writeFileState(data, fileState.getValue());
+		}
+		data.flush();
+	}
+
+
+	private void writeFileState(DataOutputStream data, StaticFileState fileState)
+			throws IOException {
+		writeString(data, fileState.getAbsoluteFullPathOfUploadedFile());
+		FileStateJsonBase json = fileState.getStaticFileStateJson();
+		data.writeBoolean(json != null);
+		if (json == null) {
+			return;
+		}
+		writeString(data, json.getOriginalFileName());
+		writeLong(data, json.getOriginalFileSizeInBytes());
+		writeLong(data, json.getCreationDate() != null ? json.getCreationDate().getTime() : null);
+		writeLong(data, json.getRateInKiloBytes());
+		data.writeLong(json.getCrcedBytes());
+		writeString(data, json.getFirstChunkCrc());
+		writeLong(data, json.getSliceSizeInBytes());
+		writeInts(data, json.getCompletedSlices());
+		writeInts(data, json.getSliceCrcs());
+		writeString(data, json.getChecksumAlgorithm() != null ? json.getChecksumAlgorithm().name() : null);
+		writeString(data, json.getSha256());
+		writeString(data, json.getPriority() != null ? json.getPriority().name() : null);
+	}
+
+
+	@Override
+	public Object read(InputStream in)
+			throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC) {
+			throw new IOException("not a binary static state");
+		}
+		int version = data.readShort();
+		if (version < 1 || version > SCHEMA_VERSION) {
+			throw new IOException("unsupported schema version " + version);
+		}
+		StaticStatePersistedOnFileSystemEntity entity = new StaticStatePersistedOnFileSystemEntity();
+		int size = data.readInt();
+		Map<UUID, StaticFileState> fileStates = Maps.newHashMapWithExpectedSize(size);
+		for (int i = 0; i < size; i++) {
+			UUID fileId = new UUID(data.readLong(), data.readLong());
+			fileStates.put(fileId, readFileState(data));
+		}
+		entity.setFileStates(fileStates);
+		return entity;
+	}
+
+
+	private StaticFileState readFileState(DataInputStream data)
+			throws IOException {
+		StaticFileState fileState = new StaticFileState();
+		fileState.setAbsoluteFullPathOfUploadedFile(readString(data));
+		if (!data.readBoolean()) {
+			return fileState;
+		}
+		FileStateJsonBase json = new FileStateJsonBase();
+		fileState.setStaticFileStateJson(json);
+		json.setOriginalFileName(readString(data));
+		json.setOriginalFileSizeInBytes(readLong(data));
+		Long creationDate = readLong(data);
+		json.setCreationDate(creationDate != null ? new Date(creationDate) : null);
+		json.setRateInKiloBytes(readLong(data));
+		json.setCrcedBytes(data.readLong());
+		json.setFirstChunkCrc(readString(data));
+		json.setSliceSizeInBytes(readLong(data));
+		json.setCompletedSlices(readInts(data));
+		json.setSliceCrcs(readInts(data));
+		String checksumAlgorithm = readString(data);
+		json.setChecksumAlgorithm(checksumAlgorithm != null ? ChecksumAlgorithm.valueOf(checksumAlgorithm) : null);
+		json.setSha256(readString(data));
+		String priority = readString(data);
+		json.setPriority(priority != null ? UploadPriority.valueOf(priority) : null);
+		return fileState;
+	}
+
+
+	private static void writeString(DataOutputStream data, String value)
+			throws IOException {
+		data.writeBoolean(value != null);
+		if (value != null) {
+			data.writeUTF(value);
+		}
+	}
+
+
+	private static String readString(DataInputStream data)
+			throws IOException {
+		return data.readBoolean() ? data.readUTF() : null;
+	}
+
+
+	private static void writeLong(DataOutputStream data, Long value)
+			throws IOException {
+		data.writeBoolean(value != null);
+		if (value != null) {
+			data.writeLong(value);
+		}
+	}
+
+
+	private static Long readLong(DataInputStream data)
+			throws IOException {
+		return data.readBoolean() ? data.readLong() : null;
+	}
+
+
+	private static void writeInts(DataOutputStream data, int[] values)
+			throws IOException {
+		data.writeInt(values != null ? values.length : -1);
+		if (values != null) {
+			for (int value : values) {
+				data.writeInt(value);
+			}
+		}
+	}
+
+
+	private static int[] readInts(DataInputStream data)
+			throws IOException {
+		int length = data.readInt();
+		if (length < 0) {
+			return null;
+		}
+		int[] values = new int[length];
+		for (int i = 0; i < length; i++) {
+			values[i] = data.readInt();
+		}
+		return values;
+	}
+
+}
@@ -0,0 +1,39 @@
+package com.am.jlfu.staticstate.serialization;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+
+/**
+ * Encodes the entities persisted by the static state.<br>
+ * The implementations are shared between the threads and shall be thread-safe.
+ *
+ * @author antoinem
+ *
+ */
+public interface StaticStateCodec {
+
+	/**
+	 * @return the name identifying the encoding in the snapshots
+	 */
+	String getName();
+
+
+	/**
+	 * @param entity
+	 * @return true if this codec can encode this entity
+	 */
+	boolean supports(Object entity);
+
+
+	void write(Object entity, OutputStream out)
+			throws IOException;
+
+
+	Object read(InputStream in)
+			throws IOException;
+
+}
@@ -0,0 +1,88 @@
+package com.am.jlfu.staticstate.serialization;
+
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import com.google.common.collect.ImmutableMap;
+
+
+
+/**
+ * Provides the shared {@link StaticStateCodec}s of the static state.<br>
+ * The entities are written with the codec specified by <code>jlfu.staticState.codec</code>,
+ * {@link XStreamStaticStateCodec#NAME} by default or {@link BinaryStaticStateCodec#NAME}, if it
+ * supports them, and with the XML one otherwise. They are read with the codec they have been
+ * written with, whatever the configuration.
+ *
+ * @author antoinem
+ *
+ */
+@Component
+@ManagedResource(objectName = "JavaLargeFileUploader:name=staticStateSerializer")
+public class StaticStateSerializer {
+
+	private final StaticStateCodec xmlCodec = new XStreamStaticStateCodec();
+
+	private final Map<String, StaticStateCodec> codecs = ImmutableMap.of(xmlCodec.getName(), xmlCodec, BinaryStaticStateCodec.NAME,
+			new BinaryStaticStateCodec());
+
+	@Value("jlfu{jlfu.staticState.codec:xml}")
+	private volatile String codec;
+
+
+
+	@PostConstruct
+	private void checkCodec() {
+		setCodec(codec);
+	}
+
+
+	/**
+	 * @param entity
+	 * @return the codec with which to write the entity
+	 */
+	public StaticStateCodec getCodecFor(Object entity) {
+		StaticStateCodec configured = codecs.get(codec);
+		return configured.supports(entity) ? configured : xmlCodec;
+	}
+
+
+	/**
+	 * @param name
+	 * @return the codec with this name
+	 * @throws IOException
+	 *             if there is none
+	 */
+	public StaticStateCodec getCodec(String name)
+			throws IOException {
+		StaticStateCodec staticStateCodec = codecs.get(name);
+		if (staticStateCodec == null) {
+			throw new IOException("unknown codec " + name);
+		}
+		return staticStateCodec;
+	}
+
+
+	@ManagedAttribute
+	public String getCodec() {
+		return codec;
+	}
+
+
+	@ManagedAttribute
+	public void setCodec(String codec) {
+		if (!codecs.containsKey(codec)) {
+			throw new IllegalArgumentException("unknown codec " + codec + ", expecting one of " + codecs.keySet());
+		}
+		this.codec = codec;
+	}
+
+}
@@ -0,0 +1,64 @@
+package com.am.jlfu.staticstate.serialization;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.core.BaseException;
+
+
+
+/**
+ * Encodes any entity in XML with a single {@link XStream}, which is thread-safe once configured and
+ * expensive to create.
+ *
+ * @author antoinem
+ *
+ */
+public class XStreamStaticStateCodec
+		implements StaticStateCodec {
+
+	public static final String NAME = "xml";
+
+	private final XStream xStream = new XStream();
+
+
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+
+	@Override
+	public boolean supports(Object entity) {
+		return true;
+	}
+
+
+	@Override
+	public void write(Object entity, OutputStream out)
+			throws IOException {
+		try {
+			xStream.toXML(entity, out);
+		}
+		catch (BaseException e) {
+			throw new IOException("cannot serialize " + entity.getClass().getSimpleName() + ": " + e.getMessage(), e);
+		}
+	}
+
+
+	@Override
+	public Object read(InputStream in)
+			throws IOException {
+		try {
+			return xStream.fromXML(in);
+		}
+		catch (BaseException e) {
+			throw new IOException("cannot deserialize: " + e.getMessage(), e);
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+package com.am.jlfu.fileuploader.buffer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+@ContextConfiguration(locations = { "classpath:jlfu.test.xml" })
+@RunWith(SpringJUnit4ClassRunner.class)
+public class BufferPoolTest {
+
+	@Autowired
+	BufferPool bufferPool;
+
+
+
+	@Test
+	public void testSizeClasses() {
+		Assert.assertThat(BufferPool.getSizeClass(1), is(0));
+		Assert.assertThat(BufferPool.getSizeClass(BufferPool.MINIMUM_BUFFER_SIZE), is(0));
+		Assert.assertThat(BufferPool.getSizeClass(BufferPool.MINIMUM_BUFFER_SIZE + 1), is(1));
+		Assert.assertThat(BufferPool.getSizeClass(3 * BufferPool.MINIMUM_BUFFER_SIZE), is(2));
+		Assert.assertThat(BufferPool.getSizeClass(BufferPool.MAXIMUM_BUFFER_SIZE), is(BufferPool.NUMBER_OF_SIZE_CLASSES - 1));
+		Assert.assertThat(BufferPool.getSizeClass(BufferPool.MAXIMUM_BUFFER_SIZE + 1), is(-1));
+	}
+
+
+	@Test
+	public void testReuse() {
+		long hits = bufferPool.getHits();
+		long outstanding = bufferPool.getOutstanding();
+
+		// acquire a buffer which is rounded to the size class
+		byte[] buffer = bufferPool.acquire(20000);
+		Assert.assertThat(buffer.length, is(32768));
+		Assert.assertThat(bufferPool.getOutstanding(), is(outstanding + 1));
+
+		// release it and get it back
+		bufferPool.release(buffer);
+		Assert.assertThat(bufferPool.getOutstanding(), is(outstanding));
+		Assert.assertThat(bufferPool.acquire(32768), sameInstance(buffer));
+		Assert.assertThat(bufferPool.getHits(), is(hits + 1));
+		bufferPool.release(buffer);
+	}
+
+
+	@Test
+	public void testOversizedBufferIsNotPooled() {
+		byte[] buffer = bufferPool.acquire(BufferPool.MAXIMUM_BUFFER_SIZE + 1);
+		Assert.assertThat(buffer.length, is(BufferPool.MAXIMUM_BUFFER_SIZE + 1));
+		bufferPool.release(buffer);
+		byte[] other = bufferPool.acquire(BufferPool.MAXIMUM_BUFFER_SIZE + 1);
+		Assert.assertThat(other, not(sameInstance(buffer)));
+		bufferPool.release(other);
+	}
+
+
+	@Test
+	public void testArenaIsBounded()
+			throws InterruptedException {
+		final int size = 65536;
+		final BufferPool boundedBufferPool = new BufferPool();
+		boundedBufferPool.setMaximumPooledSizeInBytes(size);
+
+		// acquire and release from another thread so that buffers go beyond its cache
+		Thread thread = new Thread() {
+
+			@Override
+			public void run() {
+				byte[][] buffers = new byte[BufferPool.THREAD_CACHE_SIZE + 2][];
+				for (int i = 0; i < buffers.length; i++) {
+					buffers[i] = boundedBufferPool.acquire(size);
+				}
+				for (byte[] buffer : buffers) {
+					boundedBufferPool.release(buffer);
+				}
+			}
+		};
+		thread.start();
+		thread.join();
+
+		// only one buffer fits in the arena
+		Assert.assertThat(boundedBufferPool.getPooledSizeInBytes(), is((long) size));
+		Assert.assertThat(boundedBufferPool.getOutstanding(), is(0L));
+	}
+
+
+	@Test
+	public void testReleaseFromEndedThread()
+			throws InterruptedException {
+		final BufferPool threadBufferPool = new BufferPool();
+		threadBufferPool.setMaximumPooledSizeInBytes(BufferPool.MAXIMUM_BUFFER_SIZE);
+		final byte[][] released = new byte[1][];
+
+		// a thread which ends after releasing its buffer
+		Thread thread = new Thread() {
+
+			@Override
+			public void run() {
+				released[0] = threadBufferPool.acquire(65536);
+				threadBufferPool.releaseToArena(released[0]);
+			}
+		};
+		thread.start();
+		thread.join();
+
+		// the buffer can be acquired by another thread
+		Assert.assertThat(threadBufferPool.getPooledSizeInBytes(), is(65536L));
+		byte[] buffer = threadBufferPool.acquire(65536);
+		Assert.assertThat(buffer, sameInstance(released[0]));
+		Assert.assertThat(threadBufferPool.getHits(), is(1L));
+		threadBufferPool.release(buffer);
+	}
+}
@@ -0,0 +1,95 @@
+package com.am.jlfu.fileuploader.checksum;
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.util.zip.Checksum;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+@ContextConfiguration(locations = { "classpath:jlfu.test.xml" })
+@RunWith(SpringJUnit4ClassRunner.class)
+public class ChecksumManagerTest {
+
+	@Autowired
+	ChecksumManager checksumManager;
+
+
+
+	@Test
+	public void testXXHash64() {
+		Assert.assertThat(getXXHash64(new byte[0]), is("ef46db3751d8e999"));
+		Assert.assertThat(getXXHash64("abc".getBytes()), is("44bc2cf5ad770999"));
+		byte[] bytes = new byte[1000];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) (i * 7);
+		}
+		Assert.assertThat(getXXHash64(bytes), is("25275608a9cfc168"));
+
+		// the same value is obtained whatever the size of the updates
+		XXHash64 checksum = new XXHash64();
+		for (int i = 0; i < bytes.length;) {
+			int count = Math.min(i % 37 + 1, bytes.length - i);
+			checksum.update(bytes, i, count);
+			i += count;
+		}
+		Assert.assertThat(ChecksumAlgorithm.toString(checksum), is("25275608a9cfc168"));
+	}
+
+
+	@Test
+	public void testSameValue() {
+		Assert.assertTrue(ChecksumAlgorithm.sameValue("a1b2", "A1B2"));
+		Assert.assertTrue(ChecksumAlgorithm.sameValue("a1b2", "0000a1b2"));
+		Assert.assertTrue(ChecksumAlgorithm.sameValue("ef46db3751d8e999", "EF46DB3751D8E999"));
+		Assert.assertFalse(ChecksumAlgorithm.sameValue("a1b2", "a1b3"));
+		Assert.assertFalse(ChecksumAlgorithm.sameValue("a1b2", "lala"));
+		Assert.assertFalse(ChecksumAlgorithm.sameValue("a1b2", null));
+	}
+
+
+	@Test
+	public void testNegotiate() {
+
+		// clients not negotiating use crc32
+		Assert.assertThat(checksumManager.negotiate(null), is(ChecksumAlgorithm.crc32));
+		Assert.assertThat(checksumManager.negotiate("whatever"), is(ChecksumAlgorithm.crc32));
+
+		// the first algorithm of the client is chosen
+		Assert.assertThat(checksumManager.negotiate("adler32,crc32"), is(ChecksumAlgorithm.adler32));
+
+		// unless it is not available
+		Assert.assertThat(checksumManager.negotiate("crc32c,xxhash64"),
+				is(ChecksumAlgorithm.crc32c.isAvailable() ? ChecksumAlgorithm.crc32c : ChecksumAlgorithm.xxhash64));
+
+		// or not allowed
+		String algorithms = checksumManager.getAlgorithms();
+		checksumManager.setAlgorithms("crc32,xxhash64");
+		try {
+			Assert.assertThat(checksumManager.negotiate("adler32,xxhash64"), is(ChecksumAlgorithm.xxhash64));
+			Assert.assertThat(checksumManager.getAlgorithm(null), is(ChecksumAlgorithm.crc32));
+			Assert.assertThat(checksumManager.getAlgorithm("xxhash64"), is(ChecksumAlgorithm.xxhash64));
+			try {
+				checksumManager.getAlgorithm("adler32");
+				Assert.fail();
+			}
+			catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		finally {
+			checksumManager.setAlgorithms(algorithms);
+		}
+	}
+
+
+	private String getXXHash64(byte[] bytes) {
+		Checksum checksum = ChecksumAlgorithm.xxhash64.newChecksum();
+		checksum.update(bytes, 0, bytes.length);
+		return ChecksumAlgorithm.toString(checksum);
+	}
+}
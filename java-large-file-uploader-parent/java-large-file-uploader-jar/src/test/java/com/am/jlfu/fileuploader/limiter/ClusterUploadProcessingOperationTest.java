@@ -0,0 +1,122 @@
+package com.am.jlfu.fileuploader.limiter;
+
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.am.jlfu.fileuploader.limiter.UploadProcessingOperation.RateProvider;
+
+
+
+@ContextConfiguration(locations = { "classpath:jlfu.test.xml" })
+@RunWith(SpringJUnit4ClassRunner.class)
+public class ClusterUploadProcessingOperationTest {
+
+	private static final int WRITE_SIZE = 8192;
+
+	/** The rate of a node, far above the one of the cluster */
+	private static final long NODE_RATE_IN_BYTES = 1000l * 1024 * 1024;
+
+
+
+	@Test
+	public void testLease() {
+		InProcessClusterBudgetStore store = new InProcessClusterBudgetStore(10000);
+		ClusterUploadProcessingOperation node = newNode(store, 300);
+
+		// the node leases what the cluster has, 100ms of its rate
+		Assert.assertThat(node.reserve(WRITE_SIZE), is(1000l));
+		Assert.assertThat(node.getLeased(), is(0l));
+
+		// then waits before asking again
+		Assert.assertThat(node.reserve(WRITE_SIZE), is(0l));
+		Assert.assertThat(node.getDownloadAllowanceForIteration(), is(0l));
+		Assert.assertThat(node.getMillisecondsUntilAvailable(100), greaterThan(0l));
+
+		// what is refunded is kept for the next writes
+		node.refund(400);
+		Assert.assertThat(node.getLeased(), is(400l));
+		Assert.assertThat(node.reserve(100), is(100l));
+		Assert.assertThat(node.getLeased(), is(300l));
+
+		// and given back to the cluster when the node stops
+		node.giveBackLease();
+		Assert.assertThat(node.getLeased(), is(0l));
+		Assert.assertThat(store.lease(WRITE_SIZE), greaterThan(299l));
+	}
+
+
+	@Test
+	public void testClusterRateIsHonoured()
+			throws InterruptedException {
+		long clusterRate = 1024 * 1024;
+		long leaseSize = 64 * 1024;
+		int nodes = 4;
+		InProcessClusterBudgetStore store = new InProcessClusterBudgetStore(clusterRate);
+
+		// the nodes upload as fast as they can for a second
+		final AtomicLong reserved = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch end = new CountDownLatch(nodes * 2);
+		final long stopAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+		for (int i = 0; i < nodes; i++) {
+			final ClusterUploadProcessingOperation node = newNode(store, leaseSize);
+			for (int j = 0; j < 2; j++) {
+				new Thread() {
+
+					@Override
+					public void run() {
+						try {
+							start.await();
+							while (System.nanoTime() < stopAt) {
+								long bytes = UploadProcessingOperation.reserve(WRITE_SIZE, node);
+								if (bytes > 0) {
+									reserved.addAndGet(bytes);
+									UploadProcessingOperation.release(bytes, bytes, node);
+								}
+								else {
+									Thread.sleep(Math.max(1, node.getMillisecondsUntilAvailable(WRITE_SIZE)));
+								}
+							}
+						}
+						catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						finally {
+							end.countDown();
+						}
+					}
+				}.start();
+			}
+		}
+		start.countDown();
+		end.await();
+
+		// the cluster rate is exceeded by at most its bucket and a slice per node
+		Assert.assertThat(reserved.get(), lessThan(clusterRate + clusterRate / 10 + nodes * leaseSize + 1));
+		Assert.assertThat(reserved.get(), greaterThan(clusterRate * 8 / 10));
+	}
+
+
+	private ClusterUploadProcessingOperation newNode(ClusterBudgetStore store, long leaseSize) {
+		return new ClusterUploadProcessingOperation(null, new RateProvider() {
+
+			@Override
+			public long getRateInBytes() {
+				return NODE_RATE_IN_BYTES;
+			}
+		}, store, leaseSize);
+	}
+
+}
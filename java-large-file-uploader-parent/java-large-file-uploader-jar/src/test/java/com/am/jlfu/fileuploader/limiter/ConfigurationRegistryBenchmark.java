@@ -0,0 +1,137 @@
+package com.am.jlfu.fileuploader.limiter;
+
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.am.jlfu.fileuploader.limiter.ConfigurationRegistry.RemovalListener;
+import com.google.common.base.Supplier;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
+
+
+
+/**
+ * Compares the lookups of the {@link ConfigurationRegistry} with the ones of the expiring
+ * {@link LoadingCache} it replaces in the {@link RateLimiterConfigurationManager}.<br>
+ * Not a test: run it with the test classpath, optionally with the number of threads and of
+ * identifiers as arguments.
+ *
+ * @author antoinem
+ *
+ */
+public class ConfigurationRegistryBenchmark {
+
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int MEASURED_ROUNDS = 5;
+	private static final long ROUND_DURATION_IN_MILLISECONDS = 1000;
+
+
+
+	interface Lookup {
+
+		Object get(UUID identifier);
+	}
+
+
+
+	public static void main(String[] args)
+			throws InterruptedException {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		int identifiers = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		final UUID[] keys = new UUID[identifiers];
+		for (int i = 0; i < identifiers; i++) {
+			keys[i] = UUID.randomUUID();
+		}
+
+		final LoadingCache<UUID, RequestUploadProcessingConfiguration> cache = CacheBuilder.newBuilder()
+				.expireAfterAccess(120, TimeUnit.SECONDS)
+				.build(new CacheLoader<UUID, RequestUploadProcessingConfiguration>() {
+
+					@Override
+					public RequestUploadProcessingConfiguration load(UUID key) {
+						return new RequestUploadProcessingConfiguration();
+					}
+				});
+		final ConfigurationRegistry<RequestUploadProcessingConfiguration> registry =
+				new ConfigurationRegistry<RequestUploadProcessingConfiguration>(new Supplier<RequestUploadProcessingConfiguration>() {
+
+					@Override
+					public RequestUploadProcessingConfiguration get() {
+						return new RequestUploadProcessingConfiguration();
+					}
+				}, new RemovalListener<RequestUploadProcessingConfiguration>() {
+
+					@Override
+					public void onRemoval(UUID identifier, RequestUploadProcessingConfiguration value, RemovalCause cause) {
+					}
+				}, 120, Ticker.systemTicker());
+
+		System.out.println(threads + " threads, " + identifiers + " identifiers, lookups per second:");
+		for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+			long cacheRate = run(threads, keys, new Lookup() {
+
+				@Override
+				public Object get(UUID identifier) {
+					return cache.getUnchecked(identifier);
+				}
+			});
+			long registryRate = run(threads, keys, new Lookup() {
+
+				@Override
+				public Object get(UUID identifier) {
+					return registry.get(identifier);
+				}
+			});
+			System.out.println((round < WARMUP_ROUNDS ? "warmup " : "round ") + round + ": LoadingCache " + cacheRate +
+					", ConfigurationRegistry " + registryRate);
+		}
+	}
+
+
+	private static long run(int threads, final UUID[] keys, final Lookup lookup)
+			throws InterruptedException {
+		final AtomicLong lookups = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch end = new CountDownLatch(threads);
+		final long stopAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ROUND_DURATION_IN_MILLISECONDS);
+		for (int t = 0; t < threads; t++) {
+			final int offset = t * 7919;
+			new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+						long count = 0;
+						int index = offset % keys.length;
+						Object sink = null;
+						while ((count & 1023) != 0 || System.nanoTime() < stopAt) {
+							sink = lookup.get(keys[index]);
+							if (++index == keys.length) {
+								index = 0;
+							}
+							count++;
+						}
+						lookups.addAndGet(count + (sink == null ? 1 : 0));
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					finally {
+						end.countDown();
+					}
+				}
+			}.start();
+		}
+		start.countDown();
+		end.await();
+		return lookups.get() * 1000 / ROUND_DURATION_IN_MILLISECONDS;
+	}
+
+}
@@ -0,0 +1,229 @@
+package com.am.jlfu.fileuploader.limiter;
+
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.am.jlfu.fileuploader.limiter.ConfigurationRegistry.RemovalListener;
+import com.google.common.base.Supplier;
+import com.google.common.base.Ticker;
+import com.google.common.cache.RemovalCause;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+
+
+@ContextConfiguration(locations = { "classpath:jlfu.test.xml" })
+@RunWith(SpringJUnit4ClassRunner.class)
+public class ConfigurationRegistryTest {
+
+	private static final int TIME_TO_IDLE_IN_SECONDS = 120;
+
+	private FakeTicker ticker;
+	private Map<UUID, RemovalCause> removals;
+	private ConfigurationRegistry<RequestUploadProcessingConfiguration> registry;
+
+
+
+	@Before
+	public void before() {
+		ticker = new FakeTicker();
+		removals = Maps.newConcurrentMap();
+		registry = new ConfigurationRegistry<RequestUploadProcessingConfiguration>(new Supplier<RequestUploadProcessingConfiguration>() {
+
+			@Override
+			public RequestUploadProcessingConfiguration get() {
+				return new RequestUploadProcessingConfiguration();
+			}
+		}, new RemovalListener<RequestUploadProcessingConfiguration>() {
+
+			@Override
+			public void onRemoval(UUID identifier, RequestUploadProcessingConfiguration value, RemovalCause cause) {
+				removals.put(identifier, cause);
+			}
+		}, TIME_TO_IDLE_IN_SECONDS, ticker);
+	}
+
+
+	@Test
+	public void testGet() {
+		UUID identifier = UUID.randomUUID();
+
+		// created on first access, then kept
+		Assert.assertThat(registry.getIfPresent(identifier), nullValue());
+		RequestUploadProcessingConfiguration configuration = registry.get(identifier);
+		Assert.assertThat(registry.get(identifier), sameInstance(configuration));
+		Assert.assertThat(registry.get(identifier.getMostSignificantBits(), identifier.getLeastSignificantBits()), sameInstance(configuration));
+		Assert.assertThat(registry.getIfPresent(identifier), sameInstance(configuration));
+
+		// until removed
+		Assert.assertThat(registry.remove(identifier), sameInstance(configuration));
+		Assert.assertThat(removals.get(identifier), is(RemovalCause.EXPLICIT));
+		Assert.assertThat(registry.getIfPresent(identifier), nullValue());
+		Assert.assertThat(registry.size(), is(0));
+
+		// or replaced
+		registry.get(identifier);
+		RequestUploadProcessingConfiguration replacement = new RequestUploadProcessingConfiguration();
+		registry.put(identifier, replacement);
+		Assert.assertThat(removals.get(identifier), is(RemovalCause.REPLACED));
+		Assert.assertThat(registry.get(identifier), sameInstance(replacement));
+	}
+
+
+	@Test
+	public void testManyIdentifiers() {
+		List<UUID> identifiers = Lists.newArrayList();
+		for (int i = 0; i < 10000; i++) {
+			UUID identifier = UUID.randomUUID();
+			identifiers.add(identifier);
+			registry.get(identifier).weight = i;
+		}
+		Assert.assertThat(registry.size(), is(10000));
+
+		// half of them are removed
+		for (int i = 0; i < 10000; i += 2) {
+			registry.remove(identifiers.get(i));
+		}
+		Assert.assertThat(registry.size(), is(5000));
+		Map<UUID, RequestUploadProcessingConfiguration> snapshot = registry.snapshot();
+		Assert.assertThat(snapshot.size(), is(5000));
+		for (int i = 0; i < 10000; i++) {
+			if (i % 2 == 0) {
+				Assert.assertThat(registry.getIfPresent(identifiers.get(i)), nullValue());
+			}
+			else {
+				Assert.assertThat(registry.getIfPresent(identifiers.get(i)).getWeight(), is(i));
+				Assert.assertThat(snapshot.get(identifiers.get(i)).getWeight(), is(i));
+			}
+		}
+	}
+
+
+	@Test
+	public void testExpiry() {
+		UUID idle = UUID.randomUUID();
+		UUID active = UUID.randomUUID();
+		registry.get(idle);
+		registry.get(active);
+
+		// the active one is accessed every 10 seconds
+		for (int i = 0; i < TIME_TO_IDLE_IN_SECONDS / 10 - 1; i++) {
+			ticker.advance(10);
+			registry.get(active);
+			registry.expire();
+		}
+		ticker.advance(9);
+		registry.expire();
+		Assert.assertThat(removals.isEmpty(), is(true));
+
+		// the idle one expires after the time to idle
+		ticker.advance(1);
+		registry.expire();
+		Assert.assertThat(removals.get(idle), is(RemovalCause.EXPIRED));
+		Assert.assertThat(registry.getIfPresent(idle), nullValue());
+		Assert.assertThat(registry.getIfPresent(active) != null, is(true));
+
+		// and the active one once it is not accessed anymore
+		ticker.advance(TIME_TO_IDLE_IN_SECONDS);
+		registry.expire();
+		Assert.assertThat(removals.get(active), is(RemovalCause.EXPIRED));
+		Assert.assertThat(registry.size(), is(0));
+	}
+
+
+	@Test
+	public void testExpiryAfterAPause() {
+		UUID identifier = UUID.randomUUID();
+		registry.get(identifier);
+
+		// the wheel has not been advanced for longer than its span
+		ticker.advance(TIME_TO_IDLE_IN_SECONDS * 10);
+		registry.expire();
+		Assert.assertThat(removals.get(identifier), is(RemovalCause.EXPIRED));
+	}
+
+
+	@Test
+	public void testConcurrentAccesses()
+			throws InterruptedException {
+		final List<UUID> identifiers = Lists.newArrayList();
+		final List<RequestUploadProcessingConfiguration> first = Lists.newArrayList();
+		for (int i = 0; i < 1000; i++) {
+			identifiers.add(UUID.randomUUID());
+			first.add(null);
+		}
+
+		// the threads create the same configurations at the same time
+		final AtomicInteger mismatches = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch end = new CountDownLatch(8);
+		for (int t = 0; t < 8; t++) {
+			new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < identifiers.size(); i++) {
+							RequestUploadProcessingConfiguration configuration = registry.get(identifiers.get(i));
+							synchronized (first) {
+								if (first.get(i) == null) {
+									first.set(i, configuration);
+								}
+								else if (first.get(i) != configuration) {
+									mismatches.incrementAndGet();
+								}
+							}
+						}
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					finally {
+						end.countDown();
+					}
+				}
+			}.start();
+		}
+		start.countDown();
+		end.await();
+		Assert.assertThat(mismatches.get(), is(0));
+		Assert.assertThat(registry.size(), is(1000));
+	}
+
+
+
+	private static class FakeTicker extends Ticker {
+
+		private long nanos = TimeUnit.DAYS.toNanos(1);
+
+
+
+		@Override
+		public long read() {
+			return nanos;
+		}
+
+
+		void advance(long seconds) {
+			nanos += TimeUnit.SECONDS.toNanos(seconds);
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+package com.am.jlfu.fileuploader.limiter;
+
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.google.common.collect.ImmutableMap;
+
+
+
+@ContextConfiguration(locations = { "classpath:jlfu.test.xml" })
+@RunWith(SpringJUnit4ClassRunner.class)
+public class FairShareSchedulerTest {
+
+	@Autowired
+	RateLimiterConfigurationManager rateLimiterConfigurationManager;
+
+	@Autowired
+	UploadProcessingOperationManager uploadProcessingOperationManager;
+
+	@Autowired
+	FairShareScheduler fairShareScheduler;
+
+
+
+	@Test
+	public void testWaterFill() {
+
+		// the small demand is satisfied, the others share what it leaves
+		Map<String, Long> allocations = FairShareScheduler.waterFill(100,
+				ImmutableMap.of("a", 1, "b", 1, "c", 1),
+				ImmutableMap.of("a", 10l, "b", 1000l, "c", 1000l));
+		Assert.assertThat(allocations.get("a"), is(10l));
+		Assert.assertThat(allocations.get("b"), is(45l));
+		Assert.assertThat(allocations.get("c"), is(45l));
+
+		// in proportion to their weights
+		allocations = FairShareScheduler.waterFill(100,
+				ImmutableMap.of("a", 1, "b", 3),
+				ImmutableMap.of("a", 1000l, "b", 1000l));
+		Assert.assertThat(allocations.get("a"), is(25l));
+		Assert.assertThat(allocations.get("b"), is(75l));
+
+		// a heavy demand below its share is satisfied
+		allocations = FairShareScheduler.waterFill(100,
+				ImmutableMap.of("a", 1, "b", 3),
+				ImmutableMap.of("a", 1000l, "b", 30l));
+		Assert.assertThat(allocations.get("a"), is(70l));
+		Assert.assertThat(allocations.get("b"), is(30l));
+
+		// and nothing is given above the demands
+		allocations = FairShareScheduler.waterFill(100,
+				ImmutableMap.of("a", 1, "b", 1),
+				ImmutableMap.of("a", 20l, "b", 0l));
+		Assert.assertThat(allocations.get("a"), is(20l));
+		Assert.assertThat(allocations.get("b"), is(0l));
+	}
+
+
+	@Test
+	public void testUnusedCapacityIsRedistributed() {
+
+		// a slow upload only wants 10, the fast ones as much as they can
+		Map<String, Long> allocations = FairShareScheduler.allocate(100,
+				ImmutableMap.of("slow", 1, "fast", 1, "capped", 1),
+				ImmutableMap.of("slow", 10l, "fast", 80l, "capped", 30l),
+				ImmutableMap.of("slow", 80l, "fast", 80l, "capped", 30l));
+		Assert.assertThat(allocations.get("slow"), is(10l));
+		Assert.assertThat(allocations.get("fast"), is(60l));
+		Assert.assertThat(allocations.get("capped"), is(30l));
+
+		// what is not wanted is given to the ones which can go faster
+		allocations = FairShareScheduler.allocate(100,
+				ImmutableMap.of("slow", 1, "fast", 1),
+				ImmutableMap.of("slow", 10l, "fast", 80l),
+				ImmutableMap.of("slow", 100l, "fast", 80l));
+		Assert.assertThat(allocations.get("slow"), is(20l));
+		Assert.assertThat(allocations.get("fast"), is(80l));
+	}
+
+
+	@Test
+	public void testAllocatedRateIsApplied() {
+		UUID clientId = UUID.randomUUID();
+		UUID fileId = UUID.randomUUID();
+
+		// prevent the scheduler from allocating meanwhile
+		fairShareScheduler.setEnabled(false);
+		fairShareScheduler.reallocate();
+		uploadProcessingOperationManager.startOperation(clientId, fileId);
+		try {
+			UploadProcessingOperation operation = uploadProcessingOperationManager.getFileProcessingOperation(fileId);
+			RequestUploadProcessingConfiguration configuration = rateLimiterConfigurationManager.getUploadProcessingConfiguration(fileId);
+
+			// the allocation takes over the maximum rate
+			configuration.setAllocatedRateInBytes(10240l);
+			Assert.assertThat(operation.getDownloadAllowanceForIteration(), is(1024l));
+
+			// until it is removed
+			configuration.setAllocatedRateInBytes(null);
+			Assert.assertThat(operation.getDownloadAllowanceForIteration(),
+					is(rateLimiterConfigurationManager.getMaximumRatePerClientInKiloBytes() * 1024 / RateLimiter.NUMBER_OF_TIMES_THE_BUCKET_IS_FILLED_PER_SECOND));
+		}
+		finally {
+			uploadProcessingOperationManager.stopOperation(clientId, fileId);
+			fairShareScheduler.setEnabled(true);
+		}
+	}
+
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidWeight() {
+		rateLimiterConfigurationManager.assignWeight(UUID.randomUUID(), 0);
+	}
+
+}
@@ -2,7 +2,6 @@ package com.am.jlfu.fileuploader.limiter;
 
 
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
 
 import org.hamcrest.CoreMatchers;
 import org.junit.Assert;
@@ -87,7 +86,7 @@ public class RateLimiterConfigurationManagerTest {
 		final UUID identifier = staticStateIdentifierManager.getIdentifier();
 		rateLimiterConfigurationManager.configurationMap
 				.put(identifier, new RequestUploadProcessingConfiguration());
-		rateLimiterConfigurationManager.configurationMap.getUnchecked(identifier);
+		rateLimiterConfigurationManager.configurationMap.get(identifier);
 		final StaticFileState value = new StaticFileState();
 		entity.getFileStates().put(identifier, value);
 		final FileStateJsonBase staticFileStateJson = new FileStateJsonBase();
@@ -114,7 +113,7 @@ public class RateLimiterConfigurationManagerTest {
 
 	
 	@Test
-	public void testStreamExpectedToBeClosed() throws ExecutionException {
+	public void testStreamExpectedToBeClosed() {
 		UUID randomUUID = UUID.randomUUID();
 		rateLimiterConfigurationManager.configurationMap.put(randomUUID, new RequestUploadProcessingConfiguration());
 		Assert.assertThat(rateLimiterConfigurationManager.configurationMap.get(randomUUID).isPaused(), CoreMatchers.is(false));
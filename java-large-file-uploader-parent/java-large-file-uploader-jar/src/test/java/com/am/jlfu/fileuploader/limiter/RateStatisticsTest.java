@@ -0,0 +1,141 @@
+package com.am.jlfu.fileuploader.limiter;
+
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+
+
+@ContextConfiguration(locations = { "classpath:jlfu.test.xml" })
+@RunWith(SpringJUnit4ClassRunner.class)
+public class RateStatisticsTest {
+
+	@Test
+	public void testRates() {
+		FixedClockStatistics statistics = new FixedClockStatistics();
+
+		// 2500 bytes every 250ms for 10 seconds
+		for (int i = 0; i < 40; i++) {
+			statistics.bytesWritten(2500);
+			statistics.advance(250);
+		}
+		Assert.assertThat(statistics.getRateInBytes(1), is(10000l));
+		Assert.assertThat(statistics.getRateInBytes(10), is(10000l));
+
+		// the longer windows are limited to the lifetime of the statistics
+		Assert.assertThat(statistics.getRateInBytes(60), is(10000l));
+
+		// then 5 seconds without anything
+		statistics.advance(5000);
+		Assert.assertThat(statistics.getRateInBytes(1), is(0l));
+		Assert.assertThat(statistics.getRateInBytes(10), is(5000l));
+		Assert.assertThat(statistics.getRateInBytes(60), is(100000l * 1000 / 15000));
+		Assert.assertThat(statistics.getPeakRateInBytes(), is(10000l));
+	}
+
+
+	@Test
+	public void testPeakRate() {
+		FixedClockStatistics statistics = new FixedClockStatistics();
+
+		// a burst of a second in the middle of a slow upload
+		for (int i = 0; i < 20; i++) {
+			statistics.bytesWritten(i == 10 ? 3000000 : 1000);
+			statistics.advance(250);
+		}
+		Assert.assertThat(statistics.getPeakRateInBytes(), is(3003000l));
+
+		// is forgotten after a minute
+		for (int i = 0; i < 240; i++) {
+			statistics.bytesWritten(1000);
+			statistics.advance(250);
+		}
+		Assert.assertThat(statistics.getPeakRateInBytes(), is(4000l));
+		Assert.assertThat(statistics.getRateInBytes(60), is(4000l));
+	}
+
+
+	@Test
+	public void testLargeRates() {
+		FixedClockStatistics statistics = new FixedClockStatistics();
+
+		// more than what an int holds
+		for (int i = 0; i < 10; i++) {
+			statistics.bytesWritten(1l << 32);
+			statistics.advance(100);
+		}
+		Assert.assertThat(statistics.getRateInBytes(1), is(10l << 32));
+	}
+
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidWindow() {
+		new RateStatistics().getRateInBytes(61);
+	}
+
+
+	@Test
+	public void testConcurrentWrites()
+			throws InterruptedException {
+		final FixedClockStatistics statistics = new FixedClockStatistics();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch end = new CountDownLatch(8);
+		for (int t = 0; t < 8; t++) {
+			new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < 100000; i++) {
+							statistics.bytesWritten(1);
+						}
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					finally {
+						end.countDown();
+					}
+				}
+			}.start();
+		}
+		start.countDown();
+		end.await();
+
+		// nothing is lost
+		statistics.advance(1000);
+		Assert.assertThat(statistics.getRateInBytes(1), is(800000l));
+	}
+
+
+
+	/**
+	 * Statistics created at the time 0 of a clock which only moves when told to.
+	 */
+	private static class FixedClockStatistics extends RateStatistics {
+
+		private volatile long now;
+
+
+
+		@Override
+		long nanoTime() {
+			return now;
+		}
+
+
+		void advance(long milliseconds) {
+			now += TimeUnit.MILLISECONDS.toNanos(milliseconds);
+		}
+	}
+
+}
@@ -0,0 +1,121 @@
+package com.am.jlfu.fileuploader.limiter;
+
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.am.jlfu.fileuploader.exception.StorageBackpressureException;
+import com.am.jlfu.staticstate.StaticStateRootFolderProvider;
+
+
+
+@ContextConfiguration(locations = { "classpath:jlfu.test.xml" })
+@RunWith(SpringJUnit4ClassRunner.class)
+public class StorageAdmissionControllerTest {
+
+	@Autowired
+	StorageAdmissionController storageAdmissionController;
+
+	@Autowired
+	StaticStateRootFolderProvider staticStateRootFolderProvider;
+
+
+
+	@Test
+	public void testSample()
+			throws StorageBackpressureException {
+		storageAdmissionController.sample();
+
+		// the probe has been written in the root folder
+		Assert.assertTrue(new File(staticStateRootFolderProvider.getRootFolder(), StorageAdmissionController.PROBE_FILE_NAME).exists());
+		Assert.assertThat(storageAdmissionController.getUsableSpaceInMegaBytes(), greaterThan(0l));
+		Assert.assertThat(storageAdmissionController.getUsableSpaceInMegaBytes(), lessThan(Long.MAX_VALUE / 1024 / 1024));
+
+		// and the storage of the tests is healthy
+		storageAdmissionController.checkAdmission();
+	}
+
+
+	@Test
+	public void testRateFactor() {
+		StorageAdmissionController controller = newController();
+
+		// a fast storage takes the whole rate
+		controller.record(Long.MAX_VALUE, 10);
+		Assert.assertThat(controller.getRateFactor(), is(1f));
+
+		// a slower one less and less of it
+		recordUntilSmoothed(controller, 550);
+		Assert.assertThat(controller.getLatencyInMilliseconds(), is(550l));
+		Assert.assertThat(controller.getRateFactor(), is(0.55f));
+
+		// but never nothing
+		recordUntilSmoothed(controller, 5000);
+		Assert.assertThat(controller.getRateFactor(), is(StorageAdmissionController.MINIMUM_RATE_FACTOR));
+
+		// unless disabled
+		controller.setEnabled(false);
+		Assert.assertThat(controller.getRateFactor(), is(1f));
+	}
+
+
+	@Test
+	public void testAdmission()
+			throws StorageBackpressureException {
+		StorageAdmissionController controller = newController();
+		recordUntilSmoothed(controller, 500);
+		controller.checkAdmission();
+
+		// an overloaded storage is rejected
+		recordUntilSmoothed(controller, 1500);
+		try {
+			controller.checkAdmission();
+			Assert.fail();
+		}
+		catch (StorageBackpressureException e) {
+			Assert.assertThat(e.getRetryAfterInSeconds(), greaterThan(0l));
+		}
+
+		// until it recovers
+		recordUntilSmoothed(controller, 10);
+		controller.checkAdmission();
+
+		// as well as a full one
+		controller.record(100 * 1024 * 1024, 10);
+		try {
+			controller.checkAdmission();
+			Assert.fail();
+		}
+		catch (StorageBackpressureException e) {
+			Assert.assertThat(e.getRetryAfterInSeconds(), greaterThan(0l));
+		}
+	}
+
+
+	private StorageAdmissionController newController() {
+		StorageAdmissionController controller = new StorageAdmissionController();
+		controller.setEnabled(true);
+		controller.setSlowLatencyInMilliseconds(100);
+		controller.setOverloadedLatencyInMilliseconds(1000);
+		controller.setMinimumFreeSpaceInMegaBytes(512);
+		return controller;
+	}
+
+
+	private void recordUntilSmoothed(StorageAdmissionController controller, double latencyInMilliseconds) {
+		for (int i = 0; i < 100; i++) {
+			controller.record(Long.MAX_VALUE, latencyInMilliseconds);
+		}
+	}
+
+}
@@ -12,6 +12,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import com.am.jlfu.fileuploader.exception.TooManyConcurrentRequestsException;
 import com.am.jlfu.fileuploader.utils.ClientToFilesMap;
 
 
@@ -70,4 +71,81 @@ public class UploadProcessingOperationManagerTest {
 
 
 	}
+
+
+	@Test
+	public void testParallelRequests() {
+
+		UUID clientId = UUID.randomUUID();
+		UUID fileId = UUID.randomUUID();
+
+		// two requests for the same file share the same operation
+		uploadProcessingOperationManager.startOperation(clientId, fileId);
+		UploadProcessingOperation fileProcessingOperation = uploadProcessingOperationManager.getFileProcessingOperation(fileId);
+		uploadProcessingOperationManager.startOperation(clientId, fileId);
+		Assert.assertThat(uploadProcessingOperationManager.getFileProcessingOperation(fileId), CoreMatchers.is(fileProcessingOperation));
+
+		// which is kept until the last one stops
+		Assert.assertThat(uploadProcessingOperationManager.stopOperation(clientId, fileId), CoreMatchers.is(false));
+		Assert.assertThat(uploadProcessingOperationManager.getFileProcessingOperation(fileId), CoreMatchers.is(fileProcessingOperation));
+		Assert.assertThat(clientToFilesMap.get(clientId).contains(fileId), CoreMatchers.is(true));
+
+		Assert.assertThat(uploadProcessingOperationManager.stopOperation(clientId, fileId), CoreMatchers.is(true));
+		Assert.assertThat(uploadProcessingOperationManager.clientsAndRequestsProcessingOperation.isEmpty(), CoreMatchers.is(true));
+		Assert.assertThat(clientToFilesMap.isEmpty(), CoreMatchers.is(true));
+	}
+
+
+	@Test
+	public void testConcurrentRequestsLimits()
+			throws TooManyConcurrentRequestsException {
+		int maximumPerClient = uploadProcessingOperationManager.getMaximumConcurrentRequestsPerClient();
+		int maximumPerFile = uploadProcessingOperationManager.getMaximumConcurrentRequestsPerFile();
+		uploadProcessingOperationManager.setMaximumConcurrentRequestsPerClient(3);
+		uploadProcessingOperationManager.setMaximumConcurrentRequestsPerFile(2);
+		try {
+			UUID clientId = UUID.randomUUID();
+			UUID fileId = UUID.randomUUID();
+			UUID fileId2 = UUID.randomUUID();
+
+			// a file is limited
+			uploadProcessingOperationManager.admitRequest(clientId, fileId);
+			uploadProcessingOperationManager.admitRequest(clientId, fileId);
+			assertRejected(clientId, fileId);
+
+			// and so is the client
+			uploadProcessingOperationManager.admitRequest(clientId, fileId2);
+			assertRejected(clientId, fileId2);
+			Assert.assertThat(uploadProcessingOperationManager.getRequestsInFlight(clientId), CoreMatchers.is(3));
+			Assert.assertThat(uploadProcessingOperationManager.getRequestsInFlight(fileId), CoreMatchers.is(2));
+
+			// but not the other clients
+			uploadProcessingOperationManager.admitRequest(UUID.randomUUID(), UUID.randomUUID());
+
+			// until a request completes
+			uploadProcessingOperationManager.releaseRequest(clientId, fileId);
+			uploadProcessingOperationManager.admitRequest(clientId, fileId2);
+			Assert.assertThat(uploadProcessingOperationManager.getRequestsInFlight(fileId), CoreMatchers.is(1));
+			Assert.assertThat(uploadProcessingOperationManager.getRequestsInFlight(fileId2), CoreMatchers.is(2));
+
+			// no limit
+			uploadProcessingOperationManager.setMaximumConcurrentRequestsPerClient(0);
+			uploadProcessingOperationManager.setMaximumConcurrentRequestsPerFile(0);
+			uploadProcessingOperationManager.admitRequest(clientId, fileId2);
+		}
+		finally {
+			uploadProcessingOperationManager.setMaximumConcurrentRequestsPerClient(maximumPerClient);
+			uploadProcessingOperationManager.setMaximumConcurrentRequestsPerFile(maximumPerFile);
+		}
+	}
+
+
+	private void assertRejected(UUID clientId, UUID fileId) {
+		try {
+			uploadProcessingOperationManager.admitRequest(clientId, fileId);
+			Assert.fail();
+		}
+		catch (TooManyConcurrentRequestsException e) {
+		}
+	}
 }
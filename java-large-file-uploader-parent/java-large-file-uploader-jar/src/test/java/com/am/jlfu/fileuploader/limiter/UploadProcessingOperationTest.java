@@ -0,0 +1,289 @@
+package com.am.jlfu.fileuploader.limiter;
+
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+
+
+@ContextConfiguration(locations = { "classpath:jlfu.test.xml" })
+@RunWith(SpringJUnit4ClassRunner.class)
+public class UploadProcessingOperationTest {
+
+	private static final int WRITE_SIZE = 8192;
+
+	/** A rate of one byte per nanosecond, so that the allowances are exact. */
+	private static final long RATE_IN_BYTES = TimeUnit.SECONDS.toNanos(1);
+
+
+
+	@Test
+	public void testReserve() {
+		UploadProcessingOperation operation = newOperation(10000);
+
+		// reserve what is asked
+		Assert.assertThat(operation.reserve(WRITE_SIZE), is((long) WRITE_SIZE));
+
+		// or what is left
+		Assert.assertThat(operation.reserve(WRITE_SIZE), is(10000l - WRITE_SIZE));
+		Assert.assertThat(operation.reserve(WRITE_SIZE), is(0l));
+		Assert.assertThat(operation.getDownloadAllowanceForIteration(), is(0l));
+
+		// what is refunded can be reserved again
+		operation.refund(100);
+		Assert.assertThat(operation.reserve(WRITE_SIZE), is(100l));
+	}
+
+
+	@Test
+	public void testConcurrentWriters()
+			throws InterruptedException {
+		for (int writers : new int[] { 1, 8, 64 }) {
+			long allowance = 1000l * WRITE_SIZE + 123;
+			UploadProcessingOperation operation = newOperation(allowance);
+
+			// the writers consume the allowance concurrently
+			AtomicLong reserved = runConcurrentWriters(operation, writers);
+
+			// which is never exceeded and nothing is lost
+			Assert.assertThat(reserved.get(), is(allowance));
+			Assert.assertThat(operation.getDownloadAllowanceForIteration(), is(0l));
+			Assert.assertThat(operation.getBytesWritten(), is(allowance));
+		}
+	}
+
+
+	@Test
+	public void testHierarchicalReservation() {
+		UploadProcessingOperation request = newOperation(10000);
+		UploadProcessingOperation client = newOperation(5000);
+		UploadProcessingOperation master = newOperation(3000);
+
+		// the smallest allowance is reserved from all of them
+		Assert.assertThat(UploadProcessingOperation.reserve(WRITE_SIZE, request, client, master), is(3000l));
+		Assert.assertThat(request.getDownloadAllowanceForIteration(), is(7000l));
+		Assert.assertThat(client.getDownloadAllowanceForIteration(), is(2000l));
+		Assert.assertThat(master.getDownloadAllowanceForIteration(), is(0l));
+
+		// an exhausted bucket reserves nothing from the other ones
+		Assert.assertThat(UploadProcessingOperation.reserve(WRITE_SIZE, request, client, master), is(0l));
+		Assert.assertThat(request.getDownloadAllowanceForIteration(), is(7000l));
+		Assert.assertThat(client.getDownloadAllowanceForIteration(), is(2000l));
+
+		// after a short read, what has not been read is refunded
+		UploadProcessingOperation.release(3000, 1000, request, client, master);
+		Assert.assertThat(request.getDownloadAllowanceForIteration(), is(9000l));
+		Assert.assertThat(client.getDownloadAllowanceForIteration(), is(4000l));
+		Assert.assertThat(master.getDownloadAllowanceForIteration(), is(2000l));
+		Assert.assertThat(master.getBytesWritten(), is(1000l));
+	}
+
+
+	@Test
+	public void testConcurrentHierarchicalReservation()
+			throws InterruptedException {
+		final UploadProcessingOperation client = newOperation(10000l * WRITE_SIZE);
+		final UploadProcessingOperation master = newOperation(100l * WRITE_SIZE + 123);
+
+		// many requests with a big allowance
+		int writers = 64;
+		final UploadProcessingOperation[] requests = new UploadProcessingOperation[writers];
+		final AtomicLong reserved = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch end = new CountDownLatch(writers);
+		for (int i = 0; i < writers; i++) {
+			final UploadProcessingOperation request = requests[i] = newOperation(1000l * WRITE_SIZE);
+			new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+						long bytes;
+						while ((bytes = UploadProcessingOperation.reserve(WRITE_SIZE, request, client, master)) > 0) {
+							reserved.addAndGet(bytes);
+							UploadProcessingOperation.release(bytes, bytes, request, client, master);
+						}
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					finally {
+						end.countDown();
+					}
+				}
+			}.start();
+		}
+		start.countDown();
+		end.await();
+
+		// the master allowance holds
+		Assert.assertThat(reserved.get(), is(100l * WRITE_SIZE + 123));
+		Assert.assertThat(master.getDownloadAllowanceForIteration(), is(0l));
+
+		// and the requests only paid for what they wrote
+		long consumedByRequests = 0;
+		for (UploadProcessingOperation request : requests) {
+			consumedByRequests += 1000l * WRITE_SIZE - request.getDownloadAllowanceForIteration();
+		}
+		Assert.assertThat(consumedByRequests, is(reserved.get()));
+	}
+
+
+	@Test
+	public void testContinuousRefill() {
+		FixedClockOperation operation = new FixedClockOperation(10000);
+
+		// the bucket starts full, with what is refilled in 100ms
+		Assert.assertThat(operation.getDownloadAllowanceForIteration(), is(1000l));
+		Assert.assertThat(operation.reserve(WRITE_SIZE), is(1000l));
+		Assert.assertThat(operation.getMillisecondsUntilAvailable(500), is(50l));
+
+		// it is refilled as time goes, without anything to do
+		operation.now += TimeUnit.MILLISECONDS.toNanos(50);
+		Assert.assertThat(operation.getDownloadAllowanceForIteration(), is(500l));
+		Assert.assertThat(operation.getMillisecondsUntilAvailable(500), is(0l));
+
+		// but never more than the capacity
+		operation.now += TimeUnit.SECONDS.toNanos(10);
+		Assert.assertThat(operation.getDownloadAllowanceForIteration(), is(1000l));
+
+		// the bytes consumed without reservation can make it go into debt
+		operation.bytesConsumedFromAllowance(3000);
+		Assert.assertThat(operation.getDownloadAllowanceForIteration(), is(-2000l));
+		Assert.assertThat(operation.reserve(WRITE_SIZE), is(0l));
+		Assert.assertThat(operation.getMillisecondsUntilAvailable(500), is(250l));
+		operation.now += TimeUnit.MILLISECONDS.toNanos(250);
+		Assert.assertThat(operation.getDownloadAllowanceForIteration(), is(500l));
+
+		// a new rate applies immediately
+		operation.rate.rateInBytes = 20000;
+		Assert.assertThat(operation.getDownloadAllowanceForIteration(), is(1000l));
+		Assert.assertThat(operation.getBytesWritten(), is(3000l));
+	}
+
+
+	@Test
+	public void testHighRate() {
+		for (long rate : new long[] { 1000l * 1000 * 1000 * 1000, Long.MAX_VALUE }) {
+			FixedClockOperation operation = new FixedClockOperation(rate);
+
+			// the bucket holds what is refilled in 100ms, without overflowing
+			operation.now += TimeUnit.SECONDS.toNanos(10);
+			long capacity = rate / 10;
+			Assert.assertThat(operation.getDownloadAllowanceForIteration(), is(capacity));
+			Assert.assertThat(operation.reserve(WRITE_SIZE), is((long) WRITE_SIZE));
+			Assert.assertThat(operation.getMillisecondsUntilAvailable(WRITE_SIZE), is(0l));
+			Assert.assertThat(operation.getDownloadAllowanceForIteration(), lessThan(capacity));
+			Assert.assertThat(operation.getDownloadAllowanceForIteration(), greaterThan(0l));
+
+			// and is refilled
+			operation.now += TimeUnit.MILLISECONDS.toNanos(100);
+			Assert.assertThat(operation.getDownloadAllowanceForIteration(), is(capacity));
+		}
+	}
+
+
+	/**
+	 * @param allowance
+	 * @return an operation with a stopped clock, emptied then refilled with the allowance
+	 */
+	private UploadProcessingOperation newOperation(long allowance) {
+		FixedClockOperation operation = new FixedClockOperation(RATE_IN_BYTES);
+		while (operation.reserve(Long.MAX_VALUE / RATE_IN_BYTES) > 0) {
+		}
+		operation.now += allowance;
+		return operation;
+	}
+
+
+
+	static class FixedRate
+			implements UploadProcessingOperation.RateProvider {
+
+		long rateInBytes;
+
+
+
+		FixedRate(long rateInBytes) {
+			this.rateInBytes = rateInBytes;
+		}
+
+
+		@Override
+		public long getRateInBytes() {
+			return rateInBytes;
+		}
+	}
+
+
+
+	static class FixedClockOperation extends UploadProcessingOperation {
+
+		final FixedRate rate;
+		long now = 1;
+
+
+
+		FixedClockOperation(long rateInBytes) {
+			this(new FixedRate(rateInBytes));
+		}
+
+
+		private FixedClockOperation(FixedRate rate) {
+			super(null, rate);
+			this.rate = rate;
+		}
+
+
+		@Override
+		long nanoTime() {
+			return now;
+		}
+	}
+
+
+
+	private AtomicLong runConcurrentWriters(final UploadProcessingOperation operation, int writers)
+			throws InterruptedException {
+		final AtomicLong reserved = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch end = new CountDownLatch(writers);
+		for (int i = 0; i < writers; i++) {
+			new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+						long bytes;
+						while ((bytes = operation.reserve(WRITE_SIZE)) > 0) {
+							reserved.addAndGet(bytes);
+							operation.bytesWritten(bytes);
+						}
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					finally {
+						end.countDown();
+					}
+				}
+			}.start();
+		}
+		start.countDown();
+		end.await();
+		return reserved;
+	}
+}
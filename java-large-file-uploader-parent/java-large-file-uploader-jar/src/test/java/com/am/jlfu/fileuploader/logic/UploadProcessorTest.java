@@ -108,7 +108,7 @@ public class UploadProcessorTest {
 
 	public static class TestFileSplitResult {
 
-		ByteArrayInputStream stream;
+		InputStream stream;
 		String crc;
 	}
 
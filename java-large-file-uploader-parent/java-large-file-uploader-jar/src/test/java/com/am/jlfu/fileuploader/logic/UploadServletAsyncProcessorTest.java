@@ -9,14 +9,20 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Checksum;
 
 import javax.servlet.ServletException;
 
@@ -35,16 +41,24 @@ import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import com.am.jlfu.fileuploader.buffer.BufferPool;
+import com.am.jlfu.fileuploader.checksum.ChecksumAlgorithm;
+import com.am.jlfu.fileuploader.checksum.ChecksumManager;
 import com.am.jlfu.fileuploader.exception.FileCorruptedException;
 import com.am.jlfu.fileuploader.exception.InvalidCrcException;
+import com.am.jlfu.fileuploader.exception.InvalidOffsetException;
 import com.am.jlfu.fileuploader.exception.MissingParameterException;
 import com.am.jlfu.fileuploader.json.CRCResult;
+import com.am.jlfu.fileuploader.json.FileStateJsonBase;
 import com.am.jlfu.fileuploader.limiter.RateLimiterConfigurationManager;
 import com.am.jlfu.fileuploader.logic.UploadProcessorTest.TestFileSplitResult;
 import com.am.jlfu.fileuploader.logic.UploadServletAsyncProcessor.WriteChunkCompletionListener;
 import com.am.jlfu.fileuploader.utils.CRCHelper;
 import com.am.jlfu.fileuploader.utils.ProgressCalculator;
+import com.am.jlfu.fileuploader.utils.SliceIndex;
 import com.am.jlfu.fileuploader.web.utils.RequestComponentContainer;
+import com.am.jlfu.notifier.JLFUListenerAdapter;
+import com.am.jlfu.notifier.JLFUListenerPropagator;
 import com.am.jlfu.staticstate.StaticStateIdentifierManager;
 import com.am.jlfu.staticstate.StaticStateManager;
 import com.am.jlfu.staticstate.entities.StaticStatePersistedOnFileSystemEntity;
@@ -82,6 +96,12 @@ public class UploadServletAsyncProcessorTest {
 	@Autowired
 	StaticStateIdentifierManager staticStateIdentifierManager;
 
+	@Autowired
+	ChecksumManager checksumManager;
+
+	@Autowired
+	JLFUListenerPropagator jlfuListenerPropagator;
+
 	MockMultipartFile tinyFile;
 	Long tinyFileSize;
 	byte[] tinyFileContent;
@@ -221,6 +241,524 @@ public class UploadServletAsyncProcessorTest {
 	}
 
 
+	@Test
+	public void testAdaptiveBufferSize()
+			throws IOException, InterruptedException {
+
+		// a file spanning several buffers of the biggest size
+		byte[] content = new byte[3 * UploadServletAsyncProcessor.MAXIMUM_ADAPTIVE_SIZE_OF_THE_BUFFER_IN_BYTES + 123];
+		new Random().nextBytes(content);
+		MockMultipartFile file = new MockMultipartFile("blob", content);
+
+		uploadServletAsyncProcessor.setAdaptiveBufferSize(true);
+		try {
+			// upload it at once
+			UUID fileId = uploadProcessor.prepareUpload((long) content.length, fileName, "lala");
+			processWaitForCompletionAndCheck(fileId, UploadProcessorTest.getByteArrayFromFile(file, 0, content.length));
+
+			// and check it has been entirely written
+			File uploadedFile = new File(staticStateManager.getEntity().getFileStates().get(fileId).getAbsoluteFullPathOfUploadedFile());
+			Assert.assertThat(uploadedFile.length(), is((long) content.length));
+			Assert.assertThat(crcHelper.getBufferedCrc(new FileInputStream(uploadedFile)),
+					is(crcHelper.getBufferedCrc(new ByteArrayInputStream(content))));
+		}
+		finally {
+			uploadServletAsyncProcessor.setAdaptiveBufferSize(false);
+		}
+	}
+
+
+	@Test
+	public void testThreadPerUploadWorkersMode()
+			throws IOException, InterruptedException {
+
+		// a file spanning several iterations of the rate limiter
+		byte[] content = new byte[3 * 1024 * 1024];
+		new Random().nextBytes(content);
+		MockMultipartFile file = new MockMultipartFile("blob", content);
+
+		uploadServletAsyncProcessor.setWorkersMode(UploadWorkersMode.threadPerUpload.name());
+		try {
+			// upload it in two parts
+			UUID fileId = uploadProcessor.prepareUpload((long) content.length, fileName, "lala");
+			processWaitForCompletionAndCheck(fileId, UploadProcessorTest.getByteArrayFromFile(file, 0, content.length / 2));
+			processWaitForCompletionAndCheck(fileId, UploadProcessorTest.getByteArrayFromFile(file, content.length / 2, content.length));
+
+			// and check it has been entirely written
+			File uploadedFile = new File(staticStateManager.getEntity().getFileStates().get(fileId).getAbsoluteFullPathOfUploadedFile());
+			Assert.assertThat(uploadedFile.length(), is((long) content.length));
+			Assert.assertThat(crcHelper.getBufferedCrc(new FileInputStream(uploadedFile)),
+					is(crcHelper.getBufferedCrc(new ByteArrayInputStream(content))));
+		}
+		finally {
+			uploadServletAsyncProcessor.setWorkersMode(UploadWorkersMode.pool.name());
+		}
+	}
+
+
+	@Test
+	public void testNonBlockingWorkersMode()
+			throws IOException, InterruptedException {
+
+		// a file spanning several buffers
+		byte[] content = new byte[256 * 1024];
+		new Random().nextBytes(content);
+		MockMultipartFile file = new MockMultipartFile("blob", content);
+
+		uploadServletAsyncProcessor.setWorkersMode(UploadWorkersMode.nonBlocking.name());
+		try {
+			// upload it with a stream which has nothing available every other time it is asked
+			UUID fileId = uploadProcessor.prepareUpload((long) content.length, fileName, "lala");
+			TestFileSplitResult splitResult = UploadProcessorTest.getByteArrayFromFile(file, 0, content.length);
+			splitResult.stream = new FilterInputStream(splitResult.stream) {
+
+				int calls;
+
+
+
+				@Override
+				public int available()
+						throws IOException {
+					return calls++ % 2 == 0 ? 0 : super.available();
+				}
+			};
+			processWaitForCompletionAndCheck(fileId, splitResult);
+
+			// and check it has been entirely written
+			File uploadedFile = new File(staticStateManager.getEntity().getFileStates().get(fileId).getAbsoluteFullPathOfUploadedFile());
+			Assert.assertThat(uploadedFile.length(), is((long) content.length));
+			Assert.assertThat(crcHelper.getBufferedCrc(new FileInputStream(uploadedFile)),
+					is(crcHelper.getBufferedCrc(new ByteArrayInputStream(content))));
+		}
+		finally {
+			uploadServletAsyncProcessor.setWorkersMode(UploadWorkersMode.pool.name());
+		}
+	}
+
+
+	@Test
+	public void testNonBlockingWorkersModeWithSilentStream()
+			throws IOException, InterruptedException {
+
+		// a file of a few bytes
+		byte[] content = new byte[2];
+		new Random().nextBytes(content);
+		MockMultipartFile file = new MockMultipartFile("blob", content);
+
+		uploadServletAsyncProcessor.setWorkersMode(UploadWorkersMode.nonBlocking.name());
+		long nonBlockingMaximumIdleTimeInMilliseconds = uploadServletAsyncProcessor.getNonBlockingMaximumIdleTimeInMilliseconds();
+		uploadServletAsyncProcessor.setNonBlockingMaximumIdleTimeInMilliseconds(500);
+		try {
+			// upload it with a stream which never tells what it has available
+			UUID fileId = uploadProcessor.prepareUpload((long) content.length, fileName, "lala");
+			TestFileSplitResult splitResult = UploadProcessorTest.getByteArrayFromFile(file, 0, content.length);
+			final AtomicInteger availableCalls = new AtomicInteger();
+			final AtomicInteger maximumRead = new AtomicInteger();
+			splitResult.stream = new FilterInputStream(splitResult.stream) {
+
+				@Override
+				public int available()
+						throws IOException {
+					availableCalls.incrementAndGet();
+					return 0;
+				}
+
+
+				@Override
+				public int read(byte[] b, int off, int len)
+						throws IOException {
+					maximumRead.set(Math.max(maximumRead.get(), len));
+					return super.read(b, off, len);
+				}
+			};
+			processWaitForCompletionAndCheck(fileId, splitResult);
+
+			// it has been read a byte at a time once idle, polled less and less often
+			Assert.assertThat(maximumRead.get(), is(1));
+			Assert.assertThat(availableCalls.get(), lessThan(40));
+			File uploadedFile = new File(staticStateManager.getEntity().getFileStates().get(fileId).getAbsoluteFullPathOfUploadedFile());
+			Assert.assertThat(crcHelper.getBufferedCrc(new FileInputStream(uploadedFile)),
+					is(crcHelper.getBufferedCrc(new ByteArrayInputStream(content))));
+		}
+		finally {
+			uploadServletAsyncProcessor.setNonBlockingMaximumIdleTimeInMilliseconds(nonBlockingMaximumIdleTimeInMilliseconds);
+			uploadServletAsyncProcessor.setWorkersMode(UploadWorkersMode.pool.name());
+		}
+	}
+
+
+	@Test
+	public void testParallelSlices()
+			throws IOException, InterruptedException {
+
+		// a file of 3 slices and a half
+		long sliceSizeInBytes = uploadProcessor.getSliceSizeInBytes();
+		uploadProcessor.setSliceSizeInBytes(1024 * 1024);
+		try {
+			byte[] content = new byte[3 * 1024 * 1024 + 512 * 1024];
+			new Random().nextBytes(content);
+			MockMultipartFile file = new MockMultipartFile("blob", content);
+			UUID fileId = uploadProcessor.prepareUpload((long) content.length, fileName, "lala");
+			FileStateJsonBase fileStateJson = staticStateManager.getEntity().getFileStates().get(fileId).getStaticFileStateJson();
+			Assert.assertThat(fileStateJson.getSliceSizeInBytes(), is(1024l * 1024));
+
+			// upload the last slices in parallel
+			processInParallelWaitForCompletionAndCheck(fileId, file, content.length, 3, 2, 1);
+
+			// they are indexed but the validated bytes are still the ones at the beginning of the file
+			Assert.assertThat(fileStateJson.getCrcedBytes(), is(0l));
+			Assert.assertThat(fileStateJson.getCompletedSlices()[0], is(14));
+			Assert.assertThat(SliceIndex.getCrc(fileStateJson, 1),
+					is(UploadProcessorTest.getByteArrayFromFile(file, 1024 * 1024, 2 * 1024 * 1024).crc));
+			Assert.assertThat(SliceIndex.getCrc(fileStateJson, 0), nullValue());
+			Assert.assertThat(uploadProcessor.resumeFile(fileId).getFileCompletionInBytes(), is(0l));
+			Assert.assertThat(Math.round(progressCalculator.getProgress(staticStateIdentifierManager.getIdentifier(), fileId).getProgress()),
+					is(Math.round((content.length - 1024f * 1024) / content.length * 100)));
+
+			// then the first one
+			processInParallelWaitForCompletionAndCheck(fileId, file, content.length, 0);
+			Assert.assertThat(fileStateJson.getCrcedBytes(), is((long) content.length));
+
+			// and check it has been entirely written
+			File uploadedFile = new File(staticStateManager.getEntity().getFileStates().get(fileId).getAbsoluteFullPathOfUploadedFile());
+			Assert.assertThat(uploadedFile.length(), is((long) content.length));
+			Assert.assertThat(crcHelper.getBufferedCrc(new FileInputStream(uploadedFile)),
+					is(crcHelper.getBufferedCrc(new ByteArrayInputStream(content))));
+		}
+		finally {
+			uploadProcessor.setSliceSizeInBytes(sliceSizeInBytes);
+		}
+	}
+
+
+	@Test
+	public void testBlockedSliceDoesNotBlockTheOthers()
+			throws IOException, InterruptedException {
+		long sliceSizeInBytes = uploadProcessor.getSliceSizeInBytes();
+		uploadProcessor.setSliceSizeInBytes(1024 * 1024);
+		final CountDownLatch reading = new CountDownLatch(1);
+		final Semaphore blocked = new Semaphore(0);
+		try {
+			byte[] content = new byte[2 * 1024 * 1024];
+			new Random().nextBytes(content);
+			MockMultipartFile file = new MockMultipartFile("blob", content);
+			UUID fileId = uploadProcessor.prepareUpload((long) content.length, fileName, "lala");
+			FileStateJsonBase fileStateJson = staticStateManager.getEntity().getFileStates().get(fileId).getStaticFileStateJson();
+
+			// the stream of the second slice blocks until it is released
+			TestFileSplitResult blockedSplitResult = UploadProcessorTest.getByteArrayFromFile(file, 1024 * 1024, content.length);
+			InputStream blockedStream = new FilterInputStream(blockedSplitResult.stream) {
+
+				@Override
+				public int read(byte[] b, int off, int len)
+						throws IOException {
+					reading.countDown();
+					blocked.acquireUninterruptibly();
+					blocked.release();
+					return super.read(b, off, len);
+				}
+			};
+			Listener blockedListener = new Listener(staticStateIdentifierManager.getIdentifier(), fileId, true);
+			uploadServletAsyncProcessor.process(staticStateManager.getEntity().getFileStates().get(fileId), fileId, blockedSplitResult.crc,
+					1024l * 1024, blockedStream, blockedListener);
+			Assert.assertTrue(reading.await(WAIT_THAT_TIME_FOR_LOCKS_IN_MILLISECONDS, TimeUnit.MILLISECONDS));
+
+			// the first slice is uploaded meanwhile
+			processAtOffsetWaitForCompletionAndCheck(fileId, UploadProcessorTest.getByteArrayFromFile(file, 0, 1024 * 1024), 0);
+			Assert.assertThat(fileStateJson.getCrcedBytes(), is(1024l * 1024));
+			Assert.assertThat(uploadServletAsyncProcessor.isFilePaused(fileId), is(false));
+
+			// then the second one
+			blocked.release();
+			waitForListener(blockedListener);
+			Assert.assertThat(blockedListener.e, nullValue());
+			Assert.assertThat(fileStateJson.getCrcedBytes(), is((long) content.length));
+		}
+		finally {
+			blocked.release();
+			uploadProcessor.setSliceSizeInBytes(sliceSizeInBytes);
+		}
+	}
+
+
+	@Test
+	public void testInvalidCrcKeepsIndexedSlices()
+			throws Exception {
+
+		// a file of 3 slices and a half
+		long sliceSizeInBytes = uploadProcessor.getSliceSizeInBytes();
+		uploadProcessor.setSliceSizeInBytes(1024 * 1024);
+		try {
+			byte[] content = new byte[3 * 1024 * 1024 + 512 * 1024];
+			new Random().nextBytes(content);
+			MockMultipartFile file = new MockMultipartFile("blob", content);
+			UUID fileId = uploadProcessor.prepareUpload((long) content.length, fileName, "lala");
+			FileStateJsonBase fileStateJson = staticStateManager.getEntity().getFileStates().get(fileId).getStaticFileStateJson();
+			File uploadedFile = new File(staticStateManager.getEntity().getFileStates().get(fileId).getAbsoluteFullPathOfUploadedFile());
+
+			// with the last slices and the beginning of the first one uploaded
+			processInParallelWaitForCompletionAndCheck(fileId, file, content.length, 2, 3);
+			processAtOffsetWaitForCompletionAndCheck(fileId, UploadProcessorTest.getByteArrayFromFile(file, 0, 512 * 1024), 0);
+			Assert.assertThat(fileStateJson.getCrcedBytes(), is(512l * 1024));
+			Assert.assertThat(Math.round(progressCalculator.getProgress(staticStateIdentifierManager.getIdentifier(), fileId).getProgress()),
+					is(Math.round(2 * 1024 * 1024f / content.length * 100)));
+
+			// a failed validation of the unvalidated part does not truncate the indexed slices
+			try {
+				uploadProcessor.verifyCrcOfUncheckedPart(fileId, "lala");
+				Assert.fail();
+			}
+			catch (InvalidCrcException e) {
+				Assert.assertThat(uploadedFile.length(), is((long) content.length));
+			}
+
+			// only the missing part is sent again
+			Assert.assertThat(uploadProcessor.resumeFile(fileId).getFileCompletionInBytes(), is(512l * 1024));
+			processAtOffsetWaitForCompletionAndCheck(fileId, UploadProcessorTest.getByteArrayFromFile(file, 512 * 1024, 2 * 1024 * 1024), 512 * 1024);
+
+			// and the file is complete
+			Assert.assertThat(fileStateJson.getCrcedBytes(), is((long) content.length));
+			Assert.assertThat(crcHelper.getBufferedCrc(new FileInputStream(uploadedFile)),
+					is(crcHelper.getBufferedCrc(new ByteArrayInputStream(content))));
+		}
+		finally {
+			uploadProcessor.setSliceSizeInBytes(sliceSizeInBytes);
+		}
+	}
+
+
+	@Test
+	public void testInvalidBufferSize() {
+		int bufferSizeInBytes = uploadServletAsyncProcessor.getBufferSizeInBytes();
+		for (int invalid : new int[] { 0, -1, BufferPool.MAXIMUM_BUFFER_SIZE + 1 }) {
+			try {
+				uploadServletAsyncProcessor.setBufferSizeInBytes(invalid);
+				Assert.fail();
+			}
+			catch (IllegalArgumentException e) {
+				Assert.assertThat(uploadServletAsyncProcessor.getBufferSizeInBytes(), is(bufferSizeInBytes));
+			}
+		}
+	}
+
+
+	@Test
+	public void testChunkWithoutOffsetAfterGap()
+			throws Exception {
+
+		// a file of 3 slices and a half
+		long sliceSizeInBytes = uploadProcessor.getSliceSizeInBytes();
+		uploadProcessor.setSliceSizeInBytes(1024 * 1024);
+		try {
+			byte[] content = new byte[3 * 1024 * 1024 + 512 * 1024];
+			new Random().nextBytes(content);
+			MockMultipartFile file = new MockMultipartFile("blob", content);
+			UUID fileId = uploadProcessor.prepareUpload((long) content.length, fileName, "lala");
+			FileStateJsonBase fileStateJson = staticStateManager.getEntity().getFileStates().get(fileId).getStaticFileStateJson();
+			File uploadedFile = new File(staticStateManager.getEntity().getFileStates().get(fileId).getAbsoluteFullPathOfUploadedFile());
+
+			// with the last slices and the beginning of the first one uploaded, leaving a gap
+			processInParallelWaitForCompletionAndCheck(fileId, file, content.length, 2, 3);
+			processAtOffsetWaitForCompletionAndCheck(fileId, UploadProcessorTest.getByteArrayFromFile(file, 0, 512 * 1024), 0);
+			Assert.assertThat(uploadedFile.length(), is((long) content.length));
+
+			// a chunk without offset fills the gap instead of being appended to the file
+			processWaitForCompletionAndCheck(fileId, UploadProcessorTest.getByteArrayFromFile(file, 512 * 1024, 2 * 1024 * 1024));
+			Assert.assertThat(fileStateJson.getCrcedBytes(), is((long) content.length));
+			Assert.assertThat(uploadedFile.length(), is((long) content.length));
+			Assert.assertThat(crcHelper.getBufferedCrc(new FileInputStream(uploadedFile)),
+					is(crcHelper.getBufferedCrc(new ByteArrayInputStream(content))));
+		}
+		finally {
+			uploadProcessor.setSliceSizeInBytes(sliceSizeInBytes);
+		}
+	}
+
+
+	@Test
+	public void testChunkPastItsEnd()
+			throws Exception {
+
+		// a file of 3 slices and a half
+		long sliceSizeInBytes = uploadProcessor.getSliceSizeInBytes();
+		uploadProcessor.setSliceSizeInBytes(1024 * 1024);
+		try {
+			byte[] content = new byte[3 * 1024 * 1024 + 512 * 1024];
+			new Random().nextBytes(content);
+			MockMultipartFile file = new MockMultipartFile("blob", content);
+			UUID fileId = uploadProcessor.prepareUpload((long) content.length, fileName, "lala");
+			FileStateJsonBase fileStateJson = staticStateManager.getEntity().getFileStates().get(fileId).getStaticFileStateJson();
+			File uploadedFile = new File(staticStateManager.getEntity().getFileStates().get(fileId).getAbsoluteFullPathOfUploadedFile());
+
+			// with the third slice uploaded
+			processInParallelWaitForCompletionAndCheck(fileId, file, content.length, 2);
+
+			// a chunk starting the second slice cannot go past it and overwrite the third one
+			byte[] otherContent = Arrays.copyOf(content, content.length);
+			Arrays.fill(otherContent, 2 * 1024 * 1024, 3 * 1024 * 1024, (byte) 0);
+			processAtOffsetWaitForCompletionAndCheck(fileId,
+					getSplitResult(ChecksumAlgorithm.crc32, otherContent, 1024 * 1024, 3 * 1024 * 1024), 1024 * 1024,
+					InvalidOffsetException.class);
+			byte[] thirdSlice = new byte[1024 * 1024];
+			FileInputStream uploadedFileStream = new FileInputStream(uploadedFile);
+			try {
+				IOUtils.skipFully(uploadedFileStream, 2 * 1024 * 1024);
+				IOUtils.readFully(uploadedFileStream, thirdSlice);
+			}
+			finally {
+				uploadedFileStream.close();
+			}
+			Assert.assertTrue(Arrays.equals(thirdSlice, Arrays.copyOfRange(content, 2 * 1024 * 1024, 3 * 1024 * 1024)));
+
+			// nor can a chunk go past the end of the file
+			byte[] longerContent = Arrays.copyOf(content, content.length + 10);
+			processAtOffsetWaitForCompletionAndCheck(fileId, getSplitResult(ChecksumAlgorithm.crc32, longerContent, 0, longerContent.length), 0,
+					InvalidOffsetException.class);
+			Assert.assertThat(uploadedFile.length(), is((long) content.length));
+
+			// while the file can still be completed
+			processAtOffsetWaitForCompletionAndCheck(fileId, getSplitResult(ChecksumAlgorithm.crc32, content, 0, content.length), 0);
+			Assert.assertThat(fileStateJson.getCrcedBytes(), is((long) content.length));
+			Assert.assertThat(crcHelper.getBufferedCrc(new FileInputStream(uploadedFile)),
+					is(crcHelper.getBufferedCrc(new ByteArrayInputStream(content))));
+		}
+		finally {
+			uploadProcessor.setSliceSizeInBytes(sliceSizeInBytes);
+		}
+	}
+
+
+	@Test
+	public void testChecksumAlgorithmAndFileDigest()
+			throws Exception {
+		byte[] content = new byte[3 * 1024 * 1024 + 123];
+		new Random().nextBytes(content);
+
+		checksumManager.setSha256(true);
+		try {
+			// a file validated with xxhash64
+			UUID fileId = uploadProcessor.prepareUpload((long) content.length, fileName, "lala", ChecksumAlgorithm.xxhash64);
+			FileStateJsonBase fileStateJson = staticStateManager.getEntity().getFileStates().get(fileId).getStaticFileStateJson();
+			Assert.assertThat(uploadProcessor.resumeFile(fileId).getChecksumAlgorithm(), is(ChecksumAlgorithm.xxhash64));
+
+			// uploaded in two chunks, the checksums not being case sensitive
+			TestFileSplitResult firstChunk = getSplitResult(ChecksumAlgorithm.xxhash64, content, 0, 1024 * 1024);
+			firstChunk.crc = firstChunk.crc.toUpperCase();
+			processWaitForCompletionAndCheck(fileId, firstChunk);
+			processWaitForCompletionAndCheck(fileId, getSplitResult(ChecksumAlgorithm.xxhash64, content, 1024 * 1024, content.length));
+			Assert.assertThat(fileStateJson.getCrcedBytes(), is((long) content.length));
+
+			// has its digest computed during the upload
+			Assert.assertThat(fileStateJson.getSha256(), is(ChecksumManager.toHexString(MessageDigest.getInstance("SHA-256").digest(content))));
+		}
+		finally {
+			checksumManager.setSha256(false);
+		}
+	}
+
+
+	@Test
+	public void testFileDigestOfParallelSlices()
+			throws Exception {
+		JLFUListenerAdapter listener = null;
+		long sliceSizeInBytes = uploadProcessor.getSliceSizeInBytes();
+		uploadProcessor.setSliceSizeInBytes(1024 * 1024);
+		checksumManager.setSha256(true);
+		try {
+			byte[] content = new byte[2 * 1024 * 1024 + 512 * 1024];
+			new Random().nextBytes(content);
+			MockMultipartFile file = new MockMultipartFile("blob", content);
+			final UUID fileId = uploadProcessor.prepareUpload((long) content.length, fileName, "lala");
+			final AtomicInteger uploadEnds = new AtomicInteger();
+			final Semaphore uploadEnd = new Semaphore(0);
+			listener = new JLFUListenerAdapter() {
+
+				@Override
+				public void onFileUploadEnd(UUID clientId, UUID endedFileId) {
+					if (endedFileId.equals(fileId)) {
+						uploadEnds.incrementAndGet();
+						uploadEnd.release();
+					}
+				}
+			};
+			jlfuListenerPropagator.registerListener(listener);
+
+			// the slices are not uploaded in order
+			processInParallelWaitForCompletionAndCheck(fileId, file, content.length, 2, 0, 1);
+
+			// the file is read to compute the digest, out of the requests, before the end is notified
+			Assert.assertTrue(uploadEnd.tryAcquire(WAIT_THAT_TIME_FOR_LOCKS_IN_MILLISECONDS, TimeUnit.MILLISECONDS));
+			FileStateJsonBase fileStateJson = staticStateManager.getEntity().getFileStates().get(fileId).getStaticFileStateJson();
+			Assert.assertThat(fileStateJson.getCrcedBytes(), is((long) content.length));
+			Assert.assertThat(fileStateJson.getSha256(), is(ChecksumManager.toHexString(MessageDigest.getInstance("SHA-256").digest(content))));
+
+			// a slice uploaded again does not end the file again
+			processInParallelWaitForCompletionAndCheck(fileId, file, content.length, 1);
+			Assert.assertFalse(uploadEnd.tryAcquire(WAIT_THAT_TIME_FOR_LOCKS_IN_MILLISECONDS / 4, TimeUnit.MILLISECONDS));
+			Assert.assertThat(uploadEnds.get(), is(1));
+		}
+		finally {
+			jlfuListenerPropagator.unregisterListener(listener);
+			checksumManager.setSha256(false);
+			uploadProcessor.setSliceSizeInBytes(sliceSizeInBytes);
+		}
+	}
+
+
+	private TestFileSplitResult getSplitResult(ChecksumAlgorithm checksumAlgorithm, byte[] content, int start, int end) {
+		TestFileSplitResult splitResult = new TestFileSplitResult();
+		splitResult.stream = new ByteArrayInputStream(content, start, end - start);
+		Checksum checksum = checksumAlgorithm.newChecksum();
+		checksum.update(content, start, end - start);
+		splitResult.crc = ChecksumAlgorithm.toString(checksum);
+		return splitResult;
+	}
+
+
+	private void processAtOffsetWaitForCompletionAndCheck(UUID fileId, TestFileSplitResult splitResult, long offset)
+			throws FileNotFoundException, InterruptedException {
+		processAtOffsetWaitForCompletionAndCheck(fileId, splitResult, offset, null);
+	}
+
+
+	private void processAtOffsetWaitForCompletionAndCheck(UUID fileId, TestFileSplitResult splitResult, long offset,
+			Class<? extends Exception> expectedException)
+			throws FileNotFoundException, InterruptedException {
+		Listener completionListener = new Listener(staticStateIdentifierManager.getIdentifier(), fileId, expectedException == null);
+		uploadServletAsyncProcessor.process(staticStateManager.getEntity().getFileStates().get(fileId), fileId, splitResult.crc, offset,
+				splitResult.stream, completionListener);
+		waitForListener(completionListener);
+		if (expectedException == null) {
+			Assert.assertThat(completionListener.e, nullValue());
+		}
+		else {
+			Assert.assertTrue(expectedException.isInstance(completionListener.e));
+		}
+	}
+
+
+	private void processInParallelWaitForCompletionAndCheck(UUID fileId, MockMultipartFile file, int fileSize, int... slices)
+			throws IOException, InterruptedException {
+		long sliceSizeInBytes = staticStateManager.getEntity().getFileStates().get(fileId).getStaticFileStateJson().getSliceSizeInBytes();
+
+		// start all the slices
+		Listener[] completionListeners = new Listener[slices.length];
+		for (int i = 0; i < slices.length; i++) {
+			long offset = slices[i] * sliceSizeInBytes;
+			TestFileSplitResult splitResult = UploadProcessorTest.getByteArrayFromFile(file, offset, Math.min(offset + sliceSizeInBytes, fileSize));
+			completionListeners[i] = new Listener(staticStateIdentifierManager.getIdentifier(), fileId, true);
+			uploadServletAsyncProcessor.process(staticStateManager.getEntity().getFileStates().get(fileId), fileId, splitResult.crc, offset,
+					splitResult.stream, completionListeners[i]);
+		}
+
+		// then wait for them
+		for (Listener completionListener : completionListeners) {
+			waitForListener(completionListener);
+			Assert.assertThat(completionListener.e, nullValue());
+		}
+	}
+
+
 
 	private class RunnableInTheProcessWithStreamDisconnection extends RunnableInTheProcess {
 
@@ -571,7 +1109,7 @@ public class UploadServletAsyncProcessorTest {
 
 
 
-	private class ByteArrayInputStreamThatFails extends ByteArrayInputStream {
+	private class ByteArrayInputStreamThatFails extends FilterInputStream {
 
 		// fail in the middle of a slice
 		long failAt;
@@ -580,18 +1118,18 @@ public class UploadServletAsyncProcessorTest {
 
 
 		public ByteArrayInputStreamThatFails(long sliceSizeInBytes, byte[] buf) {
-			super(buf);
+			super(new ByteArrayInputStream(buf));
 			failAt = sliceSizeInBytes / UploadServletAsyncProcessor.SIZE_OF_THE_BUFFER_IN_BYTES / 2;
 		}
 
 
 		@Override
-		public int read(byte[] b)
+		public int read(byte[] b, int off, int len)
 				throws IOException {
 			if (i++ == failAt) {
 				throw new IOException("Stream ended unexpectedly");
 			}
-			return super.read(b);
+			return super.read(b, off, len);
 		}
 	}
 	
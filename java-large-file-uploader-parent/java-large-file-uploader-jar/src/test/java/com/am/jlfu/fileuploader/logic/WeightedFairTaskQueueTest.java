@@ -0,0 +1,122 @@
+package com.am.jlfu.fileuploader.logic;
+
+
+import static org.hamcrest.CoreMatchers.is;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.google.common.collect.Maps;
+
+
+
+@ContextConfiguration(locations = { "classpath:jlfu.test.xml" })
+@RunWith(SpringJUnit4ClassRunner.class)
+public class WeightedFairTaskQueueTest {
+
+	@Test
+	public void testDispatchInProportionToTheWeights() {
+		WeightedFairTaskQueue queue = newQueue();
+		for (int i = 0; i < 80; i++) {
+			for (UploadPriority priority : UploadPriority.values()) {
+				queue.offer(new Task(priority));
+			}
+		}
+
+		// 2 rounds of 8 interactive, 4 standard and 1 bulk
+		Map<UploadPriority, Integer> dispatched = poll(queue, 26);
+		Assert.assertThat(dispatched.get(UploadPriority.interactive), is(16));
+		Assert.assertThat(dispatched.get(UploadPriority.standard), is(8));
+		Assert.assertThat(dispatched.get(UploadPriority.bulk), is(2));
+		Assert.assertThat(queue.size(), is(240 - 26));
+		Assert.assertThat(queue.size(UploadPriority.bulk), is(78));
+	}
+
+
+	@Test
+	public void testIdleClassHasNoCredit() {
+		WeightedFairTaskQueue queue = newQueue();
+		for (int i = 0; i < 20; i++) {
+			queue.offer(new Task(UploadPriority.interactive));
+		}
+		poll(queue, 10);
+
+		// the bulk class arriving late gets its share, not what it could have had meanwhile
+		for (int i = 0; i < 10; i++) {
+			queue.offer(new Task(UploadPriority.bulk));
+		}
+		Map<UploadPriority, Integer> dispatched = poll(queue, 9);
+		Assert.assertThat(dispatched.get(UploadPriority.bulk), is(1));
+		Assert.assertThat(dispatched.get(UploadPriority.interactive), is(8));
+	}
+
+
+	@Test
+	public void testTasksWithoutPriority()
+			throws InterruptedException {
+		WeightedFairTaskQueue queue = newQueue();
+		Runnable task = new Runnable() {
+
+			@Override
+			public void run() {
+			}
+		};
+		queue.offer(task);
+		Assert.assertThat(queue.size(UploadPriority.standard), is(1));
+		Assert.assertThat(queue.poll(1, TimeUnit.MILLISECONDS), is(task));
+		Assert.assertNull(queue.poll(1, TimeUnit.MILLISECONDS));
+	}
+
+
+	private WeightedFairTaskQueue newQueue() {
+		WeightedFairTaskQueue queue = new WeightedFairTaskQueue();
+		queue.setWeight(UploadPriority.interactive, 8);
+		queue.setWeight(UploadPriority.standard, 4);
+		queue.setWeight(UploadPriority.bulk, 1);
+		return queue;
+	}
+
+
+	private Map<UploadPriority, Integer> poll(WeightedFairTaskQueue queue, int count) {
+		Map<UploadPriority, Integer> dispatched = Maps.newEnumMap(UploadPriority.class);
+		for (UploadPriority priority : UploadPriority.values()) {
+			dispatched.put(priority, 0);
+		}
+		for (int i = 0; i < count; i++) {
+			UploadPriority priority = ((Task) queue.poll()).getPriority();
+			dispatched.put(priority, dispatched.get(priority) + 1);
+		}
+		return dispatched;
+	}
+
+
+
+	private static class Task
+			implements WeightedFairTaskQueue.PrioritizedTask {
+
+		private final UploadPriority priority;
+
+
+
+		Task(UploadPriority priority) {
+			this.priority = priority;
+		}
+
+
+		@Override
+		public UploadPriority getPriority() {
+			return priority;
+		}
+
+
+		@Override
+		public void run() {
+		}
+	}
+}
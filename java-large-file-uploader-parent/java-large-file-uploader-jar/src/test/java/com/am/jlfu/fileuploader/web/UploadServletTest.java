@@ -23,11 +23,15 @@ import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import com.am.jlfu.fileuploader.exception.TooManyConcurrentRequestsException;
 import com.am.jlfu.fileuploader.json.FileStateJson;
 import com.am.jlfu.fileuploader.json.InitializationConfiguration;
 import com.am.jlfu.fileuploader.json.PrepareUploadJson;
 import com.am.jlfu.fileuploader.json.ProgressJson;
 import com.am.jlfu.fileuploader.json.SimpleJsonObject;
+import com.am.jlfu.fileuploader.limiter.StorageAdmissionController;
+import com.am.jlfu.fileuploader.limiter.UploadProcessingOperationManager;
+import com.am.jlfu.fileuploader.logic.UploadPriority;
 import com.am.jlfu.fileuploader.web.utils.ExceptionCodeMappingHelper.ExceptionCodeMapping;
 import com.am.jlfu.fileuploader.web.utils.RequestComponentContainer;
 import com.google.gson.Gson;
@@ -48,6 +52,12 @@ public class UploadServletTest {
 	@Autowired
 	RequestComponentContainer requestComponentContainer;
 
+	@Autowired
+	StorageAdmissionController storageAdmissionController;
+
+	@Autowired
+	UploadProcessingOperationManager uploadProcessingOperationManager;
+
 	MockHttpServletRequest request;
 	MockHttpServletResponse response;
 
@@ -189,6 +199,62 @@ public class UploadServletTest {
 	}
 
 
+	@Test
+	public void prepareUploadWhenStorageIsFull()
+			throws IOException {
+
+		// pretend the storage is full
+		storageAdmissionController.sample();
+		long minimumFreeSpaceInMegaBytes = storageAdmissionController.getMinimumFreeSpaceInMegaBytes();
+		storageAdmissionController.setMinimumFreeSpaceInMegaBytes(storageAdmissionController.getUsableSpaceInMegaBytes() + 1);
+		try {
+			request.setParameter(UploadServletParameter.action.name(), UploadServletAction.prepareUpload.name());
+			request.setParameter(UploadServletParameter.newFiles.name(), new Gson().toJson(new PrepareUploadJson[] { new PrepareUploadJson() }));
+			uploadServlet.handleRequest(request, response);
+
+			// the request is rejected, to be retried later
+			SimpleJsonObject fromJson = new Gson().fromJson(response.getContentAsString(), SimpleJsonObject.class);
+			Assert.assertThat(Integer.valueOf(fromJson.getValue()), is(ExceptionCodeMapping.StorageBackpressureException.getExceptionIdentifier()));
+			Assert.assertNotNull(response.getHeader("Retry-After"));
+		}
+		finally {
+			storageAdmissionController.setMinimumFreeSpaceInMegaBytes(minimumFreeSpaceInMegaBytes);
+		}
+	}
+
+
+	@Test
+	public void uploadWhenTooManyChunksOfTheFileAreInFlight()
+			throws IOException, ServletException, TooManyConcurrentRequestsException {
+		UUID fileId = UUID.fromString(prepareUpload());
+
+		// other requests are uploading as many chunks of the file as allowed
+		int maximum = uploadProcessingOperationManager.getMaximumConcurrentRequestsPerFile();
+		UUID otherClientId = UUID.randomUUID();
+		for (int i = 0; i < maximum; i++) {
+			uploadProcessingOperationManager.admitRequest(otherClientId, fileId);
+		}
+		try {
+			MockHttpServletRequest uploadRequest = new MockHttpServletRequest();
+			MockHttpServletResponse uploadResponse = new MockHttpServletResponse();
+			uploadRequest.setParameter(UploadServletParameter.action.name(), UploadServletAction.uploadRaw.name());
+			uploadRequest.setParameter(UploadServletParameter.fileId.name(), fileId.toString());
+			uploadRequest.setContent(content);
+			uploadServletAsync.handleRequest(uploadRequest, uploadResponse);
+
+			// the request is rejected before going asynchronous, and is not counted
+			SimpleJsonObject fromJson = new Gson().fromJson(uploadResponse.getContentAsString(), SimpleJsonObject.class);
+			Assert.assertThat(Integer.valueOf(fromJson.getValue()), is(ExceptionCodeMapping.TooManyConcurrentRequestsException.getExceptionIdentifier()));
+			Assert.assertThat(uploadProcessingOperationManager.getRequestsInFlight(fileId), is(maximum));
+		}
+		finally {
+			for (int i = 0; i < maximum; i++) {
+				uploadProcessingOperationManager.releaseRequest(otherClientId, fileId);
+			}
+		}
+	}
+
+
 	@Test
 	public void prepareUploadMulti()
 			throws IOException {
@@ -238,6 +304,23 @@ public class UploadServletTest {
 		Assert.assertThat(fileIdsFromString.size(), CoreMatchers.is(1));
 		Assert.assertTrue(fileIdsFromString.contains(uuid1));
 	}
+
+
+	@Test
+	public void testUploadPriority() {
+		PrepareUploadJson prepareUploadJson = new PrepareUploadJson();
+
+		// standard by default
+		Assert.assertThat(uploadServlet.getUploadPriority(request, prepareUploadJson), is(UploadPriority.standard));
+
+		// a client can lower its priority
+		prepareUploadJson.setPriority(UploadPriority.bulk.name());
+		Assert.assertThat(uploadServlet.getUploadPriority(request, prepareUploadJson), is(UploadPriority.bulk));
+
+		// but not raise it without a priority authorizer
+		prepareUploadJson.setPriority(UploadPriority.interactive.name());
+		Assert.assertThat(uploadServlet.getUploadPriority(request, prepareUploadJson), is(UploadPriority.standard));
+	}
 	
 	
 }
@@ -0,0 +1,90 @@
+package com.am.jlfu.fileuploader.web.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import java.util.Random;
+import java.util.UUID;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.am.jlfu.fileuploader.exception.MissingParameterException;
+import com.am.jlfu.fileuploader.web.UploadServletAction;
+import com.am.jlfu.fileuploader.web.UploadServletHeader;
+import com.am.jlfu.fileuploader.web.UploadServletParameter;
+
+@ContextConfiguration(locations = { "classpath:jlfu.test.xml" })
+@RunWith(SpringJUnit4ClassRunner.class)
+public class FileUploaderHelperTest {
+
+	@Autowired
+	FileUploaderHelper fileUploaderHelper;
+
+	UUID fileId = UUID.randomUUID();
+
+
+
+	@Test
+	public void testRawUpload()
+			throws Exception {
+		byte[] content = new byte[10000];
+		new Random().nextBytes(content);
+
+		// a raw request described by headers
+		MockHttpServletRequest request = getRawRequest(content);
+		request.addHeader(UploadServletHeader.fileId.getHeaderName(), fileId.toString());
+		request.addHeader(UploadServletHeader.offset.getHeaderName(), "123");
+		request.addHeader(UploadServletHeader.crc.getHeaderName(), "abc");
+		Assert.assertThat(fileUploaderHelper.getUploadAction(request), is(UploadServletAction.uploadRaw));
+
+		// is extracted
+		FileUploadConfiguration configuration = fileUploaderHelper.extractFileUploadConfiguration(request);
+		Assert.assertThat(configuration.getFileId(), is(fileId));
+		Assert.assertThat(configuration.getOffset(), is(123L));
+		Assert.assertThat(configuration.getCrc(), is("abc"));
+		Assert.assertThat(IOUtils.toByteArray(configuration.getInputStream()), is(content));
+
+		// and the end of the body is reported as readable
+		Assert.assertThat(configuration.getInputStream().available(), is(1));
+	}
+
+
+	@Test
+	public void testRawUploadWithParameters()
+			throws Exception {
+
+		// a raw request described by parameters, identified by its content type
+		MockHttpServletRequest request = getRawRequest(new byte[10]);
+		request.addParameter(UploadServletParameter.fileId.name(), fileId.toString());
+		Assert.assertThat(fileUploaderHelper.getUploadAction(request), is(UploadServletAction.uploadRaw));
+
+		FileUploadConfiguration configuration = fileUploaderHelper.extractFileUploadConfiguration(request);
+		Assert.assertThat(configuration.getFileId(), is(fileId));
+		Assert.assertThat(configuration.getOffset(), nullValue());
+		Assert.assertThat(configuration.getCrc(), nullValue());
+	}
+
+
+	@Test(expected = MissingParameterException.class)
+	public void testRawUploadWithoutFileId()
+			throws Exception {
+		MockHttpServletRequest request = getRawRequest(new byte[10]);
+		request.addParameter(UploadServletParameter.action.name(), UploadServletAction.uploadRaw.name());
+		fileUploaderHelper.extractFileUploadConfiguration(request);
+	}
+
+
+	private MockHttpServletRequest getRawRequest(byte[] content) {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/");
+		request.setContentType(FileUploaderHelper.RAW_CONTENT_TYPE);
+		request.setContent(content);
+		return request;
+	}
+}
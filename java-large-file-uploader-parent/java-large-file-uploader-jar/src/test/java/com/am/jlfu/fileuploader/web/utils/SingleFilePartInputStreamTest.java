@@ -0,0 +1,246 @@
+package com.am.jlfu.fileuploader.web.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.am.jlfu.fileuploader.web.UploadServletParameter;
+import com.google.common.base.Charsets;
+
+@ContextConfiguration(locations = { "classpath:jlfu.test.xml" })
+@RunWith(SpringJUnit4ClassRunner.class)
+public class SingleFilePartInputStreamTest {
+
+	@Autowired
+	FileUploaderHelper fileUploaderHelper;
+
+	String boundary = "----WebKitFormBoundaryx2BC0ltfp7Tr8hDv";
+
+
+
+	@Test
+	public void testGetBoundary() {
+		Assert.assertThat(SingleFilePartInputStream.getBoundary("multipart/form-data; boundary=" + boundary), is(boundary));
+		Assert.assertThat(SingleFilePartInputStream.getBoundary("Multipart/Form-Data; charset=UTF-8; boundary=\"" + boundary + "\""), is(boundary));
+		Assert.assertThat(SingleFilePartInputStream.getBoundary("multipart/form-data"), nullValue());
+		Assert.assertThat(SingleFilePartInputStream.getBoundary("application/octet-stream"), nullValue());
+	}
+
+
+	@Test
+	public void testReadWithSmallReads()
+			throws IOException {
+
+		// content containing pieces of the delimiter
+		byte[] content = getContent(100000);
+
+		// that the request gives 7 bytes at a time
+		SingleFilePartInputStream stream = new SingleFilePartInputStream(new SlowInputStream(getBody("file", content)), boundary, -1);
+		Assert.assertTrue(stream.openPart());
+		Assert.assertThat(IOUtils.toByteArray(stream), is(content));
+		Assert.assertTrue(stream.isFinished());
+		Assert.assertThat(stream.read(), is(-1));
+	}
+
+
+	@Test
+	public void testBigReads()
+			throws IOException {
+		byte[] content = getContent(300000);
+		SingleFilePartInputStream stream = new SingleFilePartInputStream(new ByteArrayInputStream(getBody("file", content)), boundary, -1);
+		Assert.assertTrue(stream.openPart());
+
+		// the reads are not limited by the size of the buffer
+		byte[] buffer = new byte[256 * 1024];
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		int count;
+		int biggestRead = 0;
+		while ((count = stream.read(buffer, 0, buffer.length)) != -1) {
+			read.write(buffer, 0, count);
+			biggestRead = Math.max(biggestRead, count);
+		}
+		Assert.assertThat(read.toByteArray(), is(content));
+		Assert.assertTrue(biggestRead > 128 * 1024);
+		Assert.assertTrue(stream.isFinished());
+	}
+
+
+	@Test
+	public void testBigReadsWithSmallReads()
+			throws IOException {
+
+		// the delimiter is received in several reads
+		for (int size : new int[] { 0, 1, 20000, 20001, 20037 }) {
+			byte[] content = getContent(size);
+			SingleFilePartInputStream stream = new SingleFilePartInputStream(new SlowInputStream(getBody("file", content)), boundary, -1);
+			Assert.assertTrue(stream.openPart());
+			byte[] buffer = new byte[64 * 1024];
+			ByteArrayOutputStream read = new ByteArrayOutputStream();
+			int count;
+			while ((count = stream.read(buffer, 0, buffer.length)) != -1) {
+				read.write(buffer, 0, count);
+			}
+			Assert.assertThat(read.toByteArray(), is(content));
+		}
+	}
+
+
+	@Test(expected = IOException.class)
+	public void testTruncatedRequestWithBigReads()
+			throws IOException {
+		byte[] body = getBody("file", getContent(100000));
+		SingleFilePartInputStream stream =
+				new SingleFilePartInputStream(new ByteArrayInputStream(Arrays.copyOf(body, body.length - 100)), boundary, -1);
+		Assert.assertTrue(stream.openPart());
+		byte[] buffer = new byte[64 * 1024];
+		while (stream.read(buffer, 0, buffer.length) != -1) {
+		}
+	}
+
+
+	@Test
+	public void testReadAsChannel()
+			throws IOException {
+		byte[] content = getContent(50000);
+		SingleFilePartInputStream stream = new SingleFilePartInputStream(new ByteArrayInputStream(getBody("file", content)), boundary, -1);
+		Assert.assertTrue(stream.openPart());
+
+		// read through a direct buffer
+		ByteBuffer byteBuffer = ByteBuffer.allocateDirect(4096);
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		while (stream.read(byteBuffer) != -1) {
+			byteBuffer.flip();
+			byte[] bytes = new byte[byteBuffer.remaining()];
+			byteBuffer.get(bytes);
+			read.write(bytes);
+			byteBuffer.clear();
+		}
+		Assert.assertThat(read.toByteArray(), is(content));
+	}
+
+
+	@Test
+	public void testAvailable()
+			throws IOException {
+		byte[] content = getContent(1000);
+		byte[] body = getBody("file", content);
+		SingleFilePartInputStream stream = new SingleFilePartInputStream(new ByteArrayInputStream(body), boundary, body.length);
+		Assert.assertTrue(stream.openPart());
+
+		// everything has been buffered
+		Assert.assertThat(stream.available(), is(content.length));
+		IOUtils.toByteArray(stream);
+
+		// and the end is known
+		Assert.assertThat(stream.available(), is(1));
+	}
+
+
+	@Test(expected = IOException.class)
+	public void testTruncatedRequest()
+			throws IOException {
+		byte[] body = getBody("file", getContent(10000));
+		SingleFilePartInputStream stream =
+				new SingleFilePartInputStream(new ByteArrayInputStream(Arrays.copyOf(body, body.length - 100)), boundary, -1);
+		Assert.assertTrue(stream.openPart());
+		IOUtils.toByteArray(stream);
+	}
+
+
+	@Test
+	public void testUnexpectedPart()
+			throws IOException {
+		byte[] body = getBody("somethingElse", getContent(10000));
+		SingleFilePartInputStream stream = new SingleFilePartInputStream(new SlowInputStream(body), boundary, -1);
+		Assert.assertFalse(stream.openPart());
+
+		// the whole request can be read again
+		Assert.assertThat(IOUtils.toByteArray(stream.getRequestInputStream()), is(body));
+	}
+
+
+	@Test
+	public void testFileUploaderHelper()
+			throws Exception {
+		byte[] content = getContent(20000);
+
+		// with the expected part
+		InputStream inputStream = fileUploaderHelper.extractFileUploadConfiguration(getRequest("file", content)).getInputStream();
+		Assert.assertTrue(inputStream instanceof SingleFilePartInputStream);
+		Assert.assertThat(IOUtils.toByteArray(inputStream), is(content));
+
+		// and with another one, processed by commons-fileupload
+		inputStream = fileUploaderHelper.extractFileUploadConfiguration(getRequest("somethingElse", content)).getInputStream();
+		Assert.assertTrue(inputStream instanceof MultipartItemInputStream);
+		Assert.assertThat(IOUtils.toByteArray(inputStream), is(content));
+	}
+
+
+	private MockHttpServletRequest getRequest(String partName, byte[] content) {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/");
+		request.setContentType("multipart/form-data; boundary=" + boundary);
+		request.setContent(getBody(partName, content));
+		request.addParameter(UploadServletParameter.fileId.name(), UUID.randomUUID().toString());
+		return request;
+	}
+
+
+	private byte[] getContent(int size) {
+		byte[] content = new byte[size];
+		new Random().nextBytes(content);
+
+		// put pieces of the delimiter in it
+		byte[] piece = ("\r\n--" + boundary.substring(0, 10)).getBytes(Charsets.ISO_8859_1);
+		for (int i = 0; i + piece.length < size; i += 997) {
+			System.arraycopy(piece, 0, content, i, piece.length);
+		}
+		return content;
+	}
+
+
+	private byte[] getBody(String partName, byte[] content) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] start = ("--" + boundary + "\r\n" +
+				"Content-Disposition: form-data; name=\"" + partName + "\"; filename=\"blob\"\r\n" +
+				"Content-Type: application/octet-stream\r\n\r\n").getBytes(Charsets.ISO_8859_1);
+		byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(Charsets.ISO_8859_1);
+		body.write(start, 0, start.length);
+		body.write(content, 0, content.length);
+		body.write(end, 0, end.length);
+		return body.toByteArray();
+	}
+
+
+
+	private class SlowInputStream extends FilterInputStream {
+
+		public SlowInputStream(byte[] bytes) {
+			super(new ByteArrayInputStream(bytes));
+		}
+
+
+		@Override
+		public int read(byte[] b, int off, int len)
+				throws IOException {
+			return super.read(b, off, Math.min(len, 7));
+		}
+	}
+}
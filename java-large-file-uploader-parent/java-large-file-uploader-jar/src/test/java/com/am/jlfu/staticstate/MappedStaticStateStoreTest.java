@@ -0,0 +1,318 @@
+package com.am.jlfu.staticstate;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.UUID;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.am.jlfu.fileuploader.json.FileStateJsonBase;
+import com.am.jlfu.fileuploader.web.utils.RequestComponentContainer;
+import com.am.jlfu.staticstate.entities.StaticFileState;
+import com.am.jlfu.staticstate.entities.StaticStatePersistedOnFileSystemEntity;
+import com.am.jlfu.staticstate.serialization.StaticStateSerializer;
+import com.google.common.collect.Lists;
+
+
+
+@ContextConfiguration(locations = { "classpath:jlfu.test.xml" })
+@RunWith(SpringJUnit4ClassRunner.class)
+public class MappedStaticStateStoreTest {
+
+	@Autowired
+	StaticStateSerializer staticStateSerializer;
+
+	@Autowired
+	StaticStateManager<StaticStatePersistedOnFileSystemEntity> staticStateManager;
+
+	@Autowired
+	JavaLargeFileUploaderService<StaticStatePersistedOnFileSystemEntity> javaLargeFileUploaderService;
+
+	@Autowired
+	StaticStateIdentifierManager staticStateIdentifierManager;
+
+	@Autowired
+	StaticStateDirectoryManager staticStateDirectoryManager;
+
+	@Autowired
+	RequestComponentContainer requestComponentContainer;
+
+	private File file;
+
+	private MappedStaticStateStore store;
+
+
+
+	@Before
+	public void init()
+			throws IOException {
+		file = File.createTempFile("jlfu", "store");
+		file.delete();
+		store = open();
+	}
+
+
+	@After
+	public void tearDown() {
+		store.close();
+		file.delete();
+	}
+
+
+	private MappedStaticStateStore open()
+			throws IOException {
+		MappedStaticStateStore mappedStaticStateStore = new MappedStaticStateStore(file);
+		mappedStaticStateStore.staticStateSerializer = staticStateSerializer;
+		mappedStaticStateStore.setSync(false);
+		return mappedStaticStateStore;
+	}
+
+
+	private StaticStatePersistedOnFileSystemEntity entity(String path) {
+		StaticStatePersistedOnFileSystemEntity entity = new StaticStatePersistedOnFileSystemEntity();
+		StaticFileState fileState = new StaticFileState();
+		fileState.setAbsoluteFullPathOfUploadedFile(path);
+		entity.getFileStates().put(UUID.randomUUID(), fileState);
+		return entity;
+	}
+
+
+	private String path(Object entity) {
+		return ((StaticStatePersistedOnFileSystemEntity) entity).getFileStates().values().iterator().next().getAbsoluteFullPathOfUploadedFile();
+	}
+
+
+	@Test
+	public void testWriteReadDelete()
+			throws IOException {
+		UUID clientId = UUID.randomUUID();
+		Assert.assertFalse(store.contains(clientId));
+
+		store.write(clientId, entity("first"));
+		Assert.assertTrue(store.contains(clientId));
+		Assert.assertEquals("first", path(store.read(clientId)));
+
+		store.write(clientId, entity("second"));
+		Assert.assertEquals("second", path(store.read(clientId)));
+		Assert.assertEquals(1, store.size());
+
+		store.delete(clientId);
+		Assert.assertFalse(store.contains(clientId));
+		Assert.assertEquals(0, store.size());
+
+		// a deleted slot can be reused
+		store.write(clientId, entity("third"));
+		Assert.assertEquals("third", path(store.read(clientId)));
+	}
+
+
+	@Test
+	public void testReopen()
+			throws IOException {
+		UUID clientId = UUID.randomUUID();
+		UUID deletedClientId = UUID.randomUUID();
+		store.write(clientId, entity("kept"));
+		store.write(deletedClientId, entity("deleted"));
+		store.delete(deletedClientId);
+		store.close();
+
+		store = open();
+		Assert.assertEquals("kept", path(store.read(clientId)));
+		Assert.assertFalse(store.contains(deletedClientId));
+		Assert.assertEquals(1, store.size());
+	}
+
+
+	@Test
+	public void testGrowth()
+			throws IOException {
+
+		// more clients than the index and the first mapping can hold
+		List<UUID> clientIds = Lists.newArrayList();
+		for (int i = 0; i < MappedStaticStateStore.INITIAL_CAPACITY * 2; i++) {
+			UUID clientId = UUID.randomUUID();
+			clientIds.add(clientId);
+			store.write(clientId, entity("client" + i));
+		}
+
+		// and many rewrites
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < clientIds.size(); i += 2) {
+				store.write(clientIds.get(i), entity("client" + i + "-" + round));
+			}
+		}
+		Assert.assertTrue(store.getCapacity() > MappedStaticStateStore.INITIAL_CAPACITY);
+		Assert.assertEquals(clientIds.size(), store.size());
+
+		// everything is still there, also after reopening
+		for (int pass = 0; pass < 2; pass++) {
+			for (int i = 0; i < clientIds.size(); i++) {
+				Assert.assertEquals(i % 2 == 0 ? "client" + i + "-2" : "client" + i, path(store.read(clientIds.get(i))));
+			}
+			store.close();
+			store = open();
+		}
+	}
+
+
+	private String readJournal(UUID clientId)
+			throws IOException {
+		InputStream journal = store.readJournal(clientId);
+		return journal != null ? IOUtils.toString(journal) : null;
+	}
+
+
+	@Test
+	public void testJournal()
+			throws IOException {
+		UUID clientId = UUID.randomUUID();
+		store.write(clientId, entity("snapshot"));
+		Assert.assertNull(readJournal(clientId));
+
+		// the parts are read in order
+		store.appendJournal(clientId, "first".getBytes());
+		store.appendJournal(clientId, "second".getBytes());
+		Assert.assertEquals("firstsecond", readJournal(clientId));
+
+		// and kept along with the snapshot
+		store.write(clientId, entity("rewritten"));
+		store.close();
+		store = open();
+		Assert.assertEquals("firstsecond", readJournal(clientId));
+
+		// until truncated
+		store.truncateJournal(clientId);
+		Assert.assertNull(readJournal(clientId));
+		store.appendJournal(clientId, "third".getBytes());
+		Assert.assertEquals("third", readJournal(clientId));
+
+		// or deleted
+		store.delete(clientId);
+		Assert.assertNull(readJournal(clientId));
+	}
+
+
+	@Test(expected = IOException.class)
+	public void testJournalOfUnknownClient()
+			throws IOException {
+		store.appendJournal(UUID.randomUUID(), "record".getBytes());
+	}
+
+
+	@Test
+	public void testJournalIsRebuilt()
+			throws IOException {
+		UUID clientId = UUID.randomUUID();
+		store.write(clientId, entity("snapshot"));
+		store.appendJournal(clientId, "first".getBytes());
+		store.appendJournal(clientId, "second".getBytes());
+
+		// rebuild the file several times
+		for (int i = 0; i < MappedStaticStateStore.INITIAL_CAPACITY * 2; i++) {
+			store.write(UUID.randomUUID(), entity("client" + i));
+		}
+		Assert.assertTrue(store.getCapacity() > MappedStaticStateStore.INITIAL_CAPACITY);
+
+		// the journal is still linked in order
+		Assert.assertEquals("firstsecond", readJournal(clientId));
+		store.appendJournal(clientId, "third".getBytes());
+		Assert.assertEquals("firstsecondthird", readJournal(clientId));
+	}
+
+
+	@Test
+	public void testMappingsAreReleased()
+			throws IOException {
+		File maps = new File("/proc/self/maps");
+		Assume.assumeTrue(maps.exists());
+
+		// grow the index and the data several times
+		for (int i = 0; i < MappedStaticStateStore.INITIAL_CAPACITY * 2; i++) {
+			store.write(UUID.randomUUID(), entity("client" + i));
+		}
+		Assert.assertTrue(store.getCapacity() > MappedStaticStateStore.INITIAL_CAPACITY);
+
+		// only the current mapping is left, and none once closed
+		Assert.assertEquals(1, countMappings(maps));
+		store.close();
+		Assert.assertEquals(0, countMappings(maps));
+		Assert.assertFalse(new File(file.getParentFile(), file.getName() + ".tmp").exists());
+	}
+
+
+	private int countMappings(File maps)
+			throws IOException {
+		int count = 0;
+		for (String line : FileUtils.readLines(maps)) {
+			if (line.endsWith(file.getAbsolutePath()) || line.endsWith(file.getAbsolutePath() + ".tmp")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+
+	@Test
+	public void testStaticStateManager()
+			throws IOException {
+		requestComponentContainer.populate(new MockHttpServletRequest(), new MockHttpServletResponse());
+		staticStateManager.init(StaticStatePersistedOnFileSystemEntity.class);
+		javaLargeFileUploaderService.staticStateStore = store;
+		try {
+			// the state of a new client is written in the store
+			UUID clientId = staticStateIdentifierManager.getIdentifier();
+			StaticStatePersistedOnFileSystemEntity entity = staticStateManager.getEntity();
+			Assert.assertTrue(store.contains(clientId));
+			Assert.assertFalse(new File(staticStateDirectoryManager.getUUIDFileParent(clientId), StaticStateManager.FILENAME).exists());
+
+			// and restored from it
+			entity.getFileStates().putAll(entity("restored").getFileStates());
+			staticStateManager.updateEntity(entity);
+			staticStateManager.cache.invalidate(clientId);
+			Assert.assertEquals("restored", path(staticStateManager.getEntity()));
+
+			// the journal is kept in the store too
+			entity = staticStateManager.getEntity();
+			UUID fileId = UUID.randomUUID();
+			StaticFileState fileState = entity("journaled").getFileStates().values().iterator().next();
+			fileState.setStaticFileStateJson(new FileStateJsonBase());
+			entity.getFileStates().put(fileId, fileState);
+			staticStateManager.filePrepared(fileId);
+			Assert.assertNotNull(readJournal(clientId));
+			Assert.assertFalse(new File(staticStateDirectoryManager.getUUIDFileParent(clientId), FileStaticStateStore.JOURNAL_FILENAME).exists());
+			staticStateManager.cache.invalidate(clientId);
+			Assert.assertEquals("journaled", staticStateManager.getEntity().getFileStates().get(fileId).getAbsoluteFullPathOfUploadedFile());
+
+			// until it is cleared
+			staticStateManager.clear();
+			Assert.assertFalse(store.contains(clientId));
+		}
+		finally {
+			javaLargeFileUploaderService.staticStateStore = null;
+		}
+	}
+
+
+	@Test(expected = IOException.class)
+	public void testReadUnknownClient()
+			throws IOException {
+		store.read(UUID.randomUUID());
+	}
+
+}
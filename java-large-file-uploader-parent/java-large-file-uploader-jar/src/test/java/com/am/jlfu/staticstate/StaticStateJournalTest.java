@@ -0,0 +1,186 @@
+package com.am.jlfu.staticstate;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.UUID;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.am.jlfu.fileuploader.json.FileStateJsonBase;
+import com.am.jlfu.fileuploader.logic.UploadPriority;
+import com.am.jlfu.fileuploader.utils.SliceIndex;
+import com.am.jlfu.fileuploader.web.utils.RequestComponentContainer;
+import com.am.jlfu.staticstate.entities.StaticFileState;
+import com.am.jlfu.staticstate.entities.StaticStatePersistedOnFileSystemEntity;
+
+
+
+@ContextConfiguration(locations = { "classpath:jlfu.test.xml" })
+@RunWith(SpringJUnit4ClassRunner.class)
+public class StaticStateJournalTest {
+
+	@Autowired
+	StaticStateManager<StaticStatePersistedOnFileSystemEntity> staticStateManager;
+
+	@Autowired
+	StaticStateJournal<StaticStatePersistedOnFileSystemEntity> staticStateJournal;
+
+	@Autowired
+	StaticStateDirectoryManager staticStateDirectoryManager;
+
+	@Autowired
+	StaticStateIdentifierManager staticStateIdentifierManager;
+
+	@Autowired
+	RequestComponentContainer requestComponentContainer;
+
+	private int compactionThreshold;
+
+	private UUID clientId;
+
+
+
+	@Before
+	public void init() {
+		requestComponentContainer.populate(new MockHttpServletRequest(), new MockHttpServletResponse());
+		staticStateManager.init(StaticStatePersistedOnFileSystemEntity.class);
+		compactionThreshold = staticStateJournal.getCompactionThreshold();
+		clientId = staticStateIdentifierManager.getIdentifier();
+	}
+
+
+	@After
+	public void tearDown() {
+		staticStateJournal.setCompactionThreshold(compactionThreshold);
+	}
+
+
+	private UUID prepareFile(StaticStatePersistedOnFileSystemEntity entity) {
+		UUID fileId = UUID.randomUUID();
+		StaticFileState fileState = new StaticFileState();
+		FileStateJsonBase json = new FileStateJsonBase();
+		fileState.setStaticFileStateJson(json);
+		fileState.setAbsoluteFullPathOfUploadedFile("path");
+		json.setOriginalFileName("name");
+		json.setOriginalFileSizeInBytes(1000l);
+		json.setCreationDate(new Date(123456789l));
+		json.setSliceSizeInBytes(100l);
+		json.setPriority(UploadPriority.interactive);
+		entity.getFileStates().put(fileId, fileState);
+		staticStateManager.filePrepared(fileId);
+		return fileId;
+	}
+
+
+	private StaticStatePersistedOnFileSystemEntity restore() {
+		staticStateManager.cache.invalidate(clientId);
+		return staticStateManager.getEntity();
+	}
+
+
+	private File getJournalFile() {
+		return new File(staticStateDirectoryManager.getUUIDFileParent(clientId), FileStaticStateStore.JOURNAL_FILENAME);
+	}
+
+
+	@Test
+	public void testReplay() {
+		StaticStatePersistedOnFileSystemEntity entity = staticStateManager.getEntity();
+
+		// prepare two files
+		UUID fileId = prepareFile(entity);
+		UUID clearedFileId = prepareFile(entity);
+
+		// validate bytes of the first one and change its rate
+		FileStateJsonBase json = entity.getFileStates().get(fileId).getStaticFileStateJson();
+		SliceIndex.addSlice(json, 5, 55);
+		json.setCrcedBytes(200l);
+		staticStateJournal.bytesValidated(clientId, entity, fileId, 200l, Collections.singletonMap(5, 55), null);
+		json.setRateInKiloBytes(42l);
+		staticStateManager.rateChanged(fileId);
+
+		// clear the second one
+		staticStateManager.clearFile(clearedFileId);
+
+		// the snapshot has not been rewritten
+		Assert.assertTrue(getJournalFile().length() > 0);
+
+		// restore
+		StaticStatePersistedOnFileSystemEntity restored = restore();
+		Assert.assertNotSame(entity, restored);
+		Assert.assertEquals(1, restored.getFileStates().size());
+		StaticFileState fileState = restored.getFileStates().get(fileId);
+		Assert.assertEquals("path", fileState.getAbsoluteFullPathOfUploadedFile());
+		FileStateJsonBase restoredJson = fileState.getStaticFileStateJson();
+		Assert.assertEquals("name", restoredJson.getOriginalFileName());
+		Assert.assertEquals(Long.valueOf(1000l), restoredJson.getOriginalFileSizeInBytes());
+		Assert.assertEquals(new Date(123456789l), restoredJson.getCreationDate());
+		Assert.assertEquals(UploadPriority.interactive, restoredJson.getPriority());
+		Assert.assertEquals(Long.valueOf(200l), restoredJson.getCrcedBytes());
+		Assert.assertEquals(Long.valueOf(42l), restoredJson.getRateInKiloBytes());
+		Assert.assertTrue(SliceIndex.isCompleted(restoredJson, 5));
+		Assert.assertFalse(SliceIndex.isCompleted(restoredJson, 4));
+	}
+
+
+	@Test
+	public void testCompaction() {
+		staticStateJournal.setCompactionThreshold(3);
+		StaticStatePersistedOnFileSystemEntity entity = staticStateManager.getEntity();
+
+		// two records are kept in the journal
+		prepareFile(entity);
+		UUID fileId = prepareFile(entity);
+		Assert.assertTrue(getJournalFile().exists());
+
+		// the third one compacts it
+		prepareFile(entity);
+		Assert.assertFalse(getJournalFile().exists());
+
+		// the periodic compaction empties it too
+		staticStateManager.clearFile(fileId);
+		Assert.assertTrue(getJournalFile().exists());
+		staticStateJournal.compact();
+		Assert.assertFalse(getJournalFile().exists());
+
+		// and everything is in the snapshot
+		Assert.assertEquals(2, restore().getFileStates().size());
+	}
+
+
+	@Test
+	public void testPartialRecordIsDropped()
+			throws IOException {
+		StaticStatePersistedOnFileSystemEntity entity = staticStateManager.getEntity();
+		UUID fileId = prepareFile(entity);
+
+		// simulate a crash in the middle of a record
+		FileOutputStream fs = new FileOutputStream(getJournalFile(), true);
+		try {
+			fs.write(new byte[] { 0, 0, 0, 50, 1, 2, 3 });
+		}
+		finally {
+			fs.close();
+		}
+
+		// the complete records are replayed and the journal is compacted
+		Assert.assertNotNull(restore().getFileStates().get(fileId));
+		Assert.assertFalse(getJournalFile().exists());
+		Assert.assertNotNull(restore().getFileStates().get(fileId));
+	}
+
+}
@@ -0,0 +1,159 @@
+package com.am.jlfu.staticstate;
+
+
+import java.io.File;
+import java.util.Collections;
+import java.util.UUID;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.am.jlfu.fileuploader.json.FileStateJsonBase;
+import com.am.jlfu.fileuploader.utils.SliceIndex;
+import com.am.jlfu.fileuploader.web.utils.RequestComponentContainer;
+import com.am.jlfu.staticstate.entities.StaticFileState;
+import com.am.jlfu.staticstate.entities.StaticStatePersistedOnFileSystemEntity;
+
+
+
+@ContextConfiguration(locations = { "classpath:jlfu.test.xml" })
+@RunWith(SpringJUnit4ClassRunner.class)
+public class StaticStatePersistenceSchedulerTest {
+
+	@Autowired
+	StaticStateManager<StaticStatePersistedOnFileSystemEntity> staticStateManager;
+
+	@Autowired
+	StaticStatePersistenceScheduler<StaticStatePersistedOnFileSystemEntity> staticStatePersistenceScheduler;
+
+	@Autowired
+	StaticStateJournal<StaticStatePersistedOnFileSystemEntity> staticStateJournal;
+
+	@Autowired
+	StaticStateDirectoryManager staticStateDirectoryManager;
+
+	@Autowired
+	StaticStateIdentifierManager staticStateIdentifierManager;
+
+	@Autowired
+	RequestComponentContainer requestComponentContainer;
+
+	private int dirtyClientsThreshold;
+
+	private UUID clientId;
+
+
+
+	@Before
+	public void init() {
+		requestComponentContainer.populate(new MockHttpServletRequest(), new MockHttpServletResponse());
+		staticStateManager.init(StaticStatePersistedOnFileSystemEntity.class);
+		dirtyClientsThreshold = staticStatePersistenceScheduler.getDirtyClientsThreshold();
+		clientId = staticStateIdentifierManager.getIdentifier();
+	}
+
+
+	@After
+	public void tearDown() {
+		staticStatePersistenceScheduler.setDirtyClientsThreshold(dirtyClientsThreshold);
+	}
+
+
+	private UUID prepareFile(StaticStatePersistedOnFileSystemEntity entity) {
+		UUID fileId = UUID.randomUUID();
+		StaticFileState fileState = new StaticFileState();
+		FileStateJsonBase json = new FileStateJsonBase();
+		fileState.setStaticFileStateJson(json);
+		json.setOriginalFileSizeInBytes(1000l);
+		json.setSliceSizeInBytes(100l);
+		entity.getFileStates().put(fileId, fileState);
+		staticStateManager.filePrepared(fileId);
+		return fileId;
+	}
+
+
+	@Test
+	public void testCoalescing() {
+		StaticStatePersistedOnFileSystemEntity entity = staticStateManager.getEntity();
+		UUID fileId = prepareFile(entity);
+		File journalFile = new File(staticStateDirectoryManager.getUUIDFileParent(clientId), FileStaticStateStore.JOURNAL_FILENAME);
+		long journalLength = journalFile.length();
+		long coalescedWrites = staticStatePersistenceScheduler.getCoalescedWrites();
+
+		// validate three slices
+		staticStatePersistenceScheduler.bytesValidated(clientId, entity, fileId, 100, Collections.singletonMap(0, 10), null);
+		staticStatePersistenceScheduler.bytesValidated(clientId, entity, fileId, 200, Collections.singletonMap(1, 11), null);
+		staticStatePersistenceScheduler.bytesValidated(clientId, entity, fileId, 200, Collections.singletonMap(5, 15), null);
+
+		// they are merged in a single pending write
+		Assert.assertEquals(2, staticStatePersistenceScheduler.getCoalescedWrites() - coalescedWrites);
+		Assert.assertTrue(staticStatePersistenceScheduler.getQueueDepth() >= 1);
+
+		// which is committed in a single record
+		staticStatePersistenceScheduler.commit(clientId);
+		long recordLength = journalFile.length() - journalLength;
+		staticStatePersistenceScheduler.bytesValidated(clientId, entity, fileId, 300, Collections.singletonMap(2, 12), null);
+		staticStatePersistenceScheduler.commit(clientId);
+		Assert.assertTrue(journalFile.length() - journalLength - recordLength < recordLength);
+
+		// and restored
+		staticStateManager.cache.invalidate(clientId);
+		FileStateJsonBase json = staticStateManager.getEntity().getFileStates().get(fileId).getStaticFileStateJson();
+		Assert.assertEquals(Long.valueOf(300), json.getCrcedBytes());
+		Assert.assertEquals("c", SliceIndex.getCrc(json, 2));
+		Assert.assertTrue(SliceIndex.isCompleted(json, 5));
+		Assert.assertFalse(SliceIndex.isCompleted(json, 4));
+	}
+
+
+	@Test
+	public void testCommitAfterCompaction() {
+		StaticStatePersistedOnFileSystemEntity entity = staticStateManager.getEntity();
+		UUID fileId = prepareFile(entity);
+		FileStateJsonBase json = entity.getFileStates().get(fileId).getStaticFileStateJson();
+
+		// a write is pending when the file goes further and is compacted
+		json.setCrcedBytes(100l);
+		staticStatePersistenceScheduler.bytesValidated(clientId, entity, fileId, 100, Collections.singletonMap(0, 10), null);
+		json.setCrcedBytes(300l);
+		staticStateJournal.compact(clientId, entity);
+
+		// the pending write committed after the snapshot does not take it back
+		staticStatePersistenceScheduler.commit(clientId);
+
+		// and neither does an older record
+		staticStateJournal.bytesValidated(clientId, entity, fileId, 50, Collections.<Integer, Integer> emptyMap(), null);
+
+		staticStateManager.cache.invalidate(clientId);
+		json = staticStateManager.getEntity().getFileStates().get(fileId).getStaticFileStateJson();
+		Assert.assertEquals(Long.valueOf(300), json.getCrcedBytes());
+		Assert.assertTrue(SliceIndex.isCompleted(json, 0));
+	}
+
+
+	@Test
+	public void testThreshold()
+			throws InterruptedException {
+		staticStatePersistenceScheduler.setDirtyClientsThreshold(1);
+		StaticStatePersistedOnFileSystemEntity entity = staticStateManager.getEntity();
+		UUID fileId = prepareFile(entity);
+		long writes = staticStatePersistenceScheduler.getWrites();
+
+		// a dirty client triggers the commit
+		staticStatePersistenceScheduler.bytesValidated(clientId, entity, fileId, 100, Collections.<Integer, Integer> emptyMap(), null);
+		for (int i = 0; i < 100 && staticStatePersistenceScheduler.getWrites() == writes; i++) {
+			Thread.sleep(10);
+		}
+		Assert.assertTrue(staticStatePersistenceScheduler.getWrites() > writes);
+	}
+
+}
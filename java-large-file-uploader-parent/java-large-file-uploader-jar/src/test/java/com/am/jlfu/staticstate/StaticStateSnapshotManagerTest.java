@@ -0,0 +1,175 @@
+package com.am.jlfu.staticstate;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.UUID;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.am.jlfu.staticstate.entities.StaticFileState;
+import com.am.jlfu.staticstate.entities.StaticStatePersistedOnFileSystemEntity;
+import com.am.jlfu.staticstate.serialization.BinaryStaticStateCodec;
+import com.am.jlfu.staticstate.serialization.StaticStateSerializer;
+import com.am.jlfu.staticstate.serialization.XStreamStaticStateCodec;
+import com.thoughtworks.xstream.XStream;
+
+
+
+@ContextConfiguration(locations = { "classpath:jlfu.test.xml" })
+@RunWith(SpringJUnit4ClassRunner.class)
+public class StaticStateSnapshotManagerTest {
+
+	@Autowired
+	StaticStateSnapshotManager staticStateSnapshotManager;
+
+	@Autowired
+	StaticStateSerializer staticStateSerializer;
+
+	private File directory;
+
+	private File snapshotFile;
+
+
+
+	@Before
+	public void init()
+			throws IOException {
+		directory = File.createTempFile("jlfu", "snapshot");
+		directory.delete();
+		directory.mkdirs();
+		snapshotFile = new File(directory, StaticStateManager.FILENAME);
+	}
+
+
+	@After
+	public void tearDown()
+			throws IOException {
+		FileUtils.deleteDirectory(directory);
+	}
+
+
+	private StaticStatePersistedOnFileSystemEntity entity(String path) {
+		StaticStatePersistedOnFileSystemEntity entity = new StaticStatePersistedOnFileSystemEntity();
+		StaticFileState fileState = new StaticFileState();
+		fileState.setAbsoluteFullPathOfUploadedFile(path);
+		entity.getFileStates().put(UUID.randomUUID(), fileState);
+		return entity;
+	}
+
+
+	private String path(Object entity) {
+		return ((StaticStatePersistedOnFileSystemEntity) entity).getFileStates().values().iterator().next().getAbsoluteFullPathOfUploadedFile();
+	}
+
+
+	@Test
+	public void testWriteAndRead()
+			throws IOException {
+		staticStateSnapshotManager.write(snapshotFile, entity("first"));
+		staticStateSnapshotManager.write(snapshotFile, entity("second"));
+
+		Assert.assertEquals("second", path(staticStateSnapshotManager.read(snapshotFile)));
+		Assert.assertFalse(StaticStateSnapshotManager.getTemporaryFile(snapshotFile).exists());
+		Assert.assertEquals("first", path(staticStateSnapshotManager.read(StaticStateSnapshotManager.getBackupFile(snapshotFile))));
+	}
+
+
+	@Test
+	public void testPartialSnapshotFallsBackToBackup()
+			throws IOException {
+		staticStateSnapshotManager.write(snapshotFile, entity("first"));
+		staticStateSnapshotManager.write(snapshotFile, entity("second"));
+
+		// truncate the snapshot
+		RandomAccessFile randomAccessFile = new RandomAccessFile(snapshotFile, "rw");
+		try {
+			randomAccessFile.setLength(randomAccessFile.length() / 2);
+		}
+		finally {
+			randomAccessFile.close();
+		}
+
+		Assert.assertEquals("first", path(staticStateSnapshotManager.read(snapshotFile)));
+	}
+
+
+	@Test
+	public void testCrashBetweenTheRenames()
+			throws IOException {
+		staticStateSnapshotManager.write(snapshotFile, entity("first"));
+		staticStateSnapshotManager.write(snapshotFile, entity("second"));
+
+		// the snapshot has been moved to the backup but the temporary file has not replaced it
+		File temporaryFile = StaticStateSnapshotManager.getTemporaryFile(snapshotFile);
+		File backupFile = StaticStateSnapshotManager.getBackupFile(snapshotFile);
+		backupFile.delete();
+		snapshotFile.renameTo(backupFile);
+		staticStateSnapshotManager.write(temporaryFile, entity("third"));
+
+		Assert.assertTrue(staticStateSnapshotManager.exists(snapshotFile));
+		Assert.assertEquals("third", path(staticStateSnapshotManager.read(snapshotFile)));
+	}
+
+
+	@Test
+	public void testLegacySnapshot()
+			throws IOException {
+		FileOutputStream fs = new FileOutputStream(snapshotFile);
+		try {
+			new XStream().toXML(entity("legacy"), fs);
+		}
+		finally {
+			fs.close();
+		}
+
+		Assert.assertEquals("legacy", path(staticStateSnapshotManager.read(snapshotFile)));
+	}
+
+
+	@Test
+	public void testBinarySnapshot()
+			throws IOException {
+		staticStateSerializer.setCodec(BinaryStaticStateCodec.NAME);
+		try {
+			staticStateSnapshotManager.write(snapshotFile, entity("binary"));
+		}
+		finally {
+			staticStateSerializer.setCodec(XStreamStaticStateCodec.NAME);
+		}
+
+		// it is read whatever the configuration
+		Assert.assertEquals("binary", path(staticStateSnapshotManager.read(snapshotFile)));
+	}
+
+
+	@Test(expected = IOException.class)
+	public void testDamagedSnapshotWithoutBackup()
+			throws IOException {
+		staticStateSnapshotManager.write(snapshotFile, entity("first"));
+
+		// change a byte of the content
+		RandomAccessFile randomAccessFile = new RandomAccessFile(snapshotFile, "rw");
+		try {
+			randomAccessFile.seek(randomAccessFile.length() - 3);
+			randomAccessFile.write('x');
+		}
+		finally {
+			randomAccessFile.close();
+		}
+
+		staticStateSnapshotManager.read(snapshotFile);
+	}
+
+}
@@ -0,0 +1,106 @@
+package com.am.jlfu.staticstate.serialization;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.am.jlfu.staticstate.entities.StaticStatePersistedOnFileSystemEntity;
+import com.thoughtworks.xstream.XStream;
+
+
+
+/**
+ * Measures the cost of writing and reading an entity per number of files, with a new
+ * {@link XStream} per call as the static state used to do, with the shared
+ * {@link XStreamStaticStateCodec} and with the {@link BinaryStaticStateCodec}.<br>
+ * Not a test: run it with the test classpath.
+ *
+ * @author antoinem
+ *
+ */
+public class StaticStateSerializerBenchmark {
+
+	private static final int[] FILES = { 1, 10, 100, 1000 };
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int MEASURED_ROUNDS = 5;
+	private static final long ROUND_DURATION_IN_MILLISECONDS = 500;
+
+
+
+	public static void main(String[] args)
+			throws IOException {
+		StaticStateCodec newXStream = new XStreamStaticStateCodec() {
+
+			@Override
+			public void write(Object entity, OutputStream out) {
+				new XStream().toXML(entity, out);
+			}
+
+
+			@Override
+			public Object read(InputStream in) {
+				return new XStream().fromXML(in);
+			}
+		};
+		StaticStateCodec[] codecs = { newXStream, new XStreamStaticStateCodec(), new BinaryStaticStateCodec() };
+		String[] names = { "new XStream", "shared XStream", "binary" };
+
+		System.out.println("microseconds per write / read, and size in bytes:");
+		for (int files : FILES) {
+			StaticStatePersistedOnFileSystemEntity entity = StaticStateSerializerTest.createEntity(new StaticStatePersistedOnFileSystemEntity(), files);
+			for (int c = 0; c < codecs.length; c++) {
+				double write = 0;
+				double read = 0;
+				int size = 0;
+				for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					codecs[c].write(entity, out);
+					byte[] bytes = out.toByteArray();
+					size = bytes.length;
+					double roundWrite = measureWrite(codecs[c], entity);
+					double roundRead = measureRead(codecs[c], bytes);
+					if (round >= WARMUP_ROUNDS) {
+						write += roundWrite / MEASURED_ROUNDS;
+						read += roundRead / MEASURED_ROUNDS;
+					}
+				}
+				System.out.println(files + " files, " + names[c] + ": " + Math.round(write) + " / " + Math.round(read) + ", " + size);
+			}
+		}
+	}
+
+
+	private static double measureWrite(StaticStateCodec codec, Object entity)
+			throws IOException {
+		long start = System.nanoTime();
+		long stopAt = start + ROUND_DURATION_IN_MILLISECONDS * 1000000;
+		long count = 0;
+		long now;
+		do {
+			codec.write(entity, new ByteArrayOutputStream());
+			count++;
+		}
+		while ((now = System.nanoTime()) < stopAt);
+		return (now - start) / 1e3 / count;
+	}
+
+
+	private static double measureRead(StaticStateCodec codec, byte[] bytes)
+			throws IOException {
+		long start = System.nanoTime();
+		long stopAt = start + ROUND_DURATION_IN_MILLISECONDS * 1000000;
+		long count = 0;
+		long now;
+		Object sink = null;
+		do {
+			sink = codec.read(new ByteArrayInputStream(bytes));
+			count++;
+		}
+		while ((now = System.nanoTime()) < stopAt);
+		return (now - start) / 1e3 / (count + (sink == null ? 1 : 0));
+	}
+
+}
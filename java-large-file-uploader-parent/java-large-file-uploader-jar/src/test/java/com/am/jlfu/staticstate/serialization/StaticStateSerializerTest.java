@@ -0,0 +1,145 @@
+package com.am.jlfu.staticstate.serialization;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.UUID;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import com.am.jlfu.fileuploader.checksum.ChecksumAlgorithm;
+import com.am.jlfu.fileuploader.json.FileStateJsonBase;
+import com.am.jlfu.fileuploader.logic.UploadPriority;
+import com.am.jlfu.fileuploader.utils.SliceIndex;
+import com.am.jlfu.staticstate.entities.StaticFileState;
+import com.am.jlfu.staticstate.entities.StaticStatePersistedOnFileSystemEntity;
+
+
+
+@ContextConfiguration(locations = { "classpath:jlfu.test.xml" })
+@RunWith(SpringJUnit4ClassRunner.class)
+public class StaticStateSerializerTest {
+
+	@Autowired
+	StaticStateSerializer staticStateSerializer;
+
+	private String codec;
+
+
+
+	public static class CustomEntity extends StaticStatePersistedOnFileSystemEntity {
+
+		private static final long serialVersionUID = 1L;
+	}
+
+
+
+	@Before
+	public void init() {
+		codec = staticStateSerializer.getCodec();
+	}
+
+
+	@After
+	public void tearDown() {
+		staticStateSerializer.setCodec(codec);
+	}
+
+
+	static StaticStatePersistedOnFileSystemEntity createEntity(StaticStatePersistedOnFileSystemEntity entity, int files) {
+		for (int i = 0; i < files; i++) {
+			StaticFileState fileState = new StaticFileState();
+			FileStateJsonBase json = new FileStateJsonBase();
+			fileState.setStaticFileStateJson(json);
+			fileState.setAbsoluteFullPathOfUploadedFile("/uploads/" + i);
+			json.setOriginalFileName("file" + i);
+			json.setOriginalFileSizeInBytes(10000000l);
+			json.setCreationDate(new Date(1000000l + i));
+			json.setCrcedBytes(100000l * i);
+			json.setFirstChunkCrc("abcdef");
+			json.setSliceSizeInBytes(1000000l);
+			json.setChecksumAlgorithm(ChecksumAlgorithm.crc32);
+			json.setPriority(UploadPriority.bulk);
+			SliceIndex.addSlice(json, 7, i);
+			entity.getFileStates().put(UUID.randomUUID(), fileState);
+		}
+		return entity;
+	}
+
+
+	private Object roundTrip(StaticStateCodec codec, Object entity)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		codec.write(entity, out);
+		return codec.read(new ByteArrayInputStream(out.toByteArray()));
+	}
+
+
+	private void assertEquals(StaticStatePersistedOnFileSystemEntity expected, StaticStatePersistedOnFileSystemEntity actual) {
+		Assert.assertEquals(expected.getFileStates().keySet(), actual.getFileStates().keySet());
+		for (UUID fileId : expected.getFileStates().keySet()) {
+			StaticFileState expectedState = expected.getFileStates().get(fileId);
+			StaticFileState actualState = actual.getFileStates().get(fileId);
+			Assert.assertEquals(expectedState.getAbsoluteFullPathOfUploadedFile(), actualState.getAbsoluteFullPathOfUploadedFile());
+			FileStateJsonBase expectedJson = expectedState.getStaticFileStateJson();
+			FileStateJsonBase actualJson = actualState.getStaticFileStateJson();
+			Assert.assertEquals(expectedJson.getOriginalFileName(), actualJson.getOriginalFileName());
+			Assert.assertEquals(expectedJson.getOriginalFileSizeInBytes(), actualJson.getOriginalFileSizeInBytes());
+			Assert.assertEquals(expectedJson.getCreationDate(), actualJson.getCreationDate());
+			Assert.assertEquals(expectedJson.getRateInKiloBytes(), actualJson.getRateInKiloBytes());
+			Assert.assertEquals(expectedJson.getCrcedBytes(), actualJson.getCrcedBytes());
+			Assert.assertEquals(expectedJson.getFirstChunkCrc(), actualJson.getFirstChunkCrc());
+			Assert.assertEquals(expectedJson.getSliceSizeInBytes(), actualJson.getSliceSizeInBytes());
+			Assert.assertEquals(SliceIndex.getCrc(expectedJson, 7), SliceIndex.getCrc(actualJson, 7));
+			Assert.assertEquals(expectedJson.getChecksumAlgorithm(), actualJson.getChecksumAlgorithm());
+			Assert.assertEquals(expectedJson.getSha256(), actualJson.getSha256());
+			Assert.assertEquals(expectedJson.getPriority(), actualJson.getPriority());
+		}
+	}
+
+
+	@Test
+	public void testCodecs()
+			throws IOException {
+		StaticStatePersistedOnFileSystemEntity entity = createEntity(new StaticStatePersistedOnFileSystemEntity(), 3);
+		assertEquals(entity, (StaticStatePersistedOnFileSystemEntity) roundTrip(new XStreamStaticStateCodec(), entity));
+		assertEquals(entity, (StaticStatePersistedOnFileSystemEntity) roundTrip(new BinaryStaticStateCodec(), entity));
+	}
+
+
+	@Test
+	public void testBinaryCodecFallsBackToXml()
+			throws IOException {
+		staticStateSerializer.setCodec(BinaryStaticStateCodec.NAME);
+		Assert.assertEquals(BinaryStaticStateCodec.NAME, staticStateSerializer.getCodecFor(new StaticStatePersistedOnFileSystemEntity()).getName());
+		Assert.assertEquals(XStreamStaticStateCodec.NAME, staticStateSerializer.getCodecFor(new CustomEntity()).getName());
+	}
+
+
+	@Test(expected = IOException.class)
+	public void testUnsupportedSchemaVersion()
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new BinaryStaticStateCodec().write(new StaticStatePersistedOnFileSystemEntity(), out);
+		byte[] bytes = out.toByteArray();
+		bytes[5] = BinaryStaticStateCodec.SCHEMA_VERSION + 1;
+		new BinaryStaticStateCodec().read(new ByteArrayInputStream(bytes));
+	}
+
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownCodec() {
+		staticStateSerializer.setCodec("unknown");
+	}
+
+}
@@ -6,12 +6,16 @@ function JavaLargeFileUploader() {
 	var uploadServletMapping = "javaLargeFileUploaderAsyncServlet";
 	var pendingFiles = new Object();
 	var bytesPerChunk;
+	var checksumAlgorithm = "crc32";
 
 	javaLargeFileUploaderHost = "";
 	progressPollerRefreshRate = 1000;
 	maxNumberOfConcurrentUploads = 5; 
 	autoRetry = true; 
 	autoRetryDelay = 5000; 
+	rawUpload = false;
+	parallelSlices = 1;
+	checksumAlgorithms = ["crc32"];
 	errorMessages = new Object();
 	errorMessages[0] = "Request failed for an unknown reason, please contact an administrator if the problem persists.";
 	errorMessages[1] = "The request is not multipart.";
@@ -30,7 +34,10 @@ function JavaLargeFileUploader() {
 	errorMessages[14] = "File corrupted. An unknown error has occured and the file is corrupted. The usual cause is that the file has been modified during the upload. Please clear it and re-upload it.";
 	errorMessages[15] = "File is currently locked, retrying in a moment...";
 	errorMessages[16] = "Uploads are momentarily disabled, retrying in a moment...";
-	exceptionsRetryable = [0,3,7,8,10,11,15,16];
+	errorMessages[17] = "The slice does not start where the upload stopped, resuming from the right position...";
+	errorMessages[18] = "The storage is momentarily overloaded, retrying in a moment...";
+	errorMessages[19] = "Too many chunks are being uploaded at the same time, retrying in a moment...";
+	exceptionsRetryable = [0,3,7,8,10,11,15,16,17,18,19];
 	
 	this.setJavaLargeFileUploaderHost = function (javaLargeFileUploaderHostI) {
 		javaLargeFileUploaderHost = javaLargeFileUploaderHostI;
@@ -53,6 +60,28 @@ function JavaLargeFileUploader() {
 		autoRetryDelay = autoRetryDelayI;
 	};
 	
+	/*
+	 * If true, the slices are sent as the raw body of the requests instead of being wrapped in a multipart form.
+	 */
+	this.setRawUpload = function (rawUploadBoolean) {
+		rawUpload = rawUploadBoolean;
+	};
+	
+	/*
+	 * If more than 1, that number of slices of a file are uploaded at the same time, in any order.
+	 */
+	this.setParallelSlices = function (parallelSlicesI) {
+		parallelSlices = parallelSlicesI;
+	};
+	
+	/*
+	 * The checksum algorithms that can be used to validate the slices, by order of preference ("crc32" and "adler32").
+	 * The server chooses the first one it allows.
+	 */
+	this.setChecksumAlgorithms = function (checksumAlgorithmsI) {
+		checksumAlgorithms = checksumAlgorithmsI;
+	};
+	
 	this.initialize = function (initializationCallback, exceptionCallback, optionalClientOrJobIdentifier) {
 		
 		//if an id is specified
@@ -65,9 +94,11 @@ function JavaLargeFileUploader() {
 		manageFirebug(exceptionCallback);
 		
 		// get the configuration
+		appended += "&checksumAlgorithms=" + checksumAlgorithms.join(",");
 		$.get(javaLargeFileUploaderHost + globalServletMapping + "?action=getConfig" + appended, function(data) {
 			if (data) {
 				bytesPerChunk = data.inByte;
+				checksumAlgorithm = data.checksumAlgorithm || "crc32";
 	
 				// adjust values to display
 				if (!jQuery.isEmptyObject(data.pendingFiles)) {
@@ -183,6 +214,11 @@ function JavaLargeFileUploader() {
 		if (pendingFile.xhr) {
 			pendingFile.xhr.abort();
 		}
+		if (pendingFile.xhrs) {
+			for (var i in pendingFile.xhrs) {
+				pendingFile.xhrs[i].abort();
+			}
+		}
 		if (forPauseBool) {
 			setTimeout(function() {
 				//if still paused after a certain delay, we unblock it
@@ -272,6 +308,8 @@ function JavaLargeFileUploader() {
 				//populate crc data
 				pendingFile.crcedBytes = data.crcedBytes;
 				pendingFile.fileCompletionInBytes = data.fileCompletionInBytes;
+				pendingFile.sliceSizeInBytes = data.sliceSizeInBytes;
+				pendingFile.completedSlices = data.completedSlices;
 					
 				//try to validate the unvalidated chunks and resume it
 				fileResumeProcessStarter(pendingFile);
@@ -384,6 +422,8 @@ function JavaLargeFileUploader() {
 		        			//populate stuff retrieved in initialization 
 		        			pendingFile.fileCompletionInBytes = pendingFileToCheck.fileCompletionInBytes;
 		        			pendingFile.crcedBytes = pendingFileToCheck.crcedBytes;
+		        			pendingFile.sliceSizeInBytes = pendingFileToCheck.sliceSizeInBytes;
+		        			pendingFile.completedSlices = pendingFileToCheck.completedSlices;
 		        			pendingFile.firstChunkCrc = pendingFileToCheck.firstChunkCrc;
 		        			pendingFile.started = pendingFileToCheck.started;
 		        			pendingFile.id = pendingFileToCheck.id;
@@ -487,6 +527,8 @@ function JavaLargeFileUploader() {
 			fileForPost.tempId=newFilesIds;
 			fileForPost.fileName=pendingFile.originalFileName;
 			fileForPost.size=pendingFile.originalFileSizeInBytes;
+			fileForPost.checksumAlgorithm=checksumAlgorithm;
+			pendingFile.checksumAlgorithm=checksumAlgorithm;
 			jsonVersionOfNewFiles[fileForPost.tempId]=fileForPost;
 			pendingFiles[fileForPost.tempId]=pendingFile;
 			newFilesIds++;
@@ -547,10 +589,10 @@ function JavaLargeFileUploader() {
 			reader.onloadend = function(e) {
 			    if (e.target.readyState == FileReader.DONE) { // DONE == 2
 					//calculate crc of the chunk read
-			        var digest = crc32(e.target.result);
+			        var digest = checksum(pendingFile, e.target.result);
 
 			        //and send it
-					$.get(javaLargeFileUploaderHost + globalServletMapping + "?action=verifyCrcOfUncheckedPart&fileId=" + pendingFile.id + "&crc=" + decimalToHexString(digest),	function(data) {
+					$.get(javaLargeFileUploaderHost + globalServletMapping + "?action=verifyCrcOfUncheckedPart&fileId=" + pendingFile.id + "&crc=" + digest,	function(data) {
 						//check if we have an exception
 						if (data.value) {
 							displayException(pendingFile, data.value);
@@ -622,7 +664,11 @@ function JavaLargeFileUploader() {
 				console.log("processing "+pendingFile.id+" for slice "+pendingFile.fileCompletionInBytes + " - "+pendingFile.end);
 
 				// then process the recursive function
-				go(pendingFile);
+				if (parallelSlices > 1) {
+					goParallel(pendingFile);
+				} else {
+					go(pendingFile);
+				}
 
 			} else {
 				//queue it
@@ -662,17 +708,14 @@ function JavaLargeFileUploader() {
 	
 		//if file id is in the pending files:
 		var chunk = slice(pendingFile.blob, pendingFile.fileCompletionInBytes, pendingFile.end);
-	
-		//append chunk to a formdata
-		var formData = new FormData();
-		formData.append("file", chunk);
+		var offset = pendingFile.fileCompletionInBytes;
 	
 		// prepare the checksum of the slice
 		var reader = new FileReader();
 		reader.onloadend = function(e) {
 		    if (e.target.readyState == FileReader.DONE) { // DONE == 2
 				//calculate crc of the chunk read
-		        var digest = crc32(e.target.result);
+		        var digest = checksum(pendingFile, e.target.result);
 		
 				// prepare xhr request
 				var xhr = new XMLHttpRequest();
@@ -684,7 +727,21 @@ function JavaLargeFileUploader() {
 				}, false);
 				
 				//then open
-				xhr.open('POST', javaLargeFileUploaderHost + uploadServletMapping + '?action=upload&fileId=' + pendingFile.id + '&crc=' + decimalToHexString(digest), true);
+				var body;
+				if (rawUpload) {
+					//the chunk is the body, described by headers
+					xhr.open('POST', javaLargeFileUploaderHost + uploadServletMapping + '?action=uploadRaw', true);
+					xhr.setRequestHeader("Content-Type", "application/octet-stream");
+					xhr.setRequestHeader("X-JLFU-File-Id", pendingFile.id);
+					xhr.setRequestHeader("X-JLFU-Offset", offset);
+					xhr.setRequestHeader("X-JLFU-Crc", digest);
+					body = chunk;
+				} else {
+					//append chunk to a formdata
+					xhr.open('POST', javaLargeFileUploaderHost + uploadServletMapping + '?action=upload&fileId=' + pendingFile.id + '&crc=' + digest + '&offset=' + offset, true);
+					body = new FormData();
+					body.append("file", chunk);
+				}
 		
 				// assign callback
 				xhr.onreadystatechange = function() {
@@ -743,7 +800,7 @@ function JavaLargeFileUploader() {
 					if (pendingFiles[pendingFile.id]) {
 						//and if we are not pausing or cancelling
 						if (!isFilePaused(pendingFile) && !pendingFile.cancelled) {
-							xhr.send(formData);
+							xhr.send(body);
 						}
 					}
 				} catch (e) {
@@ -764,6 +821,172 @@ function JavaLargeFileUploader() {
 	
 	}
 	
+	function goParallel(pendingFile) {
+		
+		//every time a file is being uplodaed, we check for firebug !
+		manageFirebug(pendingFile.exceptionCallback);
+		
+		//list the slices that are not completed
+		pendingFile.sliceSizeInBytes = pendingFile.sliceSizeInBytes || bytesPerChunk;
+		var numberOfSlices = Math.ceil(pendingFile.originalFileSizeInBytes / pendingFile.sliceSizeInBytes);
+		if (!pendingFile.completedSlices) {
+			pendingFile.completedSlices = [];
+		}
+		pendingFile.slicesToUpload = [];
+		for (var i = Math.floor(pendingFile.fileCompletionInBytes / pendingFile.sliceSizeInBytes); i < numberOfSlices; i++) {
+			if (!isSliceCompleted(pendingFile, i)) {
+				pendingFile.slicesToUpload.push(i);
+			}
+		}
+		pendingFile.slicesInProgress = 0;
+		pendingFile.xhrs = [];
+		
+		//a new generation of requests, the callbacks of the previous ones are ignored
+		pendingFile.generation = (pendingFile.generation || 0) + 1;
+		
+		//and start uploading them
+		for (var j = 0; j < parallelSlices; j++) {
+			goSlice(pendingFile, pendingFile.generation);
+		}
+	}
+	
+	function goSlice(pendingFile, generation) {
+		
+		//if there is no more slice to start
+		if (pendingFile.slicesToUpload.length === 0) {
+			return;
+		}
+		
+		//take the next one
+		var sliceIndex = pendingFile.slicesToUpload.shift();
+		var offset = sliceIndex * pendingFile.sliceSizeInBytes;
+		var chunk = slice(pendingFile.blob, offset, Math.min(offset + pendingFile.sliceSizeInBytes, pendingFile.originalFileSizeInBytes));
+		pendingFile.slicesInProgress++;
+		
+		// prepare the checksum of the slice
+		var reader = new FileReader();
+		reader.onloadend = function(e) {
+		    if (e.target.readyState == FileReader.DONE) { // DONE == 2
+				//calculate crc of the chunk read
+		        var digest = checksum(pendingFile, e.target.result);
+		
+				// prepare xhr request
+				var xhr = new XMLHttpRequest();
+				pendingFile.xhrs.push(xhr);
+				
+				//assign pause callback
+				xhr.addEventListener("abort", function(event) {
+					if (!pendingFile.paused) {
+						notifyPause(pendingFile);
+					}
+				}, false);
+				
+				//then open, with the offset of the slice
+				var body;
+				if (rawUpload) {
+					xhr.open('POST', javaLargeFileUploaderHost + uploadServletMapping + '?action=uploadRaw', true);
+					xhr.setRequestHeader("Content-Type", "application/octet-stream");
+					xhr.setRequestHeader("X-JLFU-File-Id", pendingFile.id);
+					xhr.setRequestHeader("X-JLFU-Offset", offset);
+					xhr.setRequestHeader("X-JLFU-Crc", digest);
+					body = chunk;
+				} else {
+					xhr.open('POST', javaLargeFileUploaderHost + uploadServletMapping + '?action=upload&fileId=' + pendingFile.id + '&crc=' + digest + '&offset=' + offset, true);
+					body = new FormData();
+					body.append("file", chunk);
+				}
+		
+				// assign callback
+				xhr.onreadystatechange = function() {
+					if (xhr.readyState == 4) {
+		
+						//if we are pausing or cancelling, or if another slice failed, we just return
+						if (pendingFile.pausing || pendingFile.cancelled || generation !== pendingFile.generation) {
+							return;
+						}
+						
+						//if we have an exception, stop the other slices and retry
+						var errorMessageId;
+						if (xhr.status != 200) {
+							errorMessageId = 8;
+						} else if (xhr.response) {
+							errorMessageId = JSON.parse(xhr.response).value;
+						}
+						if (errorMessageId !== undefined) {
+							pendingFile.generation++;
+							abort(pendingFile, false);
+							displayException(pendingFile, errorMessageId);
+							if (autoRetry && isExceptionRetryable(errorMessageId)) {
+								//submit retry
+								retryStart(pendingFile);
+							}
+							uploadEnd(pendingFile, true);
+							return;
+						}
+		
+						// progress
+						pendingFile.slicesInProgress--;
+						setSliceCompleted(pendingFile, sliceIndex);
+		
+						// check if we need to go on
+						if (pendingFile.slicesToUpload.length > 0) {
+							setTimeout(goSlice, 5, pendingFile, generation);
+						} else if (pendingFile.slicesInProgress === 0) {
+							pendingFile.fileComplete=true;
+							uploadEnd(pendingFile, false);
+							// finish callback
+							if (pendingFile.finishCallback) {
+								pendingFile.finishCallback(pendingFile, pendingFile.referenceToFileElement);
+							}
+						}
+					}
+				};
+		
+				// send xhr request
+				try {
+					//only send if it is pending, because it could have been asked for cancellation while we were reading the file!
+					if (pendingFiles[pendingFile.id] && generation === pendingFile.generation) {
+						//and if we are not pausing or cancelling
+						if (!isFilePaused(pendingFile) && !pendingFile.cancelled) {
+							xhr.send(body);
+						}
+					}
+				} catch (e) {
+					pendingFile.generation++;
+					abort(pendingFile, false);
+					uploadEnd(pendingFile, true);
+					displayException(pendingFile, 8);
+					if (autoRetry) {
+						//submit retry
+						retryStart(pendingFile);
+					}
+					return;
+				}
+		    }
+			
+		};
+		//read the chunk to calculate the crc
+		reader.readAsBinaryString(chunk);
+	}
+	
+	/*
+	 * The completed slices are stored in a bitmap of 32 bits words, as it is on the server.
+	 */
+	function isSliceCompleted(pendingFile, sliceIndex) {
+		return ((pendingFile.completedSlices[sliceIndex >> 5] || 0) & (1 << (sliceIndex & 31))) !== 0;
+	}
+	
+	function setSliceCompleted(pendingFile, sliceIndex) {
+		pendingFile.completedSlices[sliceIndex >> 5] = (pendingFile.completedSlices[sliceIndex >> 5] || 0) | (1 << (sliceIndex & 31));
+		
+		//the completion is the one of the first contiguous slices
+		var firstNotCompleted = 0;
+		while (firstNotCompleted * pendingFile.sliceSizeInBytes < pendingFile.originalFileSizeInBytes && isSliceCompleted(pendingFile, firstNotCompleted)) {
+			firstNotCompleted++;
+		}
+		pendingFile.fileCompletionInBytes = Math.min(firstNotCompleted * pendingFile.sliceSizeInBytes, pendingFile.originalFileSizeInBytes);
+	}
+	
 	function uploadEnd(pendingFile, withException) {
 		
 		//the file is not started anymore
@@ -951,6 +1174,32 @@ function JavaLargeFileUploader() {
             return crc ^ (-1);
     }
 	
+	/* Number */
+	function adler32( /* String */ str) {
+		var a = 1;
+		var b = 0;
+		for (var i = 0, iTop = str.length; i < iTop;) {
+			//the modulo can be deferred for 5552 bytes
+			for (var end = Math.min(i + 5552, iTop); i < end; i++) {
+				a += str.charCodeAt(i) & 0xFF;
+				b += a;
+			}
+			a %= 65521;
+			b %= 65521;
+		}
+		return ((b << 16) | a) >>> 0;
+	}
+	
+	/*
+	 * Returns the checksum of the string as an hexadecimal string, computed with the algorithm of the file.
+	 */
+	function checksum(pendingFile, str) {
+		if (pendingFile.checksumAlgorithm == "adler32") {
+			return decimalToHexString(adler32(str));
+		}
+		return decimalToHexString(crc32(str));
+	}
+	
 	function decimalToHexString(number) {
 	    if (number < 0) {
 	        number = 0xFFFFFFFF + number + 1;